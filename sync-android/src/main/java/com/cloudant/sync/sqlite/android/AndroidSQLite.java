@@ -105,6 +105,14 @@ public class AndroidSQLite extends SQLDatabase {
         this.database.execSQL(sql, bindArgs);
     }
 
+    @Override
+    public void rollbackToSavepoint(String name) throws SQLException {
+        // Before API 28, SQLiteDatabase.execSQL treats any statement starting with "ROL" as
+        // a ROLLBACK of the whole transaction. SQLite skips the empty statement before the
+        // semicolon, so this only rolls back to the savepoint.
+        this.database.execSQL(";ROLLBACK TO SAVEPOINT " + name);
+    }
+
     @Override
     public int getVersion() {
         return this.database.getVersion();
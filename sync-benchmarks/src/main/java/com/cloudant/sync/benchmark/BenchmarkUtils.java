@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.benchmark;
+
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DocumentBody;
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.DocumentException;
+import com.cloudant.sync.datastore.DocumentRevisionBuilder;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+public final class BenchmarkUtils {
+
+    private static final String[] PETS = { "cat", "dog", "fish", "parrot" };
+
+    private BenchmarkUtils() {
+        /* prevent instances of this class being constructed */
+    }
+
+    /**
+     * Returns a new empty temporary directory for a benchmark's datastores.
+     */
+    public static File createTempDirectory() {
+        return Files.createTempDir();
+    }
+
+    /**
+     * Deletes a directory created by {@link #createTempDirectory()}.
+     */
+    public static void deleteTempDirectory(File directory) {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * Returns a fixture file, from the directory given by the
+     * {@code benchmark.fixture.dir} system property.
+     */
+    public static File fixture(String name) {
+        return new File(System.getProperty("benchmark.fixture.dir", "fixture"), name);
+    }
+
+    /**
+     * Returns the body of the {@code i}th generated document. Bodies are small,
+     * with a few fields of different types which queries can select on.
+     */
+    public static Map<String, Object> createBodyMap(int i) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "mike" + (i % 50));
+        map.put("age", i % 100);
+        map.put("pet", PETS[i % PETS.length]);
+        map.put("index", i);
+        return map;
+    }
+
+    public static DocumentBody createBody(int i) {
+        return DocumentBodyFactory.create(createBodyMap(i));
+    }
+
+    /**
+     * Creates {@code count} generated documents.
+     *
+     * @return the created revisions, in order
+     */
+    public static List<BasicDocumentRevision> createDocuments(Datastore datastore, int count)
+            throws DocumentException {
+        List<BasicDocumentRevision> revisions = new ArrayList<BasicDocumentRevision>(count);
+        for (int i = 0; i < count; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = createBody(i);
+            revisions.add(datastore.createDocumentFromRevision(rev));
+        }
+        return revisions;
+    }
+
+    /**
+     * Returns a revision history of {@code length} revisions, from generation 1 up.
+     */
+    public static String[] createRevisionHistory(String docId, int length) {
+        String[] history = new String[length];
+        for (int i = 0; i < length; i++) {
+            history[i] = String.format("%d-%032x", i + 1, (docId.hashCode() * 31L + i) & 0xffffffffL);
+        }
+        return history;
+    }
+
+    /**
+     * Inserts a document with a revision history of {@code length} revisions, as
+     * pull replication would. The body is the {@code bodyIndex}th generated body.
+     *
+     * @return the ID of the document
+     */
+    public static String forceInsertDocument(DatastoreExtended datastore, String docId,
+                                             int length, int bodyIndex)
+            throws DocumentException {
+        String[] history = createRevisionHistory(docId, length);
+        BasicDocumentRevision rev = new DocumentRevisionBuilder()
+                .setDocId(docId)
+                .setRevId(history[length - 1])
+                .setBody(createBody(bodyIndex))
+                .build();
+        datastore.forceInsert(rev, history);
+        return docId;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.benchmark;
+
+import com.cloudant.mazha.ChangesResult;
+import com.cloudant.mazha.json.JSONHelper;
+import com.google.common.io.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a changes feed of 10,000 rows, as pull replication does for each
+ * response from the remote database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChangesResultParsingBenchmark {
+
+    private final JSONHelper jsonHelper = new JSONHelper();
+
+    private byte[] feed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        feed = Files.toByteArray(BenchmarkUtils.fixture("10K_changes_feeds.json"));
+    }
+
+    @Benchmark
+    public ChangesResult parseChangesFeed() {
+        return jsonHelper.fromJson(new InputStreamReader(new ByteArrayInputStream(feed)),
+                ChangesResult.class);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.benchmark;
+
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.datastore.DocumentWriteResult;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.cloudant.sync.sqlite.DurabilityPolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating and updating single documents, and creating documents in
+ * batches of {@value #BATCH_SIZE}.
+ *
+ * Updates go round-robin over a fixed set of documents, so each document's
+ * revision tree grows slowly over the run.
+ *
+ * The {@code durability} parameter selects the datastore's durability policy:
+ * SQLite's defaults, or a write-ahead log with {@code synchronous} set to
+ * NORMAL or OFF.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DocumentCrudBenchmark {
+
+    private static final int UPDATED_DOCUMENTS = 1000;
+
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"default", "wal-normal", "wal-off"})
+    public String durability;
+
+    private File directory;
+    private Datastore datastore;
+    private BasicDocumentRevision[] documents;
+    private int counter = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = BenchmarkUtils.createTempDirectory();
+        datastore = new DatastoreManager(directory).openDatastore("benchmark",
+                createDurabilityPolicy(durability));
+        List<BasicDocumentRevision> created =
+                BenchmarkUtils.createDocuments(datastore, UPDATED_DOCUMENTS);
+        documents = created.toArray(new BasicDocumentRevision[created.size()]);
+    }
+
+    static DurabilityPolicy createDurabilityPolicy(String name) {
+        DurabilityPolicy policy = new DurabilityPolicy();
+        if ("wal-normal".equals(name)) {
+            policy.journalMode = DurabilityPolicy.JournalMode.WAL;
+            policy.synchronous = DurabilityPolicy.Synchronous.NORMAL;
+        } else if ("wal-off".equals(name)) {
+            policy.journalMode = DurabilityPolicy.JournalMode.WAL;
+            policy.synchronous = DurabilityPolicy.Synchronous.OFF;
+        } else if (!"default".equals(name)) {
+            throw new IllegalArgumentException("Unknown durability policy " + name);
+        }
+        return policy;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        datastore.close();
+        BenchmarkUtils.deleteTempDirectory(directory);
+    }
+
+    @Benchmark
+    public BasicDocumentRevision createDocument() throws Exception {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.body = BenchmarkUtils.createBody(counter++);
+        return datastore.createDocumentFromRevision(rev);
+    }
+
+    @Benchmark
+    public BasicDocumentRevision updateDocument() throws Exception {
+        int i = counter++ % documents.length;
+        MutableDocumentRevision rev = documents[i].mutableCopy();
+        rev.body = BenchmarkUtils.createBody(counter);
+        documents[i] = datastore.updateDocumentFromRevision(rev);
+        return documents[i];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<DocumentWriteResult> createDocumentsBatch() throws Exception {
+        List<MutableDocumentRevision> revs = new ArrayList<MutableDocumentRevision>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = BenchmarkUtils.createBody(counter++);
+            revs.add(rev);
+        }
+        return datastore.createDocumentsFromRevisions(revs);
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.benchmark;
+
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DatastoreManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the current revision of documents by ID, round-robin over a fixed
+ * set of documents, with the document cache disabled or large enough to hold
+ * them all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DocumentReadBenchmark {
+
+    private static final int DOCUMENTS = 500;
+
+    @Param({"0", "1000"})
+    public int cacheSize;
+
+    private File directory;
+    private Datastore datastore;
+    private String[] ids;
+    private int counter = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = BenchmarkUtils.createTempDirectory();
+        datastore = new DatastoreManager(directory).openDatastore("benchmark");
+        List<BasicDocumentRevision> created = BenchmarkUtils.createDocuments(datastore, DOCUMENTS);
+        ids = new String[created.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = created.get(i).getId();
+        }
+        if (cacheSize > 0) {
+            datastore.enableDocumentCache(cacheSize, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        datastore.close();
+        BenchmarkUtils.deleteTempDirectory(directory);
+    }
+
+    @Benchmark
+    public BasicDocumentRevision getDocument() throws Exception {
+        return datastore.getDocument(ids[counter++ % ids.length]);
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.benchmark;
+
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserting batches of new documents with their revision histories, which is
+ * what pull replication does with each batch of changes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ForceInsertBenchmark {
+
+    @Param({"10", "100"})
+    public int batchSize;
+
+    @Param({"1", "10"})
+    public int historyLength;
+
+    private File directory;
+    private Datastore datastore;
+    private int counter = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = BenchmarkUtils.createTempDirectory();
+        datastore = new DatastoreManager(directory).openDatastore("benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        datastore.close();
+        BenchmarkUtils.deleteTempDirectory(directory);
+    }
+
+    @Benchmark
+    public int forceInsertBatch() throws Exception {
+        for (int i = 0; i < batchSize; i++) {
+            BenchmarkUtils.forceInsertDocument((DatastoreExtended) datastore, "doc" + counter,
+                    historyLength, counter);
+            counter++;
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.benchmark;
+
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.query.IndexManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bringing a new Cloudant Query index up to date with all the documents in a
+ * datastore. The index is deleted after each invocation, so each one indexes
+ * every document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class IndexUpdateBenchmark {
+
+    private static final String INDEX_NAME = "catchup";
+
+    private static final List<Object> FIELDS = Arrays.<Object>asList("name", "age", "pet");
+
+    @Param({"5000"})
+    public int documentCount;
+
+    private File directory;
+    private Datastore datastore;
+    private IndexManager indexManager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = BenchmarkUtils.createTempDirectory();
+        datastore = new DatastoreManager(directory).openDatastore("benchmark");
+        BenchmarkUtils.createDocuments(datastore, documentCount);
+        indexManager = new IndexManager(datastore);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteIndex() {
+        indexManager.deleteIndexNamed(INDEX_NAME);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        indexManager.close();
+        datastore.close();
+        BenchmarkUtils.deleteTempDirectory(directory);
+    }
+
+    @Benchmark
+    public String catchUp() {
+        // Creating an index indexes all existing documents before returning
+        String name = indexManager.ensureIndexed(FIELDS, INDEX_NAME);
+        if (name == null) {
+            throw new IllegalStateException("Failed to create index " + INDEX_NAME);
+        }
+        return name;
+    }
+}
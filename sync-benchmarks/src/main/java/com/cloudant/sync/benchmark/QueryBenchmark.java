@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.benchmark;
+
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.datastore.DocumentRevision;
+import com.cloudant.sync.query.IndexManager;
+import com.cloudant.sync.query.QueryResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cloudant Query {@code find}, reading every document in the result.
+ *
+ * When {@code covered} is false, the query selects on a field which isn't
+ * indexed, so candidate documents are matched after they're read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class QueryBenchmark {
+
+    @Param({"5000"})
+    public int documentCount;
+
+    @Param({"true", "false"})
+    public boolean covered;
+
+    private File directory;
+    private Datastore datastore;
+    private IndexManager indexManager;
+    private Map<String, Object> query;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = BenchmarkUtils.createTempDirectory();
+        datastore = new DatastoreManager(directory).openDatastore("benchmark");
+        BenchmarkUtils.createDocuments(datastore, documentCount);
+
+        indexManager = new IndexManager(datastore);
+        indexManager.ensureIndexed(Arrays.<Object>asList("name", "age"), "basic");
+
+        // Matches 1 in 50 documents by name, then half of those by age or pet
+        query = new HashMap<String, Object>();
+        query.put("name", "mike12");
+        if (covered) {
+            Map<String, Object> gt = new HashMap<String, Object>();
+            gt.put("$gt", 50);
+            query.put("age", gt);
+        } else {
+            query.put("pet", "fish");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        indexManager.close();
+        datastore.close();
+        BenchmarkUtils.deleteTempDirectory(directory);
+    }
+
+    @Benchmark
+    public int find() {
+        QueryResult result = indexManager.find(query);
+        int count = 0;
+        for (DocumentRevision revision : result) {
+            count++;
+        }
+        return count;
+    }
+}
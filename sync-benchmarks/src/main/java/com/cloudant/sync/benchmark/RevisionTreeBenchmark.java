@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.benchmark;
+
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.datastore.DocumentRevisionTree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and walking the revision tree of a document with a long history,
+ * such as a document used as a shared counter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RevisionTreeBenchmark {
+
+    private static final String DOC_ID = "deep";
+
+    @Param({"10", "1000", "5000"})
+    public int depth;
+
+    private File directory;
+    private Datastore datastore;
+    private List<BasicDocumentRevision> history;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = BenchmarkUtils.createTempDirectory();
+        datastore = new DatastoreManager(directory).openDatastore("benchmark");
+        DatastoreExtended extended = (DatastoreExtended) datastore;
+        BenchmarkUtils.forceInsertDocument(extended, DOC_ID, depth, 0);
+
+        // Revisions in the order they're added to a tree, root first
+        DocumentRevisionTree tree = extended.getAllRevisionsOfDocument(DOC_ID);
+        history = new ArrayList<BasicDocumentRevision>(
+                tree.getPathForNode(tree.getCurrentRevision().getSequence()));
+        Collections.reverse(history);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        datastore.close();
+        BenchmarkUtils.deleteTempDirectory(directory);
+    }
+
+    @Benchmark
+    public DocumentRevisionTree getAllRevisionsOfDocument() {
+        return ((DatastoreExtended) datastore).getAllRevisionsOfDocument(DOC_ID);
+    }
+
+    @Benchmark
+    public DocumentRevisionTree getAllRevisionsOfDocumentWithoutBodies() {
+        return ((DatastoreExtended) datastore).getAllRevisionsOfDocument(DOC_ID, false);
+    }
+
+    /**
+     * Builds the tree in memory and looks up every revision in it, which is
+     * what push replication does for each document it pushes.
+     */
+    @Benchmark
+    public int buildTreeAndLookupRevisions() {
+        DocumentRevisionTree tree = new DocumentRevisionTree();
+        for (BasicDocumentRevision revision : history) {
+            tree.add(revision);
+        }
+        int found = 0;
+        for (BasicDocumentRevision revision : history) {
+            if (tree.lookup(DOC_ID, revision.getRevision()) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.ChangesResult;
+import com.cloudant.mazha.DocumentRevs;
+import com.cloudant.mazha.RangeInputStream;
+import com.cloudant.mazha.Response;
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.MultipartAttachmentWriter;
+import com.cloudant.sync.datastore.UnsavedStreamAttachment;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>An in-process stand-in for a remote CouchDB database, so replication can be
+ * benchmarked without a network or a server.</p>
+ *
+ * <p>It serves a fixed list of documents, each with a single revision, to pull
+ * replication, and accepts anything push replication sends it. Attachments
+ * aren't supported.</p>
+ */
+class InMemoryCouchDB implements CouchDB {
+
+    private final List<DocumentRevs> documents;
+    private final Map<String, DocumentRevs> documentsById = new HashMap<String, DocumentRevs>();
+    private final Map<String, String> checkpoints = new HashMap<String, String>();
+    private int documentsReceived = 0;
+
+    /**
+     * @param documents the documents in the database, in the order they appear
+     *                  in its changes feed
+     */
+    InMemoryCouchDB(List<DocumentRevs> documents) {
+        this.documents = documents;
+        for (DocumentRevs document : documents) {
+            documentsById.put(document.getId(), document);
+        }
+    }
+
+    /**
+     * Returns the number of documents pushed to this database.
+     */
+    int getDocumentsReceived() {
+        return documentsReceived;
+    }
+
+    @Override
+    public String getIdentifier() {
+        return "in-memory-couchdb";
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public synchronized String getCheckpoint(String checkpointId) {
+        return checkpoints.get(checkpointId);
+    }
+
+    @Override
+    public synchronized void putCheckpoint(String checkpointId, String sequence) {
+        checkpoints.put(checkpointId, sequence);
+    }
+
+    @Override
+    public ChangesResult changes(Object lastSequence, int limit) {
+        return changes(null, lastSequence, limit);
+    }
+
+    @Override
+    public ChangesResult changes(Replication.Filter filter, Object lastSequence, int limit) {
+        // Sequence numbers are one-based positions in the document list
+        int since = lastSequence == null ? 0 : Integer.parseInt(lastSequence.toString());
+        int end = Math.min(documents.size(), since + limit);
+
+        List<ChangesResult.Row> rows = new ArrayList<ChangesResult.Row>();
+        for (int i = since; i < end; i++) {
+            DocumentRevs document = documents.get(i);
+            ChangesResult.Row.Rev rev = new ChangesResult.Row.Rev();
+            rev.setRev(document.getRev());
+            ChangesResult.Row row = new ChangesResult.Row();
+            row.setSeq(i + 1);
+            row.setId(document.getId());
+            row.setChanges(Collections.singletonList(rev));
+            rows.add(row);
+        }
+
+        ChangesResult result = new ChangesResult();
+        result.setResults(rows);
+        result.setLastSeq(end);
+        return result;
+    }
+
+    @Override
+    public List<DocumentRevs> getRevisions(String documentId,
+                                           Collection<String> revisionIds,
+                                           Collection<String> attsSince,
+                                           boolean pullAttachmentsInline) {
+        DocumentRevs document = documentsById.get(documentId);
+        if (document == null || !revisionIds.contains(document.getRev())) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(document);
+    }
+
+    @Override
+    public Map<String, Set<String>> revsDiff(Map<String, Set<String>> revisions) {
+        // Nothing is stored, so every revision is missing
+        Map<String, Set<String>> missing = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, Set<String>> e : revisions.entrySet()) {
+            missing.put(e.getKey(), new HashSet<String>(e.getValue()));
+        }
+        return missing;
+    }
+
+    @Override
+    public synchronized void bulkSerializedDocs(List<String> serializedDocs) {
+        documentsReceived += serializedDocs.size();
+    }
+
+    @Override
+    public synchronized void bulk(List<BasicDocumentRevision> revisions) {
+        documentsReceived += revisions.size();
+    }
+
+    @Override
+    public synchronized List<Response> putMultiparts(List<MultipartAttachmentWriter> multiparts) {
+        documentsReceived += multiparts.size();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public synchronized Response putMultipart(MultipartAttachmentWriter multipart) {
+        documentsReceived++;
+        return null;
+    }
+
+    @Override
+    public Response create(Object object) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response update(String id, Object object) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T get(Class<T> classType, String id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response delete(String id, String rev) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UnsavedStreamAttachment getAttachmentStream(String id, String rev,
+                                                       String attachmentName,
+                                                       String contentType,
+                                                       String encoding) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RangeInputStream getAttachmentStream(String id, String rev, String attachmentName,
+                                                long offset) {
+        throw new UnsupportedOperationException();
+    }
+}
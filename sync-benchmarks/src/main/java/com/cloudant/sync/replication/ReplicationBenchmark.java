@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.DocumentRevs;
+import com.cloudant.sync.benchmark.BenchmarkUtils;
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DatastoreManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Pull and push replication of a datastore's documents, against an
+ * {@link InMemoryCouchDB} in place of the remote database.</p>
+ *
+ * <p>Each pull replicates every document into an empty datastore, and each
+ * push replicates every document to an empty remote database.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReplicationBenchmark {
+
+    // Not contacted: the strategies' remote database is replaced by InMemoryCouchDB
+    private static final URI REMOTE = URI.create("http://127.0.0.1:5984/benchmark");
+
+    @Param({"1000"})
+    public int documentCount;
+
+    private File directory;
+    private DatastoreManager manager;
+    private Datastore source;
+    private List<DocumentRevs> remoteDocuments;
+
+    private Datastore target;
+    private int invocation = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = BenchmarkUtils.createTempDirectory();
+        manager = new DatastoreManager(directory);
+        source = manager.openDatastore("source");
+        BenchmarkUtils.createDocuments(source, documentCount);
+
+        remoteDocuments = new ArrayList<DocumentRevs>(documentCount);
+        for (int i = 0; i < documentCount; i++) {
+            String docId = "doc" + i;
+            String revId = BenchmarkUtils.createRevisionHistory(docId, 1)[0];
+            DocumentRevs.Revisions revisions = new DocumentRevs.Revisions();
+            revisions.setStart(1);
+            revisions.setIds(Collections.singletonList(revId.substring(2)));
+
+            DocumentRevs document = new DocumentRevs();
+            document.setId(docId);
+            document.setRev(revId);
+            document.setRevisions(revisions);
+            for (Map.Entry<String, Object> e :
+                    BenchmarkUtils.createBodyMap(i).entrySet()) {
+                document.setOthers(e.getKey(), e.getValue());
+            }
+            remoteDocuments.add(document);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void openTarget() throws Exception {
+        target = manager.openDatastore("target" + invocation++);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() throws Exception {
+        String name = target.getDatastoreName();
+        target.close();
+        manager.deleteDatastore(name);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.close();
+        BenchmarkUtils.deleteTempDirectory(directory);
+    }
+
+    @Benchmark
+    public int pull() {
+        PullReplication replication = new PullReplication();
+        replication.source = REMOTE;
+        replication.target = target;
+
+        BasicPullStrategy strategy = new BasicPullStrategy(replication);
+        strategy.sourceDb = new InMemoryCouchDB(remoteDocuments);
+        strategy.run();
+
+        return checkCount(strategy.getDocumentCounter());
+    }
+
+    @Benchmark
+    public int push() {
+        PushReplication replication = new PushReplication();
+        replication.source = source;
+        replication.target = REMOTE;
+
+        BasicPushStrategy strategy = new BasicPushStrategy(replication);
+        InMemoryCouchDB remote = new InMemoryCouchDB(Collections.<DocumentRevs>emptyList());
+        strategy.targetDb = remote;
+        strategy.run();
+
+        return checkCount(remote.getDocumentsReceived());
+    }
+
+    private int checkCount(int replicated) {
+        // A failed replication is logged rather than thrown, so check it completed
+        if (replicated != documentCount) {
+            throw new IllegalStateException(String.format(
+                    "Replicated %d documents, expected %d", replicated, documentCount));
+        }
+        return replicated;
+    }
+}
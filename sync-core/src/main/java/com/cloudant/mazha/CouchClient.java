@@ -25,7 +25,12 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
@@ -40,11 +45,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class CouchClient  {
 
     public static final String COUCH_ERROR_CONFLICT = "conflict";
 
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-");
+
     private final HttpRequests httpClient;
     protected final JSONHelper jsonHelper;
     private CouchURIHelper uriHelper;
@@ -223,6 +232,38 @@ public class CouchClient  {
         return httpClient.getCompressed(doc);
     }
 
+    /**
+     * Returns the attachment's contents as stored, from byte {@code offset} onwards, using a
+     * {@code Range} request. If the server sends the whole attachment instead, the returned
+     * stream's {@link RangeInputStream#getOffset()} is 0.
+     *
+     * @throws CouchException with status code 416 if {@code offset} is past the end of the
+     *         attachment
+     */
+    public RangeInputStream getAttachmentStream(String id, String rev, String attachmentName,
+                                                long offset) {
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(id), "id must not be empty");
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(rev), "rev must not be empty");
+        Preconditions.checkArgument(offset >= 0, "offset must not be negative");
+        Map<String, Object> queries = new HashMap<String, Object>();
+        queries.put("rev", rev);
+        URI doc = this.uriHelper.attachmentUri(id, queries, attachmentName);
+        HttpResponse response = httpClient.getCompressedResponse(doc, offset);
+        long start = 0;
+        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+            // Content-Range: bytes <start>-<end>/<length>
+            Header contentRange = response.getFirstHeader("Content-Range");
+            start = offset;
+            if (contentRange != null) {
+                Matcher m = CONTENT_RANGE.matcher(contentRange.getValue());
+                if (m.find()) {
+                    start = Long.parseLong(m.group(1));
+                }
+            }
+        }
+        return new RangeInputStream(httpClient.getStream(response), start);
+    }
+
     public InputStream getAttachmentStreamUncompressed(String id, String rev, String attachmentName) {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(id), "id must not be empty");
         Preconditions.checkArgument(!Strings.isNullOrEmpty(rev), "rev must not be empty");
@@ -551,9 +592,7 @@ public class CouchClient  {
         Map<String, Object> options = new HashMap<String, Object>();
         options.put("new_edits", "false");
         URI uri = this.uriHelper.documentUri(mpw.getId(), options);
-        HashMap<String, String> headers = new HashMap<String, String>();
-        String contentType = "multipart/related;boundary=" + mpw.getBoundary();
-        InputStream is = this.httpClient.putStream(uri, contentType, mpw, mpw.getContentLength());
+        InputStream is = this.httpClient.putEntity(uri, new MultipartAttachmentEntity(mpw));
         return jsonHelper.fromJson(new InputStreamReader(is), Response.class);
     }
 
@@ -580,6 +619,11 @@ public class CouchClient  {
         HttpConnectionParams.setSoTimeout(params, config.getSocketTimeout());
         HttpConnectionParams.setSocketBufferSize(params, config.getBufferSize());
 
+        // All the requests go to the one server, so allow it all the connections
+        ConnManagerParams.setMaxTotalConnections(params, config.getMaxConnections());
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(config.getMaxConnections()));
+
         // Don't handle redirects -- return them to the caller.  Our code
         // often wants to re-POST after a redirect, which we must do ourselves.
         HttpClientParams.setRedirecting(params, config.isHandleRedirectEnabled());
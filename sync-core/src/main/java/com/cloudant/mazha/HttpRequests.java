@@ -29,6 +29,7 @@ import com.google.common.io.Resources;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
@@ -43,6 +44,7 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerPNames;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRoute;
 import org.apache.http.conn.routing.HttpRoute;
@@ -99,12 +101,15 @@ public class HttpRequests {
         // Set the specified user agent and register standard protocols.
         HttpProtocolParams.setUserAgent(params, this.getUserAgent());
 
-        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRoute() {
-            @Override
-            public int getMaxForRoute(HttpRoute route) {
-                return CONN_PER_ROUT;
-            }
-        });
+        // Keep the limit on connections per route if the caller has set one
+        if (params.getParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE) == null) {
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRoute() {
+                @Override
+                public int getMaxForRoute(HttpRoute route) {
+                    return CONN_PER_ROUT;
+                }
+            });
+        }
 
         ClientConnectionManager manager = getClientConnectionManager(params);
         DefaultHttpClient httpClient = new DefaultHttpClient(manager,params);
@@ -150,6 +155,21 @@ public class HttpRequests {
         return get(get);
     }
 
+    /**
+     * Requests the resource from byte {@code offset} onwards, using a
+     * {@code Range} header if {@code offset} is positive. Servers which don't
+     * support ranges respond with the whole resource, with status 200 rather
+     * than 206.
+     */
+    public HttpResponse getCompressedResponse(URI uri, long offset) {
+        HttpGet get = new HttpGet(uri);
+        get.addHeader("Accept-Encoding", "gzip");
+        if (offset > 0) {
+            get.addHeader("Range", "bytes=" + offset + "-");
+        }
+        return getResponse(get);
+    }
+
     public InputStream get(HttpGet httpGet) {
         HttpResponse response = executeRequest(httpGet);
         return getStream(response);
@@ -212,6 +232,13 @@ public class HttpRequests {
         return getStream(this.putResponse(put));
     }
 
+    public InputStream putEntity(URI uri, HttpEntity entity) {
+        HttpPut put = new HttpPut(uri);
+        put.addHeader("Accept", "application/json");
+        put.setEntity(entity);
+        return getStream(this.putResponse(put));
+    }
+
     public HttpResponse putResponse(HttpPut put) {
         return executeRequest(put);
     }
@@ -349,10 +376,16 @@ public class HttpRequests {
         if (code == 200 || code == 201 || code == 202) { // success (ok | created | accepted)
             return;
         }
+        if (code == HttpStatus.SC_PARTIAL_CONTENT) { // success for range requests
+            return;
+        }
 
         String msg = String.format("Request: %s << Status: %s (%s) ", request.getRequestLine(), code, response.getStatusLine().getReasonPhrase());
         if (code == HttpStatus.SC_NOT_FOUND) {
             throw new NoResourceException(msg);
+        } else if (code == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+            // the body isn't necessarily a CouchDB error
+            throw new CouchException(msg, code);
         } else {
             CouchException exception = null;
             try {
@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.mazha;
+
+import com.cloudant.sync.datastore.MultipartAttachmentWriter;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>An HTTP entity which streams a {@link MultipartAttachmentWriter}'s
+ * multipart/related body straight to the connection's output stream.</p>
+ *
+ * <p>The entity can only be written once, as the attachments it sends may
+ * come from streams which can only be read once.</p>
+ */
+class MultipartAttachmentEntity extends AbstractHttpEntity {
+
+    private final MultipartAttachmentWriter mpw;
+
+    MultipartAttachmentEntity(MultipartAttachmentWriter mpw) {
+        this.mpw = mpw;
+        setContentType("multipart/related;boundary=" + mpw.getBoundary());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mpw.getContentLength();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return mpw;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        mpw.writeTo(outstream);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+}
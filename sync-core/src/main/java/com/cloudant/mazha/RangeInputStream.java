@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.mazha;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * <p>A stream of part of a resource, starting at {@link #getOffset()} bytes
+ * into it and running to its end.</p>
+ *
+ * <p>Returned when a range of a resource is requested, so the caller can
+ * tell whether the server sent the range or the whole resource.</p>
+ */
+public class RangeInputStream extends FilterInputStream {
+
+    private final long offset;
+
+    public RangeInputStream(InputStream in, long offset) {
+        super(in);
+        this.offset = offset;
+    }
+
+    /**
+     * @return the position in the resource of the first byte of this stream,
+     *         which is 0 if the stream holds the whole resource.
+     */
+    public long getOffset() {
+        return offset;
+    }
+}
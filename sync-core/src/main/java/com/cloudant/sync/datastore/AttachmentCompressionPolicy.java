@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p>Decides which attachments a datastore compresses with gzip when they
+ * are added, so they take less space on disk.</p>
+ *
+ * <p>An attachment is compressed if it isn't already gzip encoded and its
+ * content type matches one of the policy's content types. Content types may
+ * end in {@code /*} to match every subtype, and parameters such as
+ * {@code charset} are ignored. The attachment is compressed as it is read,
+ * and the compressed copy is only kept if the attachment is at least the
+ * minimum size and compression shrinks it to at most the maximum ratio of
+ * its size; otherwise it is stored as it was.</p>
+ *
+ * <p>Compressed attachments are stored with {@link Attachment.Encoding#Gzip}
+ * encoding. Their input streams decompress them as they are read, and push
+ * replication sends them still compressed when it sends attachments
+ * separately from their documents.</p>
+ *
+ * @see Datastore#setAttachmentCompressionPolicy(AttachmentCompressionPolicy)
+ */
+public class AttachmentCompressionPolicy {
+
+    /**
+     * Content types compressed by the default policy: text, and the
+     * text-based formats which don't have a {@code text/} type.
+     */
+    public static final List<String> DEFAULT_CONTENT_TYPES = Collections.unmodifiableList(
+            Arrays.asList("text/*", "application/json", "application/javascript",
+                    "application/xml", "image/svg+xml"));
+
+    /**
+     * Attachments smaller than this many bytes are stored uncompressed by
+     * the default policy, as compression saves little.
+     */
+    public static final long DEFAULT_MINIMUM_SIZE = 1024;
+
+    /**
+     * The default policy keeps an attachment compressed only if the
+     * compressed copy is at most this fraction of its size.
+     */
+    public static final double DEFAULT_MAXIMUM_RATIO = 0.9;
+
+    private final List<String> contentTypes;
+    private final long minimumSize;
+    private final double maximumRatio;
+
+    /**
+     * <p>Constructs a policy with the default content types and size
+     * thresholds.</p>
+     */
+    public AttachmentCompressionPolicy() {
+        this(DEFAULT_CONTENT_TYPES, DEFAULT_MINIMUM_SIZE, DEFAULT_MAXIMUM_RATIO);
+    }
+
+    /**
+     * <p>Constructs a policy with custom content types and size
+     * thresholds.</p>
+     *
+     * @param contentTypes the content types to compress, such as
+     *                     {@code text/csv} or {@code text/*}
+     * @param minimumSize the size in bytes below which attachments are
+     *                    stored uncompressed
+     * @param maximumRatio the largest compressed size, as a fraction of the
+     *                     uncompressed size, for which the compressed copy
+     *                     is kept
+     */
+    public AttachmentCompressionPolicy(Collection<String> contentTypes, long minimumSize,
+                                       double maximumRatio) {
+        Preconditions.checkNotNull(contentTypes, "contentTypes must not be null");
+        Preconditions.checkArgument(minimumSize >= 0, "minimumSize must not be negative");
+        Preconditions.checkArgument(maximumRatio > 0 && maximumRatio <= 1,
+                "maximumRatio must be greater than 0 and at most 1");
+        List<String> types = new ArrayList<String>();
+        for (String type : contentTypes) {
+            types.add(type.trim().toLowerCase(Locale.ENGLISH));
+        }
+        this.contentTypes = Collections.unmodifiableList(types);
+        this.minimumSize = minimumSize;
+        this.maximumRatio = maximumRatio;
+    }
+
+    public List<String> getContentTypes() {
+        return contentTypes;
+    }
+
+    public long getMinimumSize() {
+        return minimumSize;
+    }
+
+    public double getMaximumRatio() {
+        return maximumRatio;
+    }
+
+    /**
+     * @return whether attachments with this content type are compressed
+     */
+    public boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType;
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters);
+        }
+        type = type.trim().toLowerCase(Locale.ENGLISH);
+        for (String candidate : contentTypes) {
+            if (candidate.endsWith("/*")) {
+                if (type.startsWith(candidate.substring(0, candidate.length() - 1))) {
+                    return true;
+                }
+            } else if (candidate.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the attachment should be compressed as it's read
+     */
+    boolean shouldCompress(Attachment attachment) {
+        return attachment.encoding == Attachment.Encoding.Plain &&
+                isCompressible(attachment.type);
+    }
+
+    /**
+     * @return whether to keep the compressed copy of an attachment of
+     *         {@code length} bytes which compressed to {@code encodedLength}
+     */
+    boolean keepCompressed(long length, long encodedLength) {
+        return length >= minimumSize && encodedLength <= length * maximumRatio;
+    }
+}
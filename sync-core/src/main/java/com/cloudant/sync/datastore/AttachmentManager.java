@@ -20,6 +20,10 @@ import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.util.CouchUtils;
 import com.cloudant.sync.util.DatabaseUtils;
 
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileExistsException;
 import org.apache.commons.io.FileUtils;
@@ -30,9 +34,11 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -54,7 +60,8 @@ class AttachmentManager {
             "encoding, " +
             "length, " +
             "encoded_length, " +
-            "revpos " +
+            "revpos, " +
+            "digest " +
             "FROM attachments " +
             "WHERE filename = ? and sequence = ?";
 
@@ -65,13 +72,29 @@ class AttachmentManager {
             "encoding, " +
             "length, " +
             "encoded_length, " +
-            "revpos " +
+            "revpos, " +
+            "digest " +
             "FROM attachments " +
             "WHERE sequence = ?";
 
     private static final String SQL_ATTACHMENTS_SELECT_ALL_KEYS = "SELECT key " +
             "FROM attachments";
 
+    private static final String SQL_ATTACHMENTS_SELECT_BY_DIGEST = "SELECT digest, " +
+            "key, " +
+            "encoding, " +
+            "length, " +
+            "encoded_length " +
+            "FROM attachments " +
+            "WHERE digest IN (%s)";
+
+    private static final String SQL_ATTACHMENT_NAMES_FOR_REVISIONS = "SELECT docs.docid, " +
+            "revs.revid, " +
+            "attachments.filename " +
+            "FROM docs, revs, attachments " +
+            "WHERE docs.doc_id = revs.doc_id AND revs.sequence = attachments.sequence " +
+            "AND docs.docid IN (%s) AND revs.revid IN (%s)";
+
     public final String attachmentsDir;
 
     private BasicDatastore datastore;
@@ -94,8 +117,9 @@ class AttachmentManager {
         String filename = a.attachment.name;
         byte[] sha1 = a.sha1;
         String type = a.attachment.type;
-        int encoding = a.attachment.encoding.ordinal();
-        long length = a.tempFile.length();
+        int encoding = a.encoding.ordinal();
+        long length = a.length;
+        long encodedLength = a.encodedLength;
         long revpos = CouchUtils.generationFromRevId(rev.getRevision());
 
         values.put("sequence", sequence);
@@ -104,8 +128,9 @@ class AttachmentManager {
         values.put("type", type);
         values.put("encoding", encoding);
         values.put("length", length);
-        values.put("encoded_length", length);
+        values.put("encoded_length", encodedLength);
         values.put("revpos", revpos);
+        values.put("digest", a.digest);
 
         // delete and insert in case there is already an attachment at this seq (eg copied over from a previous rev)
         db.delete("attachments", " filename = ? and sequence = ? ", new String[]{filename,
@@ -113,11 +138,21 @@ class AttachmentManager {
         long result = db.insert("attachments", values);
         if (result == -1) {
             // if we can't insert into DB then don't copy the attachment
-            a.tempFile.delete();
+            if (a.tempFile != null) {
+                a.tempFile.delete();
+            }
             throw new AttachmentNotSavedException("Could not insert attachment " + a + " into database with values " + values + "; not copying to attachments directory");
         }
         // move file to blob store, with file name based on sha1
         File newFile = fileFromKey(sha1);
+        if (a.tempFile == null) {
+            // the contents are already in the blob store, check they're still there
+            if (!newFile.exists()) {
+                throw new AttachmentNotSavedException("Attachment " + a + " is not in the " +
+                        "attachments directory");
+            }
+            return;
+        }
         try {
             FileUtils.moveFile(a.tempFile, newFile);
         } catch (FileExistsException fee) {
@@ -170,7 +205,8 @@ class AttachmentManager {
 
         for (Attachment a : attachments) {
             if (!(a instanceof SavedAttachment)) {
-                preparedAndSavedAttachments.preparedAttachments.add(new PreparedAttachment(a, this.attachmentsDir));
+                preparedAndSavedAttachments.preparedAttachments.add(new PreparedAttachment(a,
+                        this.attachmentsDir, datastore.getAttachmentCompressionPolicy()));
             } else {
                 preparedAndSavedAttachments.savedAttachments.add((SavedAttachment)a);
             }
@@ -217,9 +253,10 @@ class AttachmentManager {
                 byte[] key = c.getBlob(2);
                 String type = c.getString(3);
                 int encoding = c.getInt(4);
+                long length = c.getLong(5);
                 int revpos = c.getInt(7);
                 File file = fileFromKey(key);
-                return new SavedAttachment(attachmentName, revpos, sequence, key, type, file, Attachment.Encoding.values()[encoding]);
+                return new SavedAttachment(attachmentName, revpos, sequence, key, type, file, Attachment.Encoding.values()[encoding], length);
             }
 
             return null;
@@ -241,9 +278,10 @@ class AttachmentManager {
                 byte[] key = c.getBlob(2);
                 String type = c.getString(3);
                 int encoding = c.getInt(4);
+                long length = c.getLong(5);
                 int revpos = c.getInt(7);
                 File file = fileFromKey(key);
-                atts.add(new SavedAttachment(name, revpos, sequence, key, type, file, Attachment.Encoding.values()[encoding]));
+                atts.add(new SavedAttachment(name, revpos, sequence, key, type, file, Attachment.Encoding.values()[encoding], length));
             }
             return atts;
         } catch (SQLException e) {
@@ -263,6 +301,7 @@ class AttachmentManager {
             int length = c.getInt(5);
             int encoded_length = c.getInt(6);
             int revpos = c.getInt(7);
+            String digest = c.getString(8);
 
             ContentValues values = new ContentValues();
             values.put("sequence", newSequence);
@@ -273,6 +312,7 @@ class AttachmentManager {
             values.put("length", length);
             values.put("encoded_length", encoded_length);
             values.put("revpos", revpos);
+            values.put("digest", digest);
             db.insert("attachments", values);
         }
     }
@@ -309,6 +349,97 @@ class AttachmentManager {
         }
     }
 
+    /**
+     * Called by BasicDatastore to find attachments whose contents are already in the
+     * blob store, using their digests.
+     *
+     * @param attachments attachments keyed by their CouchDB digest
+     * @return prepared attachments for those of {@code attachments} which are in the blob
+     *         store with the same digest and encoding, keyed by digest
+     */
+    protected Map<String, PreparedAttachment> preparedAttachmentsWithDigests(SQLDatabase db,
+            Map<String, ? extends Attachment> attachments) throws SQLException {
+        Map<String, PreparedAttachment> prepared = new HashMap<String, PreparedAttachment>();
+        List<String> digests = new ArrayList<String>(attachments.keySet());
+        for (List<String> batch : Lists.partition(digests,
+                BasicDatastore.SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            String sql = String.format(SQL_ATTACHMENTS_SELECT_BY_DIGEST,
+                    DatabaseUtils.makePlaceholders(batch.size()));
+            Cursor c = null;
+            try {
+                c = db.rawQuery(sql, batch.toArray(new String[batch.size()]));
+                while (c.moveToNext()) {
+                    String digest = c.getString(0);
+                    Attachment attachment = attachments.get(digest);
+                    if (prepared.containsKey(digest) ||
+                            attachment.encoding.ordinal() != c.getInt(2)) {
+                        continue;
+                    }
+                    byte[] key = c.getBlob(1);
+                    if (fileFromKey(key).exists()) {
+                        prepared.put(digest, new PreparedAttachment(attachment, key, digest,
+                                attachment.encoding, c.getLong(3), c.getLong(4)));
+                    }
+                }
+            } finally {
+                DatabaseUtils.closeCursorQuietly(c);
+            }
+        }
+        return prepared;
+    }
+
+    /**
+     * Called by BasicDatastore to find the names of the attachments held by several
+     * revisions in one query per batch of revisions.
+     *
+     * @param revisions revision IDs keyed by document ID
+     * @return the attachment names of each revision, keyed by document ID then revision ID.
+     *         Revisions which aren't in the datastore or have no attachments are left out.
+     */
+    protected Map<String, Multimap<String, String>> attachmentNamesForRevisions(SQLDatabase db,
+            Multimap<String, String> revisions) throws SQLException {
+        Map<String, Multimap<String, String>> names =
+                new HashMap<String, Multimap<String, String>>();
+        // each batch uses a placeholder per document ID and per revision ID
+        List<Map.Entry<String, String>> entries =
+                new ArrayList<Map.Entry<String, String>>(revisions.entries());
+        for (List<Map.Entry<String, String>> batch : Lists.partition(entries,
+                BasicDatastore.SQLITE_QUERY_PLACEHOLDERS_LIMIT / 2)) {
+            Set<String> docIds = new HashSet<String>();
+            Set<String> revIds = new HashSet<String>();
+            for (Map.Entry<String, String> e : batch) {
+                docIds.add(e.getKey());
+                revIds.add(e.getValue());
+            }
+            String sql = String.format(SQL_ATTACHMENT_NAMES_FOR_REVISIONS,
+                    DatabaseUtils.makePlaceholders(docIds.size()),
+                    DatabaseUtils.makePlaceholders(revIds.size()));
+            List<String> args = new ArrayList<String>(docIds);
+            args.addAll(revIds);
+            Cursor c = null;
+            try {
+                c = db.rawQuery(sql, args.toArray(new String[args.size()]));
+                while (c.moveToNext()) {
+                    String docId = c.getString(0);
+                    String revId = c.getString(1);
+                    // the IN clauses can match revisions of other documents in the batch
+                    if (!revisions.containsEntry(docId, revId)) {
+                        continue;
+                    }
+                    Multimap<String, String> revisionNames = names.get(docId);
+                    if (revisionNames == null) {
+                        revisionNames = HashMultimap.create();
+                        names.put(docId, revisionNames);
+                    }
+                    revisionNames.put(revId, c.getString(2));
+                }
+            } finally {
+                DatabaseUtils.closeCursorQuietly(c);
+            }
+        }
+        return names;
+    }
+
     /**
      * Called by BasicDatastore on the execution queue, this needs have the db passed ot it
      * @param db database to perge attachments from
@@ -22,8 +22,11 @@ import com.cloudant.sync.notifications.DatabaseClosed;
 import com.cloudant.sync.notifications.DocumentCreated;
 import com.cloudant.sync.notifications.DocumentDeleted;
 import com.cloudant.sync.notifications.DocumentUpdated;
+import com.cloudant.sync.notifications.DocumentsCreated;
+import com.cloudant.sync.notifications.DocumentsUpdated;
 import com.cloudant.sync.sqlite.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.DurabilityPolicy;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.sqlite.SQLDatabaseQueue;
 import com.cloudant.sync.sqlite.SQLQueueCallable;
@@ -37,6 +40,8 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.apache.commons.io.FilenameUtils;
 
@@ -51,9 +56,12 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -65,6 +73,9 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     private static final String FULL_DOCUMENT_COLS = "docs.docid, docs.doc_id, revid, sequence, json, current, deleted, parent";
 
+    // Same column positions as FULL_DOCUMENT_COLS, without reading the body
+    private static final String METADATA_DOCUMENT_COLS = "docs.docid, docs.doc_id, revid, sequence, NULL, current, deleted, parent";
+
     private static final String GET_DOCUMENT_CURRENT_REVISION =
             "SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id " +
                     "AND current=1 ORDER BY revid DESC LIMIT 1";
@@ -76,13 +87,39 @@ class BasicDatastore implements Datastore, DatastoreExtended {
     public static final String SQL_CHANGE_IDS_SINCE_LIMIT = "SELECT doc_id, max(sequence) FROM revs " +
             "WHERE sequence > ? AND sequence <= ? GROUP BY doc_id ";
 
+    // The next changes after a sequence number, counting rows rather than sequence numbers,
+    // so it reads the primary key's range in order and stops after the limit
+    private static final String SQL_CHANGES_SINCE_ROW_LIMIT = "SELECT doc_id, sequence FROM revs " +
+            "WHERE sequence > ? ORDER BY sequence LIMIT ?";
+
+    // Marks a document as conflicted if it has more than one non-deleted leaf,
+    // counting its leafs using the revs_leaf index
+    private static final String SQL_UPDATE_CONFLICTED = "UPDATE docs SET conflicted = " +
+            "((SELECT COUNT(*) FROM revs WHERE revs.doc_id = ? AND leaf = 1 AND deleted = 0) > 1) " +
+            "WHERE doc_id = ?";
+
+    // A page of conflicted documents after an internal document ID, read from
+    // the docs_conflicted index in order
+    private static final String SQL_CONFLICTED_DOCUMENTS_AFTER = "SELECT doc_id, docid FROM docs " +
+            "WHERE conflicted = 1 AND doc_id > ? ORDER BY doc_id LIMIT ?";
+
     // Limit of parameters (placeholders) one query can have.
     // SQLite has limit on the number of placeholders on a single query, default 999.
     // http://www.sqlite.org/limits.html
     public static final int SQLITE_QUERY_PLACEHOLDERS_LIMIT = 500;
 
+    // Number of documents read at a time by iterateAllDocuments
+    private static final int ALL_DOCUMENTS_PAGE_SIZE = 100;
+
+    // Number of document IDs read at a time by getConflictedDocumentIds
+    private static final int CONFLICTED_DOCUMENTS_PAGE_SIZE = 100;
+
+    // Savepoint wrapping each document written by a batch, so a document
+    // which fails can be undone without rolling back the rest of the batch
+    private static final String BATCH_SAVEPOINT = "batch_document";
+
     private final String datastoreName;
-    private final EventBus eventBus;
+    private final DocumentEventDispatcher events;
     private final AttachmentManager attachmentManager;
 
     final String datastoreDir;
@@ -95,15 +132,40 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     private boolean dbOpen = false;
 
+    // Cache of current revisions, or null when caching is disabled
+    private volatile DocumentRevisionCache documentCache = null;
+
+    // Decides which attachments are compressed as they're added, or null
+    private volatile AttachmentCompressionPolicy attachmentCompressionPolicy = null;
+
+    private final BasicDatastoreAsync async;
+
     public BasicDatastore(String dir, String name) throws SQLException, IOException, DatastoreException {
+        this(dir, name, new DurabilityPolicy());
+    }
+
+    public BasicDatastore(String dir, String name, DurabilityPolicy durabilityPolicy)
+            throws SQLException, IOException, DatastoreException {
+        this(dir, name, durabilityPolicy, null);
+    }
+
+    /**
+     * @param eventExecutor the executor on which to deliver events, or
+     *                      {@code null} to deliver them on the thread which
+     *                      made the change
+     */
+    public BasicDatastore(String dir, String name, DurabilityPolicy durabilityPolicy,
+                          Executor eventExecutor)
+            throws SQLException, IOException, DatastoreException {
         Preconditions.checkNotNull(dir);
         Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(durabilityPolicy);
 
         this.datastoreDir = dir;
         this.datastoreName = name;
         this.extensionsDir = FilenameUtils.concat(this.datastoreDir, "extensions");
         final String dbFilename = FilenameUtils.concat(this.datastoreDir, DB_FILE_NAME);
-        queue = new SQLDatabaseQueue(dbFilename);
+        queue = new SQLDatabaseQueue(dbFilename, durabilityPolicy);
         int dbVersion = queue.getVersion();
         if(dbVersion >= 100){
             throw new DatastoreException(String.format("Database version is higher than the version supported " +
@@ -113,9 +175,12 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         queue.updateSchema(DatastoreConstants.getSchemaVersion4(), 4);
         queue.updateSchema(DatastoreConstants.getSchemaVersion5(), 5);
         queue.updateSchema(DatastoreConstants.getSchemaVersion6(), 6);
+        queue.updateSchema(DatastoreConstants.getSchemaVersion7(), 7);
+        queue.updateSchema(DatastoreConstants.getSchemaVersion8(), 8);
         dbOpen = true;
-        this.eventBus = new EventBus();
+        this.events = new DocumentEventDispatcher(name, eventExecutor);
         this.attachmentManager = new AttachmentManager(this);
+        this.async = new BasicDatastoreAsync(this);
 
     }
 
@@ -264,16 +329,8 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     @Override
     public BasicDocumentRevision getDocument(final String id, final String rev) throws DocumentNotFoundException{
-        Preconditions.checkState(this.isOpen(), "Database is closed");
-        Preconditions.checkArgument(!Strings.isNullOrEmpty(id), "DocumentRevisionTree id can not be empty");
-
         try {
-            return queue.submit(new SQLQueueCallable<BasicDocumentRevision>(){
-                @Override
-                public BasicDocumentRevision call(SQLDatabase db) throws Exception {
-                    return getDocumentInQueue(db, id, rev);
-                }
-            }).get();
+            return submitGetDocument(id, rev).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to get document",e);
         } catch (ExecutionException e) {
@@ -282,14 +339,52 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         return null;
     }
 
+    /**
+     * Gets a document, from the cache of current revisions if it is enabled
+     * and holds the document, otherwise from the queue.
+     */
+    ListenableFuture<BasicDocumentRevision> submitGetDocument(final String id, final String rev) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(id), "DocumentRevisionTree id can not be empty");
+
+        final DocumentRevisionCache cache = documentCache;
+        final long cacheVersion;
+        if (cache != null) {
+            BasicDocumentRevision cached = cache.get(id, rev);
+            if (cached != null) {
+                return Futures.immediateFuture(cached);
+            }
+            cacheVersion = cache.version(id);
+        } else {
+            cacheVersion = 0;
+        }
+
+        return queue.submit(new SQLQueueCallable<BasicDocumentRevision>(){
+            @Override
+            public BasicDocumentRevision call(SQLDatabase db) throws Exception {
+                BasicDocumentRevision found = getDocumentInQueue(db, id, rev);
+                if (cache != null && rev == null) {
+                    cache.put(found, cacheVersion);
+                }
+                return found;
+            }
+        });
+    }
+
     public DocumentRevisionTree getAllRevisionsOfDocument(final String docId) {
+        return getAllRevisionsOfDocument(docId, true);
+    }
+
+    @Override
+    public DocumentRevisionTree getAllRevisionsOfDocument(final String docId,
+                                                          final boolean includeBodies) {
 
         try {
             return queue.submit(new SQLQueueCallable<DocumentRevisionTree>() {
                 @Override
                 public DocumentRevisionTree call(SQLDatabase db) throws Exception {
 
-                    return getAllRevisionsOfDocumentInQueue(db, docId);
+                    return getAllRevisionsOfDocumentInQueue(db, docId, includeBodies);
                 }
 
             }).get();
@@ -303,7 +398,14 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     private DocumentRevisionTree getAllRevisionsOfDocumentInQueue(SQLDatabase db, String docId)
             throws DocumentNotFoundException, AttachmentException, DatastoreException {
-        String sql = "SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+        return getAllRevisionsOfDocumentInQueue(db, docId, true);
+    }
+
+    private DocumentRevisionTree getAllRevisionsOfDocumentInQueue(SQLDatabase db, String docId,
+                                                                  boolean includeBodies)
+            throws DocumentNotFoundException, AttachmentException, DatastoreException {
+        String cols = includeBodies ? FULL_DOCUMENT_COLS : METADATA_DOCUMENT_COLS;
+        String sql = "SELECT " + cols + " FROM revs, docs " +
                 "WHERE docs.docid=? AND revs.doc_id = docs.doc_id ORDER BY sequence ASC";
 
         String[] args = {docId};
@@ -313,9 +415,14 @@ class BasicDatastore implements Datastore, DatastoreExtended {
             DocumentRevisionTree tree = new DocumentRevisionTree();
             cursor = db.rawQuery(sql, args);
             while (cursor.moveToNext()) {
-                long sequence = cursor.getLong(3);
-                List<? extends Attachment> atts = attachmentManager.attachmentsForRevision(db,sequence);
-                BasicDocumentRevision rev = getFullRevisionFromCurrentCursor(cursor, atts);
+                BasicDocumentRevision rev;
+                if (includeBodies) {
+                    long sequence = cursor.getLong(3);
+                    List<? extends Attachment> atts = attachmentManager.attachmentsForRevision(db, sequence);
+                    rev = getFullRevisionFromCurrentCursor(cursor, atts);
+                } else {
+                    rev = getFullRevisionFromCurrentCursor(cursor, null);
+                }
                 logger.finer("Rev: " + rev);
                 tree.add(rev);
             }
@@ -332,38 +439,8 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     @Override
     public Changes changes(long since,final int limit) {
-        Preconditions.checkState(this.isOpen(), "Database is closed");
-        Preconditions.checkArgument(limit > 0, "Limit must be positive number");
-        final long verifiedSince = since >= 0 ? since : 0;
-
         try {
-            return queue.submit(new SQLQueueCallable<Changes>() {
-                @Override
-                public Changes call(SQLDatabase db) throws Exception {
-                    String[] args = {Long.toString(verifiedSince), Long.toString(verifiedSince + limit)};
-                    Cursor cursor = null;
-                    try {
-                        Long lastSequence = verifiedSince;
-                        List<Long> ids = new ArrayList<Long>();
-                        cursor = db.rawQuery(SQL_CHANGE_IDS_SINCE_LIMIT, args);
-                        while (cursor.moveToNext()) {
-                            ids.add(cursor.getLong(0));
-                            lastSequence = Math.max(lastSequence, cursor.getLong(1));
-                        }
-                        List<BasicDocumentRevision> results = getDocumentsWithInternalIdsInQueue(db, ids);
-                        if(results.size() != ids.size()) {
-                            throw new IllegalStateException("The number of document does not match number of ids, " +
-                                    "something must be wrong here.");
-                        }
-
-                        return new Changes(lastSequence, results);
-                    } catch (SQLException e) {
-                        throw new IllegalStateException("Error querying all changes since: " + verifiedSince + ", limit: " + limit, e);
-                    } finally {
-                        DatabaseUtils.closeCursorQuietly(cursor);
-                    }
-                }
-            }).get();
+            return submitChanges(since, limit).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE, "Failed to get changes",e);
         } catch (ExecutionException e) {
@@ -379,6 +456,92 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     }
 
+    ListenableFuture<Changes> submitChanges(long since, final int limit) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(limit > 0, "Limit must be positive number");
+        final long verifiedSince = since >= 0 ? since : 0;
+
+        return queue.submit(new SQLQueueCallable<Changes>() {
+            @Override
+            public Changes call(SQLDatabase db) throws Exception {
+                String[] args = {Long.toString(verifiedSince), Long.toString(verifiedSince + limit)};
+                Cursor cursor = null;
+                try {
+                    Long lastSequence = verifiedSince;
+                    List<Long> ids = new ArrayList<Long>();
+                    cursor = db.rawQuery(SQL_CHANGE_IDS_SINCE_LIMIT, args);
+                    while (cursor.moveToNext()) {
+                        ids.add(cursor.getLong(0));
+                        lastSequence = Math.max(lastSequence, cursor.getLong(1));
+                    }
+                    List<BasicDocumentRevision> results = getDocumentsWithInternalIdsInQueue(db, ids);
+                    if(results.size() != ids.size()) {
+                        throw new IllegalStateException("The number of document does not match number of ids, " +
+                                "something must be wrong here.");
+                    }
+
+                    return new Changes(lastSequence, results);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Error querying all changes since: " + verifiedSince + ", limit: " + limit, e);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        });
+    }
+
+    @Override
+    public Changes changes(long since, int limit, boolean includeBodies) {
+        try {
+            return submitChanges(since, limit, includeBodies).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to get changes",e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to get changes",e);
+            if(e.getCause() instanceof IllegalStateException) {
+                throw (IllegalStateException) e.getCause();
+            }
+        }
+
+        return null;
+    }
+
+    ListenableFuture<Changes> submitChanges(long since, final int limit, final boolean includeBodies) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(limit > 0, "Limit must be positive number");
+        final long verifiedSince = since >= 0 ? since : 0;
+
+        return queue.submit(new SQLQueueCallable<Changes>() {
+            @Override
+            public Changes call(SQLDatabase db) throws Exception {
+                String[] args = {Long.toString(verifiedSince), Integer.toString(limit)};
+                Cursor cursor = null;
+                try {
+                    long lastSequence = verifiedSince;
+                    // a document changed more than once is only returned once
+                    Set<Long> ids = new LinkedHashSet<Long>();
+                    cursor = db.rawQuery(SQL_CHANGES_SINCE_ROW_LIMIT, args);
+                    while (cursor.moveToNext()) {
+                        ids.add(cursor.getLong(0));
+                        lastSequence = Math.max(lastSequence, cursor.getLong(1));
+                    }
+                    List<BasicDocumentRevision> results = getDocumentsWithInternalIdsInQueue(db,
+                            new ArrayList<Long>(ids), includeBodies);
+                    if(results.size() != ids.size()) {
+                        throw new IllegalStateException("The number of document does not match number of ids, " +
+                                "something must be wrong here.");
+                    }
+
+                    return new Changes(lastSequence, results);
+                } catch (SQLException e) {
+                    throw new IllegalStateException("Error querying changes since: " + verifiedSince + ", limit: " + limit, e);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        });
+    }
+
     /**
      * Get list of documents for given list of numeric ids. The result list is ordered by sequence number,
      * and only the current revisions are returned.
@@ -409,12 +572,20 @@ class BasicDatastore implements Datastore, DatastoreExtended {
     private List<BasicDocumentRevision> getDocumentsWithInternalIdsInQueue(SQLDatabase db,
                                                                            final List<Long> docIds)
             throws AttachmentException, DocumentNotFoundException, DocumentException, DatastoreException {
+        return getDocumentsWithInternalIdsInQueue(db, docIds, true);
+    }
+
+    private List<BasicDocumentRevision> getDocumentsWithInternalIdsInQueue(SQLDatabase db,
+                                                                           final List<Long> docIds,
+                                                                           boolean includeBodies)
+            throws AttachmentException, DocumentNotFoundException, DocumentException, DatastoreException {
 
         if(docIds.size() == 0) {
             return Collections.emptyList();
         }
 
-        final String GET_DOCUMENTS_BY_INTERNAL_IDS = "SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+        String cols = includeBodies ? FULL_DOCUMENT_COLS : METADATA_DOCUMENT_COLS;
+        final String GET_DOCUMENTS_BY_INTERNAL_IDS = "SELECT " + cols + " FROM revs, docs " +
                 "WHERE revs.doc_id IN ( %s ) AND current = 1 AND docs.doc_id = revs.doc_id";
 
         // Split into batches because SQLite has a limit on the number
@@ -433,7 +604,11 @@ class BasicDatastore implements Datastore, DatastoreExtended {
             for(int i = 0 ; i < batch.size() ; i ++) {
                 args[i] = Long.toString(batch.get(i));
             }
-            result.addAll(getRevisionsFromRawQuery(db,sql, args));
+            if (includeBodies) {
+                result.addAll(getRevisionsFromRawQuery(db,sql, args));
+            } else {
+                result.addAll(getRevisionMetadataFromRawQuery(db, sql, args));
+            }
         }
 
         // Contract is to sort by sequence number, which we need to do
@@ -480,8 +655,84 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     }
 
+    @Override
+    public Page<BasicDocumentRevision> getAllDocuments(final String continuationToken,
+                                                       final int limit,
+                                                       final boolean descending) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must be >= 0");
+        }
+        // The token is the internal ID of the last document in the previous page
+        final Long after;
+        if (continuationToken == null) {
+            after = null;
+        } else {
+            try {
+                after = Long.valueOf(continuationToken);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+            }
+        }
+        try {
+            return queue.submit(new SQLQueueCallable<Page<BasicDocumentRevision>>(){
+                @Override
+                public Page<BasicDocumentRevision> call(SQLDatabase db) throws Exception {
+                    String seek = "";
+                    String[] args = new String[]{};
+                    if (after != null) {
+                        seek = descending ? "AND docs.doc_id < ? " : "AND docs.doc_id > ? ";
+                        args = new String[]{ after.toString() };
+                    }
+                    String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+                                    "WHERE deleted = 0 AND current = 1 AND docs.doc_id = revs.doc_id " +
+                                    "%1$s" +
+                                    "ORDER BY docs.doc_id %2$s, revid DESC LIMIT %3$s ",
+                            seek, (descending ? "DESC" : "ASC"), limit);
+                    List<BasicDocumentRevision> results = getRevisionsFromRawQuery(db, sql, args);
+
+                    String next = null;
+                    if (limit > 0 && results.size() == limit) {
+                        BasicDocumentRevision last = results.get(results.size() - 1);
+                        next = Long.toString(last.getInternalNumericId());
+                    }
+                    return new Page<BasicDocumentRevision>(results, next);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE,"Failed to get all documents",e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE,"Failed to get all documents",e);
+        }
+        return null;
+    }
+
+    @Override
+    public Iterable<BasicDocumentRevision> iterateAllDocuments(final boolean descending) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        return new Iterable<BasicDocumentRevision>() {
+            @Override
+            public Iterator<BasicDocumentRevision> iterator() {
+                return new PagingIterator<BasicDocumentRevision>(
+                        new PagingIterator.PageFetcher<BasicDocumentRevision>() {
+                            @Override
+                            public Page<BasicDocumentRevision> fetch(String continuationToken,
+                                                                     int limit) {
+                                return getAllDocuments(continuationToken, limit, descending);
+                            }
+                        }, ALL_DOCUMENTS_PAGE_SIZE);
+            }
+        };
+    }
+
     @Override
     public List<BasicDocumentRevision> getDocumentsWithIds(final List<String> docIds) {
+        return getDocumentsWithIds(docIds, null);
+    }
+
+    @Override
+    public List<BasicDocumentRevision> getDocumentsWithIds(final List<String> docIds,
+                                                           final DocumentBodyFilter filter) {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         Preconditions.checkNotNull(docIds, "Input document id list can not be null");
         try {
@@ -492,7 +743,7 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                             " WHERE docid IN ( %1$s ) AND current = 1 AND docs.doc_id = revs.doc_id " +
                             " ORDER BY docs.doc_id ", DatabaseUtils.makePlaceholders(docIds.size()));
                     String[] args = docIds.toArray(new String[docIds.size()]);
-                    List<BasicDocumentRevision> docs = getRevisionsFromRawQuery(db,sql, args);
+                    List<BasicDocumentRevision> docs = getRevisionsFromRawQuery(db, sql, args, filter);
                     // Sort in memory since seems not able to sort them using SQL
                     return sortDocumentsAccordingToIdList(docIds, docs);
                 }
@@ -870,16 +1121,34 @@ class BasicDatastore implements Datastore, DatastoreExtended {
             args.put("deleted", options.deleted);
             args.put("available", options.available);
             args.put("json", options.data);
+            // a new revision is always a leaf, and its parent no longer is
+            args.put("leaf", 1);
             logger.fine("New revision inserted: " + options.docNumericId + ", " + options.revId);
             newSequence = db.insert("revs", args);
             if (newSequence < 0) {
                 throw new IllegalStateException("Unknown error inserting new updated doc, please check log");
             }
+            if (options.parentSequence > 0) {
+                ContentValues parentArgs = new ContentValues();
+                parentArgs.put("leaf", 0);
+                db.update("revs", parentArgs, "sequence=?",
+                        new String[]{ Long.toString(options.parentSequence) });
+            }
+            updateConflicted(db, options.docNumericId);
 
 
         return newSequence;
     }
 
+    private void updateConflicted(SQLDatabase db, long docNumericId) {
+        try {
+            db.execSQL(SQL_UPDATE_CONFLICTED, new Object[]{ docNumericId, docNumericId });
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error updating conflicted state of document " +
+                    docNumericId, e);
+        }
+    }
+
     private long insertStubRevision(SQLDatabase db, long docNumericId, String revId, long parentSequence) throws AttachmentException {
         // don't copy attachments
         InsertRevisionOptions options = new InsertRevisionOptions();
@@ -917,11 +1186,23 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     private List<BasicDocumentRevision> getRevisionsFromRawQuery(SQLDatabase db, String sql, String[] args)
             throws DocumentNotFoundException, AttachmentException, DocumentException, DatastoreException {
+        return getRevisionsFromRawQuery(db, sql, args, null);
+    }
+
+    private List<BasicDocumentRevision> getRevisionsFromRawQuery(SQLDatabase db, String sql, String[] args,
+                                                                 DocumentBodyFilter filter)
+            throws DocumentNotFoundException, AttachmentException, DocumentException, DatastoreException {
         List<BasicDocumentRevision> result = new ArrayList<BasicDocumentRevision>();
         Cursor cursor = null;
         try {
             cursor = db.rawQuery(sql, args);
             while (cursor.moveToNext()) {
+                // Check the raw row first so rejected revisions are never built
+                if (filter != null && !filter.accept(cursor.getString(0),
+                                                     cursor.getString(2),
+                                                     cursor.getBlob(4))) {
+                    continue;
+                }
                 long sequence = cursor.getLong(3);
                 List<? extends Attachment> atts = attachmentManager.attachmentsForRevision(db,sequence);
                 BasicDocumentRevision row = getFullRevisionFromCurrentCursor(cursor, atts);
@@ -935,6 +1216,28 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         return result;
     }
 
+    /**
+     * Reads revisions selected with {@code METADATA_DOCUMENT_COLS}, without
+     * loading their attachments.
+     */
+    private List<BasicDocumentRevision> getRevisionMetadataFromRawQuery(SQLDatabase db, String sql,
+                                                                        String[] args)
+            throws DatastoreException {
+        List<BasicDocumentRevision> result = new ArrayList<BasicDocumentRevision>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, args);
+            while (cursor.moveToNext()) {
+                result.add(getFullRevisionFromCurrentCursor(cursor, null));
+            }
+        } catch (SQLException e) {
+           throw new DatastoreException(e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+        return result;
+    }
+
     @Override
     public String getPublicIdentifier() throws DatastoreException {
         Preconditions.checkState(this.isOpen(), "Database is closed");
@@ -967,12 +1270,43 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
 
     @Override
-    public void forceInsert(final BasicDocumentRevision rev,
-                            final List<String> revisionHistory,
-                            final Map<String, Object> attachments,
-                            final Map<String[],List<PreparedAttachment>>preparedAttachments,
-                            final boolean pullAttachmentsInline) throws DocumentException {
+    public void forceInsert(BasicDocumentRevision rev,
+                            List<String> revisionHistory,
+                            Map<String, Object> attachments,
+                            Map<String[],List<PreparedAttachment>>preparedAttachments,
+                            boolean pullAttachmentsInline) throws DocumentException {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        doForceInsert(rev, revisionHistory, attachments, preparedAttachments,
+                pullAttachmentsInline);
+        events.documentsChanged(Collections.singletonList(rev));
+    }
+
+    @Override
+    public void forceInsert(List<ForceInsertItem> items) throws DocumentException {
         Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(items, "Input items can not be null");
+        List<BasicDocumentRevision> inserted = new ArrayList<BasicDocumentRevision>(items.size());
+        try {
+            for (ForceInsertItem item : items) {
+                doForceInsert(item.rev, item.revisionHistory, item.attachments,
+                        item.preparedAttachments, item.pullAttachmentsInline);
+                inserted.add(item.rev);
+            }
+        } finally {
+            // one event for the whole batch, including when a later item failed
+            events.documentsChanged(inserted);
+        }
+    }
+
+    /**
+     * Inserts the revision and posts its DocumentCreated or DocumentUpdated event,
+     * leaving the caller to report it in a DocumentsChanged event.
+     */
+    private void doForceInsert(final BasicDocumentRevision rev,
+                               final List<String> revisionHistory,
+                               final Map<String, Object> attachments,
+                               final Map<String[],List<PreparedAttachment>>preparedAttachments,
+                               final boolean pullAttachmentsInline) throws DocumentException {
         Preconditions.checkNotNull(rev, "Input document revision can not be null");
         Preconditions.checkNotNull(revisionHistory, "Input revision history must not be null");
         Preconditions.checkArgument(revisionHistory.size() > 0, "Input revision history must not be empty");
@@ -986,6 +1320,7 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         logger.finer("forceInsert(): " + rev.toString() + ",\n" + JSONUtils.toPrettyJson
                 (revisionHistory));
 
+        invalidateCachedDocument(rev.getId());
         try {
             Object event = queue.submitTransaction(new SQLQueueCallable<Object>(){
                 @Override
@@ -1013,11 +1348,15 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                                 attachments);
                         rev.initialiseSequence(seq);
                         // TODO fetch the parent doc?
-                        documentUpdated = new DocumentUpdated(null, rev);
+                        if (events.hasSubscribers(DocumentUpdated.class)) {
+                            documentUpdated = new DocumentUpdated(null, rev);
+                        }
                     } else {
                         seq = doForceInsertNewDocumentWithHistory(db, rev, revisionHistory);
                         rev.initialiseSequence(seq);
-                        documentCreated = new DocumentCreated(rev);
+                        if (events.hasSubscribers(DocumentCreated.class)) {
+                            documentCreated = new DocumentCreated(rev);
+                        }
                     }
 
                     // now deal with any attachments
@@ -1096,8 +1435,9 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                 }
             }).get();
 
+            invalidateCachedDocument(rev.getId());
             if(event != null) {
-                eventBus.post(event);
+                events.post(event);
             }
 
 
@@ -1105,6 +1445,8 @@ class BasicDatastore implements Datastore, DatastoreExtended {
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
             throw new DocumentException(e);
+        } finally {
+            invalidateCachedDocument(rev.getId());
         }
 
     }
@@ -1149,11 +1491,12 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         Preconditions.checkNotNull(revisions, "Revision history should not be null.");
         Preconditions.checkArgument(revisions.size() > 0, "Revision history should have at least one revision." );
 
-        // First look up all locally-known revisions of this document:
+        // First look up all locally-known revisions of this document. Only the
+        // shape of the tree is needed, so the revisions' bodies aren't loaded:
 
         DocumentRevisionTree localRevs;
         try {
-            localRevs = getAllRevisionsOfDocumentInQueue(db, newRevision.getId());
+            localRevs = getAllRevisionsOfDocumentInQueue(db, newRevision.getId(), false);
         } catch (DocumentNotFoundException e){
             //this shouldn't be thrown since from the checkArugment above call we know the document
             //exists so it should have a revision history
@@ -1366,6 +1709,7 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     @Override
     public void compact() {
+        invalidateCachedDocuments();
         try {
             queue.submit(new SQLQueueCallable<Object>() {
                 @Override
@@ -1386,6 +1730,8 @@ class BasicDatastore implements Datastore, DatastoreExtended {
             logger.log(Level.SEVERE,"Failed to compact database",e);
         } catch (ExecutionException e) {
             logger.log(Level.SEVERE,"Failed to compact database",e);
+        } finally {
+            invalidateCachedDocuments();
         }
 
     }
@@ -1408,8 +1754,10 @@ class BasicDatastore implements Datastore, DatastoreExtended {
             logger.log(Level.SEVERE, "Closing db failed", e);
         }
         queue.shutdown();
+        async.shutdown();
         dbOpen = false;
-        eventBus.post(new DatabaseClosed(datastoreName));
+        documentCache = null;
+        events.post(new DatabaseClosed(datastoreName));
 
     }
 
@@ -1419,25 +1767,8 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     @Override
     public Map<String, Collection<String>> revsDiff(final Multimap<String, String> revisions) {
-        Preconditions.checkState(this.isOpen(), "Database is closed");
-        Preconditions.checkNotNull(revisions, "Input revisions must not be null");
-
         try {
-            return queue.submit(new SQLQueueCallable<Map<String,Collection<String>>>(){
-                @Override
-                public Map<String, Collection<String>> call(SQLDatabase db) throws Exception {
-                    Multimap<String, String> missingRevs = ArrayListMultimap.create();
-                    // Break the potentially big multimap into small ones so for each map,
-                    // a single query can be use to check if the <id, revision> pairs in sqlDb or not
-                    List<Multimap<String, String>> batches =
-                            multiMapPartitions(revisions, SQLITE_QUERY_PLACEHOLDERS_LIMIT);
-                    for(Multimap<String, String> batch : batches) {
-                        revsDiffBatch(db,batch);
-                        missingRevs.putAll(batch);
-                    }
-                    return missingRevs.asMap();
-                }
-            }).get();
+            return submitRevsDiff(revisions).get();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to do revsdiff",e);
         } catch (ExecutionException e) {
@@ -1447,6 +1778,28 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         return null;
     }
 
+    ListenableFuture<Map<String, Collection<String>>> submitRevsDiff(
+            final Multimap<String, String> revisions) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(revisions, "Input revisions must not be null");
+
+        return queue.submit(new SQLQueueCallable<Map<String,Collection<String>>>(){
+            @Override
+            public Map<String, Collection<String>> call(SQLDatabase db) throws Exception {
+                Multimap<String, String> missingRevs = ArrayListMultimap.create();
+                // Break the potentially big multimap into small ones so for each map,
+                // a single query can be use to check if the <id, revision> pairs in sqlDb or not
+                List<Multimap<String, String>> batches =
+                        multiMapPartitions(revisions, SQLITE_QUERY_PLACEHOLDERS_LIMIT);
+                for(Multimap<String, String> batch : batches) {
+                    revsDiffBatch(db,batch);
+                    missingRevs.putAll(batch);
+                }
+                return missingRevs.asMap();
+            }
+        });
+    }
+
     List<Multimap<String, String>> multiMapPartitions(
             Multimap<String, String> revisions, int size) {
 
@@ -1516,30 +1869,46 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     @Override
     public Iterator<String> getConflictedDocumentIds() {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        return new PagingIterator<String>(new PagingIterator.PageFetcher<String>() {
+            @Override
+            public Page<String> fetch(String continuationToken, int limit) {
+                return getConflictedDocumentIds(continuationToken, limit);
+            }
+        }, CONFLICTED_DOCUMENTS_PAGE_SIZE);
+    }
 
-        // the "SELECT DISTINCT ..." subquery selects all the parent
-        // sequence, and so the outer "SELECT ..." practically selects
-        // all the leaf nodes. The "GROUP BY" and "HAVING COUNT(*) > 1"
-        // make sure only those document with more than one leafs are
-        // returned.
-        final String sql = "SELECT docs.docid, COUNT(*) FROM docs,revs " +
-                "WHERE revs.doc_id = docs.doc_id " +
-                "AND deleted = 0 AND revs.sequence NOT IN " +
-                "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) " +
-                "GROUP BY docs.docid HAVING COUNT(*) > 1";
-
+    @Override
+    public Page<String> getConflictedDocumentIds(final String continuationToken,
+                                                 final int limit) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be > 0");
+        }
+        // The token is the internal ID of the last document in the previous page
+        final long after;
+        if (continuationToken == null) {
+            after = 0;
+        } else {
+            try {
+                after = Long.parseLong(continuationToken);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+            }
+        }
         try {
-            return queue.submit(new SQLQueueCallable<Iterator<String>>() {
+            return queue.submit(new SQLQueueCallable<Page<String>>() {
                 @Override
-                public Iterator<String> call(SQLDatabase db) throws Exception {
-
+                public Page<String> call(SQLDatabase db) throws Exception {
                     List<String> conflicts = new ArrayList<String>();
+                    long last = after;
                     Cursor cursor = null;
                     try {
-                        cursor = db.rawQuery(sql, new String[]{});
+                        cursor = db.rawQuery(SQL_CONFLICTED_DOCUMENTS_AFTER,
+                                new String[]{ Long.toString(after), Integer.toString(limit) });
                         while (cursor.moveToNext()) {
-                            String docId = cursor.getString(0);
-                            conflicts.add(docId);
+                            last = cursor.getLong(0);
+                            conflicts.add(cursor.getString(1));
                         }
                     }  catch (SQLException e) {
                         logger.log(Level.SEVERE, "Error getting conflicted document: ", e);
@@ -1547,7 +1916,8 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                     } finally {
                         DatabaseUtils.closeCursorQuietly(cursor);
                     }
-                    return conflicts.iterator();
+                    String next = conflicts.size() == limit ? Long.toString(last) : null;
+                    return new Page<String>(conflicts, next);
                 }
             }).get();
         } catch (InterruptedException e) {
@@ -1566,6 +1936,9 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         // before starting the tx, get the 'new winner' and see if we need to prepare its attachments
 
 
+        // revisions added while resolving, for the DocumentsChanged event
+        final List<BasicDocumentRevision> changed = new ArrayList<BasicDocumentRevision>();
+        invalidateCachedDocument(docId);
         try {
             queue.submitTransaction(new SQLQueueCallable<Object>() {
                 @Override
@@ -1619,19 +1992,21 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                                     BasicDocumentRevision deleted = deleteDocumentInQueue(db,
                                             revision.getId(), revision.getRevision());
                                     setCurrent(db, deleted, false);
+                                    changed.add(deleted);
                                 }
                             }
                         }
 
                         // if it's MutableDocumentRev: graft the new revision on
                         if (newWinner.getClass() == MutableDocumentRevision.class) {
-                            updateDocumentFromRevision(db,(MutableDocumentRevision) newWinner,
-                                    preparedAndSavedAttachments);
+                            changed.add(updateDocumentFromRevision(db,(MutableDocumentRevision) newWinner,
+                                    preparedAndSavedAttachments));
                         }
 
                     return null;
                 }
             }).get();
+            events.documentsChanged(changed);
         } catch (InterruptedException e) {
            logger.log(Level.SEVERE, "Failed to resolve conflicts", e);
         } catch (ExecutionException e) {
@@ -1641,6 +2016,8 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                     throw (IllegalArgumentException)e.getCause();
                 }
             }
+        } finally {
+            invalidateCachedDocument(docId);
         }
 
     }
@@ -1682,7 +2059,8 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         long internalId = cursor.getLong(1);
         String revId = cursor.getString(2);
         long sequence = cursor.getLong(3);
-        byte[] json = cursor.getBlob(4);
+        // json is null when only the revision's metadata was selected
+        byte[] json = cursor.columnType(4) == Cursor.FIELD_TYPE_NULL ? JSONUtils.EMPTY_JSON : cursor.getBlob(4);
         boolean current = cursor.getInt(5) > 0;
         boolean deleted = cursor.getInt(6) > 0;
 
@@ -1711,13 +2089,59 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     @Override
     public PreparedAttachment prepareAttachment(Attachment att) throws AttachmentException {
-        PreparedAttachment preparedAttachment = new PreparedAttachment(att, this.attachmentManager.attachmentsDir);
+        PreparedAttachment preparedAttachment = new PreparedAttachment(att,
+                this.attachmentManager.attachmentsDir, this.attachmentCompressionPolicy);
         return preparedAttachment;
     }
 
+    @Override
+    public Map<String, PreparedAttachment> prepareAttachmentsWithDigests(
+            final Map<String, ? extends Attachment> attachments) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(attachments, "Input attachments must not be null");
+
+        try {
+            return queue.submit(new SQLQueueCallable<Map<String, PreparedAttachment>>() {
+                @Override
+                public Map<String, PreparedAttachment> call(SQLDatabase db) throws Exception {
+                    return attachmentManager.preparedAttachmentsWithDigests(db, attachments);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to find attachments by digest", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to find attachments by digest", e);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Map<String, Multimap<String, String>> attachmentNamesForRevisions(
+            final Multimap<String, String> revisions) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(revisions, "Input revisions must not be null");
+
+        try {
+            return queue.submit(new SQLQueueCallable<Map<String, Multimap<String, String>>>() {
+                @Override
+                public Map<String, Multimap<String, String>> call(SQLDatabase db) throws Exception {
+                    return attachmentManager.attachmentNamesForRevisions(db, revisions);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to get attachment names for revisions", e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to get attachment names for revisions", e);
+        }
+
+        return null;
+    }
+
     @Override
     public void addAttachment(final PreparedAttachment att, final BasicDocumentRevision rev) throws AttachmentException {
 
+        invalidateCachedDocument(rev.getId());
         try {
             queue.submit(new SQLQueueCallable<Object>(){
                 @Override
@@ -1730,6 +2154,8 @@ class BasicDatastore implements Datastore, DatastoreExtended {
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
            throw new AttachmentException(e);
+        } finally {
+            invalidateCachedDocument(rev.getId());
         }
 
     }
@@ -1776,35 +2202,22 @@ class BasicDatastore implements Datastore, DatastoreExtended {
     @Override
     public EventBus getEventBus() {
         Preconditions.checkState(this.isOpen(), "Database is closed");
-        return eventBus;
+        return events.getEventBus();
+    }
+
+    @Override
+    public DatastoreAsync getAsync() {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        return async;
     }
 
     @Override
     public BasicDocumentRevision createDocumentFromRevision(final MutableDocumentRevision rev)
             throws DocumentException, AttachmentException {
-        Preconditions.checkNotNull(rev, "DocumentRevision can not be null");
-        Preconditions.checkState(isOpen(), "Datastore is closed");
-        // create docid if docid is null
-        if (rev.docId == null) {
-            rev.docId = CouchUtils.generateDocumentId();
-        }
-        final AttachmentManager.PreparedAndSavedAttachments preparedAndSavedAttachments =
-                attachmentManager.prepareAttachments(rev.attachments != null ? rev.attachments.values() : null);
+        ListenableFuture<BasicDocumentRevision> future = submitCreateDocument(rev);
         BasicDocumentRevision created = null;
         try {
-            created = queue.submitTransaction(new SQLQueueCallable<BasicDocumentRevision>(){
-                @Override
-                public BasicDocumentRevision call(SQLDatabase db) throws Exception {
-                        // save document with body
-                        BasicDocumentRevision saved = createDocument(db,rev.docId, rev.body);
-                        // set attachments
-                        attachmentManager.setAttachments(db,saved, preparedAndSavedAttachments);
-                        // now re-fetch the revision with updated attachments
-                        BasicDocumentRevision updatedWithAttachments = getDocumentInQueue(db,
-                                saved.getId(), saved.getRevision());
-                        return updatedWithAttachments;
-                }
-            }).get();
+            created = future.get();
             return created;
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to create document",e);
@@ -1812,43 +2225,100 @@ class BasicDatastore implements Datastore, DatastoreExtended {
             logger.log(Level.SEVERE,"Failed to create document",e);
             throw new DocumentException(e);
         }finally {
+            invalidateCachedDocument(rev.docId);
             if(created != null){
-                eventBus.post(new DocumentCreated(created));
+                documentCreated(created);
             }
         }
         return null;
 
     }
 
+    /**
+     * Prepares the revision's attachments and submits its creation to the
+     * queue. The caller must invalidate the cached document and post the
+     * event once the future completes.
+     */
+    ListenableFuture<BasicDocumentRevision> submitCreateDocument(final MutableDocumentRevision rev)
+            throws AttachmentException {
+        Preconditions.checkNotNull(rev, "DocumentRevision can not be null");
+        Preconditions.checkState(isOpen(), "Datastore is closed");
+        // create docid if docid is null
+        if (rev.docId == null) {
+            rev.docId = CouchUtils.generateDocumentId();
+        }
+        final AttachmentManager.PreparedAndSavedAttachments preparedAndSavedAttachments =
+                attachmentManager.prepareAttachments(rev.attachments != null ? rev.attachments.values() : null);
+        invalidateCachedDocument(rev.docId);
+        return queue.submitTransaction(new SQLQueueCallable<BasicDocumentRevision>(){
+            @Override
+            public BasicDocumentRevision call(SQLDatabase db) throws Exception {
+                    // save document with body
+                    BasicDocumentRevision saved = createDocument(db,rev.docId, rev.body);
+                    // set attachments
+                    attachmentManager.setAttachments(db,saved, preparedAndSavedAttachments);
+                    // now re-fetch the revision with updated attachments
+                    BasicDocumentRevision updatedWithAttachments = getDocumentInQueue(db,
+                            saved.getId(), saved.getRevision());
+                    return updatedWithAttachments;
+            }
+        });
+    }
+
     @Override
     public BasicDocumentRevision updateDocumentFromRevision(final MutableDocumentRevision rev)
             throws ConflictException, DocumentNotFoundException, AttachmentException, DocumentException {
-        final AttachmentManager.PreparedAndSavedAttachments preparedAndSavedAttachments =
-                this.attachmentManager.prepareAttachments(rev.attachments != null ? rev.attachments.values() : null);
-
+        ListenableFuture<DocumentUpdated> future = submitUpdateDocument(rev);
         try {
-            BasicDocumentRevision revision = queue.submitTransaction(new SQLQueueCallable<BasicDocumentRevision>(){
-                @Override
-                public BasicDocumentRevision call(SQLDatabase db) throws Exception {
-                    return updateDocumentFromRevision(db,rev, preparedAndSavedAttachments);
-                }
-            }).get();
+            DocumentUpdated updated = future.get();
+            invalidateCachedDocument(rev.docId);
 
-            if (revision != null) {
-                eventBus.post(new DocumentUpdated(getDocument(rev.docId,rev.sourceRevisionId),revision));
-            }
+            documentUpdated(updated.prevDocument, updated.newDocument);
 
-            return revision;
+            return updated.newDocument;
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE, "Failed to update document", e);
             throw new RuntimeException(e);
         } catch (ExecutionException e) {
             logger.log(Level.SEVERE, "Failed to updated document", e);
             throw new DocumentException(e);
+        } finally {
+            invalidateCachedDocument(rev.docId);
         }
 
     }
 
+    /**
+     * Prepares the revision's attachments and submits the update to the
+     * queue. The future's event holds the previous revision, which is read
+     * in the same transaction if anyone subscribes to
+     * {@code DocumentUpdated} events, and is null otherwise. The caller must
+     * invalidate the cached document and post the event once the future
+     * completes.
+     */
+    ListenableFuture<DocumentUpdated> submitUpdateDocument(final MutableDocumentRevision rev)
+            throws AttachmentException {
+        Preconditions.checkNotNull(rev, "DocumentRevision can not be null");
+        Preconditions.checkState(isOpen(), "Datastore is closed");
+        final AttachmentManager.PreparedAndSavedAttachments preparedAndSavedAttachments =
+                this.attachmentManager.prepareAttachments(rev.attachments != null ? rev.attachments.values() : null);
+
+        final boolean readPrevious = events.hasSubscribers(DocumentUpdated.class);
+        invalidateCachedDocument(rev.docId);
+        return queue.submitTransaction(new SQLQueueCallable<DocumentUpdated>(){
+            @Override
+            public DocumentUpdated call(SQLDatabase db) throws Exception {
+                BasicDocumentRevision updated = updateDocumentFromRevision(db, rev,
+                        preparedAndSavedAttachments);
+                BasicDocumentRevision previous = null;
+                if (readPrevious) {
+                    previous = getDocumentInQueue(db, rev.docId, rev.sourceRevisionId);
+                }
+                return new DocumentUpdated(previous, updated);
+            }
+        });
+    }
+
     private BasicDocumentRevision updateDocumentFromRevision(SQLDatabase db,MutableDocumentRevision rev,
                                                              AttachmentManager.PreparedAndSavedAttachments preparedAndSavedAttachments)
             throws ConflictException, AttachmentNotSavedException, AttachmentException, DocumentNotFoundException, DatastoreException {
@@ -1864,21 +2334,186 @@ class BasicDatastore implements Datastore, DatastoreExtended {
     }
 
     @Override
-    public BasicDocumentRevision deleteDocumentFromRevision(final BasicDocumentRevision rev) throws ConflictException {
-        Preconditions.checkNotNull(rev, "DocumentRevision can not be null");
-        Preconditions.checkState(isOpen(),"Datastore is closed");
+    public List<DocumentWriteResult> createDocumentsFromRevisions(final List<MutableDocumentRevision> revs)
+            throws DocumentException {
+        Preconditions.checkNotNull(revs, "DocumentRevisions can not be null");
+        Preconditions.checkState(isOpen(), "Datastore is closed");
+        for (MutableDocumentRevision rev : revs) {
+            Preconditions.checkNotNull(rev, "DocumentRevision can not be null");
+            // create docid if docid is null
+            if (rev.docId == null) {
+                rev.docId = CouchUtils.generateDocumentId();
+            }
+        }
+
+        final DocumentWriteResult[] results = new DocumentWriteResult[revs.size()];
+        final List<AttachmentManager.PreparedAndSavedAttachments> attachments =
+                prepareAttachmentsForBatch(revs, results);
+        final List<BasicDocumentRevision> created = new ArrayList<BasicDocumentRevision>();
+        invalidateCachedDocuments(revs);
+        try {
+            queue.submitTransaction(new SQLQueueCallable<Object>() {
+                @Override
+                public Object call(SQLDatabase db) throws Exception {
+                    for (int i = 0; i < results.length; i++) {
+                        if (results[i] != null) {
+                            continue;
+                        }
+                        MutableDocumentRevision rev = revs.get(i);
+                        db.execSQL("SAVEPOINT " + BATCH_SAVEPOINT);
+                        try {
+                            // save document with body
+                            BasicDocumentRevision saved = createDocument(db, rev.docId, rev.body);
+                            // set attachments
+                            attachmentManager.setAttachments(db, saved, attachments.get(i));
+                            // now re-fetch the revision with updated attachments
+                            saved = getDocumentInQueue(db, saved.getId(), saved.getRevision());
+                            db.execSQL("RELEASE SAVEPOINT " + BATCH_SAVEPOINT);
+                            results[i] = new DocumentWriteResult(rev, saved);
+                            created.add(saved);
+                        } catch (Exception e) {
+                            results[i] = new DocumentWriteResult(rev, rollbackBatchItem(db, e));
+                        }
+                    }
+                    return null;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to create documents", e);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to create documents", e);
+            throw new DocumentException(e);
+        } finally {
+            invalidateCachedDocuments(revs);
+        }
+
+        if (!created.isEmpty()) {
+            if (events.hasSubscribers(DocumentsCreated.class)) {
+                events.post(new DocumentsCreated(created));
+            }
+            events.documentsChanged(created);
+        }
+        return Arrays.asList(results);
+    }
 
+    @Override
+    public List<DocumentWriteResult> updateDocumentsFromRevisions(final List<MutableDocumentRevision> revs)
+            throws DocumentException {
+        Preconditions.checkNotNull(revs, "DocumentRevisions can not be null");
+        Preconditions.checkState(isOpen(), "Datastore is closed");
+        for (MutableDocumentRevision rev : revs) {
+            Preconditions.checkNotNull(rev, "DocumentRevision can not be null");
+        }
+
+        final DocumentWriteResult[] results = new DocumentWriteResult[revs.size()];
+        final List<AttachmentManager.PreparedAndSavedAttachments> attachments =
+                prepareAttachmentsForBatch(revs, results);
+        final List<BasicDocumentRevision> previous = new ArrayList<BasicDocumentRevision>();
+        final List<BasicDocumentRevision> updated = new ArrayList<BasicDocumentRevision>();
+        final boolean readPrevious = events.hasSubscribers(DocumentsUpdated.class);
+        invalidateCachedDocuments(revs);
         try {
-            BasicDocumentRevision deletedRevision = queue.submitTransaction(new SQLQueueCallable<BasicDocumentRevision>() {
+            queue.submitTransaction(new SQLQueueCallable<Object>() {
                 @Override
-                public BasicDocumentRevision call(SQLDatabase db) throws Exception {
-                    return deleteDocumentInQueue(db, rev.getId(), rev.getRevision());
+                public Object call(SQLDatabase db) throws Exception {
+                    for (int i = 0; i < results.length; i++) {
+                        if (results[i] != null) {
+                            continue;
+                        }
+                        MutableDocumentRevision rev = revs.get(i);
+                        db.execSQL("SAVEPOINT " + BATCH_SAVEPOINT);
+                        try {
+                            BasicDocumentRevision prev = null;
+                            if (readPrevious) {
+                                prev = getDocumentInQueue(db, rev.docId, rev.sourceRevisionId);
+                            }
+                            BasicDocumentRevision saved = updateDocumentFromRevision(db, rev,
+                                    attachments.get(i));
+                            db.execSQL("RELEASE SAVEPOINT " + BATCH_SAVEPOINT);
+                            results[i] = new DocumentWriteResult(rev, saved);
+                            previous.add(prev);
+                            updated.add(saved);
+                        } catch (Exception e) {
+                            results[i] = new DocumentWriteResult(rev, rollbackBatchItem(db, e));
+                        }
+                    }
+                    return null;
                 }
             }).get();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Failed to update documents", e);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Failed to update documents", e);
+            throw new DocumentException(e);
+        } finally {
+            invalidateCachedDocuments(revs);
+        }
+
+        if (!updated.isEmpty()) {
+            if (readPrevious) {
+                events.post(new DocumentsUpdated(previous, updated));
+            }
+            events.documentsChanged(updated);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * <p>Prepares the attachments of each revision in a batch, before the
+     * batch is written, so the attachment files are copied off the database
+     * queue.</p>
+     *
+     * <p>Revisions whose attachments can't be prepared are given a failed
+     * result in {@code results}.</p>
+     */
+    private List<AttachmentManager.PreparedAndSavedAttachments> prepareAttachmentsForBatch(
+            List<MutableDocumentRevision> revs, DocumentWriteResult[] results) {
+        List<AttachmentManager.PreparedAndSavedAttachments> prepared =
+                new ArrayList<AttachmentManager.PreparedAndSavedAttachments>(revs.size());
+        for (int i = 0; i < revs.size(); i++) {
+            MutableDocumentRevision rev = revs.get(i);
+            try {
+                prepared.add(attachmentManager.prepareAttachments(
+                        rev.attachments != null ? rev.attachments.values() : null));
+            } catch (AttachmentException e) {
+                logger.log(Level.WARNING, "Failed to prepare attachments for " + rev.docId, e);
+                prepared.add(null);
+                results[i] = new DocumentWriteResult(rev, e);
+            }
+        }
+        return prepared;
+    }
+
+    /**
+     * <p>Undoes the writes for the current document in a batch, after
+     * {@code e} was thrown writing it.</p>
+     *
+     * <p>Exceptions caused by the document itself are returned so they can be
+     * reported as that document's result. Anything else is rethrown, which
+     * rolls back the whole batch.</p>
+     */
+    private Exception rollbackBatchItem(SQLDatabase db, Exception e) throws Exception {
+        db.rollbackToSavepoint(BATCH_SAVEPOINT);
+        db.execSQL("RELEASE SAVEPOINT " + BATCH_SAVEPOINT);
+        if (e instanceof DocumentException
+                || e instanceof InvalidDocumentException
+                || e instanceof IllegalArgumentException) {
+            return e;
+        }
+        throw e;
+    }
+
+    @Override
+    public BasicDocumentRevision deleteDocumentFromRevision(final BasicDocumentRevision rev) throws ConflictException {
+        ListenableFuture<BasicDocumentRevision> future = submitDeleteDocument(rev);
+        try {
+            BasicDocumentRevision deletedRevision = future.get();
 
 
             if (deletedRevision != null) {
-                eventBus.post(new DocumentDeleted(rev,deletedRevision));
+                documentDeleted(rev, deletedRevision);
             }
 
             return deletedRevision;
@@ -1891,11 +2526,31 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                     throw (ConflictException)e.getCause();
                 }
             }
+        } finally {
+            invalidateCachedDocument(rev.getId());
         }
 
         return null;
     }
 
+    /**
+     * Submits the deletion of a revision to the queue. The caller must
+     * invalidate the cached document and post the event once the future
+     * completes.
+     */
+    ListenableFuture<BasicDocumentRevision> submitDeleteDocument(final BasicDocumentRevision rev) {
+        Preconditions.checkNotNull(rev, "DocumentRevision can not be null");
+        Preconditions.checkState(isOpen(),"Datastore is closed");
+
+        invalidateCachedDocument(rev.getId());
+        return queue.submitTransaction(new SQLQueueCallable<BasicDocumentRevision>() {
+            @Override
+            public BasicDocumentRevision call(SQLDatabase db) throws Exception {
+                return deleteDocumentInQueue(db, rev.getId(), rev.getRevision());
+            }
+        });
+    }
+
     // delete all leaf nodes
     @Override
     public List<BasicDocumentRevision> deleteDocument(final String id)
@@ -1903,8 +2558,9 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         Preconditions.checkNotNull(id, "id can not be null");
         // to return
 
+        invalidateCachedDocument(id);
         try {
-            return queue.submitTransaction(new SQLQueueCallable<List<BasicDocumentRevision>>(){
+            List<BasicDocumentRevision> deleted = queue.submitTransaction(new SQLQueueCallable<List<BasicDocumentRevision>>(){
 
                 @Override
                 public List<BasicDocumentRevision> call(SQLDatabase db) throws Exception {
@@ -1932,15 +2588,108 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                     }
                 }
             }).get();
+            events.documentsChanged(deleted);
+            return deleted;
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE,"Failed to delete document",e);
         } catch (ExecutionException e) {
             throw new DocumentException("Failed to delete document",e);
+        } finally {
+            invalidateCachedDocument(id);
         }
 
         return null;
     }
 
+    /**
+     * Posts the events for a document created through this datastore.
+     */
+    void documentCreated(BasicDocumentRevision created) {
+        if (events.hasSubscribers(DocumentCreated.class)) {
+            events.post(new DocumentCreated(created));
+        }
+        events.documentsChanged(Collections.singletonList(created));
+    }
+
+    /**
+     * Posts the events for a document updated through this datastore.
+     * {@code previous} is null if nobody subscribed to
+     * {@code DocumentUpdated} events when the update started.
+     */
+    void documentUpdated(BasicDocumentRevision previous, BasicDocumentRevision updated) {
+        if (events.hasSubscribers(DocumentUpdated.class)) {
+            events.post(new DocumentUpdated(previous, updated));
+        }
+        events.documentsChanged(Collections.singletonList(updated));
+    }
+
+    /**
+     * Posts the events for a document deleted through this datastore.
+     */
+    void documentDeleted(BasicDocumentRevision previous, BasicDocumentRevision deleted) {
+        if (events.hasSubscribers(DocumentDeleted.class)) {
+            events.post(new DocumentDeleted(previous, deleted));
+        }
+        events.documentsChanged(Collections.singletonList(deleted));
+    }
+
+    @Override
+    public void enableDocumentCache(int maxDocuments, long maxBytes) {
+        Preconditions.checkState(isOpen(), "Datastore is closed");
+        documentCache = new DocumentRevisionCache(maxDocuments, maxBytes);
+    }
+
+    @Override
+    public void disableDocumentCache() {
+        documentCache = null;
+    }
+
+    @Override
+    public DocumentCacheStatistics getDocumentCacheStatistics() {
+        DocumentRevisionCache cache = documentCache;
+        return cache == null ? null : cache.statistics();
+    }
+
+    @Override
+    public void setAttachmentCompressionPolicy(AttachmentCompressionPolicy policy) {
+        this.attachmentCompressionPolicy = policy;
+    }
+
+    @Override
+    public AttachmentCompressionPolicy getAttachmentCompressionPolicy() {
+        return this.attachmentCompressionPolicy;
+    }
+
+    /**
+     * <p>Removes a document from the document cache. Writes call this both
+     * before and after they are made, so a revision read while the write is
+     * in progress isn't left in the cache.</p>
+     */
+    void invalidateCachedDocument(String docId) {
+        DocumentRevisionCache cache = documentCache;
+        if (cache != null && docId != null) {
+            cache.invalidate(docId);
+        }
+    }
+
+    private void invalidateCachedDocuments(List<MutableDocumentRevision> revs) {
+        DocumentRevisionCache cache = documentCache;
+        if (cache != null) {
+            for (MutableDocumentRevision rev : revs) {
+                if (rev != null && rev.docId != null) {
+                    cache.invalidate(rev.docId);
+                }
+            }
+        }
+    }
+
+    private void invalidateCachedDocuments() {
+        DocumentRevisionCache cache = documentCache;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
     <T> Future<T> runOnDbQueue(SQLQueueCallable<T> callable){
         return queue.submit(callable);
     }
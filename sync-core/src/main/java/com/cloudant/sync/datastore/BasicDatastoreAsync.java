@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.notifications.DocumentUpdated;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>{@link DatastoreAsync} implementation for {@link BasicDatastore}.</p>
+ *
+ * <p>Reads return the datastore queue's futures directly. Writes also need
+ * their cached document invalidated and their event posted once they
+ * complete; this is done on a single callback thread, rather than on the
+ * queue's thread, so that event subscribers can use the datastore without
+ * blocking the queue on itself. The callback thread is only started when
+ * the first write completes.</p>
+ */
+class BasicDatastoreAsync implements DatastoreAsync {
+
+    private final BasicDatastore datastore;
+    private final ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+
+    BasicDatastoreAsync(BasicDatastore datastore) {
+        this.datastore = datastore;
+    }
+
+    @Override
+    public ListenableFuture<BasicDocumentRevision> getDocument(String documentId) {
+        return datastore.submitGetDocument(documentId, null);
+    }
+
+    @Override
+    public ListenableFuture<BasicDocumentRevision> getDocument(String documentId, String revisionId) {
+        return datastore.submitGetDocument(documentId, revisionId);
+    }
+
+    @Override
+    public ListenableFuture<BasicDocumentRevision> createDocumentFromRevision(final MutableDocumentRevision rev)
+            throws AttachmentException {
+        final SettableFuture<BasicDocumentRevision> result = SettableFuture.create();
+        Futures.addCallback(datastore.submitCreateDocument(rev), new FutureCallback<BasicDocumentRevision>() {
+            @Override
+            public void onSuccess(BasicDocumentRevision created) {
+                datastore.invalidateCachedDocument(rev.docId);
+                datastore.documentCreated(created);
+                result.set(created);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                datastore.invalidateCachedDocument(rev.docId);
+                result.setException(t);
+            }
+        }, callbackExecutor);
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<BasicDocumentRevision> updateDocumentFromRevision(final MutableDocumentRevision rev)
+            throws AttachmentException {
+        final SettableFuture<BasicDocumentRevision> result = SettableFuture.create();
+        Futures.addCallback(datastore.submitUpdateDocument(rev), new FutureCallback<DocumentUpdated>() {
+            @Override
+            public void onSuccess(DocumentUpdated updated) {
+                datastore.invalidateCachedDocument(rev.docId);
+                datastore.documentUpdated(updated.prevDocument, updated.newDocument);
+                result.set(updated.newDocument);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                datastore.invalidateCachedDocument(rev.docId);
+                result.setException(t);
+            }
+        }, callbackExecutor);
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<BasicDocumentRevision> deleteDocumentFromRevision(final BasicDocumentRevision rev) {
+        final SettableFuture<BasicDocumentRevision> result = SettableFuture.create();
+        Futures.addCallback(datastore.submitDeleteDocument(rev), new FutureCallback<BasicDocumentRevision>() {
+            @Override
+            public void onSuccess(BasicDocumentRevision deleted) {
+                datastore.invalidateCachedDocument(rev.getId());
+                if (deleted != null) {
+                    datastore.documentDeleted(rev, deleted);
+                }
+                result.set(deleted);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                datastore.invalidateCachedDocument(rev.getId());
+                result.setException(t);
+            }
+        }, callbackExecutor);
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<Changes> changes(long since, int limit) {
+        return datastore.submitChanges(since, limit);
+    }
+
+    @Override
+    public ListenableFuture<Changes> changes(long since, int limit, boolean includeBodies) {
+        return datastore.submitChanges(since, limit, includeBodies);
+    }
+
+    @Override
+    public ListenableFuture<Map<String, Collection<String>>> revsDiff(Multimap<String, String> revisions) {
+        return datastore.submitRevsDiff(revisions);
+    }
+
+    /**
+     * Stops the callback thread once the callbacks already started have run.
+     */
+    void shutdown() {
+        callbackExecutor.shutdown();
+    }
+}
@@ -134,6 +134,11 @@ public interface Datastore {
      * returns up to {@code limit} document revisions, stopping either
      * at {@code limit} or when the list of document is exhausted.</p>
      *
+     * <p>The documents before {@code offset} are read and discarded, so
+     * paging through a large datastore this way gets slower with each page.
+     * Use {@link #getAllDocuments(String, int, boolean)} or
+     * {@link #iterateAllDocuments(boolean)} instead.</p>
+     *
      * @param offset start position
      * @param limit maximum number of documents to return
      * @param descending whether the documents are read in ascending or
@@ -142,6 +147,50 @@ public interface Datastore {
      */
     public List<BasicDocumentRevision> getAllDocuments(int offset, int limit, boolean descending);
 
+    /**
+     * <p>Enumerates the current winning revision for all documents in the
+     * datastore, a page at a time.</p>
+     *
+     * <p>Returns up to {@code limit} document revisions following the
+     * position marked by {@code continuationToken}, in either ascending or
+     * descending order. Pass {@code null} to get the first page, and the
+     * {@link Page#getContinuationToken()} of each page to get the
+     * page after it. Each page is found directly from the token, so fetching
+     * a page takes the same time however far through the datastore it
+     * is.</p>
+     *
+     * <p>Documents are in the same order as for
+     * {@link #getAllDocuments(int, int, boolean)}. A token must be used with
+     * the same value of {@code descending} as the page it came from.</p>
+     *
+     * @param continuationToken token from the previous page, or {@code null}
+     *                          for the first page
+     * @param limit maximum number of documents to return
+     * @param descending whether the documents are read in ascending or
+     *                   descending order.
+     * @return the page of documents, or {@code null} if the page couldn't be
+     *         read.
+     * @throws IllegalArgumentException if {@code continuationToken} isn't a
+     *         token returned by this method
+     */
+    public Page<BasicDocumentRevision> getAllDocuments(String continuationToken, int limit,
+                                                       boolean descending);
+
+    /**
+     * <p>Returns an {@code Iterable} over the current winning revision for
+     * all documents in the datastore.</p>
+     *
+     * <p>Documents are read a page at a time using
+     * {@link #getAllDocuments(String, int, boolean)}, so iterating over all
+     * the documents in a datastore uses constant memory. Documents changed
+     * while iterating may or may not be returned.</p>
+     *
+     * @param descending whether the documents are read in ascending or
+     *                   descending order.
+     * @return an {@code Iterable} over all documents.
+     */
+    public Iterable<BasicDocumentRevision> iterateAllDocuments(boolean descending);
+
     /**
      * <p>Returns the current winning revisions for a set of documents.</p>
      *
@@ -154,6 +203,25 @@ public interface Datastore {
      */
     public List<BasicDocumentRevision> getDocumentsWithIds(List<String> documentIds);
 
+    /**
+     * <p>Returns the current winning revisions for those of a set of documents
+     * whose JSON body is accepted by {@code filter}.</p>
+     *
+     * <p>The filter is given each revision's raw JSON before the revision is
+     * built, so documents it rejects are never deserialised and their
+     * attachments are not looked up.</p>
+     *
+     * <p>If the {@code documentIds} list contains document IDs not present
+     * in the datastore, they will be skipped and there will be no entry for
+     * them in the returned list.</p>
+     *
+     * @param documentIds list of document id
+     * @param filter filter deciding which revisions are returned
+     * @return list of {@code DocumentRevision} objects.
+     */
+    public List<BasicDocumentRevision> getDocumentsWithIds(List<String> documentIds,
+                                                           DocumentBodyFilter filter);
+
     /**
      * <p>Retrieves the datastore's current sequence number.</p>
      *
@@ -191,9 +259,40 @@ public interface Datastore {
      */
     public Changes changes(long since, int limit);
 
+    /**
+     * <p>Returns the current revisions of the documents changed after
+     * {@code since}, reading at most {@code limit} changes.</p>
+     *
+     * <p>Unlike {@link #changes(long, int)}, {@code limit} counts changes
+     * rather than sequence numbers, so fewer than {@code limit} changes are
+     * read only when there are no more. A document changed more than once
+     * is returned once. The revisions are ordered by sequence number, and
+     * the last sequence number of the result is that of the last change
+     * read, to pass as {@code since} for the next call.</p>
+     *
+     * <p>If {@code includeBodies} is {@code false}, only the revisions'
+     * metadata is read: their document ID, revision ID, sequence number and
+     * whether they are deleted. Their bodies are empty and their attachments
+     * aren't loaded. Use {@link #getDocumentsWithIds(List)} to read the
+     * documents whose bodies are needed.</p>
+     *
+     * @param since the sequence number after which to read changes
+     * @param limit the maximum number of changes to read
+     * @param includeBodies whether to read the revisions' bodies and
+     *                      attachments
+     * @return the changed documents and the sequence number of the last
+     *      change read (checkpoint)
+     */
+    public Changes changes(long since, int limit, boolean includeBodies);
+
     /**
      * <p>Returns the EventBus which this Datastore posts
      * {@link com.cloudant.sync.notifications.DocumentModified Document Notification Events} to.</p>
+     *
+     * <p>Events are delivered on the thread which made the change, unless
+     * the datastore was opened with an event executor by
+     * {@link DatastoreManager#openDatastore(String,
+     * com.cloudant.sync.sqlite.DurabilityPolicy, java.util.concurrent.Executor)}.</p>
      * @return the Datastore's EventBus
      *
      * @see <a href="https://code.google.com/p/guava-libraries/wiki/EventBusExplained">Google Guava EventBus documentation</a>
@@ -218,6 +317,11 @@ public interface Datastore {
      * conflicted revisions of the document.
      * </p>
      *
+     * <p>The IDs are read a page at a time, as the iterator is used, so
+     * only one page is held in memory. Resolving the conflicts of documents
+     * while iterating doesn't cause any other conflicted documents to be
+     * skipped.</p>
+     *
      * @return Iterable of String over ids of all Documents with
      *         conflicted revisions
      *
@@ -225,6 +329,29 @@ public interface Datastore {
      */
     public Iterator<String> getConflictedDocumentIds();
 
+    /**
+     * <p>Returns the ids of the Documents with conflicted revisions, a page
+     * at a time.</p>
+     *
+     * <p>Returns up to {@code limit} document ids following the position
+     * marked by {@code continuationToken}. Pass {@code null} to get the first
+     * page, and the {@link Page#getContinuationToken()}
+     * of each page to get the page after it. Conflicted documents are looked
+     * up using an index, so fetching a page doesn't read the revisions of
+     * documents which aren't conflicted.</p>
+     *
+     * @param continuationToken token from the previous page, or {@code null}
+     *                          for the first page
+     * @param limit maximum number of document ids to return
+     * @return the page of document ids, or {@code null} if the page couldn't
+     *         be read.
+     * @throws IllegalArgumentException if {@code limit} isn't positive, or
+     *         {@code continuationToken} isn't a token returned by this method
+     *
+     * @see #getConflictedDocumentIds()
+     */
+    public Page<String> getConflictedDocumentIds(String continuationToken, int limit);
+
     /**
      * <p>
      * Resolve conflicts for specified Document using the
@@ -294,6 +421,56 @@ public interface Datastore {
      */
     public BasicDocumentRevision updateDocumentFromRevision(MutableDocumentRevision rev) throws ConflictException, DocumentNotFoundException, AttachmentException, DocumentException;
 
+    /**
+     * <p>Adds new documents with bodies and attachments from {@code revs}, in
+     * a single transaction.</p>
+     *
+     * <p>Each document is created as if by
+     * {@link #createDocumentFromRevision(MutableDocumentRevision)}, but the
+     * batch is committed once rather than once per document, so this is much
+     * faster for importing many documents. A document which can't be created,
+     * for example because a document with its ID already exists, doesn't stop
+     * the others being created; its result holds the reason instead.</p>
+     *
+     * <p>If any documents are created, a single
+     * {@link com.cloudant.sync.notifications.DocumentsCreated DocumentsCreated}
+     * event is posted on the event bus for the batch. No
+     * {@code DocumentCreated} events are posted.</p>
+     *
+     * @param revs the <code>MutableDocumentRevision</code>s to be created
+     * @return a {@code DocumentWriteResult} for each of {@code revs}, in the
+     *         same order
+     * @throws com.cloudant.sync.datastore.DocumentException if the batch
+     *         couldn't be written; in this case none of the documents are created
+     * @see Datastore#getEventBus()
+     */
+    public List<DocumentWriteResult> createDocumentsFromRevisions(List<MutableDocumentRevision> revs) throws DocumentException;
+
+    /**
+     * <p>Updates documents that exist in the datastore with bodies and
+     * attachments from {@code revs}, in a single transaction.</p>
+     *
+     * <p>Each document is updated as if by
+     * {@link #updateDocumentFromRevision(MutableDocumentRevision)}, but the
+     * batch is committed once rather than once per document. A document which
+     * can't be updated, for example because its {@code sourceRevisionId} isn't
+     * current, doesn't stop the others being updated; its result holds the
+     * reason instead.</p>
+     *
+     * <p>If any documents are updated, a single
+     * {@link com.cloudant.sync.notifications.DocumentsUpdated DocumentsUpdated}
+     * event is posted on the event bus for the batch. No
+     * {@code DocumentUpdated} events are posted.</p>
+     *
+     * @param revs the <code>MutableDocumentRevision</code>s to be updated
+     * @return a {@code DocumentWriteResult} for each of {@code revs}, in the
+     *         same order
+     * @throws com.cloudant.sync.datastore.DocumentException if the batch
+     *         couldn't be written; in this case none of the documents are updated
+     * @see Datastore#getEventBus()
+     */
+    public List<DocumentWriteResult> updateDocumentsFromRevisions(List<MutableDocumentRevision> revs) throws DocumentException;
+
     /**
      * <p>Deletes a document from the datastore.</p>
      *
@@ -343,5 +520,80 @@ public interface Datastore {
      */
     public void compact();
 
+    /**
+     * <p>Caches the current winning revisions of recently read documents in
+     * memory.</p>
+     *
+     * <p>While the cache is enabled, {@link #getDocument(String)} returns a
+     * cached revision without going to the database, if there is one.
+     * {@link #getDocument(String, String)} does the same when the revision
+     * asked for is the cached one. The cache holds at most
+     * {@code maxDocuments} documents and, if {@code maxBytes} is greater
+     * than 0, roughly that many bytes of document bodies; the least recently
+     * used documents are removed to stay within these limits.</p>
+     *
+     * <p>Documents are removed from the cache whenever they are written
+     * through this datastore, including by replication. Cached revisions
+     * are shared between callers, so they must not be modified.</p>
+     *
+     * <p>Enabling the cache when it is already enabled replaces it with an
+     * empty cache with the new limits.</p>
+     *
+     * @param maxDocuments the maximum number of documents to cache
+     * @param maxBytes the approximate maximum memory used by cached
+     *                 documents, or 0 to limit only the number of documents
+     * @see #getDocumentCacheStatistics()
+     */
+    public void enableDocumentCache(int maxDocuments, long maxBytes);
+
+    /**
+     * <p>Stops caching documents and empties the document cache.</p>
+     */
+    public void disableDocumentCache();
+
+    /**
+     * <p>Returns the hit rate and size of the document cache.</p>
+     *
+     * @return statistics for the document cache, or {@code null} if the
+     *         cache is not enabled
+     * @see #enableDocumentCache(int, long)
+     */
+    public DocumentCacheStatistics getDocumentCacheStatistics();
+
+    /**
+     * <p>Sets the policy deciding which attachments are compressed when they
+     * are added to this datastore.</p>
+     *
+     * <p>Attachments are stored uncompressed unless a policy is set, apart
+     * from those which are already gzip encoded. The policy applies to
+     * attachments added after it is set, including attachments pulled
+     * inline with their documents; attachments already stored are left as
+     * they are.</p>
+     *
+     * @param policy the compression policy, or {@code null} to stop
+     *               compressing attachments
+     */
+    public void setAttachmentCompressionPolicy(AttachmentCompressionPolicy policy);
+
+    /**
+     * @return the attachment compression policy, or {@code null} if
+     *         attachments are not compressed
+     * @see #setAttachmentCompressionPolicy(AttachmentCompressionPolicy)
+     */
+    public AttachmentCompressionPolicy getAttachmentCompressionPolicy();
+
+    /**
+     * <p>Returns a view of this datastore whose methods return futures
+     * rather than waiting for their results.</p>
+     *
+     * <p>Operations started through the returned {@link DatastoreAsync} are
+     * run on this datastore's queue in the order they are started, so many
+     * operations can be in flight without blocking a thread for each of
+     * them.</p>
+     *
+     * @return the asynchronous view of this datastore
+     */
+    public DatastoreAsync getAsync();
+
 }
 
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>An asynchronous view of a {@link Datastore}, returned by
+ * {@link Datastore#getAsync()}.</p>
+ *
+ * <p>Each method starts the same operation as the {@link Datastore} method
+ * of the same name and returns a {@link ListenableFuture} for its result
+ * straight away. Operations run on the datastore's queue in the order they
+ * were started. Attach a listener to the future, or call its {@code get}
+ * method, to use the result.</p>
+ *
+ * <p>If an operation fails, its future fails with the exception the
+ * operation threw, for example a {@link DocumentNotFoundException} or a
+ * {@link ConflictException}; {@code Future.get} throws it wrapped in an
+ * {@link java.util.concurrent.ExecutionException}. Invalid arguments and a
+ * closed datastore are reported by throwing from the method itself, as the
+ * synchronous methods do.</p>
+ *
+ * <p>The events for writes are posted on the datastore's event bus before
+ * the write's future completes. They are posted from a thread belonging to
+ * the datastore rather than the thread which started the write, so
+ * subscribers must not assume they run on any particular thread.</p>
+ *
+ * @see Datastore
+ */
+public interface DatastoreAsync {
+
+    /**
+     * <p>Gets the current winning revision of a document.</p>
+     *
+     * @param documentId ID of document to retrieve.
+     * @return a future for the current winning revision of the document
+     * @see Datastore#getDocument(String)
+     */
+    public ListenableFuture<BasicDocumentRevision> getDocument(String documentId);
+
+    /**
+     * <p>Gets a specific revision of a document.</p>
+     *
+     * @param documentId ID of the document
+     * @param revisionId Revision of the document
+     * @return a future for the revision of the document
+     * @see Datastore#getDocument(String, String)
+     */
+    public ListenableFuture<BasicDocumentRevision> getDocument(String documentId, String revisionId);
+
+    /**
+     * <p>Adds a new document with an ID and body.</p>
+     *
+     * <p>The revision's attachments are prepared before this method
+     * returns.</p>
+     *
+     * @param rev the <code>MutableDocumentRevision</code> to be created
+     * @return a future for the created revision
+     * @throws AttachmentException if the revision's attachments couldn't be
+     *         prepared
+     * @see Datastore#createDocumentFromRevision(MutableDocumentRevision)
+     */
+    public ListenableFuture<BasicDocumentRevision> createDocumentFromRevision(MutableDocumentRevision rev)
+            throws AttachmentException;
+
+    /**
+     * <p>Updates a document that exists in the datastore with a new revision.</p>
+     *
+     * <p>The revision's attachments are prepared before this method
+     * returns.</p>
+     *
+     * @param rev the <code>MutableDocumentRevision</code> to be updated
+     * @return a future for the updated revision
+     * @throws AttachmentException if the revision's attachments couldn't be
+     *         prepared
+     * @see Datastore#updateDocumentFromRevision(MutableDocumentRevision)
+     */
+    public ListenableFuture<BasicDocumentRevision> updateDocumentFromRevision(MutableDocumentRevision rev)
+            throws AttachmentException;
+
+    /**
+     * <p>Deletes a document from the datastore.</p>
+     *
+     * @param rev the revision to be deleted
+     * @return a future for the deleted or "tombstone" revision
+     * @see Datastore#deleteDocumentFromRevision(BasicDocumentRevision)
+     */
+    public ListenableFuture<BasicDocumentRevision> deleteDocumentFromRevision(BasicDocumentRevision rev);
+
+    /**
+     * <p>Gets the changes made to the datastore since a given sequence
+     * number.</p>
+     *
+     * @param since the sequence number to get changes after
+     * @param limit the maximum number of changes to return
+     * @return a future for the changes
+     * @see Datastore#changes(long, int)
+     */
+    public ListenableFuture<Changes> changes(long since, int limit);
+
+    /**
+     * <p>Gets the current revisions of the documents changed after a given
+     * sequence number, reading at most {@code limit} changes.</p>
+     *
+     * @param since the sequence number after which to read changes
+     * @param limit the maximum number of changes to read
+     * @param includeBodies whether to read the revisions' bodies and
+     *                      attachments
+     * @return a future for the changes
+     * @see Datastore#changes(long, int, boolean)
+     */
+    public ListenableFuture<Changes> changes(long since, int limit, boolean includeBodies);
+
+    /**
+     * <p>Returns the subset of the given document ID/revision ID pairs that
+     * are not in the datastore.</p>
+     *
+     * @param revisions the document ID/revision ID pairs to look for
+     * @return a future for the missing revisions, keyed by document ID
+     * @see DatastoreExtended#revsDiff(Multimap)
+     */
+    public ListenableFuture<Map<String, Collection<String>>> revsDiff(Multimap<String, String> revisions);
+
+}
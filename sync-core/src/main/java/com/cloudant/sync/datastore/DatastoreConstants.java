@@ -122,4 +122,31 @@ class DatastoreConstants {
         };
     }
 
+    // Tracks which revisions are leafs, and which documents have more than one
+    // non-deleted leaf, so conflicted documents can be found using an index
+    // rather than by scanning every revision.
+    public static String[] getSchemaVersion7() {
+        return new String[]{
+                "ALTER TABLE revs ADD COLUMN leaf BOOLEAN DEFAULT 1; ",
+                "UPDATE revs SET leaf = 0 WHERE sequence IN " +
+                "    (SELECT DISTINCT parent FROM revs WHERE parent NOT NULL); ",
+                "CREATE INDEX revs_leaf ON revs(doc_id, leaf, deleted); ",
+                "ALTER TABLE docs ADD COLUMN conflicted BOOLEAN DEFAULT 0; ",
+                "UPDATE docs SET conflicted = 1 WHERE doc_id IN " +
+                "    (SELECT doc_id FROM revs WHERE leaf = 1 AND deleted = 0 " +
+                "     GROUP BY doc_id HAVING COUNT(*) > 1); ",
+                "CREATE INDEX docs_conflicted ON docs(conflicted, doc_id); "
+        };
+    }
+
+    // Records the CouchDB-style md5 digest of each attachment's contents, so
+    // replication can find attachments already in the blob store without
+    // downloading them again.
+    public static String[] getSchemaVersion8() {
+        return new String[]{
+                "ALTER TABLE attachments ADD COLUMN digest TEXT; ",
+                "CREATE INDEX attachments_digest ON attachments(digest); "
+        };
+    }
+
 }
@@ -78,6 +78,23 @@ public interface DatastoreExtended extends Datastore {
      */
     public DocumentRevisionTree getAllRevisionsOfDocument(String documentId);
 
+    /**
+     * <p>Returns {@code DocumentRevisionTree} of a document, optionally
+     * without the revisions' bodies and attachments.</p>
+     *
+     * <p>A tree without bodies holds only each revision's ID, sequence,
+     * parent and flags, and every revision has an empty body. This is much
+     * cheaper to load for documents with many revisions, and is enough to
+     * walk the tree or find its leafs and paths.</p>
+     *
+     * @param documentId  id of the document
+     * @param includeBodies whether to load the body and attachments of each
+     *                      revision
+     * @return {@code DocumentRevisionTree} of the specified document
+     */
+    public DocumentRevisionTree getAllRevisionsOfDocument(String documentId,
+                                                          boolean includeBodies);
+
     /**
      * <p>Inserts a revision of a document with an existing revision ID and
      * revision history.</p>
@@ -148,6 +165,26 @@ public interface DatastoreExtended extends Datastore {
     public void forceInsert(BasicDocumentRevision rev, String... revisionHistory) throws
             DocumentException;
 
+    /**
+     * <p>Inserts revisions of documents with existing revision IDs, as
+     * replication does for a batch of revisions pulled from a remote
+     * datastore.</p>
+     *
+     * <p>Each item is inserted as
+     * {@link #forceInsert(BasicDocumentRevision, java.util.List, java.util.Map, java.util.Map, boolean)}
+     * would, and posts the same per-document events, but a single
+     * {@link com.cloudant.sync.notifications.DocumentsChanged DocumentsChanged}
+     * event is posted for all the revisions inserted.</p>
+     *
+     * <p>If an item fails, the items before it stay inserted and no more
+     * items are inserted.</p>
+     *
+     * @param items the revisions to insert, in order
+     *
+     * @see Datastore#getEventBus()
+     */
+    public void forceInsert(List<ForceInsertItem> items) throws DocumentException;
+
     /**
      * <p>Returns the datastore's unique identifier.</p>
      *
@@ -201,6 +238,35 @@ public interface DatastoreExtended extends Datastore {
      */
     public PreparedAttachment prepareAttachment(Attachment att) throws AttachmentException;
 
+    /**
+     * Find attachments whose contents are already in the datastore, using their
+     * CouchDB-style md5 digests, so they can be added to a revision without being
+     * read again.
+     *
+     * Used by replicator to avoid downloading attachments it already has
+     *
+     * @param attachments Attachments keyed by their digest, giving the name, type and
+     *                    encoding of the prepared attachments
+     * @return Prepared attachments for those digests which are already in the datastore
+     *         with the same encoding, keyed by digest, or null if the lookup failed
+     */
+    public Map<String, PreparedAttachment> prepareAttachmentsWithDigests(
+            Map<String, ? extends Attachment> attachments);
+
+    /**
+     * <p>Returns the names of the attachments held by each of the given revisions,
+     * using as few queries as possible.</p>
+     *
+     * <p>Used by replicator to find which attachments it doesn't need to fetch</p>
+     *
+     * @param revisions revision IDs keyed by document ID
+     * @return attachment names keyed by document ID then revision ID, leaving out
+     *         revisions which aren't in the datastore or have no attachments, or null
+     *         if the lookup failed
+     */
+    public Map<String, Multimap<String, String>> attachmentNamesForRevisions(
+            Multimap<String, String> revisions);
+
     /**
      * Add attachment to document revision without incrementing revision.
      *
@@ -21,6 +21,7 @@ import com.cloudant.sync.notifications.DatabaseClosed;
 import com.cloudant.sync.notifications.DatabaseCreated;
 import com.cloudant.sync.notifications.DatabaseOpened;
 import com.cloudant.sync.notifications.DatabaseDeleted;
+import com.cloudant.sync.sqlite.DurabilityPolicy;
 import com.google.common.base.Preconditions;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
@@ -36,6 +37,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 /**
@@ -58,7 +60,7 @@ public class DatastoreManager {
 
     private final String path;
 
-    private final Map<String, Datastore> openedDatastores = Collections.synchronizedMap(new HashMap<String, Datastore>());
+    private final Map<String, BasicDatastore> openedDatastores = Collections.synchronizedMap(new HashMap<String, BasicDatastore>());
 
     /**
      * The regex used to validate a datastore name, {@value}.
@@ -151,20 +153,80 @@ public class DatastoreManager {
      * @see DatastoreManager#getEventBus() 
      */
     public Datastore openDatastore(String dbName) throws DatastoreNotCreatedException {
+        return openDatastore(dbName, new DurabilityPolicy());
+    }
+
+    /**
+     * <p>Opens a datastore, using the given policy for how its writes are
+     * made durable.</p>
+     *
+     * <p>This method behaves as {@link #openDatastore(String)}, but applies
+     * {@code durabilityPolicy} to the datastore's database connection. The
+     * policy is only used if the datastore isn't already open; if it is, the
+     * open {@code Datastore} is returned with its existing policy.</p>
+     *
+     * @param dbName name of datastore to open
+     * @param durabilityPolicy journal mode, sync level and group commit
+     *                         settings for the datastore
+     * @return {@code Datastore} with the given name
+     *
+     * @throws com.cloudant.sync.datastore.DatastoreNotCreatedException Thrown when
+     * the datastore could not be created or opened.
+     *
+     * @see DurabilityPolicy
+     */
+    public Datastore openDatastore(String dbName, DurabilityPolicy durabilityPolicy)
+            throws DatastoreNotCreatedException {
+        return openDatastore(dbName, durabilityPolicy, null);
+    }
+
+    /**
+     * <p>Opens a datastore, using the given policy for how its writes are
+     * made durable and delivering its events on the given executor.</p>
+     *
+     * <p>By default a datastore's events are delivered to subscribers on the
+     * thread which made the change, before the method making it returns, so
+     * a slow subscriber slows down writes, including replication. When
+     * {@code eventExecutor} is given, events are delivered on it instead,
+     * and {@link com.cloudant.sync.notifications.DocumentsChanged
+     * DocumentsChanged} events coalesce the changes made while earlier
+     * events are waiting to be delivered.</p>
+     *
+     * <p>As with the durability policy, the executor is only used if the
+     * datastore isn't already open.</p>
+     *
+     * @param dbName name of datastore to open
+     * @param durabilityPolicy journal mode, sync level and group commit
+     *                         settings for the datastore
+     * @param eventExecutor the executor on which to deliver the datastore's
+     *                      events, or {@code null} to deliver them on the
+     *                      thread which made the change
+     * @return {@code Datastore} with the given name
+     *
+     * @throws com.cloudant.sync.datastore.DatastoreNotCreatedException Thrown when
+     * the datastore could not be created or opened.
+     *
+     * @see Datastore#getEventBus()
+     */
+    public Datastore openDatastore(String dbName, DurabilityPolicy durabilityPolicy,
+                                   Executor eventExecutor)
+            throws DatastoreNotCreatedException {
+        Preconditions.checkNotNull(durabilityPolicy, "Durability policy must not be null");
         Preconditions.checkArgument(dbName.matches(LEGAL_CHARACTERS),
                 "A database must be named with all lowercase letters (a-z), digits (0-9),"
                   + " or any of the _$()+-/ characters. The name has to start with a"
                   + " lowercase letter (a-z).");
-        if (!openedDatastores.containsKey(dbName)) {
-            synchronized (openedDatastores) {
-                if (!openedDatastores.containsKey(dbName)) {
-                    Datastore ds = createDatastore(dbName);
-                    ds.getEventBus().register(this);
-                    openedDatastores.put(dbName, ds);
-                }
+        synchronized (openedDatastores) {
+            BasicDatastore ds = openedDatastores.get(dbName);
+            // when events are delivered on an executor, a closed datastore
+            // stays here until its DatabaseClosed event is delivered
+            if (ds == null || !ds.isOpen()) {
+                ds = createDatastore(dbName, durabilityPolicy, eventExecutor);
+                ds.getEventBus().register(this);
+                openedDatastores.put(dbName, ds);
             }
+            return ds;
         }
-        return openedDatastores.get(dbName);
     }
 
     /**
@@ -192,9 +254,11 @@ public class DatastoreManager {
         Preconditions.checkNotNull(dbName, "Datastore name must not be null");
 
         synchronized (openedDatastores) {
-            if (openedDatastores.containsKey(dbName)) {
-                openedDatastores.get(dbName).close();
-                openedDatastores.remove(dbName);
+            BasicDatastore ds = openedDatastores.remove(dbName);
+            // when events are delivered on an executor, a closed datastore
+            // stays in openedDatastores until its DatabaseClosed event is delivered
+            if (ds != null && ds.isOpen()) {
+                ds.close();
             }
             String dbDirectory = getDatastoreDirectory(dbName);
             File dir = new File(dbDirectory);
@@ -210,7 +274,9 @@ public class DatastoreManager {
         }
     }
 
-    private Datastore createDatastore(String dbName) throws DatastoreNotCreatedException {
+    private BasicDatastore createDatastore(String dbName, DurabilityPolicy durabilityPolicy,
+                                           Executor eventExecutor)
+            throws DatastoreNotCreatedException {
         try {
             String dbDirectory = this.getDatastoreDirectory(dbName);
             boolean dbDirectoryExist = new File(dbDirectory).exists();
@@ -219,7 +285,8 @@ public class DatastoreManager {
             logger.info("dbDirectoryExist: " + dbDirectoryExist);
             // dbDirectory will created in BasicDatastore constructor
             // if it does not exist
-            BasicDatastore ds = new BasicDatastore(dbDirectory, dbName);
+            BasicDatastore ds = new BasicDatastore(dbDirectory, dbName, durabilityPolicy,
+                    eventExecutor);
             if(!dbDirectoryExist) {
                 this.eventBus.post(new DatabaseCreated(dbName));
             }
@@ -252,7 +319,12 @@ public class DatastoreManager {
     @Subscribe
     public void onDatabaseClosed(DatabaseClosed databaseClosed) {
         synchronized (openedDatastores) {
-            this.openedDatastores.remove(databaseClosed.dbName);
+            // the datastore may have been reopened before this event was
+            // delivered, if events are delivered on an executor
+            BasicDatastore ds = this.openedDatastores.get(databaseClosed.dbName);
+            if (ds != null && !ds.isOpen()) {
+                this.openedDatastores.remove(databaseClosed.dbName);
+            }
         }
         this.eventBus.post(databaseClosed);
     }
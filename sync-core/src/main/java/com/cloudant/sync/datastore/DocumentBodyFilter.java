@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+/**
+ * Interface to decide whether a document should be loaded, based on its
+ * raw JSON body.
+ *
+ * @see Datastore#getDocumentsWithIds(java.util.List, DocumentBodyFilter)
+ */
+public interface DocumentBodyFilter {
+
+    /**
+     * <p>
+     * Return whether the revision should be loaded.
+     * </p>
+     * <p>
+     * This is called on the datastore's database thread, before any
+     * {@code DocumentRevision} is built for the row, so it should be quick
+     * and must not call back into the datastore. The {@code json} array
+     * must not be modified.
+     * </p>
+     *
+     * @param docId id of the document
+     * @param revId revision id of the document's current revision
+     * @param json JSON body of the revision, as stored
+     * @return {@code true} if the revision should be loaded
+     */
+    boolean accept(String docId, String revId, byte[] json);
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+/**
+ * <p>A snapshot of the statistics of a datastore's document cache.</p>
+ *
+ * @see Datastore#enableDocumentCache(int, long)
+ */
+public class DocumentCacheStatistics {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+    private final long bytes;
+    private final int maxDocuments;
+    private final long maxBytes;
+
+    DocumentCacheStatistics(long hits, long misses, long evictions, int size, long bytes,
+                            int maxDocuments, long maxBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+        this.bytes = bytes;
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the number of document reads answered by the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of document reads which had to go to the database
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the fraction of document reads answered by the cache, between
+     *         0 and 1, or 0 if no documents have been read
+     */
+    public double getHitRate() {
+        long reads = hits + misses;
+        return reads == 0 ? 0 : (double) hits / reads;
+    }
+
+    /**
+     * @return the number of documents removed from the cache to keep it
+     *         within its limits
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of documents in the cache
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the approximate memory used by the documents in the cache
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the maximum number of documents the cache holds
+     */
+    public int getMaxDocuments() {
+        return maxDocuments;
+    }
+
+    /**
+     * @return the maximum approximate memory the cache uses, or 0 if only
+     *         the number of documents is limited
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DocumentCacheStatistics{hits=%d, misses=%d, hitRate=%.3f, " +
+                        "evictions=%d, size=%d, bytes=%d}",
+                hits, misses, getHitRate(), evictions, size, bytes);
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.notifications.DocumentsChanged;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.eventbus.AsyncEventBus;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>Posts a datastore's events to its {@link EventBus}.</p>
+ *
+ * <p>The event bus delivers events on the thread which posted them or, if
+ * the datastore was opened with an executor, on that executor. The
+ * dispatcher keeps track of the event types which registered subscribers
+ * accept, so the datastore can skip building events, and reading the
+ * revisions they carry, when nobody will receive them.</p>
+ *
+ * <p>{@link DocumentsChanged} events are posted immediately when events
+ * are delivered on the posting thread. Otherwise changes are collected
+ * until the executor gets to them, so a burst of writes, for example
+ * during replication, produces a few events rather than one per
+ * document.</p>
+ */
+class DocumentEventDispatcher {
+
+    // Event types accepted by the @Subscribe methods of each registered
+    // listener; a type is counted once per listener
+    private final Multiset<Class<?>> subscribedTypes = ConcurrentHashMultiset.create();
+
+    private final EventBus eventBus;
+    private final Executor executor;
+
+    private final Object pendingLock = new Object();
+    private PendingChanges pending = null;
+
+    DocumentEventDispatcher(String name, Executor executor) {
+        this.executor = executor;
+        if (executor == null) {
+            this.eventBus = new EventBus(name) {
+                @Override
+                public void register(Object listener) {
+                    super.register(listener);
+                    subscribedTypes.addAll(subscribedTypes(listener));
+                }
+
+                @Override
+                public void unregister(Object listener) {
+                    super.unregister(listener);
+                    removeAll(subscribedTypes(listener));
+                }
+            };
+        } else {
+            this.eventBus = new AsyncEventBus(name, executor) {
+                @Override
+                public void register(Object listener) {
+                    super.register(listener);
+                    subscribedTypes.addAll(subscribedTypes(listener));
+                }
+
+                @Override
+                public void unregister(Object listener) {
+                    super.unregister(listener);
+                    removeAll(subscribedTypes(listener));
+                }
+            };
+        }
+    }
+
+    EventBus getEventBus() {
+        return eventBus;
+    }
+
+    /**
+     * Returns whether any registered subscriber accepts events of the given
+     * type, either directly or through one of its supertypes.
+     */
+    boolean hasSubscribers(Class<?> eventType) {
+        for (Class<?> subscribed : subscribedTypes.elementSet()) {
+            if (subscribed.isAssignableFrom(eventType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void post(Object event) {
+        eventBus.post(event);
+    }
+
+    /**
+     * Posts a {@link DocumentsChanged} event for the given revisions, or adds
+     * them to the pending event if events are delivered on an executor.
+     */
+    void documentsChanged(Collection<BasicDocumentRevision> revisions) {
+        if (revisions.isEmpty() || !hasSubscribers(DocumentsChanged.class)) {
+            return;
+        }
+        if (executor == null) {
+            PendingChanges changes = new PendingChanges();
+            changes.add(revisions);
+            eventBus.post(changes.toEvent());
+            return;
+        }
+        boolean first;
+        synchronized (pendingLock) {
+            first = pending == null;
+            if (first) {
+                pending = new PendingChanges();
+            }
+            pending.add(revisions);
+        }
+        if (first) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PendingChanges changes;
+                    synchronized (pendingLock) {
+                        changes = pending;
+                        pending = null;
+                    }
+                    eventBus.post(changes.toEvent());
+                }
+            });
+        }
+    }
+
+    private void removeAll(Set<Class<?>> types) {
+        for (Class<?> type : types) {
+            subscribedTypes.remove(type);
+        }
+    }
+
+    /**
+     * Returns the parameter types of the listener's {@code @Subscribe}
+     * methods, looking at the same methods as {@link EventBus#register}.
+     */
+    private static Set<Class<?>> subscribedTypes(Object listener) {
+        Set<Class<?>> types = new HashSet<Class<?>>();
+        for (Class<?> clazz : TypeToken.of(listener.getClass()).getTypes().rawTypes()) {
+            for (Method method : clazz.getMethods()) {
+                if (method.isAnnotationPresent(Subscribe.class)
+                        && method.getParameterTypes().length == 1) {
+                    types.add(method.getParameterTypes()[0]);
+                }
+            }
+        }
+        return types;
+    }
+
+    private static class PendingChanges {
+
+        private long firstSequence = Long.MAX_VALUE;
+        private long lastSequence = Long.MIN_VALUE;
+        private final Set<String> documentIds = new LinkedHashSet<String>();
+
+        void add(Collection<BasicDocumentRevision> revisions) {
+            for (BasicDocumentRevision revision : revisions) {
+                firstSequence = Math.min(firstSequence, revision.getSequence());
+                lastSequence = Math.max(lastSequence, revision.getSequence());
+                documentIds.add(revision.getId());
+            }
+        }
+
+        DocumentsChanged toEvent() {
+            return new DocumentsChanged(firstSequence, lastSequence,
+                    new ArrayList<String>(documentIds));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A bounded, least-recently-used cache of the current winning revisions
+ * of documents, keyed by document ID.</p>
+ *
+ * <p>The cache is bounded by the number of documents and, optionally, by
+ * the approximate memory used by their bodies.</p>
+ *
+ * <p>Readers don't hold a lock while they read a document from the
+ * database, so a write can happen between the read and caching its result.
+ * To stop stale revisions being cached, a reader takes a version number for
+ * the document ID with {@link #version(String)} before reading it, and
+ * {@link #put(BasicDocumentRevision, long)} ignores the revision if the ID
+ * was invalidated since. Writers invalidate a document both before and
+ * after writing it. Versions are kept for a fixed number of stripes of IDs,
+ * rather than per ID, so they use constant memory.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+class DocumentRevisionCache {
+
+    // Approximate memory used by a cached revision, in addition to its body
+    private static final long ENTRY_OVERHEAD_BYTES = 256;
+
+    private static final int VERSION_STRIPES = 64;
+
+    private final int maxDocuments;
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final long[] versions = new long[VERSION_STRIPES];
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxDocuments the maximum number of documents to cache
+     * @param maxBytes the maximum approximate memory used by cached
+     *                 documents, or 0 for no limit
+     */
+    DocumentRevisionCache(int maxDocuments, long maxBytes) {
+        Preconditions.checkArgument(maxDocuments > 0, "maxDocuments must be positive");
+        Preconditions.checkArgument(maxBytes >= 0, "maxBytes must not be negative");
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * <p>Returns the cached revision of a document, if it is the revision
+     * asked for.</p>
+     *
+     * @param id the document ID
+     * @param revId the revision ID wanted, or null for the current revision
+     * @return the cached revision, or null if it isn't cached
+     */
+    synchronized BasicDocumentRevision get(String id, String revId) {
+        Entry entry = entries.get(id);
+        if (entry != null && (revId == null || revId.equals(entry.revision.getRevision()))) {
+            hits++;
+            return entry.revision;
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized long version(String id) {
+        return versions[stripe(id)];
+    }
+
+    /**
+     * <p>Caches the current revision of a document, unless the document
+     * has been invalidated since {@code version} was taken.</p>
+     */
+    synchronized void put(BasicDocumentRevision revision, long version) {
+        String id = revision.getId();
+        if (versions[stripe(id)] != version) {
+            return;
+        }
+        Entry entry = new Entry(revision);
+        if (maxBytes > 0 && entry.bytes > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(id, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entry.bytes;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxDocuments || (maxBytes > 0 && bytes > maxBytes)) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            bytes -= evicted.bytes;
+            evictions++;
+        }
+    }
+
+    synchronized void invalidate(String id) {
+        versions[stripe(id)]++;
+        Entry removed = entries.remove(id);
+        if (removed != null) {
+            bytes -= removed.bytes;
+        }
+    }
+
+    synchronized void invalidateAll() {
+        for (int i = 0; i < versions.length; i++) {
+            versions[i]++;
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized DocumentCacheStatistics statistics() {
+        return new DocumentCacheStatistics(hits, misses, evictions, entries.size(), bytes,
+                maxDocuments, maxBytes);
+    }
+
+    private static int stripe(String id) {
+        return (id.hashCode() & 0x7fffffff) % VERSION_STRIPES;
+    }
+
+    private static class Entry {
+        final BasicDocumentRevision revision;
+        final long bytes;
+
+        Entry(BasicDocumentRevision revision) {
+            this.revision = revision;
+            byte[] body = revision.getBody() == null ? null : revision.getBody().asBytes();
+            this.bytes = ENTRY_OVERHEAD_BYTES + (body == null ? 0 : body.length)
+                    + 2 * (revision.getId().length() + revision.getRevision().length());
+        }
+    }
+}
@@ -125,6 +125,10 @@ import java.util.*;
  * conflicted revisions for the document) and what is the current winning
  * revision of the document.</p>
  *
+ * <p>Revisions are indexed by sequence number and by revision ID, and the
+ * leaf revisions are kept in a set, so adding a revision and looking one up
+ * take constant time however many revisions the document has.</p>
+ *
  *  <p><strong>Note: This class is not thread safe.</strong></p>
  *
  * @see com.cloudant.sync.datastore.Datastore#resolveConflictsForDocument(String, ConflictResolver)
@@ -140,14 +144,22 @@ public class DocumentRevisionTree {
     private Map<Long, DocumentRevisionNode> roots = new HashMap<Long, DocumentRevisionNode>();
 
     /**
-     * A list of all leaf revisions in this document. More than one active
-     * revision in this list indicates a conflicted document.
+     * The set of all leaf revisions in this document, in the order they
+     * became leafs. More than one active revision in this set indicates a
+     * conflicted document.
      */
-    private List<DocumentRevisionNode> leafs = new ArrayList<DocumentRevisionNode>();
+    private Set<DocumentRevisionNode> leafs = new LinkedHashSet<DocumentRevisionNode>();
 
     // All the DocumentRevisionTree revisions from all the trees.
     // Map: sequence number → DocumentRevisionNode
-    private Map<Long, DocumentRevisionNode> sequenceMap = new TreeMap<Long, DocumentRevisionNode>();
+    private LongObjectHashMap<DocumentRevisionNode> sequenceMap =
+            new LongObjectHashMap<DocumentRevisionNode>();
+
+    // All the DocumentRevisionTree revisions from all the trees.
+    // Map: revision ID → DocumentRevisionNode. If the same revision ID appears
+    // in more than one tree, the revision with the lowest sequence is kept.
+    private Map<String, DocumentRevisionNode> revisionMap =
+            new HashMap<String, DocumentRevisionNode>();
 
     private long documentNumericId = -1l;
 
@@ -206,7 +218,7 @@ public class DocumentRevisionTree {
         DocumentRevisionNode rootNode = new DocumentRevisionNode(documentRevision);
         this.roots.put(documentRevision.getSequence(), rootNode);
         this.leafs.add(rootNode);
-        this.sequenceMap.put(documentRevision.getSequence(), rootNode);
+        indexNode(rootNode);
     }
 
     private void addNode(BasicDocumentRevision documentRevision) {
@@ -218,11 +230,17 @@ public class DocumentRevisionTree {
         DocumentRevisionNode newNode = new DocumentRevisionNode(documentRevision);
         parent.addChild(newNode);
 
-        if(this.leafs.contains(parent)) {
-            this.leafs.remove(parent);
-        }
+        this.leafs.remove(parent);
         this.leafs.add(newNode);
-        sequenceMap.put(newNode.getData().getSequence(), newNode);
+        indexNode(newNode);
+    }
+
+    private void indexNode(DocumentRevisionNode node) {
+        BasicDocumentRevision revision = node.getData();
+        sequenceMap.put(revision.getSequence(), node);
+        if(!revisionMap.containsKey(revision.getRevision())) {
+            revisionMap.put(revision.getRevision(), node);
+        }
     }
 
     /**
@@ -232,10 +250,9 @@ public class DocumentRevisionTree {
      * @return the {@code DocumentRevision} for the document and revision ID
      */
     public BasicDocumentRevision lookup(String id, String rev) {
-        for(DocumentRevisionNode n : sequenceMap.values()) {
-            if(n.getData().getId().equals(id) && n.getData().getRevision().equals(rev)) {
-                return n.getData();
-            }
+        DocumentRevisionNode n = revisionMap.get(rev);
+        if(n != null && n.getData().getId().equals(id)) {
+            return n.getData();
         }
         return null;
     }
@@ -248,11 +265,8 @@ public class DocumentRevisionTree {
      *      if the sequence number isn't present in the document.
      */
     public int depth(long sequence) {
-        if(sequenceMap.containsKey(sequence)) {
-            return sequenceMap.get(sequence).depth();
-        } else {
-            return -1;
-        }
+        DocumentRevisionNode n = sequenceMap.get(sequence);
+        return n != null ? n.depth() : -1;
     }
 
     /**
@@ -268,12 +282,19 @@ public class DocumentRevisionTree {
         Preconditions.checkArgument(sequenceMap.containsKey(parentNode.getSequence()),
                 "The given parent DocumentRevision must be in the tree.");
 
+        DocumentRevisionNode n = revisionMap.get(childRevision);
+        if(n != null && n.getData().getParent() == parentNode.getSequence()) {
+            return n.getData();
+        }
+
+        // The same revision ID may be in more than one tree, in which case the
+        // index holds only one of them, so fall back to the parent's children
         DocumentRevisionNode p = sequenceMap.get(parentNode.getSequence());
         Iterator i = p.iterateChildren();
         while(i.hasNext()) {
-            DocumentRevisionNode n = (DocumentRevisionNode) i.next();
-            if(n.getData().getRevision().equals(childRevision)) {
-                return n.getData();
+            DocumentRevisionNode c = (DocumentRevisionNode) i.next();
+            if(c.getData().getRevision().equals(childRevision)) {
+                return c.getData();
             }
         }
         return null;
@@ -288,7 +309,8 @@ public class DocumentRevisionTree {
      *     null if no {@code DocumentRevision} has the given sequence number.
      */
     public BasicDocumentRevision bySequence(long sequence) {
-        return sequenceMap.containsKey(sequence) ? sequenceMap.get(sequence).getData() : null;
+        DocumentRevisionNode n = sequenceMap.get(sequence);
+        return n != null ? n.getData() : null;
     }
 
     /**
@@ -335,7 +357,7 @@ public class DocumentRevisionTree {
      * @return list of leaf {@code DocumentRevisionNode}s
      */
     public List<DocumentRevisionNode> leafs() {
-        return leafs;
+        return new ArrayList<DocumentRevisionNode>(leafs);
     }
 
     /**
@@ -345,7 +367,7 @@ public class DocumentRevisionTree {
      */
     public Set<String> leafRevisionIds() {
         Set<String> res = new HashSet<String>();
-        for(DocumentRevisionNode obj : leafs()) {
+        for(DocumentRevisionNode obj : leafs) {
             res.add(obj.getData().getRevision());
         }
         return res;
@@ -372,7 +394,7 @@ public class DocumentRevisionTree {
      */
     public List<BasicDocumentRevision> leafRevisions(boolean excludeDeleted) {
         List<BasicDocumentRevision> res = new ArrayList<BasicDocumentRevision>();
-        for(DocumentRevisionNode obj : leafs()) {
+        for(DocumentRevisionNode obj : leafs) {
             BasicDocumentRevision revision = obj.getData();
             if (!excludeDeleted || (excludeDeleted && !revision.isDeleted())){
                 res.add(revision);
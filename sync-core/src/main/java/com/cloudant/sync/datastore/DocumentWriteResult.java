@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>The outcome of writing one document in a batch, as returned by
+ * {@link Datastore#createDocumentsFromRevisions(java.util.List)} and
+ * {@link Datastore#updateDocumentsFromRevisions(java.util.List)}.</p>
+ *
+ * <p>Either {@link #getRevision()} holds the revision which was written, or
+ * {@link #getException()} holds the reason the document wasn't written.</p>
+ */
+public class DocumentWriteResult {
+
+    private final MutableDocumentRevision input;
+
+    private final BasicDocumentRevision revision;
+
+    private final Exception exception;
+
+    DocumentWriteResult(MutableDocumentRevision input, BasicDocumentRevision revision) {
+        Preconditions.checkNotNull(revision, "Revision must not be null.");
+        this.input = input;
+        this.revision = revision;
+        this.exception = null;
+    }
+
+    DocumentWriteResult(MutableDocumentRevision input, Exception exception) {
+        Preconditions.checkNotNull(exception, "Exception must not be null.");
+        this.input = input;
+        this.revision = null;
+        this.exception = exception;
+    }
+
+    /**
+     * <p>Returns the revision passed in to be written.</p>
+     *
+     * @return the {@code MutableDocumentRevision} this is the result for
+     */
+    public MutableDocumentRevision getInput() {
+        return input;
+    }
+
+    /**
+     * <p>Returns the revision written to the datastore.</p>
+     *
+     * @return the written {@code DocumentRevision}, or {@code null} if the
+     *         document wasn't written.
+     */
+    public BasicDocumentRevision getRevision() {
+        return revision;
+    }
+
+    /**
+     * <p>Returns the reason the document wasn't written.</p>
+     *
+     * <p>This is typically a {@link ConflictException},
+     * {@link DocumentNotFoundException}, {@link AttachmentException},
+     * {@link InvalidDocumentException} or {@link IllegalArgumentException}
+     * for an invalid document ID.</p>
+     *
+     * @return the exception, or {@code null} if the document was written.
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    /**
+     * @return {@code true} if the document was written
+     */
+    public boolean isSuccessful() {
+        return revision != null;
+    }
+}
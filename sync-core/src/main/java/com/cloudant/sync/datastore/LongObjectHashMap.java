@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>A hash map from primitive {@code long} keys to objects.</p>
+ *
+ * <p>Keys are stored unboxed in an open-addressed table, so looking up a
+ * sequence number doesn't allocate. Entries can't be removed, which is all
+ * {@link DocumentRevisionTree} needs.</p>
+ *
+ * <p><strong>Note: This class is not thread safe.</strong></p>
+ *
+ * @param <V> type of the values
+ */
+final class LongObjectHashMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    LongObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    LongObjectHashMap(int expectedSize) {
+        Preconditions.checkArgument(expectedSize >= 0, "Expected size must not be negative.");
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * <p>Returns the value for {@code key}, or null if there is none.</p>
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int i = indexOf(key, keys, values);
+        return (V) values[i];
+    }
+
+    boolean containsKey(long key) {
+        return values[indexOf(key, keys, values)] != null;
+    }
+
+    /**
+     * <p>Associates {@code value} with {@code key}, replacing any existing value.</p>
+     *
+     * @return the previous value for {@code key}, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        Preconditions.checkNotNull(value, "Value must not be null.");
+        int i = indexOf(key, keys, values);
+        V previous = (V) values[i];
+        keys[i] = key;
+        values[i] = value;
+        if (previous == null) {
+            size++;
+            if (size * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+        }
+        return previous;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = indexOf(oldKeys[j], keys, values);
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * <p>Returns the slot holding {@code key}, or the empty slot where it
+     * would be inserted. The table is never more than half full, so an empty
+     * slot always exists.</p>
+     */
+    private static int indexOf(long key, long[] keys, Object[] values) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int hash(long key) {
+        // Sequence numbers are consecutive, so spread them over the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -16,9 +16,12 @@ package com.cloudant.sync.datastore;
 
 import com.cloudant.sync.util.JSONUtils;
 
+import org.apache.commons.io.IOUtils;
+
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 
 /**
@@ -69,7 +72,9 @@ import java.util.ArrayList;
 
 public class MultipartAttachmentWriter extends InputStream {
 
-    private int totalWritten = 0;
+    // size of the buffer used to copy attachment contents when writing to a stream
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Construct a <code>MultipartAttachmentWriter</code> with a default <code>boundary</code>
      *
@@ -95,18 +100,18 @@ public class MultipartAttachmentWriter extends InputStream {
         this.partBoundary = ("--"+boundary).getBytes();
         this.trailingBoundary = ("--"+boundary+"--").getBytes();
 
-        components = new ArrayList<InputStream>();
+        components = new ArrayList<Component>();
 
         // some preamble
         contentLength += partBoundary.length;
         contentLength += 6; // 3 * crlf
         contentLength += contentType.length;
 
-        components.add(new ByteArrayInputStream(partBoundary));
-        components.add(new ByteArrayInputStream(crlf));
-        components.add(new ByteArrayInputStream(contentType));
-        components.add(new ByteArrayInputStream(crlf));
-        components.add(new ByteArrayInputStream(crlf));
+        components.add(new BytesComponent(partBoundary));
+        components.add(new BytesComponent(crlf));
+        components.add(new BytesComponent(contentType));
+        components.add(new BytesComponent(crlf));
+        components.add(new BytesComponent(crlf));
     }
 
     /**
@@ -119,15 +124,16 @@ public class MultipartAttachmentWriter extends InputStream {
 
         contentLength += bodyBytes.length;
 
-        components.add(new ByteArrayInputStream(bodyBytes));
+        components.add(new BytesComponent(bodyBytes));
         this.id = body.getId();
         this.revision = body.getRevision();
     }
 
     /**
      * Add an attachment to be streamed as a subsequent MIME body.
-     * Depending on the underlying attachment type, (eg file), this is done without loading the
-     * entire attachment into memory.
+     * The attachment isn't opened until its body is read or written, and is streamed without
+     * loading the entire attachment into memory. Attachments saved in the datastore are sent
+     * as they are stored, so gzip encoded attachments are sent without being decompressed.
      *
      * @param attachment The attachment to be streamed
      * @throws IOException
@@ -137,11 +143,11 @@ public class MultipartAttachmentWriter extends InputStream {
         contentLength += 6; // 3 * crlf
         contentLength += attachment.getSize();
 
-        components.add(new ByteArrayInputStream(crlf));
-        components.add(new ByteArrayInputStream(partBoundary));
-        components.add(new ByteArrayInputStream(crlf));
-        components.add(new ByteArrayInputStream(crlf));
-        components.add(attachment.getInputStream());
+        components.add(new BytesComponent(crlf));
+        components.add(new BytesComponent(partBoundary));
+        components.add(new BytesComponent(crlf));
+        components.add(new BytesComponent(crlf));
+        components.add(new AttachmentComponent(attachment));
     }
 
     /**
@@ -152,9 +158,10 @@ public class MultipartAttachmentWriter extends InputStream {
         contentLength += trailingBoundary.length;
         contentLength += 2; // crlf
 
-        components.add(new ByteArrayInputStream(crlf));
-        components.add(new ByteArrayInputStream(trailingBoundary));
+        components.add(new BytesComponent(crlf));
+        components.add(new BytesComponent(trailingBoundary));
         currentComponentIdx = 0;
+        currentStream = null;
     }
 
     private String boundary;
@@ -163,8 +170,9 @@ public class MultipartAttachmentWriter extends InputStream {
     private static byte crlf[] = "\r\n".getBytes();
     private static byte contentType[] = "content-type: application/json".getBytes();
     private int currentComponentIdx;
+    private InputStream currentStream;
 
-    private ArrayList<InputStream> components;
+    private ArrayList<Component> components;
 
     private String id;
     private String revision;
@@ -178,15 +186,13 @@ public class MultipartAttachmentWriter extends InputStream {
      * @throws java.io.IOException
      */
     public int read() throws java.io.IOException {
-        int c;
-        do {
-            c = components.get(currentComponentIdx).read();
+        while (nextStream()) {
+            int c = currentStream.read();
             if (c != -1) {
                 return c;
-            } else {
-                ++currentComponentIdx;
             }
-        } while (currentComponentIdx < components.size());
+            finishStream();
+        }
         // we got through all the components, end of stream
         return -1;
     }
@@ -199,30 +205,73 @@ public class MultipartAttachmentWriter extends InputStream {
      */
     @Override
     public int read(byte[] bytes) throws java.io.IOException {
+        return read(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Read at most the next <code>length</code> bytes from the stream into <code>bytes</code>,
+     * starting at <code>offset</code>. Reads from as many components as are needed to fill the
+     * buffer.
+     * @return The actual number of bytes read, or -1 to signal the end of the stream has been reached.
+     * @throws java.io.IOException
+     */
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws java.io.IOException {
+        if (length == 0) {
+            return 0;
+        }
         int amountRead = 0;
-        int currentOffset = 0;
-        int howMuch = 0;
-        do {
-            InputStream currentComponent = components.get(currentComponentIdx);
-            // try to read enough bytes to fill the rest of the bytes array
-            howMuch = bytes.length - currentOffset;
-            if (howMuch <= 0) {
-                break;
+        while (amountRead < length && nextStream()) {
+            int read = currentStream.read(bytes, offset + amountRead, length - amountRead);
+            if (read < 0) {
+                finishStream();
+            } else {
+                amountRead += read;
             }
-            int read = currentComponent.read(bytes, currentOffset, howMuch);
-            if (read <= 0) {
-                currentComponentIdx++;
-                continue;
+        }
+        // signal EOF if we don't have any more
+        return amountRead > 0 ? amountRead : -1;
+    }
+
+    /**
+     * Write the whole multipart stream to <code>out</code>.
+     * Boundaries and the JSON body are written directly, and attachment contents are copied
+     * using a large buffer, rather than going through this writer's <code>read</code> methods.
+     * @param out The stream to write to, usually the body of an HTTP request
+     * @throws java.io.IOException
+     */
+    public void writeTo(OutputStream out) throws java.io.IOException {
+        byte[] buffer = null;
+        for (Component component : components) {
+            if (component instanceof BytesComponent) {
+                out.write(((BytesComponent) component).bytes);
+            } else {
+                if (buffer == null) {
+                    buffer = new byte[COPY_BUFFER_SIZE];
+                }
+                InputStream in = component.open();
+                try {
+                    IOUtils.copyLarge(in, out, buffer);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
             }
-            amountRead += read;
-            currentOffset += howMuch;
-            totalWritten += amountRead;
-        } while (currentComponentIdx < components.size());
+        }
+        out.flush();
+    }
 
-        // signal EOF if we don't have any more
-        int retnum =  amountRead > 0 ? amountRead : -1;
-        return retnum;
+    // opens the current component's stream if needed, returning false at the end of the stream
+    private boolean nextStream() throws IOException {
+        if (currentStream == null && currentComponentIdx < components.size()) {
+            currentStream = components.get(currentComponentIdx).open();
+        }
+        return currentStream != null;
+    }
 
+    private void finishStream() {
+        IOUtils.closeQuietly(currentStream);
+        currentStream = null;
+        currentComponentIdx++;
     }
 
     /**
@@ -269,4 +318,40 @@ public class MultipartAttachmentWriter extends InputStream {
     public String toString() {
         return "Multipart/related with "+components.size()+" components";
     }
+
+    // one part of the stream: a boundary, header, JSON body or attachment
+    private static abstract class Component {
+        abstract InputStream open() throws IOException;
+    }
+
+    private static class BytesComponent extends Component {
+        final byte[] bytes;
+
+        BytesComponent(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        InputStream open() {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    private static class AttachmentComponent extends Component {
+        final Attachment attachment;
+
+        AttachmentComponent(Attachment attachment) {
+            this.attachment = attachment;
+        }
+
+        @Override
+        InputStream open() throws IOException {
+            if (attachment instanceof SavedAttachment) {
+                // send the bytes as stored, matching the encoding given in the JSON body
+                return ((SavedAttachment) attachment).getEncodedInputStream();
+            } else {
+                return attachment.getInputStream();
+            }
+        }
+    }
 }
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+
+/**
+ * <p>{@code Page} objects hold one page of results read from a datastore,
+ * such as those returned by
+ * {@link Datastore#getAllDocuments(String, int, boolean)} and
+ * {@link Datastore#getConflictedDocumentIds(String, int)}.</p>
+ *
+ * <p>Pass the page's continuation token back to the method which returned
+ * it to get the next page. The token is opaque; it marks the position of the
+ * last result in this page, so fetching the next page doesn't skip over the
+ * results in the pages before it, and results which change between pages
+ * don't cause others to be skipped.</p>
+ *
+ * @param <T> the type of the results
+ */
+public class Page<T> {
+
+    private final List<T> results;
+
+    private final String continuationToken;
+
+    protected Page(List<T> results, String continuationToken) {
+        Preconditions.checkNotNull(results, "Page results must not be null.");
+        this.results = results;
+        this.continuationToken = continuationToken;
+    }
+
+    /**
+     * <p>Returns the list of results in this page.</p>
+     *
+     * @return the list of results in this page.
+     */
+    public List<T> getResults() {
+        return this.results;
+    }
+
+    /**
+     * <p>Returns the number of results in this page.</p>
+     *
+     * @return the number of results in this page.
+     */
+    public int size() {
+        return this.results.size();
+    }
+
+    /**
+     * <p>Returns the token to pass to the method which returned this page
+     * to get the page following it.</p>
+     *
+     * @return the continuation token, or {@code null} if this is the last page.
+     */
+    public String getContinuationToken() {
+        return this.continuationToken;
+    }
+
+    /**
+     * <p>Returns whether there may be results after this page.</p>
+     *
+     * @return {@code true} if there may be results after this page,
+     *         {@code false} if this is the last page.
+     */
+    public boolean hasMore() {
+        return this.continuationToken != null;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Iterates over results read from a datastore a {@link Page} at a time,
+ * passing each page's continuation token to a {@link PageFetcher} to get the
+ * next page.</p>
+ *
+ * <p>Only one page is held in memory. Results which change while iterating
+ * may or may not be returned, depending on whether they come before or after
+ * the current page.</p>
+ *
+ * @param <T> the type of the results
+ */
+class PagingIterator<T> implements Iterator<T> {
+
+    /**
+     * Reads the page of up to {@code limit} results following the position
+     * marked by {@code continuationToken}, or the first page if it is null.
+     */
+    interface PageFetcher<T> {
+        Page<T> fetch(String continuationToken, int limit);
+    }
+
+    private final PageFetcher<T> fetcher;
+    private final int pageSize;
+
+    private List<T> page = null;
+    private int index = 0;
+    private String continuationToken = null;
+    private boolean exhausted = false;
+
+    PagingIterator(PageFetcher<T> fetcher, int pageSize) {
+        Preconditions.checkNotNull(fetcher, "Page fetcher must not be null.");
+        Preconditions.checkArgument(pageSize > 0, "Page size must be positive.");
+        this.fetcher = fetcher;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ((page == null || index >= page.size()) && !exhausted) {
+            fetchNextPage();
+        }
+        return page != null && index < page.size();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(index++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void fetchNextPage() {
+        Page<T> next = fetcher.fetch(continuationToken, pageSize);
+        if (next == null) {
+            throw new IllegalStateException("Failed to get the next page of results.");
+        }
+        page = next.getResults();
+        index = 0;
+        continuationToken = next.getContinuationToken();
+        exhausted = !next.hasMore();
+    }
+}
@@ -14,14 +14,24 @@
 
 package com.cloudant.sync.datastore;
 
-import com.cloudant.sync.util.Misc;
-
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.NullOutputStream;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * An attachment which has been been copied to a temporary location and had its sha1 calculated,
@@ -31,27 +41,239 @@ import java.util.UUID;
  */
 public class PreparedAttachment {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * Prepare an attachment by copying it to a temp location and calculating its sha1.
      *
+     * The sha1, and the attachment's CouchDB-style md5 digest, are calculated as the
+     * attachment is copied, so it is only read once.
+     *
      * @param attachment The attachment to prepare
      * @param attachmentsDir The 'BLOB store' or location where attachments are stored for this database
      * @throws AttachmentNotSavedException
      */
     public PreparedAttachment(Attachment attachment,
                               String attachmentsDir) throws AttachmentException {
+        this(attachment, attachmentsDir, null);
+    }
+
+    /**
+     * Prepare an attachment by copying it to a temp location and calculating its sha1,
+     * compressing it as it is copied if the compression policy says so.
+     *
+     * The sha1 and digest are those of the contents as stored, so of the compressed
+     * contents if the attachment is compressed.
+     *
+     * @param attachment The attachment to prepare
+     * @param attachmentsDir The 'BLOB store' or location where attachments are stored for this database
+     * @param policy The compression policy, or null to store the attachment as it is
+     * @throws AttachmentNotSavedException
+     */
+    public PreparedAttachment(Attachment attachment,
+                              String attachmentsDir,
+                              AttachmentCompressionPolicy policy) throws AttachmentException {
         this.attachment = attachment;
-        this.tempFile = new File(attachmentsDir, "temp" + UUID.randomUUID());
+        File file = new File(attachmentsDir, "temp" + UUID.randomUUID());
         try {
-            FileUtils.copyInputStreamToFile(attachment.getInputStream(), tempFile);
-            this.sha1 = Misc.getSha1(new FileInputStream(tempFile));
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            if (policy != null && policy.shouldCompress(attachment)) {
+                long length = copyCompressed(attachment.getInputStream(), file, sha1, md5);
+                if (policy.keepCompressed(length, file.length())) {
+                    this.encoding = Attachment.Encoding.Gzip;
+                    this.length = length;
+                } else {
+                    // compression isn't worth it, store the attachment as it was
+                    File plain = new File(attachmentsDir, "temp" + UUID.randomUUID());
+                    sha1.reset();
+                    md5.reset();
+                    try {
+                        copy(new GZIPInputStream(new FileInputStream(file)), plain, sha1, md5);
+                    } finally {
+                        file.delete();
+                    }
+                    file = plain;
+                    this.encoding = Attachment.Encoding.Plain;
+                    this.length = file.length();
+                }
+            } else {
+                copy(attachment.getInputStream(), file, sha1, md5);
+                this.encoding = attachment.encoding;
+                this.length = decodedLength(file, attachment.encoding);
+            }
+            this.tempFile = file;
+            this.encodedLength = file.length();
+            this.sha1 = sha1.digest();
+            this.digest = digestFromMd5(md5.digest());
         } catch (IOException e){
+            file.delete();
             throw new AttachmentNotSavedException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AttachmentNotSavedException(e);
+        }
+    }
+
+    /**
+     * Prepare an attachment whose contents have already been written to a file, for example
+     * by a download which may have been resumed, calculating its sha1 and digest.
+     *
+     * The file is moved into the 'BLOB store' when the attachment is added, so should be on
+     * the same file system.
+     *
+     * @param attachment The attachment to prepare, giving its name, type and encoding
+     * @param file The file holding the attachment's contents
+     * @throws AttachmentNotSavedException
+     */
+    public PreparedAttachment(Attachment attachment, File file) throws AttachmentException {
+        this(attachment, file, -1);
+    }
+
+    /**
+     * Prepare an attachment whose contents have already been written to a file, as
+     * {@link #PreparedAttachment(Attachment, File)} does, giving the size of its contents
+     * once decoded. This differs from the size of the file for gzip encoded attachments.
+     *
+     * @param attachment The attachment to prepare, giving its name, type and encoding
+     * @param file The file holding the attachment's contents
+     * @param length The size of the attachment's contents once decoded, or -1 to work it
+     *               out from the file
+     * @throws AttachmentNotSavedException
+     */
+    public PreparedAttachment(Attachment attachment, File file, long length)
+            throws AttachmentException {
+        this.attachment = attachment;
+        this.tempFile = file;
+        InputStream is = null;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            is = new DigestInputStream(new DigestInputStream(new FileInputStream(file), sha1), md5);
+            IOUtils.copyLarge(is, new NullOutputStream());
+            this.sha1 = sha1.digest();
+            this.digest = digestFromMd5(md5.digest());
+            this.encoding = attachment.encoding;
+            this.length = length >= 0 ? length : decodedLength(file, attachment.encoding);
+            this.encodedLength = file.length();
+        } catch (IOException e){
+            throw new AttachmentNotSavedException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AttachmentNotSavedException(e);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Prepare an attachment whose contents are the same as another prepared attachment's,
+     * for example an attachment with the same digest on another document.
+     *
+     * Both prepared attachments share the same temp file, so the contents are only
+     * downloaded and stored once.
+     *
+     * @param attachment The attachment to prepare, giving its name and type
+     * @param contents The prepared attachment holding the contents
+     */
+    public PreparedAttachment(Attachment attachment, PreparedAttachment contents) {
+        this.attachment = attachment;
+        this.tempFile = contents.tempFile;
+        this.sha1 = contents.sha1;
+        this.digest = contents.digest;
+        this.encoding = contents.encoding;
+        this.length = contents.length;
+        this.encodedLength = contents.encodedLength;
+    }
+
+    /**
+     * Prepare an attachment whose contents are already in the 'BLOB store' under the
+     * given sha1, so there is no temp file to move.
+     */
+    PreparedAttachment(Attachment attachment, byte[] sha1, String digest,
+                       Attachment.Encoding encoding, long length, long encodedLength) {
+        this.attachment = attachment;
+        this.tempFile = null;
+        this.sha1 = sha1;
+        this.digest = digest;
+        this.encoding = encoding;
+        this.length = length;
+        this.encodedLength = encodedLength;
+    }
+
+    /**
+     * Returns the CouchDB-style digest, "md5-" followed by the base64 md5 of the
+     * attachment's contents as stored.
+     */
+    static String digestFromMd5(byte[] md5) {
+        return "md5-" + new String(new Base64().encode(md5));
+    }
+
+    private static void copy(InputStream in, File file, MessageDigest sha1, MessageDigest md5)
+            throws IOException {
+        FileUtils.copyInputStreamToFile(new DigestInputStream(new DigestInputStream(in, sha1),
+                md5), file);
+    }
+
+    /**
+     * Returns the size of the contents of {@code file} once decoded. Gzip encoded files
+     * are decompressed to count their contents, as the gzip trailer only records the size
+     * of the last member, modulo 2^32.
+     */
+    private static long decodedLength(File file, Attachment.Encoding encoding)
+            throws IOException {
+        if (encoding != Attachment.Encoding.Gzip) {
+            return file.length();
         }
+        InputStream is = null;
+        try {
+            is = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+            return IOUtils.copyLarge(is, new NullOutputStream(), new byte[BUFFER_SIZE]);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Copies {@code in} to {@code file}, compressing it with gzip and digesting the
+     * compressed bytes.
+     *
+     * @return the number of bytes read from {@code in}
+     */
+    private static long copyCompressed(InputStream in, File file, MessageDigest sha1,
+                                       MessageDigest md5) throws IOException {
+        CountingInputStream counting = new CountingInputStream(in);
+        OutputStream os = null;
+        try {
+            os = new GZIPOutputStream(new DigestOutputStream(new DigestOutputStream(
+                    FileUtils.openOutputStream(file), sha1), md5), BUFFER_SIZE);
+            IOUtils.copyLarge(counting, os, new byte[BUFFER_SIZE]);
+            os.close();
+        } finally {
+            IOUtils.closeQuietly(counting);
+            IOUtils.closeQuietly(os);
+        }
+        return counting.getByteCount();
     }
 
     public final Attachment attachment;
+    /**
+     * The temp file holding the attachment's contents, or null if the contents are
+     * already in the 'BLOB store'.
+     */
     public final File tempFile;
     public final byte[] sha1;
+    public final String digest;
+    /**
+     * The encoding the contents are stored with, which is gzip if they were compressed
+     * by a compression policy even though the attachment itself wasn't.
+     */
+    public final Attachment.Encoding encoding;
+    /**
+     * The size in bytes of the attachment's contents. For attachments which were
+     * compressed when they were prepared, this is the size before compression.
+     */
+    public final long length;
+    /**
+     * The size in bytes of the contents as stored.
+     */
+    public final long encodedLength;
 }
-
@@ -223,6 +223,11 @@ public class RevisionHistoryHelper {
                 } else {
                     if (!savedAtt.shouldInline(inlinePreference)) {
                         theAtt.put("follows", true);
+                        if (att.encoding == Attachment.Encoding.Gzip) {
+                            // the MIME body is sent as stored, still gzip encoded
+                            theAtt.put("encoding", "gzip");
+                            theAtt.put("encoded_length", savedAtt.getSize());
+                        }
                     } else {
                         theAtt.put("follows", false);
                         // base64 encode this attachment
@@ -245,7 +250,7 @@ public class RevisionHistoryHelper {
                         bos.close();
                         theAtt.put("data", baos.toString());  //base64 of data
                     }
-                    theAtt.put("length", savedAtt.getSize());
+                    theAtt.put("length", savedAtt.getDecodedSize());
                     theAtt.put("content_type", savedAtt.type);
                     theAtt.put("revpos", savedAtt.revpos);
                 }
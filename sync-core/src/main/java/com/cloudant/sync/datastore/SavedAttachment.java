@@ -36,13 +36,14 @@ class SavedAttachment extends Attachment {
     static final int largeSizeBytes = 65536;
     private static final Logger logger = Logger.getLogger(SavedAttachment.class.getCanonicalName());
 
-    protected SavedAttachment(String name, long revpos, long seq, byte[] key, String type, File file, Encoding encoding) {
+    protected SavedAttachment(String name, long revpos, long seq, byte[] key, String type, File file, Encoding encoding, long length) {
         super(name, type, encoding);
         this.revpos = revpos;
         this.seq = seq;
         this.key = key;
         this.file = file;
         this.encoding = encoding;
+        this.length = length;
     }
 
     public InputStream getInputStream() throws IOException {
@@ -53,8 +54,27 @@ class SavedAttachment extends Attachment {
         }
     }
 
+    /**
+     * Gets the contents of the attachment as they are stored, without decompressing gzip
+     * encoded attachments.
+     *
+     * Caller must call close() when done.
+     */
+    InputStream getEncodedInputStream() throws IOException {
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Size in bytes of the attachment's contents once decoded, as recorded in the
+     * attachments table when the attachment was saved.
+     */
+    long getDecodedSize() {
+        return length;
+    }
+
     public boolean isLarge() {
-        return this.getSize() > largeSizeBytes;
+        // compressed attachments are decompressed when they're sent inline
+        return getDecodedSize() > largeSizeBytes;
     }
 
     public boolean shouldInline(PushAttachmentsInline inlinePreference) {
@@ -77,5 +97,6 @@ class SavedAttachment extends Attachment {
     protected final byte[] key;  // sha of file, used for file path on disk.
     private final File file;
     private Encoding encoding;
+    private final long length;  // decoded size, from the attachments table
 
 }
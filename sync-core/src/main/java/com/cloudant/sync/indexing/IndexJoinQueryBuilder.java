@@ -14,50 +14,111 @@
 
 package com.cloudant.sync.indexing;
 
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Builds the SQL for a query over one or more index tables.
+ *
+ * <p>Values from the query are never written into the SQL; each one is a
+ * {@code ?} placeholder whose value is returned by {@link #getArgs()}. So
+ * queries of the same shape, using the same indexes and operators, produce
+ * the same SQL, and SQLite can reuse the prepared statement rather than
+ * parsing and planning the query again.</p>
+ */
 class IndexJoinQueryBuilder {
 
     public static final String MIN = "min";
     public static final String MAX = "max";
 
-    public static final String SELECT_CLAUSE_FORMAT = "SELECT DISTINCT %s.docid";
+    public static final String SELECT_CLAUSE_FORMAT = "SELECT %s.docid";
+    public static final String SELECT_DISTINCT_CLAUSE_FORMAT = "SELECT DISTINCT %s.docid";
     public static final String FROM_CLAUSE_FORMAT = " FROM %s";
     public static final String JOIN_CLAUSE_FORMAT = " JOIN %s ON %s.docid = %s.docid";
     public static final String ORDERBY_CLAUSE_FORMAT = " ORDER BY %s.value %s";
-    public static final String OFFSET_CLAUSE_FORMAT = " OFFSET %d";
-    public static final String LIMIT_CLAUSE_FORMAT = " LIMIT %d";
+    public static final String OFFSET_CLAUSE = " OFFSET ?";
+    public static final String LIMIT_CLAUSE = " LIMIT ?";
 
     public static final String WHERE = " WHERE";
     public static final String AND = " AND";
 
-    public static final String EQUALS_CLAUSE = " %s.value = %s";
+    public static final String EQUALS_CLAUSE = " %s.value = ?";
     public static final String IN_CLAUSE = " %s.value IN (%s)";
-    public static final String MIN_MAX_CLAUSE = " %s.value <= %s AND %s.value >= %s";
-    public static final String MIN_CLAUSE = " %s.value >= %s";
-    public static final String MAX_CLAUSE = " %s.value <= %s";
+    public static final String MIN_MAX_CLAUSE = " %s.value <= ? AND %s.value >= ?";
+    public static final String MIN_CLAUSE = " %s.value >= ?";
+    public static final String MAX_CLAUSE = " %s.value <= ?";
+
+    /**
+     * SQLite needs a LIMIT for an OFFSET, a negative LIMIT meaning no limit.
+     */
+    private static final String NO_LIMIT = "-1";
 
     String firstTable;
     String from;
     StringBuilder join;
     StringBuilder where;
     String orderby = "";
-    String offset = "";
-    String limit = "";
+    String offset = null;
+    String limit = null;
+    List<String> whereArgs;
+
+    /**
+     * Whether a document can match more than one row of the join, so the
+     * results need DISTINCT.
+     *
+     * Each index table holds a (docid, value) pair at most once, so a
+     * criterion matching a single value matches at most one row per
+     * document. Only criteria which can match several values, and the
+     * tables joined for sorting, can repeat a document.
+     */
+    boolean distinct = false;
 
     public IndexJoinQueryBuilder() {
         from = null;
         join = new StringBuilder();
         where = new StringBuilder();
+        whereArgs = new ArrayList<String>();
     }
 
+    /**
+     * Returns the SQL for the query, with a {@code ?} placeholder for each
+     * value in {@link #getArgs()}.
+     *
+     * <p>When the results can't contain the same document twice, DISTINCT
+     * is left out, so SQLite can stop reading once it has LIMIT rows rather
+     * than first collecting the distinct documents.</p>
+     */
     public String toSQL() {
         StringBuffer sb = new StringBuffer();
-        sb.append(String.format(SELECT_CLAUSE_FORMAT, firstTable)).append(from).append(join).append(where).append(orderby).append(limit).append(offset);
+        sb.append(String.format(distinct ? SELECT_DISTINCT_CLAUSE_FORMAT : SELECT_CLAUSE_FORMAT,
+                firstTable)).append(from).append(join).append(where).append(orderby);
+        if (limit != null || offset != null) {
+            sb.append(LIMIT_CLAUSE);
+        }
+        if (offset != null) {
+            sb.append(OFFSET_CLAUSE);
+        }
         return sb.toString();
     }
 
+    /**
+     * Returns the values to bind to the placeholders in {@link #toSQL()}, in
+     * order.
+     */
+    public String[] getArgs() {
+        List<String> args = new ArrayList<String>(whereArgs);
+        if (limit != null || offset != null) {
+            args.add(limit != null ? limit : NO_LIMIT);
+        }
+        if (offset != null) {
+            args.add(offset);
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
     public void addQueryCriterion(String table, Object criterion, IndexType type) {
         if (firstTable == null) {
             firstTable = table;
@@ -73,6 +134,8 @@ class IndexJoinQueryBuilder {
 
     public void addJoinForSort(String table) {
         join.append(String.format(JOIN_CLAUSE_FORMAT, table, firstTable, table));
+        // a document has a row in the sort index for each of its values
+        distinct = true;
     }
 
     public void addSortByOption(String value, SortDirection direction) {
@@ -81,11 +144,11 @@ class IndexJoinQueryBuilder {
     }
 
     public void addOffsetOption(int off) {
-        offset = String.format(OFFSET_CLAUSE_FORMAT, off);
+        offset = Integer.toString(off);
     }
 
     public void addLimitOption(int lim) {
-        limit = String.format(LIMIT_CLAUSE_FORMAT, lim);
+        limit = Integer.toString(lim);
     }
 
     private String buildWherePartClause(String index, Object criterion, IndexType type) {
@@ -106,36 +169,54 @@ class IndexJoinQueryBuilder {
     private String constructWhereWithMap(String index, Map criterion, IndexType type) {
         String where;
         if (criterion.containsKey(MIN) && criterion.containsKey(MAX)) {
-            where = String.format(MIN_MAX_CLAUSE, index, type.escape(criterion.get(MAX)), index, type.escape(criterion.get(MIN)));
+            where = String.format(MIN_MAX_CLAUSE, index, index);
+            whereArgs.add(checkedArg(type, criterion.get(MAX)));
+            whereArgs.add(checkedArg(type, criterion.get(MIN)));
         } else if (criterion.containsKey(MIN)) {
-            where = String.format(MIN_CLAUSE, index, type.escape(criterion.get(MIN)));
+            where = String.format(MIN_CLAUSE, index);
+            whereArgs.add(checkedArg(type, criterion.get(MIN)));
         } else if (criterion.containsKey(MAX)) {
-            where = String.format(MAX_CLAUSE, index, type.escape(criterion.get(MAX)));
+            where = String.format(MAX_CLAUSE, index);
+            whereArgs.add(checkedArg(type, criterion.get(MAX)));
         } else {
             throw new IllegalArgumentException("Range query must have at least one of min or max value");
         }
+        distinct = true;
         return where;
     }
 
-    private String convertAndEscape(IndexType type, Object object) {
-        Object c = type.convertToIndexValue(object);
-        return type.escape(c);
+    /**
+     * Returns the value to bind for a range criterion, which is compared with
+     * the index's values as it is, without converting it to the index type.
+     */
+    private String checkedArg(IndexType type, Object object) {
+        Preconditions.checkArgument(type.valueSupported(object),
+                "Object is not supported for this index type");
+        return object.toString();
+    }
+
+    private String convertToArg(IndexType type, Object object) {
+        return type.convertToIndexValue(object).toString();
     }
 
     private String constructWherePartWithList(String idx, List criterion, IndexType type) {
         StringBuilder sb = new StringBuilder();
-        if (criterion.size() > 0) {
-            for (Object obj : criterion) {
-                if (type.valueSupported(obj)) {
-                    sb.append(convertAndEscape(type, obj)).append(",");
-                }
+        int values = 0;
+        for (Object obj : criterion) {
+            if (type.valueSupported(obj)) {
+                sb.append(values == 0 ? "?" : ",?");
+                whereArgs.add(convertToArg(type, obj));
+                values++;
             }
-            sb.deleteCharAt(sb.length() - 1);
+        }
+        if (values > 1) {
+            distinct = true;
         }
         return String.format(IN_CLAUSE, idx, sb.toString());
     }
 
     private String constructSimpleWherePart(String idx, Object criterion, IndexType type) {
-        return String.format(EQUALS_CLAUSE, idx, convertAndEscape(type, criterion));
+        whereArgs.add(convertToArg(type, criterion));
+        return String.format(EQUALS_CLAUSE, idx);
     }
 }
@@ -22,17 +22,26 @@ import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.sqlite.SQLDatabaseFactory;
 import com.cloudant.sync.util.DatabaseUtils;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.eventbus.Subscribe;
 
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -88,6 +97,27 @@ public class IndexManager {
 
     private static final String SQL_SELECT_UNIQUE = "SELECT DISTINCT value FROM %s";
 
+    private static final String SQL_DELETE_INDEX_ROWS = "DELETE FROM %s WHERE docid = ?";
+
+    private static final String SQL_INSERT_INDEX_ROW = "INSERT INTO %s (docid, value) VALUES (?, ?)";
+
+    /**
+     * Index tables were created with only a (value, docid) index, so a
+     * document's rows are found through this index when it is re-indexed.
+     */
+    private static final String SQL_CREATE_DOCID_INDEX = "CREATE INDEX IF NOT EXISTS %s_docid ON %s(docid)";
+
+    /**
+     * The default number of changes written to the indexes in each transaction.
+     */
+    public static final int DEFAULT_INDEXING_BATCH_SIZE = 500;
+
+    private int indexingBatchSize = DEFAULT_INDEXING_BATCH_SIZE;
+
+    private int indexingThreads = 1;
+
+    private ExecutorService indexingExecutor = null;
+
     /**
      * Constructs an {@code IndexManager} for the passed
      * {@link com.cloudant.sync.datastore.Datastore}, allowing the documents
@@ -198,6 +228,8 @@ public class IndexManager {
                 createIndexTable(indexName, type);
                 insertIndexMetaData(indexName, type);
             }
+            String table = constructIndexTableName(indexName);
+            this.sqlDb.execSQL(String.format(SQL_CREATE_DOCID_INDEX, table, table));
 
             this.indexFunctionMap.put(indexName, indexFunction);
 
@@ -246,86 +278,295 @@ public class IndexManager {
      * number to be added to all the indexes that this {@code IndexManager}
      * knows about.</p>
      *
+     * <p>The changes are read once for all the indexes, starting from the
+     * index furthest behind, and each batch of changes is written to the
+     * indexes in a single transaction.</p>
+     *
      * <p>Only indexes registered using {@link com.cloudant.sync.indexing.IndexManager#ensureIndexed(String, IndexType, IndexFunction)}
      * or an overloaded version on this IndexManager object will be updated (as
      * otherwise the update function isn't defined).</p>
      */
     public void updateAllIndexes() {
         Set<Index> all = this.getAllIndexes();
+        List<Index> registered = new ArrayList<Index>();
         for (Index index : all) {
             // Be sure to only update indexes which have been registered
             // using ensureIndexed this session.
-            String name = index.getName();
-            if (this.indexFunctionMap.containsKey(name)) {
-                updateIndex(name);
+            if (this.indexFunctionMap.containsKey(index.getName())) {
+                registered.add(index);
             }
         }
+        updateIndexes(registered);
     }
 
-    private void updateIndex(String indexName) {
-        Index index = this.getIndex(indexName);
-        Changes changes = datastore.changes(index.getLastSequence(), 100);
-        while (changes.size() > 0) {
-            this.updateIndex(index, changes);
-            changes = datastore.changes(changes.getLastSequence(), 100);
-        }
+    /**
+     * <p>Sets the number of changes read from the datastore and written to
+     * the indexes in each transaction when updating indexes.</p>
+     *
+     * <p>Larger batches mean fewer transactions, so indexing is quicker, but
+     * more documents are held in memory at once.</p>
+     *
+     * @param batchSize number of changes per batch; must be positive.
+     */
+    public void setIndexingBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+        this.indexingBatchSize = batchSize;
+    }
+
+    /**
+     * <p>Returns the number of changes written to the indexes in each
+     * transaction when updating indexes.</p>
+     *
+     * @return number of changes per batch.
+     *
+     * @see #setIndexingBatchSize(int)
+     */
+    public int getIndexingBatchSize() {
+        return this.indexingBatchSize;
     }
 
-    private void updateIndex(Index index, Changes changes) {
-        for (BasicDocumentRevision ob : changes.getResults()) {
-            indexDocument(index, ob.getId(), ob.asMap());
+    /**
+     * <p>Sets the number of threads used to compute index values when
+     * updating indexes.</p>
+     *
+     * <p>With more than one thread, document bodies are parsed and passed to
+     * the {@link IndexFunction}s of the indexes on a pool of threads, and
+     * the resulting rows are written to the indexes on the thread updating
+     * them. The {@code IndexFunction}s must then be safe to call from
+     * several threads at once. {@link FieldIndexFunction} is.</p>
+     *
+     * <p>By default, index values are computed on the thread updating the
+     * indexes.</p>
+     *
+     * @param threads number of threads; must be positive.
+     */
+    public void setIndexingThreads(int threads) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        if (this.indexingExecutor != null) {
+            this.indexingExecutor.shutdown();
+            this.indexingExecutor = null;
+        }
+        this.indexingThreads = threads;
+        if (threads > 1) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1,
+                    TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+            // don't hold threads while the indexes aren't being updated
+            executor.allowCoreThreadTimeOut(true);
+            this.indexingExecutor = executor;
         }
-        updateIndexLastSequence(index.getName(), changes.getLastSequence());
     }
 
-    private void updateIndexLastSequence(String indexName, Long lastSequence) {
-        ContentValues v = new ContentValues();
-        v.put("last_sequence", lastSequence);
-        int row = this.sqlDb.update(INDEX_METADATA_TABLE_NAME, v, " name = ? ", new String[]{indexName});
-        if (row != 1) {
-            throw new IllegalStateException("Last sequence number is not updated successfully: " + indexName);
+    /**
+     * <p>Returns the number of threads used to compute index values when
+     * updating indexes.</p>
+     *
+     * @return number of threads.
+     *
+     * @see #setIndexingThreads(int)
+     */
+    public int getIndexingThreads() {
+        return this.indexingThreads;
+    }
+
+    private void updateIndex(String indexName) {
+        updateIndexes(Collections.singletonList(this.getIndex(indexName)));
+    }
+
+    private void updateIndexes(List<Index> indexes) {
+        if (indexes.isEmpty()) {
+            return;
+        }
+
+        Map<String, Long> lastSequences = new HashMap<String, Long>();
+        long since = Long.MAX_VALUE;
+        for (Index index : indexes) {
+            lastSequences.put(index.getName(), index.getLastSequence());
+            since = Math.min(since, index.getLastSequence());
+        }
+
+        Changes changes = datastore.changes(since, this.indexingBatchSize);
+        while (changes.size() > 0) {
+            this.updateIndexes(indexes, lastSequences, changes);
+            changes = datastore.changes(changes.getLastSequence(), this.indexingBatchSize);
         }
     }
 
-    private void indexDocument(Index index, String docId, Map map) {
+    private void updateIndexes(List<Index> indexes, Map<String, Long> lastSequences,
+                               Changes changes) {
+        // Compute the rows first, possibly on other threads, so the
+        // transaction only has to write them
+        List<DocumentIndexRows> rows = indexRows(indexes, lastSequences, changes.getResults());
 
-        if (!indexFunctionMap.containsKey(index.getName())) {
-            String msg = String.format("Index %s does not exist", index.getName());
-            throw new IllegalArgumentException(msg);
+        this.sqlDb.beginTransaction();
+        try {
+            for (DocumentIndexRows documentRows : rows) {
+                for (Index index : indexes) {
+                    if (documentRows.values.containsKey(index.getName())) {
+                        writeIndexRowsForDocument(index, documentRows.docId,
+                                documentRows.values.get(index.getName()));
+                    }
+                }
+            }
+            for (Index index : indexes) {
+                if (changes.getLastSequence() > lastSequences.get(index.getName())) {
+                    updateIndexLastSequence(index.getName(), changes.getLastSequence());
+                    lastSequences.put(index.getName(), changes.getLastSequence());
+                }
+            }
+            this.sqlDb.setTransactionSuccessful();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Error updating indexes", e);
+        } finally {
+            this.sqlDb.endTransaction();
         }
+    }
 
-        deleteIndexRowsForDocument(index, docId);
+    /**
+     * Returns the index rows for each of {@code revisions}, in the same order.
+     *
+     * If more than one indexing thread is set, the revisions are split into
+     * a chunk per thread, and each chunk's bodies are parsed and passed to the
+     * index functions on the indexing executor.
+     */
+    private List<DocumentIndexRows> indexRows(final List<Index> indexes,
+                                              final Map<String, Long> lastSequences,
+                                              List<BasicDocumentRevision> revisions) {
+        List<DocumentIndexRows> rows = new ArrayList<DocumentIndexRows>(revisions.size());
+        ExecutorService executor = this.indexingExecutor;
+        if (executor == null || revisions.size() < 2) {
+            for (BasicDocumentRevision revision : revisions) {
+                rows.add(indexRows(indexes, lastSequences, revision));
+            }
+            return rows;
+        }
 
-        IndexFunction f = indexFunctionMap.get(index.getName());
-        List values = f.indexedValues(index.getName(), map);
-        if(values == null) {
-            return;
+        int chunkSize = (revisions.size() + this.indexingThreads - 1) / this.indexingThreads;
+        List<Future<List<DocumentIndexRows>>> futures =
+                new ArrayList<Future<List<DocumentIndexRows>>>();
+        for (final List<BasicDocumentRevision> chunk : Lists.partition(revisions, chunkSize)) {
+            futures.add(executor.submit(new Callable<List<DocumentIndexRows>>() {
+                @Override
+                public List<DocumentIndexRows> call() {
+                    List<DocumentIndexRows> chunkRows =
+                            new ArrayList<DocumentIndexRows>(chunk.size());
+                    for (BasicDocumentRevision revision : chunk) {
+                        chunkRows.add(indexRows(indexes, lastSequences, revision));
+                    }
+                    return chunkRows;
+                }
+            }));
         }
-        updateIndexRowsForDocument(index, docId, values);
+        try {
+            for (Future<List<DocumentIndexRows>> future : futures) {
+                rows.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing index values", e);
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Error computing index values", e.getCause());
+        }
+        return rows;
     }
 
-    private void deleteIndexRowsForDocument(Index index, String docId) {
-        String indexTable = constructIndexTableName(index.getName());
-        this.sqlDb.delete(
-                indexTable,
-                " docid = ? ",
-                new String[]{docId}
-        );
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
 
+    /**
+     * Returns the index rows for {@code revision} in each index which hasn't
+     * already indexed it. Only reads the index functions and
+     * {@code lastSequences}, so may be called on several threads at once.
+     */
+    private DocumentIndexRows indexRows(List<Index> indexes, Map<String, Long> lastSequences,
+                                        BasicDocumentRevision revision) {
+        DocumentIndexRows rows = new DocumentIndexRows(revision.getId());
+        // only parse the body if an index needs it
+        Map map = null;
+        for (Index index : indexes) {
+            if (revision.getSequence() <= lastSequences.get(index.getName())) {
+                continue;
+            }
+            IndexFunction f = indexFunctionMap.get(index.getName());
+            if (f == null) {
+                String msg = String.format("Index %s does not exist", index.getName());
+                throw new IllegalArgumentException(msg);
+            }
+            if (map == null) {
+                map = revision.asMap();
+            }
+            rows.values.put(index.getName(), indexValues(index, revision.getId(),
+                    f.indexedValues(index.getName(), map)));
+        }
+        return rows;
     }
-    private void updateIndexRowsForDocument(Index index, String docId, List values) {
+
+    /**
+     * Converts the values returned by an index function to the values
+     * inserted into the index, dropping those the index doesn't support.
+     *
+     * @return the converted values, or {@code null} if {@code values} is
+     *         {@code null}
+     */
+    private List<Object> indexValues(Index index, String docId, List values) {
+        if (values == null) {
+            return null;
+        }
         IndexType indexType = index.getIndexType();
-        String indexTable = constructIndexTableName(index.getName());
-        for(Object value : values) {
+        List<Object> converted = new ArrayList<Object>(values.size());
+        for (Object value : values) {
             if (indexType.valueSupported(value)) {
-                ContentValues v = new ContentValues();
-                v.put("docid", docId);
-                indexType.putIntoContentValues(v, "value", value);
-                this.sqlDb.insert(indexTable, v);
+                converted.add(indexType.convertToIndexValue(value));
             } else {
                 logger.severe("Index value ignored, docId: " + docId + ", value: " + value);
             }
         }
+        return converted;
+    }
+
+    private void updateIndexLastSequence(String indexName, Long lastSequence) {
+        ContentValues v = new ContentValues();
+        v.put("last_sequence", lastSequence);
+        int row = this.sqlDb.update(INDEX_METADATA_TABLE_NAME, v, " name = ? ", new String[]{indexName});
+        if (row != 1) {
+            throw new IllegalStateException("Last sequence number is not updated successfully: " + indexName);
+        }
+    }
+
+    private void writeIndexRowsForDocument(Index index, String docId, List<Object> values)
+            throws SQLException {
+        String indexTable = constructIndexTableName(index.getName());
+        // The SQL is the same for every document, so the prepared statements
+        // are reused from the connection's statement cache
+        this.sqlDb.execSQL(String.format(SQL_DELETE_INDEX_ROWS, indexTable), new Object[]{docId});
+        if (values == null) {
+            return;
+        }
+        String sql = String.format(SQL_INSERT_INDEX_ROW, indexTable);
+        for (Object value : values) {
+            this.sqlDb.execSQL(sql, new Object[]{docId, value});
+        }
+    }
+
+    /**
+     * The values to index for a document, keyed by index name. An index
+     * with a {@code null} value has no rows for the document. Indexes which
+     * have already indexed the document have no entry.
+     */
+    private static class DocumentIndexRows {
+        private final String docId;
+        private final Map<String, List<Object>> values = new HashMap<String, List<Object>>();
+
+        DocumentIndexRows(String docId) {
+            this.docId = docId;
+        }
     }
 
     private String constructIndexTableName(String indexName) {
@@ -490,15 +731,15 @@ public class IndexManager {
             sb.addLimitOption((Integer)(options.get("limit")));
         }
 
-        List<String> ids = executeIndexJoinQueryForDocumentIds(sb.toSQL());
+        List<String> ids = executeIndexJoinQueryForDocumentIds(sb.toSQL(), sb.getArgs());
         return new BasicQueryResult(ids, datastore);
     }
 
-    private List<String> executeIndexJoinQueryForDocumentIds(String sql) {
+    private List<String> executeIndexJoinQueryForDocumentIds(String sql, String[] args) {
         List<String> ids = new ArrayList<String>();
         Cursor cursor = null;
         try {
-             cursor = this.sqlDb.rawQuery(sql, new String[]{});
+            cursor = this.sqlDb.rawQuery(sql, args);
             while (cursor.moveToNext()) {
                 ids.add(cursor.getString(0));
             }
@@ -571,6 +812,9 @@ public class IndexManager {
 
 
     public void close(){
+        if (this.indexingExecutor != null) {
+            this.indexingExecutor.shutdown();
+        }
         this.sqlDb.close();
     }
 }
@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+
+package com.cloudant.sync.notifications;
+
+import java.util.Collections;
+import java.util.List;
+
+public class DocumentsChanged {
+
+    /**
+     * Event summarising a batch of changes to a datastore's documents
+     *
+     * <p>This event is posted after every write which changes documents,
+     * alongside the events for the individual documents. If the datastore
+     * delivers events on an executor, changes made while earlier events are
+     * waiting to be delivered are coalesced into a single event.</p>
+     *
+     * <p>Use the sequence numbers with
+     * {@link com.cloudant.sync.datastore.Datastore#changes(long, int)} to
+     * read the changed documents, if they are needed.</p>
+     *
+     * @param firstSequence
+     *            Lowest sequence number of the changes
+     * @param lastSequence
+     *            Highest sequence number of the changes
+     * @param documentIds
+     *            IDs of the changed documents, each listed once
+     */
+    public DocumentsChanged(long firstSequence, long lastSequence, List<String> documentIds) {
+        if (firstSequence > lastSequence) {
+            throw new IllegalArgumentException("First sequence must not be after last sequence.");
+        }
+        this.firstSequence = firstSequence;
+        this.lastSequence = lastSequence;
+        this.documentIds = Collections.unmodifiableList(documentIds);
+    }
+
+    public final long firstSequence;
+    public final long lastSequence;
+    public final List<String> documentIds;
+
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.notifications;
+
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+
+import java.util.Collections;
+import java.util.List;
+
+public class DocumentsModified {
+
+    /**
+     * Generic event for a batch of documents created or updated together
+     *
+     * <p>The lists are parallel: {@code prevDocuments.get(i)} is the
+     * revision that {@code newDocuments.get(i)} replaced.</p>
+     *
+     * @param prevDocuments
+     *            Previous document revisions (null entries for document create)
+     * @param newDocuments
+     *            New document revisions
+     */
+    public DocumentsModified(List<BasicDocumentRevision> prevDocuments,
+            List<BasicDocumentRevision> newDocuments) {
+        if (prevDocuments.size() != newDocuments.size()) {
+            throw new IllegalArgumentException("Document lists must be the same size.");
+        }
+        this.prevDocuments = Collections.unmodifiableList(prevDocuments);
+        this.newDocuments = Collections.unmodifiableList(newDocuments);
+    }
+
+    public final List<BasicDocumentRevision> prevDocuments;
+    public final List<BasicDocumentRevision> newDocuments;
+
+}
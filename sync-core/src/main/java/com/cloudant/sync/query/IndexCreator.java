@@ -15,10 +15,14 @@ package com.cloudant.sync.query;
 import com.cloudant.sync.datastore.Datastore;
 import com.cloudant.sync.sqlite.ContentValues;
 import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.util.JSONUtils;
 import com.google.common.base.Joiner;
 
+import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -40,23 +44,42 @@ class IndexCreator {
 
     private final ExecutorService queue;
 
+    private final ExecutorService indexingExecutor;
+
     private static final Logger logger = Logger.getLogger(IndexCreator.class.getName());
 
+    /**
+     *  A tokenizer name followed by its arguments, which may be quoted. Anything else
+     *  could change the meaning of the statement creating a text index.
+     */
+    private static final String TOKENIZER_PATTERN =
+            "^[a-zA-Z][a-zA-Z0-9_]*( +\"?[a-zA-Z0-9_=.\\-]+\"?)*$";
+
     public IndexCreator(SQLDatabase database, Datastore datastore, ExecutorService queue) {
+        this(database, datastore, queue, null);
+    }
+
+    public IndexCreator(SQLDatabase database,
+                        Datastore datastore,
+                        ExecutorService queue,
+                        ExecutorService indexingExecutor) {
         this.datastore = datastore;
         this.database = database;
         this.queue = queue;
+        this.indexingExecutor = indexingExecutor;
     }
 
     protected static String ensureIndexed(List<Object> fieldNames,
                                           String indexName,
                                           String indexType,
+                                          Map<String, Object> options,
                                           SQLDatabase database,
                                           Datastore datastore,
-                                          ExecutorService queue) {
-        IndexCreator executor = new IndexCreator(database, datastore, queue);
+                                          ExecutorService queue,
+                                          ExecutorService indexingExecutor) {
+        IndexCreator executor = new IndexCreator(database, datastore, queue, indexingExecutor);
 
-        return executor.ensureIndexed(fieldNames, indexName, indexType);
+        return executor.ensureIndexed(fieldNames, indexName, indexType, options);
     }
 
     /**
@@ -66,12 +89,14 @@ class IndexCreator {
      *
      *  @param fieldNames List of field names in the sort format
      *  @param indexName Name of index to create
-     *  @param indexType "json" is the only supported type for now
+     *  @param indexType "json" or "text"
+     *  @param options index options, or null for none
      *  @return name of created index
      */
     private String ensureIndexed(List<Object> fieldNames,
                                  final String indexName,
-                                 final String indexType) {
+                                 final String indexType,
+                                 Map<String, Object> options) {
         if (fieldNames == null || fieldNames.isEmpty()) {
             logger.log(Level.SEVERE, "No field names were passed to ensureIndexed");
             return null;
@@ -99,6 +124,14 @@ class IndexCreator {
             logger.log(Level.SEVERE, msg);
         }
 
+        if (indexType.equalsIgnoreCase(IndexManager.TEXT_TYPE) &&
+            !hasFieldsOtherThanMetadata(fieldNamesList)) {
+            String msg = String.format("Text index %s must index a field other than _id and "
+                                       + "_rev", indexName);
+            logger.log(Level.SEVERE, msg);
+            return null;
+        }
+
         // Prepend _id and _rev if it's not in the array
         if (!fieldNamesList.contains("_rev")) {
             fieldNamesList.add(0, "_rev");
@@ -108,6 +141,15 @@ class IndexCreator {
             fieldNamesList.add(0, "_id");
         }
 
+        final boolean textIndex = indexType.equalsIgnoreCase(IndexManager.TEXT_TYPE);
+        final Map<String, Object> settings = settingsForOptions(options, textIndex);
+        if (settings == null) {
+            // Logging handled in settingsForOptions
+            return null;
+        }
+        final String settingsJson = settings.isEmpty() ? null :
+                                                         JSONUtils.serializeAsString(settings);
+
         // Does the index already exist; return success if it does and is same, else fail
         try {
             Map<String, Object> existingIndexes = listIndexesInDatabaseQueue();
@@ -120,15 +162,41 @@ class IndexCreator {
                 Set<String> existingFields = new HashSet<String>(existingFieldsList);
                 Set<String> newFields = new HashSet<String>(fieldNamesList);
 
-                if (existingType.equalsIgnoreCase(indexType) && existingFields.equals(newFields)) {
+                Map<String, Object> existingSettings = new HashMap<String, Object>(index);
+                existingSettings.keySet().removeAll(Arrays.asList("type", "name", "fields"));
+                // Compare the settings as they will be read back from the database
+                Map<String, Object> newSettings = settings.isEmpty() ? settings :
+                        JSONUtils.deserialize(settingsJson.getBytes(Charset.forName("UTF-8")));
+
+                if (existingType.equalsIgnoreCase(indexType) && existingFields.equals(newFields)
+                        && existingSettings.equals(newSettings)) {
                     boolean success = IndexUpdater.updateIndex(indexName,
                                                                fieldNamesList,
                                                                database,
                                                                datastore,
-                                                               queue);
+                                                               queue,
+                                                               indexingExecutor);
                     return success ? indexName : null;
                 }
             }
+
+            // $text doesn't say which index to search, so only one text index is allowed
+            if (textIndex && existingIndexes != null) {
+                for (String existingName: existingIndexes.keySet()) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> index =
+                            (Map<String, Object>) existingIndexes.get(existingName);
+                    String existingType = (String) index.get("type");
+                    if (existingType.equalsIgnoreCase(IndexManager.TEXT_TYPE) &&
+                        !existingName.equals(indexName)) {
+                        String msg = String.format("Text index %s already exists; %s",
+                                                   existingName,
+                                                   "only one text index is allowed.");
+                        logger.log(Level.SEVERE, msg);
+                        return null;
+                    }
+                }
+            }
         } catch (ExecutionException e) {
             logger.log(Level.SEVERE, "Execution error encountered:", e);
             return null;
@@ -150,6 +218,9 @@ class IndexCreator {
                     parameters.put("index_type", indexType);
                     parameters.put("field_name", fieldName);
                     parameters.put("last_sequence", 0);
+                    if (settingsJson != null) {
+                        parameters.put("index_settings", settingsJson);
+                    }
                     long rowId = database.insert(IndexManager.INDEX_METADATA_TABLE_NAME,
                                                  parameters);
                     if (rowId < 0) {
@@ -164,13 +235,36 @@ class IndexCreator {
                     for (String field: fieldNamesList) {
                         columnList.add("\"" + field + "\"");
                     }
-                    // Create the table for the index
-                    statement = createIndexTableStatementForIndexName(indexName, columnList);
-                    database.execSQL(statement);
-
-                    // Create the SQLite index on the index table
-                    statement = createIndexIndexStatementForIndexName(indexName, columnList);
-                    database.execSQL(statement);
+                    if (textIndex) {
+                        // Create the FTS table for the index, and the table to find
+                        // the FTS rows for a document. The FTS table only holds the
+                        // text to search; document ids are found with the docid table.
+                        columnList.remove("\"_id\"");
+                        columnList.remove("\"_rev\"");
+                        Object tokenizer = settings.get(IndexManager.TOKENIZE_OPTION);
+                        statement = createTextIndexTableStatementForIndexName(
+                                indexName,
+                                columnList,
+                                tokenizer != null ? (String) tokenizer :
+                                                    IndexManager.DEFAULT_TOKENIZER);
+                        database.execSQL(statement);
+
+                        statement = createDocIdTableStatementForIndexName(indexName);
+                        database.execSQL(statement);
+
+                        statement = createDocIdIndexStatementForIndexName(indexName);
+                        database.execSQL(statement);
+                    } else {
+                        // Create the table for the index
+                        statement = createIndexTableStatementForIndexName(indexName,
+                                                                          columnList);
+                        database.execSQL(statement);
+
+                        // Create the SQLite index on the index table
+                        statement = createIndexIndexStatementForIndexName(indexName,
+                                                                          columnList);
+                        database.execSQL(statement);
+                    }
                 } catch (SQLException e) {
                     String msg = String.format("Index creation error occurred (%s):",statement);
                     logger.log(Level.SEVERE, msg, e);
@@ -203,12 +297,110 @@ class IndexCreator {
                                                fieldNamesList,
                                                database,
                                                datastore,
-                                               queue);
+                                               queue,
+                                               indexingExecutor);
         }
 
         return success ? indexName : null;
     }
 
+    /**
+     *  Validates the options for an index, returning the settings to store for it: the
+     *  normalised selector of a partial index, and the maximum number of rows per
+     *  document if it was given, or the tokenizer of a text index.
+     *
+     *  A partial index's selector has to be a set of conditions on fields which must all
+     *  hold, so that a query can be checked to include each of them.
+     *
+     *  @return the settings, which are empty if there are no options, or null if the
+     *          options are invalid.
+     */
+    @SuppressWarnings("unchecked")
+    protected static Map<String, Object> settingsForOptions(Map<String, Object> options,
+                                                            boolean textIndex) {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        if (options == null) {
+            return settings;
+        }
+
+        List<String> validOptions = textIndex ?
+                Arrays.asList(IndexManager.TOKENIZE_OPTION) :
+                Arrays.asList(IndexManager.SELECTOR_OPTION,
+                              IndexManager.MAX_ROWS_PER_DOCUMENT_OPTION);
+        for (String option: options.keySet()) {
+            if (!validOptions.contains(option)) {
+                logger.log(Level.SEVERE, String.format("Unknown index option %s", option));
+                return null;
+            }
+        }
+
+        Object tokenizer = options.get(IndexManager.TOKENIZE_OPTION);
+        if (tokenizer != null) {
+            // The tokenizer is part of the CREATE VIRTUAL TABLE statement
+            if (!(tokenizer instanceof String) ||
+                !((String) tokenizer).matches(TOKENIZER_PATTERN)) {
+                String msg = String.format("Invalid tokenizer %s for text index", tokenizer);
+                logger.log(Level.SEVERE, msg);
+                return null;
+            }
+            settings.put(IndexManager.TOKENIZE_OPTION, tokenizer);
+        }
+
+        Object selector = options.get(IndexManager.SELECTOR_OPTION);
+        if (selector != null) {
+            if (!(selector instanceof Map) || ((Map) selector).isEmpty()) {
+                String msg = String.format("Partial index selector %s must be a non-empty map",
+                                           selector);
+                logger.log(Level.SEVERE, msg);
+                return null;
+            }
+            // Normalising modifies the selector passed in
+            Map<String, Object> normalised = QueryValidator.normaliseAndValidateQuery(
+                    new HashMap<String, Object>((Map<String, Object>) selector));
+            if (normalised == null || partialIndexClauses(normalised) == null) {
+                String msg = String.format("Partial index selector %s must be a set of %s",
+                                           selector,
+                                           "conditions on fields, which are all required.");
+                logger.log(Level.SEVERE, msg);
+                return null;
+            }
+            settings.put(IndexManager.SELECTOR_OPTION, normalised);
+        }
+
+        Object maxRows = options.get(IndexManager.MAX_ROWS_PER_DOCUMENT_OPTION);
+        if (maxRows != null) {
+            if (!(maxRows instanceof Integer) || (Integer) maxRows < 1) {
+                String msg = String.format("%s must be a positive integer, got %s",
+                                           IndexManager.MAX_ROWS_PER_DOCUMENT_OPTION,
+                                           maxRows);
+                logger.log(Level.SEVERE, msg);
+                return null;
+            }
+            settings.put(IndexManager.MAX_ROWS_PER_DOCUMENT_OPTION, maxRows);
+        }
+
+        return settings;
+    }
+
+    /**
+     *  Returns the clauses of a normalised partial index selector, or null if the
+     *  selector isn't just a set of conditions on fields which are all required.
+     */
+    @SuppressWarnings("unchecked")
+    protected static List<Object> partialIndexClauses(Map<String, Object> selector) {
+        if (selector.size() != 1 || !(selector.get(QueryValidator.AND) instanceof List)) {
+            return null;
+        }
+        List<Object> clauses = (List<Object>) selector.get(QueryValidator.AND);
+        for (Object rawClause: clauses) {
+            Map<String, Object> clause = (Map<String, Object>) rawClause;
+            if (clause.size() != 1 || ((String) clause.keySet().toArray()[0]).startsWith("$")) {
+                return null;
+            }
+        }
+        return clauses.isEmpty() ? null : clauses;
+    }
+
     /**
      *  Validate the field name string is usable.
      *
@@ -272,6 +464,42 @@ class IndexCreator {
         return String.format("CREATE TABLE %s ( %s NONE )", tableName, cols);
     }
 
+    private static boolean hasFieldsOtherThanMetadata(List<String> fieldNames) {
+        for (String fieldName: fieldNames) {
+            if (!fieldName.equals("_id") && !fieldName.equals("_rev")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String createTextIndexTableStatementForIndexName(String indexName,
+                                                             List<String> columns,
+                                                             String tokenizer) {
+        String tableName = IndexManager.tableNameForIndex(indexName);
+        Joiner joiner = Joiner.on(", ").skipNulls();
+        String cols = joiner.join(columns);
+
+        return String.format("CREATE VIRTUAL TABLE %s USING FTS4 ( %s, tokenize=%s )",
+                             tableName,
+                             cols,
+                             tokenizer);
+    }
+
+    private String createDocIdTableStatementForIndexName(String indexName) {
+        String tableName = IndexManager.docIdTableNameForTextIndex(indexName);
+
+        return String.format("CREATE TABLE %s ( docid INTEGER PRIMARY KEY, _id TEXT NOT NULL )",
+                             tableName);
+    }
+
+    private String createDocIdIndexStatementForIndexName(String indexName) {
+        String tableName = IndexManager.docIdTableNameForTextIndex(indexName);
+        String sqlIndexName = tableName.concat("_index");
+
+        return String.format("CREATE INDEX %s ON %s ( _id )", sqlIndexName, tableName);
+    }
+
     private String createIndexIndexStatementForIndexName(String indexName, List<String> columns) {
         String tableName = IndexManager.tableNameForIndex(indexName);
         String sqlIndexName = tableName.concat("_index");
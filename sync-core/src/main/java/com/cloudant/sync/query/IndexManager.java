@@ -13,13 +13,16 @@
 //
 // The metadata for an index is represented in the database table as follows:
 //
-//   index_name  |  index_type  |  field_name  |  last_sequence
-//   -----------------------------------------------------------
-//     name      |  json        |   _id        |     0
-//     name      |  json        |   _rev       |     0
-//     name      |  json        |   firstName  |     0
-//     name      |  json        |   lastName   |     0
-//     age       |  json        |   age        |     0
+//   index_name  |  index_type  |  field_name  |  last_sequence  |  index_settings
+//   -----------------------------------------------------------------------------
+//     name      |  json        |   _id        |     0           |  NULL
+//     name      |  json        |   _rev       |     0           |  NULL
+//     name      |  json        |   firstName  |     0           |  NULL
+//     name      |  json        |   lastName   |     0           |  NULL
+//     age       |  json        |   age        |     0           |  {"selector":...}
+//
+// index_settings holds a JSON object of the options the index was created with, such
+// as the selector of a partial index, or NULL if it has none.
 //
 // The index itself is a single table, with a column for docId and each of the indexed fields:
 //
@@ -33,6 +36,16 @@
 //
 // N.b.: _id and _rev are automatically added to all indexes to allow them to be used to
 // project DocumentRevisions without the need to load a document from the datastore.
+//
+// A text index is instead an FTS4 virtual table with a column holding the text of each
+// field; _id and _rev aren't stored there, so they aren't searched. Its FTS docids are
+// recorded against the document ids in a second table, which is used to find the document
+// for a search result and the rows for a document without scanning the text index:
+//
+//      docid    |   _id
+//   ---------------------
+//        1      |  miker
+//        2      |  johna
 
 package com.cloudant.sync.query;
 
@@ -41,9 +54,11 @@ import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.sqlite.SQLDatabaseFactory;
 import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.JSONUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -54,6 +69,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -76,7 +94,45 @@ public class IndexManager {
     private static final String EXTENSION_NAME = "com.cloudant.sync.query";
     private static final String INDEX_FIELD_NAME_PATTERN = "^[a-zA-Z][a-zA-Z0-9_]*$";
 
-    public static final int VERSION = 1;
+    public static final int VERSION = 2;
+
+    /**
+     *  Index option giving the selector of a partial index. Only documents which
+     *  match the selector are indexed.
+     *
+     *  @see #ensureIndexed(List, String, String, Map)
+     */
+    public static final String SELECTOR_OPTION = "selector";
+
+    /**
+     *  Index option giving the most rows a document with more than one array field
+     *  may have in the index.
+     *
+     *  @see #ensureIndexed(List, String, String, Map)
+     */
+    public static final String MAX_ROWS_PER_DOCUMENT_OPTION = "max_rows_per_document";
+
+    /**
+     *  The default for {@link #MAX_ROWS_PER_DOCUMENT_OPTION}.
+     */
+    public static final int DEFAULT_MAX_ROWS_PER_DOCUMENT = 1000;
+
+    /**
+     *  The type of full text indexes, which are used by the $text query operator.
+     */
+    public static final String TEXT_TYPE = "text";
+
+    /**
+     *  Text index option giving the SQLite FTS4 tokenizer to use, with any arguments.
+     *
+     *  @see #ensureIndexed(List, String, String, Map)
+     */
+    public static final String TOKENIZE_OPTION = "tokenize";
+
+    /**
+     *  The default for {@link #TOKENIZE_OPTION}.
+     */
+    public static final String DEFAULT_TOKENIZER = "simple";
 
     private static final Logger logger = Logger.getLogger(IndexManager.class.getName());
 
@@ -85,6 +141,12 @@ public class IndexManager {
     private final Pattern validFieldName;
     private final ExecutorService queue;
 
+    // Computes index rows from document bodies, so they're only written on the queue
+    private final ExecutorService indexingExecutor;
+
+    // Only accessed on the queue
+    private final Map<String, IndexStatistics> statistics;
+
     /**
      *  Constructs a new IndexManager which indexes documents in 'datastore'
      */
@@ -92,6 +154,13 @@ public class IndexManager {
         this.datastore = datastore;
         validFieldName = Pattern.compile(INDEX_FIELD_NAME_PATTERN);
         queue = Executors.newSingleThreadExecutor();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor indexingPool = new ThreadPoolExecutor(threads, threads, 1,
+                TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+        // don't hold threads while the indexes aren't being updated
+        indexingPool.allowCoreThreadTimeOut(true);
+        indexingExecutor = indexingPool;
+        statistics = new HashMap<String, IndexStatistics>();
 
         final String filename = datastore.extensionDataFolder(EXTENSION_NAME) + File.separator
                                                                         + "indexes.sqlite";
@@ -106,7 +175,10 @@ public class IndexManager {
                             + "        index_type TEXT NOT NULL, "
                             + "        field_name TEXT NOT NULL, "
                             + "        last_sequence INTEGER NOT NULL);" };
-                    SQLDatabaseFactory.updateSchema(db, schemaIndex, VERSION);
+                    SQLDatabaseFactory.updateSchema(db, schemaIndex, 1);
+                    String[] schemaIndexSettings = { "ALTER TABLE " + INDEX_METADATA_TABLE_NAME
+                            + " ADD COLUMN index_settings TEXT NULL;" };
+                    SQLDatabaseFactory.updateSchema(db, schemaIndexSettings, VERSION);
                     return db;
                 }
             }).get();
@@ -134,6 +206,7 @@ public class IndexManager {
             logger.log(Level.SEVERE, "Failed to close db", e);
         }
         queue.shutdown();
+        indexingExecutor.shutdown();
     }
 
     /**
@@ -146,6 +219,9 @@ public class IndexManager {
      *                 fields: [field1, field2]
      *  }
      *
+     *  Partial indexes also have a "selector", and indexes created with a
+     *  "max_rows_per_document" option have that too.
+     *
      *  @return Map of indexes in the database.
      */
     public Map<String, Object> listIndexes() {
@@ -168,8 +244,8 @@ public class IndexManager {
 
     protected static Map<String, Object> listIndexesInDatabase(SQLDatabase db) {
         // Accumulate indexes and definitions into a map
-        String sql = String.format("SELECT index_name, index_type, field_name FROM %s",
-                                   INDEX_METADATA_TABLE_NAME);
+        String sql = String.format("SELECT index_name, index_type, field_name, index_settings "
+                                   + "FROM %s", INDEX_METADATA_TABLE_NAME);
         Map<String, Object> indexes = null;
         Map<String, Object> index;
         List<String> fields = null;
@@ -187,6 +263,10 @@ public class IndexManager {
                     index.put("type", rowType);
                     index.put("name", rowIndex);
                     index.put("fields", fields);
+                    String rowSettings = cursor.getString(3);
+                    if (rowSettings != null) {
+                        index.putAll(JSONUtils.deserialize(rowSettings.getBytes("UTF-8")));
+                    }
                     indexes.put(rowIndex, index);
                 }
                 if (fields != null) {
@@ -195,6 +275,8 @@ public class IndexManager {
             }
         } catch (SQLException e) {
             logger.log(Level.SEVERE, "Failed to get a list of indexes in the database.", e);
+        } catch (UnsupportedEncodingException e) {
+            logger.log(Level.SEVERE, "Failed to get a list of indexes in the database.", e);
         } finally {
             DatabaseUtils.closeCursorQuietly(cursor);
         }
@@ -236,10 +318,48 @@ public class IndexManager {
      *
      *  @param fieldNames List of field names in the sort format
      *  @param indexName Name of index to create
-     *  @param indexType "json" is the only supported type for now
+     *  @param indexType "json" or "text"
      *  @return name of created index
      */
     public String ensureIndexed(List<Object> fieldNames, String indexName, String indexType) {
+        return ensureIndexed(fieldNames, indexName, indexType, null);
+    }
+
+    /**
+     *  Add a single, possibly compound, index for the given field names, with options.
+     *
+     *  The options are:
+     *
+     *  - "selector": a selector, in the same form as a query. Only documents matching it
+     *    are indexed, making a partial index. The selector must be a set of conditions on
+     *    fields which all have to hold, such as { "type": "order" }. A partial index is
+     *    only used for a query which includes each of the selector's conditions, as
+     *    otherwise documents which match the query could be missing from the index.
+     *  - "max_rows_per_document": documents with more than one array field among the
+     *    indexed fields have a row in the index for each combination of the arrays'
+     *    values. Documents which would have more rows than this aren't indexed. The
+     *    default is {@link #DEFAULT_MAX_ROWS_PER_DOCUMENT}.
+     *
+     *  A "text" index holds the words in the fields' values, for queries using the $text
+     *  operator, and there can only be one. Its only option is:
+     *
+     *  - "tokenize": the SQLite FTS4 tokenizer used to split the values into words, such
+     *    as "porter" to match words with the same stem. The default is
+     *    {@link #DEFAULT_TOKENIZER}.
+     *
+     *  An index with the same name, fields and options is updated rather than created
+     *  again.
+     *
+     *  @param fieldNames List of field names in the sort format
+     *  @param indexName Name of index to create
+     *  @param indexType "json" or "text"
+     *  @param options Map of options, or null for none
+     *  @return name of created index
+     */
+    public String ensureIndexed(List<Object> fieldNames,
+                                String indexName,
+                                String indexType,
+                                Map<String, Object> options) {
         if (fieldNames == null || fieldNames.isEmpty()) {
             return null;
         }
@@ -248,16 +368,19 @@ public class IndexManager {
             return null;
         }
 
-        if (indexType == null || !indexType.equalsIgnoreCase("json")) {
+        if (indexType == null ||
+            !(indexType.equalsIgnoreCase("json") || indexType.equalsIgnoreCase(TEXT_TYPE))) {
             return null;
         }
 
         return IndexCreator.ensureIndexed(fieldNames,
                                           indexName,
                                           indexType,
+                                          options,
                                           database,
                                           datastore,
-                                          queue);
+                                          queue,
+                                          indexingExecutor);
     }
 
     /**
@@ -284,6 +407,11 @@ public class IndexManager {
                     String sql = String.format("DROP TABLE \"%s\"", tableName);
                     database.execSQL(sql);
 
+                    // and the docid table, if it's a text index
+                    sql = String.format("DROP TABLE IF EXISTS \"%s\"",
+                                        docIdTableNameForTextIndex(indexName));
+                    database.execSQL(sql);
+
                     // Delete the metadata entries
                     String where = " index_name = ? ";
                     database.delete(INDEX_METADATA_TABLE_NAME, where, new String[]{ indexName });
@@ -324,7 +452,11 @@ public class IndexManager {
     public boolean updateAllIndexes() {
         Map<String, Object> indexes = listIndexes();
 
-        return IndexUpdater.updateAllIndexes(indexes, database, datastore, queue);
+        return IndexUpdater.updateAllIndexes(indexes,
+                                             database,
+                                             datastore,
+                                             queue,
+                                             indexingExecutor);
     }
 
     public QueryResult find(Map<String, Object> query) {
@@ -345,16 +477,203 @@ public class IndexManager {
             return null;
         }
 
-        QueryExecutor queryExecutor = new QueryExecutor(database, datastore, queue);
         Map<String, Object> indexes = listIndexes();
+        QueryExecutor queryExecutor = new QueryExecutor(database,
+                                                        datastore,
+                                                        queue,
+                                                        statisticsForIndexes(indexes, false));
 
         return queryExecutor.find(query, indexes, skip, limit, fields, sortDocument);
     }
 
+    /**
+     *  Count the documents matching a query without loading the matching documents.
+     *
+     *  Where indexes fully cover the query the count is carried out using the indexes
+     *  alone. Documents are only loaded from the datastore for parts of the query
+     *  which are not covered by an index.
+     *
+     *  @param query the selector to count matches of
+     *  @return the number of documents matching the query, or -1 if the query could not
+     *          be executed
+     */
+    public int count(Map<String, Object> query) {
+        if (query == null) {
+            logger.log(Level.SEVERE, "-count called with null selector; bailing.");
+            return -1;
+        }
+
+        if (!updateAllIndexes()) {
+            return -1;
+        }
+
+        Map<String, Object> indexes = listIndexes();
+        QueryExecutor queryExecutor = new QueryExecutor(database,
+                                                        datastore,
+                                                        queue,
+                                                        statisticsForIndexes(indexes, false));
+
+        return queryExecutor.count(query, indexes);
+    }
+
+    /**
+     *  Explain how a query would be executed, without executing it.
+     *
+     *  @param query the selector to explain
+     *  @return the query plan, or null if the query is invalid
+     *  @see #explain(Map, long, long, List, List, boolean)
+     */
+    public Map<String, Object> explain(Map<String, Object> query) {
+        return explain(query, 0, 0, null, null, false);
+    }
+
+    /**
+     *  Explain how a query would be executed, optionally profiling its execution.
+     *
+     *  The plan shows the selector after normalisation, the tree of SQL statements
+     *  used to find candidate documents along with the index each one uses, whether
+     *  the indexes cover the query or candidate documents must be loaded and matched,
+     *  and the index used for sorting.
+     *
+     *  When {@code profile} is true the query is executed, and the plan also contains
+     *  the number of document ids each part of the tree produced, how many documents
+     *  matched, were skipped and returned, how many documents were loaded to read the
+     *  results, and how long each step took.
+     *
+     *  @param query the selector to explain
+     *  @param skip how many results to skip
+     *  @param limit number of documents the result should be limited to
+     *  @param fields fields to project from the result documents
+     *  @param sortDocument document specifying the order of results, null for no sorting
+     *  @param profile whether to execute the query, recording counts and timings
+     *  @return the query plan, or null if the query is invalid or couldn't be executed
+     */
+    public Map<String, Object> explain(Map<String, Object> query,
+                                       long skip,
+                                       long limit,
+                                       List<String> fields,
+                                       List<Map<String, String>> sortDocument,
+                                       boolean profile) {
+        if (query == null) {
+            logger.log(Level.SEVERE, "-explain called with null selector; bailing.");
+            return null;
+        }
+
+        if (!updateAllIndexes()) {
+            return null;
+        }
+
+        Map<String, Object> indexes = listIndexes();
+        QueryExecutor queryExecutor = new QueryExecutor(database,
+                                                        datastore,
+                                                        queue,
+                                                        statisticsForIndexes(indexes, false));
+
+        return queryExecutor.explain(query, indexes, skip, limit, fields, sortDocument, profile);
+    }
+
+    /**
+     *  Gather statistics for all indexes, used to choose between indexes when more than
+     *  one could be used for part of a query.
+     *
+     *  Statistics are gathered automatically when indexes are first used and after they
+     *  have changed significantly, so calling this is only needed to pick up smaller
+     *  changes straight away. SQLite's own statistics are also refreshed.
+     *
+     *  @return true if statistics were gathered for every index
+     */
+    public boolean analyze() {
+        if (!updateAllIndexes()) {
+            return false;
+        }
+
+        Map<String, Object> indexes = listIndexes();
+        Map<String, IndexStatistics> gathered = statisticsForIndexes(indexes, true);
+        if (gathered == null || !gathered.keySet().containsAll(indexes.keySet())) {
+            return false;
+        }
+
+        Future<Boolean> result = queue.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    database.execSQL("ANALYZE");
+                    return true;
+                } catch (SQLException e) {
+                    logger.log(Level.SEVERE, "Failed to analyze index database.", e);
+                    return false;
+                }
+            }
+        });
+
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Execution error during analyze:", e);
+            return false;
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Execution interrupted error during analyze:", e);
+            return false;
+        }
+    }
+
+    /**
+     *  Returns statistics for the indexes passed, gathering them again where they are
+     *  missing, stale or 'refresh' is true.
+     *
+     *  @return statistics for the indexes they could be gathered for, or null on error
+     */
+    private Map<String, IndexStatistics> statisticsForIndexes(final Map<String, Object> indexes,
+                                                              final boolean refresh) {
+        Future<Map<String, IndexStatistics>> result;
+        result = queue.submit(new Callable<Map<String, IndexStatistics>>() {
+            @Override
+            public Map<String, IndexStatistics> call() {
+                Map<String, Long> sequences = IndexStatistics.lastSequencesForIndexes(database);
+
+                // Forget statistics for indexes which have been deleted
+                statistics.keySet().retainAll(indexes.keySet());
+
+                for (String indexName : indexes.keySet()) {
+                    Long lastSequence = sequences.get(indexName);
+                    if (lastSequence == null) {
+                        continue;
+                    }
+                    IndexStatistics current = statistics.get(indexName);
+                    if (refresh || current == null || current.isStale(lastSequence)) {
+                        current = IndexStatistics.gatherForIndex(indexName,
+                                                                 lastSequence,
+                                                                 database);
+                        if (current == null) {
+                            statistics.remove(indexName);
+                        } else {
+                            statistics.put(indexName, current);
+                        }
+                    }
+                }
+
+                return new HashMap<String, IndexStatistics>(statistics);
+            }
+        });
+
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Execution error gathering index statistics:", e);
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Execution interrupted error gathering index statistics:", e);
+        }
+        return null;
+    }
+
     protected static String tableNameForIndex(String indexName) {
         return INDEX_TABLE_PREFIX.concat(indexName);
     }
 
+    protected static String docIdTableNameForTextIndex(String indexName) {
+        return tableNameForIndex(indexName).concat("_docids");
+    }
+
     protected Datastore getDatastore() {
         return datastore;
     }
@@ -0,0 +1,141 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.util.DatabaseUtils;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *  Statistics about an index table, used to choose between indexes when more than
+ *  one can satisfy part of a query.
+ *
+ *  Statistics are gathered by counting the rows of the index table. They are
+ *  refreshed when the index has moved on by more than a fraction of its size since
+ *  they were gathered, or when {@link IndexManager#analyze()} is called.
+ */
+class IndexStatistics {
+
+    private static final Logger logger = Logger.getLogger(IndexStatistics.class.getName());
+
+    /**
+     *  Fraction of an index's rows which must have changed before its statistics are
+     *  gathered again.
+     */
+    private static final double STALE_FRACTION = 0.1;
+
+    /**
+     *  Number of changes below which statistics are never considered stale, so small
+     *  indexes aren't counted on every query.
+     */
+    private static final long STALE_MINIMUM_CHANGES = 100;
+
+    private final long rowCount;
+    private final long lastSequence;
+
+    IndexStatistics(long rowCount, long lastSequence) {
+        this.rowCount = rowCount;
+        this.lastSequence = lastSequence;
+    }
+
+    /**
+     *  Returns the number of rows in the index table. This is at least the number of
+     *  documents in the index, and more if documents have array values indexed.
+     */
+    long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     *  Returns the index's last sequence when these statistics were gathered.
+     */
+    long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     *  Returns whether these statistics should be gathered again for an index which
+     *  has been updated to {@code currentSequence}.
+     */
+    boolean isStale(long currentSequence) {
+        if (currentSequence < lastSequence) {
+            // The index has been deleted and created again
+            return true;
+        }
+        long changes = currentSequence - lastSequence;
+        return changes > Math.max(STALE_MINIMUM_CHANGES, (long) (rowCount * STALE_FRACTION));
+    }
+
+    /**
+     *  Gathers statistics for an index.
+     *
+     *  Must be called on the index manager's queue.
+     *
+     *  @return the statistics, or null if they couldn't be gathered
+     */
+    static IndexStatistics gatherForIndex(String indexName, long lastSequence, SQLDatabase db) {
+        String sql = String.format("SELECT COUNT(*) FROM %s",
+                                   IndexManager.tableNameForIndex(indexName));
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, new String[]{});
+            if (cursor.moveToFirst()) {
+                return new IndexStatistics(cursor.getLong(0), lastSequence);
+            }
+        } catch (SQLException e) {
+            String msg = String.format("Failed to gather statistics for index %s", indexName);
+            logger.log(Level.SEVERE, msg, e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+        return null;
+    }
+
+    /**
+     *  Returns the last sequence of each index in the database.
+     *
+     *  Must be called on the index manager's queue.
+     */
+    static Map<String, Long> lastSequencesForIndexes(SQLDatabase db) {
+        String sql = String.format("SELECT index_name, MAX(last_sequence) FROM %s " +
+                                   "GROUP BY index_name",
+                                   IndexManager.INDEX_METADATA_TABLE_NAME);
+        Map<String, Long> sequences = new HashMap<String, Long>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, new String[]{});
+            while (cursor.moveToNext()) {
+                sequences.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Failed to get last sequences for indexes.", e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+        return sequences;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("IndexStatistics{rowCount=%d, lastSequence=%d}",
+                             rowCount,
+                             lastSequence);
+    }
+
+}
@@ -19,9 +19,13 @@ import com.cloudant.sync.sqlite.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.JSONUtils;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
@@ -41,6 +45,14 @@ class IndexUpdater {
 
     private final ExecutorService queue;
 
+    private final ExecutorService indexingExecutor;
+
+    /**
+     *  The smallest number of revisions worth handing to another thread to compute their
+     *  index rows.
+     */
+    private static final int MIN_REVISIONS_PER_TASK = 100;
+
     private static final Logger logger = Logger.getLogger(IndexUpdater.class.getName());
 
     /**
@@ -48,9 +60,23 @@ class IndexUpdater {
      *  'datastore'.
      */
     public IndexUpdater(SQLDatabase database, Datastore datastore, ExecutorService queue) {
+        this(database, datastore, queue, null);
+    }
+
+    /**
+     *  Constructs a new IndexUpdater which computes the index rows for documents on
+     *  'indexingExecutor', and writes them to 'database' on 'queue'.
+     *
+     *  If 'indexingExecutor' is null, the rows are computed on the calling thread.
+     */
+    public IndexUpdater(SQLDatabase database,
+                        Datastore datastore,
+                        ExecutorService queue,
+                        ExecutorService indexingExecutor) {
         this.datastore = datastore;
         this.database = database;
         this.queue = queue;
+        this.indexingExecutor = indexingExecutor;
     }
 
     /**
@@ -68,7 +94,20 @@ class IndexUpdater {
                                            SQLDatabase database,
                                            Datastore datastore,
                                            ExecutorService queue) {
-        IndexUpdater updater = new IndexUpdater(database, datastore, queue);
+        return updateAllIndexes(indexes, database, datastore, queue, null);
+    }
+
+    /**
+     *  Update all indexes in a set, computing the index rows on 'indexingExecutor'.
+     *
+     *  @see #updateAllIndexes(Map, SQLDatabase, Datastore, ExecutorService)
+     */
+    public static boolean updateAllIndexes(Map<String, Object> indexes,
+                                           SQLDatabase database,
+                                           Datastore datastore,
+                                           ExecutorService queue,
+                                           ExecutorService indexingExecutor) {
+        IndexUpdater updater = new IndexUpdater(database, datastore, queue, indexingExecutor);
 
         return updater.updateAllIndexes(indexes);
     }
@@ -90,7 +129,21 @@ class IndexUpdater {
                                       SQLDatabase database,
                                       Datastore datastore,
                                       ExecutorService queue) {
-        IndexUpdater updater = new IndexUpdater(database, datastore, queue);
+        return updateIndex(indexName, fieldNames, database, datastore, queue, null);
+    }
+
+    /**
+     *  Update a single index, computing the index rows on 'indexingExecutor'.
+     *
+     *  @see #updateIndex(String, List, SQLDatabase, Datastore, ExecutorService)
+     */
+    public static boolean updateIndex(String indexName,
+                                      List<String> fieldNames,
+                                      SQLDatabase database,
+                                      Datastore datastore,
+                                      ExecutorService queue,
+                                      ExecutorService indexingExecutor) {
+        IndexUpdater updater = new IndexUpdater(database, datastore, queue, indexingExecutor);
 
         return updater.updateIndex(indexName, fieldNames);
     }
@@ -111,14 +164,44 @@ class IndexUpdater {
         return success;
     }
 
+    @SuppressWarnings("unchecked")
     private boolean updateIndex(String indexName, List<String> fieldNames) {
         boolean success;
         Changes changes;
         long lastSequence = sequenceNumberForIndex(indexName);
 
+        Map<String, Object> settings = settingsForIndex(indexName);
+        if (settings == null) {
+            logger.log(Level.SEVERE, String.format("Problem updating index %s", indexName));
+            return false;
+        }
+        UnindexedMatcher matcher = null;
+        Map<String, Object> selector = (Map<String, Object>) settings.get(IndexManager
+                                                                          .SELECTOR_OPTION);
+        if (selector != null) {
+            matcher = UnindexedMatcher.matcherWithSelector(selector);
+            if (matcher == null) {
+                String msg = String.format("Invalid partial index selector for index %s",
+                                           indexName);
+                logger.log(Level.SEVERE, msg);
+                return false;
+            }
+        }
+        int maxRows = IndexManager.DEFAULT_MAX_ROWS_PER_DOCUMENT;
+        Object maxRowsSetting = settings.get(IndexManager.MAX_ROWS_PER_DOCUMENT_OPTION);
+        if (maxRowsSetting instanceof Number) {
+            maxRows = ((Number) maxRowsSetting).intValue();
+        }
+        boolean textIndex = IndexManager.TEXT_TYPE.equalsIgnoreCase((String) settings.get("type"));
+        IndexSettings indexSettings = new IndexSettings(indexName,
+                                                        fieldNames,
+                                                        matcher,
+                                                        maxRows,
+                                                        textIndex);
+
         do {
             changes = datastore.changes(lastSequence, 10000);
-            success = updateIndex(indexName, fieldNames, changes, lastSequence);
+            success = updateIndex(indexSettings, changes, lastSequence);
             lastSequence = changes.getLastSequence();
         } while (success && changes.size() > 0);
 
@@ -130,31 +213,53 @@ class IndexUpdater {
         return success;
     }
 
-    private boolean updateIndex(final String indexName,
-                                final List<String> fieldNames,
+    private boolean updateIndex(final IndexSettings indexSettings,
                                 final Changes changes,
                                 long lastSequence) {
+        final String indexName = indexSettings.indexName;
         if (indexName == null || indexName.isEmpty()) {
             return false;
         }
 
+        // Parse the bodies and compute the rows before going to the database queue, so
+        // the queue is only busy while the rows are written.
+        final List<List<DBParameter>> revisionParameters;
+        try {
+            revisionParameters = parametersToIndexRevisions(changes.getResults(),
+                                                            indexSettings);
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Execution error encountered:", e);
+            return false;
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Execution interrupted error encountered:", e);
+            return false;
+        }
+
         Future<Boolean> result = queue.submit( new Callable<Boolean>() {
             @Override
             public Boolean call() {
                 boolean transactionSuccess = true;
                 database.beginTransaction();
+                int i = 0;
                 for (BasicDocumentRevision rev: changes.getResults()) {
+                    List<DBParameter> parameters = revisionParameters.get(i++);
+
                     // Delete existing values
                     String tableName = IndexManager.tableNameForIndex(indexName);
-                    database.delete(tableName, " _id = ? ", new String[]{rev.getId()});
+                    if (indexSettings.textIndex) {
+                        transactionSuccess = deleteTextIndexRows(indexName, rev.getId());
+                        if (!transactionSuccess) {
+                            break;
+                        }
+                    } else {
+                        database.delete(tableName, " _id = ? ", new String[]{rev.getId()});
+                    }
 
                     // Insert new values if the rev isn't deleted
                     if (!rev.isDeleted()) {
-                        // If we are indexing a document where one field is an array, we
-                        // have multiple rows to insert into the index.
-                        List<DBParameter> parameters = parametersToIndexRevision(rev,
-                                                                                 indexName,
-                                                                                 fieldNames);
+                        // If we are indexing a document where fields are arrays, we
+                        // have multiple rows to insert into the index. There are none if
+                        // the document can't be indexed or a partial index excludes it.
                         if (parameters == null) {
                             continue;
                         }
@@ -164,6 +269,16 @@ class IndexUpdater {
                                                              parameter.contentValues);
                                 if (rowId < 0) {
                                     transactionSuccess = false;
+                                } else if (indexSettings.textIndex) {
+                                    // Record the FTS docid so the row can be found again
+                                    ContentValues docId = new ContentValues();
+                                    docId.put("docid", rowId);
+                                    docId.put("_id", rev.getId());
+                                    String docIdTable =
+                                            IndexManager.docIdTableNameForTextIndex(indexName);
+                                    if (database.insert(docIdTable, docId) < 0) {
+                                        transactionSuccess = false;
+                                    }
                                 }
                             }
                             if (!transactionSuccess) {
@@ -205,17 +320,90 @@ class IndexUpdater {
         return success;
     }
 
+    /**
+     *  Returns the DBParameters to index each of 'revs', in the same order, with null for
+     *  revisions which are deleted, can't be indexed or don't match a partial index's
+     *  selector.
+     *
+     *  If there is an indexing executor, the revisions are split into chunks which are
+     *  parsed and have their rows computed on the executor's threads.
+     */
+    private List<List<DBParameter>> parametersToIndexRevisions(List<BasicDocumentRevision> revs,
+                                                               final IndexSettings settings)
+            throws ExecutionException, InterruptedException {
+        List<List<DBParameter>> parameters = new ArrayList<List<DBParameter>>(revs.size());
+        if (indexingExecutor == null || revs.size() < 2 * MIN_REVISIONS_PER_TASK) {
+            for (BasicDocumentRevision rev: revs) {
+                parameters.add(parametersToIndexRevision(rev, settings));
+            }
+            return parameters;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkSize = Math.max(MIN_REVISIONS_PER_TASK, (revs.size() + threads - 1) / threads);
+        List<Future<List<List<DBParameter>>>> futures =
+                new ArrayList<Future<List<List<DBParameter>>>>();
+        for (final List<BasicDocumentRevision> chunk: Lists.partition(revs, chunkSize)) {
+            futures.add(indexingExecutor.submit(new Callable<List<List<DBParameter>>>() {
+                @Override
+                public List<List<DBParameter>> call() {
+                    List<List<DBParameter>> chunkParameters =
+                            new ArrayList<List<DBParameter>>(chunk.size());
+                    for (BasicDocumentRevision rev: chunk) {
+                        chunkParameters.add(parametersToIndexRevision(rev, settings));
+                    }
+                    return chunkParameters;
+                }
+            }));
+        }
+        try {
+            for (Future<List<List<DBParameter>>> future: futures) {
+                parameters.addAll(future.get());
+            }
+        } finally {
+            // only has an effect if a chunk failed or we were interrupted
+            for (Future<List<List<DBParameter>>> future: futures) {
+                future.cancel(true);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     *  Returns the DBParameters to index 'rev', or null if it is deleted, can't be indexed
+     *  or doesn't match the index's selector.
+     */
+    private List<DBParameter> parametersToIndexRevision(BasicDocumentRevision rev,
+                                                        IndexSettings settings) {
+        if (rev == null || rev.isDeleted()) {
+            return null;
+        }
+        if (settings.matcher != null && !settings.matcher.matches(rev)) {
+            return null;
+        }
+        if (settings.textIndex) {
+            return textParametersToIndexRevision(rev, settings.indexName, settings.fieldNames);
+        }
+        return parametersToIndexRevision(rev,
+                                         settings.indexName,
+                                         settings.fieldNames,
+                                         settings.maxRowsPerDocument);
+    }
+
     /**
      *  Returns a List of DBParameters containing table name and ContentValues to index
      *  a document in an index.
      *
-     *  For most revisions, a single entry will be returned. If a field
-     *  is an array, however, multiple entries are required.
+     *  For most revisions, a single entry will be returned. If fields are arrays,
+     *  however, there is an entry for each combination of their values. Documents
+     *  which would need more than 'maxRows' entries for their combinations of array
+     *  values are not indexed.
      */
     @SuppressWarnings("unchecked")
     private List<DBParameter> parametersToIndexRevision (BasicDocumentRevision rev,
                                                          String indexName,
-                                                         List<String> fieldNames) {
+                                                         List<String> fieldNames,
+                                                         int maxRows) {
         if (rev == null) {
             return null;
         }
@@ -228,37 +416,44 @@ class IndexUpdater {
             return null;
         }
 
-        int arrayCount = 0;
-        String arrayFieldName = null; // only record the last, as error if more than one
+        List<String> arrayFieldNames = new ArrayList<String>();
+        List<List<Object>> arrayFieldValues = new ArrayList<List<Object>>();
+        long combinations = 1;
         for (String fieldName: fieldNames) {
             Object value = ValueExtractor.extractValueForFieldName(fieldName, rev.getBody());
             if (value != null && value instanceof ArrayList) {
-                arrayCount = arrayCount + 1;
-                arrayFieldName = fieldName;
+                arrayFieldNames.add(fieldName);
+                arrayFieldValues.add((List<Object>) value);
+                // Stop multiplying once over the cap, so this can't overflow
+                combinations = Math.min(combinations * ((List<Object>) value).size(),
+                                        (long) maxRows + 1);
             }
         }
 
-        if (arrayCount > 1) {
-            String msg = String.format("Indexing %s in index %s includes >1 array field;",
+        if (arrayFieldNames.size() > 1 && combinations > maxRows) {
+            String msg = String.format("Not indexing %s in index %s: its array fields %s",
                                        rev.getId(),
-                                       indexName);
-            msg = String.format("%s only array field per index allowed", msg);
-            logger.log(Level.SEVERE, msg);
+                                       indexName,
+                                       arrayFieldNames);
+            msg = String.format("%s need more than %d rows", msg, maxRows);
+            logger.log(Level.WARNING, msg);
             return null;
         }
 
+        // _id and _rev are special fields in that they don't appear in the body, so they
+        // need special-casing to get the values. If there are no arrays in the values we
+        // are indexing there's a single row; otherwise there's a row for each combination
+        // of array values, and none if any of the arrays are empty.
         List<DBParameter> parameters = new ArrayList<DBParameter>();
-        if (arrayCount == 0) {
-            // The are no arrays in the values we are indexing. We just need to index the fields
-            // in the index. _id and _rev are special fields in that they don't appear in the
-            // body, so they need special-casing to get the values.
-
-            List<String> initialIncludedFields = new ArrayList<String>();
-            initialIncludedFields.add("_id");
-            initialIncludedFields.add("_rev");
+        List<String> initialIncludedFields = new ArrayList<String>();
+        initialIncludedFields.add("_id");
+        initialIncludedFields.add("_rev");
+        initialIncludedFields.addAll(arrayFieldNames);
+        for (List<Object> combination: combinations(arrayFieldValues)) {
             List<Object> initialArgs = new ArrayList<Object>();
             initialArgs.add(rev.getId());
             initialArgs.add(rev.getRevision());
+            initialArgs.addAll(combination);
             DBParameter parameter = populateDBParameter(fieldNames,
                                                         initialIncludedFields,
                                                         initialArgs,
@@ -268,36 +463,94 @@ class IndexUpdater {
                 return null;
             }
             parameters.add(parameter);
-        } else if (arrayFieldName != null) {
-            // We know the value is an array, we found this out in the check above
-            List<Object> arrayFieldValues;
-            arrayFieldValues = (ArrayList) ValueExtractor.extractValueForFieldName(arrayFieldName,
-                                                                                   rev.getBody());
-            for (Object value: arrayFieldValues) {
-                List<String> initialIncludedFields = new ArrayList<String>();
-                initialIncludedFields.add("_id");
-                initialIncludedFields.add("_rev");
-                initialIncludedFields.add(arrayFieldName);
-                List<Object> initialArgs = new ArrayList<Object>();
-                initialArgs.add(rev.getId());
-                initialArgs.add(rev.getRevision());
-                initialArgs.add(value);
-                DBParameter parameter;
-                parameter = populateDBParameter(fieldNames,
-                                                initialIncludedFields,
-                                                initialArgs,
-                                                indexName,
-                                                rev);
-                if (parameter == null) {
-                    return null;
+        }
+
+        return parameters;
+    }
+
+    /**
+     *  Returns every combination of one value from each of 'values', in order. With no
+     *  lists there is a single, empty, combination.
+     */
+    private static List<List<Object>> combinations(List<List<Object>> values) {
+        List<List<Object>> combinations = new ArrayList<List<Object>>();
+        combinations.add(new ArrayList<Object>());
+        for (List<Object> fieldValues: values) {
+            List<List<Object>> extended = new ArrayList<List<Object>>();
+            for (List<Object> combination: combinations) {
+                for (Object value: fieldValues) {
+                    List<Object> next = new ArrayList<Object>(combination);
+                    next.add(value);
+                    extended.add(next);
                 }
-                parameters.add(parameter);
             }
+            combinations = extended;
         }
+        return combinations;
+    }
 
+    /**
+     *  Returns the single DBParameter to index a document in a text index, or null if
+     *  it has no text to index. Each field's value is indexed as text; the values of an
+     *  array field are joined together, and sub-documents aren't indexed. The document
+     *  id is recorded in the docid table rather than the FTS table, so it isn't searched.
+     */
+    private List<DBParameter> textParametersToIndexRevision(BasicDocumentRevision rev,
+                                                            String indexName,
+                                                            List<String> fieldNames) {
+        ContentValues contentValues = new ContentValues();
+        for (String fieldName: fieldNames) {
+            if (fieldName.equals("_id") || fieldName.equals("_rev")) {
+                continue;
+            }
+            Object value = ValueExtractor.extractValueForFieldName(fieldName, rev.getBody());
+            String text = null;
+            if (value instanceof List) {
+                List<String> words = new ArrayList<String>();
+                for (Object element: (List) value) {
+                    if (element != null && !(element instanceof Map) &&
+                        !(element instanceof List)) {
+                        words.add(String.valueOf(element));
+                    }
+                }
+                text = words.isEmpty() ? null : Joiner.on(" ").join(words);
+            } else if (value != null && !(value instanceof Map)) {
+                text = String.valueOf(value);
+            }
+            if (text != null) {
+                contentValues.put(String.format("\"%s\"", fieldName), text);
+            }
+        }
+        if (contentValues.size() == 0) {
+            return null;
+        }
+
+        List<DBParameter> parameters = new ArrayList<DBParameter>();
+        parameters.add(new DBParameter(IndexManager.tableNameForIndex(indexName), contentValues));
         return parameters;
     }
 
+    /**
+     *  Deletes a document's rows from a text index, using the docid table rather than
+     *  scanning the FTS table for the document id. Must be called on the queue.
+     */
+    private boolean deleteTextIndexRows(String indexName, String docId) {
+        String docIdTable = IndexManager.docIdTableNameForTextIndex(indexName);
+        String sql = String.format("DELETE FROM %s WHERE docid IN (SELECT docid FROM %s "
+                                   + "WHERE _id = ?)",
+                                   IndexManager.tableNameForIndex(indexName),
+                                   docIdTable);
+        try {
+            database.execSQL(sql, new Object[]{ docId });
+        } catch (SQLException e) {
+            String msg = String.format("Updating index %s failed.", indexName);
+            logger.log(Level.SEVERE, msg, e);
+            return false;
+        }
+        database.delete(docIdTable, " _id = ? ", new String[]{ docId });
+        return true;
+    }
+
     private DBParameter populateDBParameter(List<String> fieldNames,
                                             List<String> initialIncludedFields,
                                             List<Object> initialArgs,
@@ -392,6 +645,48 @@ class IndexUpdater {
         return lastSequenceNumber;
     }
 
+    /**
+     *  Returns the type of an index, under "type", along with the settings it was
+     *  created with, or null if they couldn't be read.
+     */
+    private Map<String, Object> settingsForIndex(final String indexName) {
+        Future<Map<String, Object>> settings = queue.submit(new Callable<Map<String, Object>>() {
+            @Override
+            public Map<String, Object> call() throws Exception {
+                Map<String, Object> result = new HashMap<String, Object>();
+                String sql = String.format("SELECT index_type, index_settings FROM %s "
+                                           + "WHERE index_name = ?",
+                                           IndexManager.INDEX_METADATA_TABLE_NAME);
+                Cursor cursor = null;
+                try {
+                    cursor = database.rawQuery(sql, new String[]{ indexName });
+                    // All rows for a given index will have the same type and settings
+                    if (cursor.moveToFirst()) {
+                        if (cursor.getString(1) != null) {
+                            result = JSONUtils.deserialize(cursor.getString(1)
+                                                                 .getBytes("UTF-8"));
+                        }
+                        result.put("type", cursor.getString(0));
+                    }
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+                return result;
+            }
+        });
+
+        Map<String, Object> result = null;
+        try {
+            result = settings.get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Execution error encountered:", e);
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Execution interrupted error encountered:", e);
+        }
+
+        return result;
+    }
+
     private boolean updateMetadataForIndex(final String indexName, final long lastSequence) {
         Future<Boolean> result = queue.submit(new Callable<Boolean>() {
             @Override
@@ -424,6 +719,26 @@ class IndexUpdater {
         return success;
     }
 
+    private static class IndexSettings {
+        private final String indexName;
+        private final List<String> fieldNames;
+        private final UnindexedMatcher matcher;
+        private final int maxRowsPerDocument;
+        private final boolean textIndex;
+
+        public IndexSettings(String indexName,
+                             List<String> fieldNames,
+                             UnindexedMatcher matcher,
+                             int maxRowsPerDocument,
+                             boolean textIndex) {
+            this.indexName = indexName;
+            this.fieldNames = fieldNames;
+            this.matcher = matcher;
+            this.maxRowsPerDocument = maxRowsPerDocument;
+            this.textIndex = textIndex;
+        }
+    }
+
     private class DBParameter {
         private final String tableName;
         private final ContentValues contentValues;
@@ -13,15 +13,25 @@
 package com.cloudant.sync.query;
 
 import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DocumentRevision;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.util.DatabaseUtils;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Sets;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,6 +50,7 @@ class QueryExecutor {
     private final SQLDatabase database;
     private final Datastore datastore;
     private final ExecutorService queue;
+    private final Map<String, IndexStatistics> statistics;
 
     private static final Logger logger = Logger.getLogger(QueryExecutor.class.getName());
 
@@ -50,9 +61,21 @@ class QueryExecutor {
      *  'datastore'.
      */
     QueryExecutor(SQLDatabase database, Datastore datastore, ExecutorService queue) {
+        this(database, datastore, queue, null);
+    }
+
+    /**
+     *  Constructs a new QueryExecutor using the indexes in 'database' to find documents from
+     *  'datastore', with 'statistics' used to choose between indexes.
+     */
+    QueryExecutor(SQLDatabase database,
+                  Datastore datastore,
+                  ExecutorService queue,
+                  Map<String, IndexStatistics> statistics) {
         this.database = database;
         this.datastore = datastore;
         this.queue = queue;
+        this.statistics = statistics;
     }
 
     /**
@@ -66,7 +89,8 @@ class QueryExecutor {
      *  @param skip how many results to skip before returning results to caller
      *  @param limit number of documents the result should be limited to
      *  @param fields fields to project from the result documents
-     *  @param sortDocument document specifying the order to return results, null to have no sorting
+     *  @param sortDocument document specifying the order to return results, null to have no
+     *                     sorting, or to rank the results of a text search
      *  @return the query result
      */
     public QueryResult find(Map<String, Object> query,
@@ -102,21 +126,33 @@ class QueryExecutor {
         //
 
         Boolean[] indexesCoverQuery = new Boolean[]{ false };
-        final ChildrenQueryNode root = translateQuery(query, indexes, indexesCoverQuery);
+        final ChildrenQueryNode root = translateQuery(query,
+                                                      indexes,
+                                                      sortDocument,
+                                                      indexesCoverQuery);
 
         if (root == null) {
             return null;
         }
 
+        final String textSearch = QuerySqlTranslator.textSearchForQuery(query);
+        final SqlQueryNode orderingNode = sqlNodeOrderingResults(root, sortDocument, indexes);
+
         Future<List<String>> result = queue.submit(new Callable<List<String>>() {
             @Override
             public List<String> call() throws Exception {
+                if (orderingNode != null) {
+                    return executeQueryTreeInOrder(orderingNode, sortDocument, database, null);
+                }
+
                 Set<String> docIdSet = executeQueryTree(root, database);
                 List<String> docIdList;
 
                 // sorting
                 if (sortDocument != null && !sortDocument.isEmpty()) {
                     docIdList = sortIds(docIdSet, sortDocument, indexes, database);
+                } else if (textSearch != null && docIdSet != null) {
+                    docIdList = rankIds(docIdSet, textSearch, indexes, database);
                 } else {
                     docIdList = docIdSet != null ? new ArrayList<String>(docIdSet) : null;
                 }
@@ -152,11 +188,277 @@ class QueryExecutor {
         return new QueryResult(docIds, datastore, fields, skip, limit, matcher);
     }
 
+    /**
+     *  Count the documents matching the query passed using the selection of index
+     *  definitions provided.
+     *
+     *  When the indexes cover the query and it translates to a single SQL statement,
+     *  the count is carried out by SQLite using {@code COUNT(DISTINCT _id)}. Otherwise
+     *  the document ids are gathered from the query tree and, only where a part of the
+     *  query is not covered by an index, the candidate documents are loaded and matched.
+     *
+     *  @param query query to execute.
+     *  @param indexes indexes to use (this method will select the most appropriate).
+     *  @return the number of matching documents, or -1 if the query could not be executed
+     */
+    public int count(Map<String, Object> query, final Map<String, Object> indexes) {
+        query = QueryValidator.normaliseAndValidateQuery(query);
+
+        if (query == null) {
+            return -1;
+        }
+
+        Boolean[] indexesCoverQuery = new Boolean[]{ false };
+        final ChildrenQueryNode root = translateQuery(query, indexes, indexesCoverQuery);
+
+        if (root == null) {
+            return -1;
+        }
+
+        UnindexedMatcher matcher = matcherForIndexCoverage(indexesCoverQuery, query);
+
+        if (matcher == null && root.children.size() == 1 &&
+                root.children.get(0) instanceof SqlQueryNode) {
+            final SqlParts sqlParts = ((SqlQueryNode) root.children.get(0)).sql;
+            Future<Integer> result = queue.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return countDocumentIds(sqlParts, database);
+                }
+            });
+            try {
+                Integer count = result.get();
+                return count == null ? -1 : count;
+            } catch (ExecutionException e) {
+                logger.log(Level.SEVERE, "Execution error encountered:", e);
+                return -1;
+            } catch (InterruptedException e) {
+                logger.log(Level.SEVERE, "Execution interrupted error encountered:", e);
+                return -1;
+            }
+        }
+
+        Future<Set<String>> result = queue.submit(new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return executeQueryTree(root, database);
+            }
+        });
+
+        Set<String> docIds;
+        try {
+            docIds = result.get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Execution error encountered:", e);
+            return -1;
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Execution interrupted error encountered:", e);
+            return -1;
+        }
+
+        if (docIds == null) {
+            return -1;
+        }
+
+        if (matcher == null) {
+            return docIds.size();
+        }
+
+        return new QueryResult(new ArrayList<String>(docIds), datastore, null, 0, 0, matcher)
+                .size();
+    }
+
+    /**
+     *  Explain how the query passed would be executed using the selection of index
+     *  definitions provided, optionally executing it to profile each step.
+     *
+     *  The returned map has the following entries:
+     *
+     *  - selector: the normalised selector.
+     *  - indexes_cover_query: whether the indexes alone can satisfy the selector.
+     *  - post_hoc_matcher: whether candidate documents must be loaded and matched
+     *    against the selector.
+     *  - plan: the query tree; each node has a "type" of "and", "or" or "sql". "and"
+     *    and "or" nodes have "children"; "sql" nodes have the "index" used, the "sql"
+     *    and its "args".
+     *  - sort: when a sort document is passed, the sort "index" and "fields". Results of
+     *    a text search without a sort document are ranked, shown as the text "index" and
+     *    "rank" fields.
+     *  - skip and limit.
+     *
+     *  When profiling, each plan node also has the "rows" (document ids) it produced
+     *  and "time_ms" taken, and a "profile" entry is added with "candidate_ids",
+     *  "matched", "skipped" and "returned" counts, the "documents_loaded" from the
+     *  datastore while reading the results, and the "translate_ms",
+     *  "execute_ms", "sort_ms", "match_ms" and "total_ms" timings. The counts come
+     *  from a single pass over the results, so when a limit ends it early, "matched"
+     *  only counts the candidates read before it did.
+     *
+     *  @param query query to explain.
+     *  @param indexes indexes to use (this method will select the most appropriate).
+     *  @param skip how many results to skip before returning results to caller
+     *  @param limit number of documents the result should be limited to
+     *  @param fields fields to project from the result documents
+     *  @param sortDocument document specifying the order to return results, null to have no sorting
+     *  @param profile whether to execute the query, recording counts and timings
+     *  @return the query plan, or null if the query is invalid or couldn't be executed
+     */
+    public Map<String, Object> explain(Map<String, Object> query,
+                                       final Map<String, Object> indexes,
+                                       long skip,
+                                       long limit,
+                                       List<String> fields,
+                                       final List<Map<String, String>> sortDocument,
+                                       boolean profile) {
+        long start = System.nanoTime();
+
+        if (!validateSortDocument(sortDocument)) {
+            return null;  // validate logs the error if doc is invalid
+        }
+
+        fields = normaliseFields(fields);
+
+        if (!validateFields(fields)) {
+            return null;  // validate logs error message
+        }
+
+        query = QueryValidator.normaliseAndValidateQuery(query);
+
+        if (query == null) {
+            return null;
+        }
+
+        Boolean[] indexesCoverQuery = new Boolean[]{ false };
+        final ChildrenQueryNode root = translateQuery(query,
+                                                      indexes,
+                                                      sortDocument,
+                                                      indexesCoverQuery);
+
+        if (root == null) {
+            return null;
+        }
+
+        UnindexedMatcher matcher = matcherForIndexCoverage(indexesCoverQuery, query);
+        final SqlQueryNode orderingNode = sqlNodeOrderingResults(root, sortDocument, indexes);
+
+        Map<String, Object> explanation = new LinkedHashMap<String, Object>();
+        explanation.put("selector", query);
+        explanation.put("indexes_cover_query", indexesCoverQuery[0]);
+        explanation.put("post_hoc_matcher", matcher != null);
+        final Map<String, Object> plan = describeQueryTree(root);
+        explanation.put("plan", plan);
+        final String textSearch = QuerySqlTranslator.textSearchForQuery(query);
+        if (sortDocument != null && !sortDocument.isEmpty()) {
+            Map<String, Object> sort = new LinkedHashMap<String, Object>();
+            sort.put("index", orderingNode != null ? orderingNode.indexName :
+                              chooseIndexForSort(sortDocument, indexes, statistics));
+            sort.put("fields", sortDocument);
+            sort.put("in_query", orderingNode != null);
+            explanation.put("sort", sort);
+        } else if (textSearch != null) {
+            Map<String, Object> sort = new LinkedHashMap<String, Object>();
+            sort.put("index", QuerySqlTranslator.textIndexName(indexes));
+            sort.put("fields", "rank");
+            explanation.put("sort", sort);
+        }
+        explanation.put("skip", skip);
+        explanation.put("limit", limit);
+
+        if (!profile) {
+            return explanation;
+        }
+
+        final long translated = System.nanoTime();
+
+        // Execute the query tree, then sort, noting when each finished
+        final long[] executed = new long[1];
+        Future<List<String>> result = queue.submit(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                if (orderingNode != null) {
+                    List<String> docIds = executeQueryTreeInOrder(orderingNode,
+                                                                  sortDocument,
+                                                                  database,
+                                                                  plan);
+                    executed[0] = System.nanoTime();
+                    return docIds;
+                }
+
+                Set<String> docIdSet = executeQueryTree(root, database, plan);
+                executed[0] = System.nanoTime();
+                if (docIdSet != null && sortDocument != null && !sortDocument.isEmpty()) {
+                    return sortIds(docIdSet, sortDocument, indexes, database);
+                }
+                if (docIdSet != null && textSearch != null) {
+                    return rankIds(docIdSet, textSearch, indexes, database);
+                }
+                return docIdSet != null ? new ArrayList<String>(docIdSet) : null;
+            }
+        });
+
+        List<String> docIds;
+        try {
+            docIds = result.get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Execution error encountered:", e);
+            return null;
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Execution interrupted error encountered:", e);
+            return null;
+        }
+
+        if (docIds == null) {
+            return null;
+        }
+
+        long sorted = System.nanoTime();
+
+        // Read the results as find's caller would, counting the documents loaded,
+        // matched and skipped in the same pass
+        QueryResult results = new QueryResult(docIds, datastore, fields, skip, limit, matcher);
+        long returned = 0;
+        for (DocumentRevision ignored : results) {
+            returned++;
+        }
+
+        long finished = System.nanoTime();
+
+        Map<String, Object> profileResults = new LinkedHashMap<String, Object>();
+        profileResults.put("candidate_ids", docIds.size());
+        // without a matcher every candidate id returned by the indexes matches
+        profileResults.put("matched", matcher == null ? docIds.size()
+                                                      : results.documentsMatched());
+        profileResults.put("skipped", (long) results.documentsSkipped());
+        profileResults.put("returned", returned);
+        profileResults.put("documents_loaded", results.documentsLoaded());
+        profileResults.put("translate_ms", millisBetween(start, translated));
+        profileResults.put("execute_ms", millisBetween(translated, executed[0]));
+        profileResults.put("sort_ms", millisBetween(executed[0], sorted));
+        profileResults.put("match_ms", millisBetween(sorted, finished));
+        profileResults.put("total_ms", millisBetween(start, finished));
+        explanation.put("profile", profileResults);
+
+        return explanation;
+    }
+
+    protected ChildrenQueryNode translateQuery(Map<String, Object> query,
+                                               Map<String, Object> indexes,
+                                               Boolean[] indexesCoverQuery) {
+        return translateQuery(query, indexes, null, indexesCoverQuery);
+    }
+
+    /**
+     *  Translates a query whose results will be sorted using 'sortDocument', or not
+     *  sorted if it is null.
+     */
     protected ChildrenQueryNode translateQuery(Map<String, Object> query,
                                                Map<String, Object> indexes,
+                                               List<Map<String, String>> sortDocument,
                                                Boolean[] indexesCoverQuery) {
         return (ChildrenQueryNode) QuerySqlTranslator.translateQuery(query,
                                                                      indexes,
+                                                                     statistics,
+                                                                     sortFields(sortDocument),
                                                                      indexesCoverQuery);
     }
 
@@ -218,41 +520,45 @@ class QueryExecutor {
     }
 
     protected Set<String> executeQueryTree(QueryNode node, SQLDatabase db) {
-        if (node instanceof AndQueryNode) {
-            Set<String> accumulator = null;
-
-            AndQueryNode andNode = (AndQueryNode) node;
-            for (QueryNode qNode: andNode.children) {
-                Set<String> childIds = executeQueryTree(qNode, db);
-                if (childIds == null) {
-                    continue;
-                }
-                if (accumulator == null) {
-                    accumulator = new HashSet<String>(childIds);
-                } else {
-                    accumulator = Sets.intersection(accumulator, childIds);
-                }
-            }
+        return executeQueryTree(node, db, null);
+    }
 
-            return accumulator;
-        }
-        if (node instanceof OrQueryNode) {
+    /**
+     *  Executes a query tree, returning the ids of the documents it selects.
+     *
+     *  If a description of the tree from {@link #describeQueryTree(QueryNode)} is passed,
+     *  the number of document ids each node produces and the time taken are recorded
+     *  in it, for profiling.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<String> executeQueryTree(QueryNode node,
+                                         SQLDatabase db,
+                                         Map<String, Object> description) {
+        long start = System.nanoTime();
+        Set<String> result;
+        if (node instanceof ChildrenQueryNode) {
+            boolean and = node instanceof AndQueryNode;
+            List<QueryNode> children = ((ChildrenQueryNode) node).children;
+            List<Object> childDescriptions = description == null ? null :
+                    (List<Object>) description.get("children");
             Set<String> accumulator = null;
-
-            OrQueryNode orNode = (OrQueryNode) node;
-            for (QueryNode qNode: orNode.children) {
-                Set<String> childIds = executeQueryTree(qNode, db);
+            for (int i = 0; i < children.size(); i++) {
+                Map<String, Object> childDescription = childDescriptions == null ? null :
+                        (Map<String, Object>) childDescriptions.get(i);
+                Set<String> childIds = executeQueryTree(children.get(i), db, childDescription);
                 if (childIds == null) {
                     continue;
                 }
                 if (accumulator == null) {
                     accumulator = new HashSet<String>(childIds);
+                } else if (and) {
+                    accumulator = Sets.intersection(accumulator, childIds);
                 } else {
                     accumulator = Sets.union(accumulator, childIds);
                 }
             }
 
-            return accumulator;
+            result = accumulator;
         } else if (node instanceof SqlQueryNode) {
             SqlQueryNode sqlNode = (SqlQueryNode) node;
             SqlParts sqlParts = sqlNode.sql;
@@ -272,10 +578,135 @@ class QueryExecutor {
                 DatabaseUtils.closeCursorQuietly(cursor);
             }
 
-            return new HashSet<String>(docIds);
+            result = new HashSet<String>(docIds);
         } else {
+            result = null;
+        }
+
+        if (description != null) {
+            description.put("rows", result == null ? 0 : result.size());
+            description.put("time_ms", millisBetween(start, System.nanoTime()));
+        }
+        return result;
+    }
+
+    /**
+     *  Returns a description of a query tree for explaining a query plan.
+     */
+    private static Map<String, Object> describeQueryTree(QueryNode node) {
+        Map<String, Object> description = new LinkedHashMap<String, Object>();
+        if (node instanceof ChildrenQueryNode) {
+            description.put("type", node instanceof OrQueryNode ? "or" : "and");
+            List<Object> children = new ArrayList<Object>();
+            for (QueryNode child : ((ChildrenQueryNode) node).children) {
+                children.add(describeQueryTree(child));
+            }
+            description.put("children", children);
+        } else if (node instanceof SqlQueryNode) {
+            SqlQueryNode sqlNode = (SqlQueryNode) node;
+            description.put("type", "sql");
+            description.put("index", sqlNode.indexName);
+            description.put("sql", sqlNode.sql.sqlWithPlaceHolders);
+            description.put("args", Arrays.asList(sqlNode.sql.placeHolderValues));
+        }
+        return description;
+    }
+
+    /**
+     *  Returns the query tree's SQL statement if it is the only one in the tree and its
+     *  index contains the fields in 'sortDocument', so the statement can also order the
+     *  results. Returns null if the results must be sorted separately.
+     */
+    @SuppressWarnings("unchecked")
+    private static SqlQueryNode sqlNodeOrderingResults(ChildrenQueryNode root,
+                                                       List<Map<String, String>> sortDocument,
+                                                       Map<String, Object> indexes) {
+        Set<String> sortFields = sortFields(sortDocument);
+        if (sortFields == null || root.children.size() != 1 ||
+                !(root.children.get(0) instanceof SqlQueryNode)) {
+            return null;
+        }
+
+        SqlQueryNode sqlNode = (SqlQueryNode) root.children.get(0);
+        Map<String, Object> indexDefinition = (Map<String, Object>) indexes.get(sqlNode.indexName);
+        if (indexDefinition == null ||
+                IndexManager.TEXT_TYPE.equalsIgnoreCase((String) indexDefinition.get("type"))) {
+            return null;
+        }
+        List<String> fields = (List<String>) indexDefinition.get("fields");
+        return fields.containsAll(sortFields) ? sqlNode : null;
+    }
+
+    /**
+     *  Executes a query tree's only SQL statement, ordering the document ids it selects
+     *  using 'sortDocument' in the same statement rather than in a separate pass. A
+     *  document with several rows in the index, because it has array values, is placed
+     *  by its first row. Documents which sort equally are ordered by ID, as they are when
+     *  sorting separately.
+     *
+     *  If the tree's description is passed, the rows produced and time taken are recorded
+     *  in it as in {@link #executeQueryTree(QueryNode, SQLDatabase, Map)}.
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> executeQueryTreeInOrder(SqlQueryNode sqlNode,
+                                                 List<Map<String, String>> sortDocument,
+                                                 SQLDatabase db,
+                                                 Map<String, Object> description) {
+        long start = System.nanoTime();
+        String sql = String.format("%s ORDER BY %s, _id",
+                                   sqlNode.sql.sqlWithPlaceHolders,
+                                   orderByForSortDocument(sortDocument));
+
+        Set<String> docIds = new LinkedHashSet<String>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, sqlNode.sql.placeHolderValues);
+            while (cursor.moveToNext()) {
+                docIds.add(cursor.getString(0));
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Failed to get an ordered list of doc ids.", e);
             return null;
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+
+        if (description != null) {
+            double millis = millisBetween(start, System.nanoTime());
+            Map<String, Object> childDescription =
+                    (Map<String, Object>) ((List<Object>) description.get("children")).get(0);
+            for (Map<String, Object> nodeDescription : Arrays.asList(description,
+                                                                      childDescription)) {
+                nodeDescription.put("rows", docIds.size());
+                nodeDescription.put("time_ms", millis);
+            }
+        }
+        return new ArrayList<String>(docIds);
+    }
+
+    private static double millisBetween(long startNanos, long endNanos) {
+        return (endNanos - startNanos) / 1000000.0;
+    }
+
+    /**
+     *  Returns the number of distinct document ids selected by the SQL passed, without
+     *  reading the ids themselves back from the database.
+     */
+    private static Integer countDocumentIds(SqlParts sqlParts, SQLDatabase db) {
+        String sql = String.format("SELECT COUNT(DISTINCT _id) FROM (%s)",
+                                   sqlParts.sqlWithPlaceHolders);
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, sqlParts.placeHolderValues);
+            if (cursor.moveToFirst()) {
+                return cursor.getInt(0);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Failed to count doc ids.", e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
         }
+        return null;
     }
 
     /**
@@ -295,7 +726,7 @@ class QueryExecutor {
                                  Map<String, Object> indexes,
                                  SQLDatabase db) {
         boolean smallResultSet = (docIdSet.size() < SMALL_RESULT_SET_SIZE_THRESHOLD);
-        SqlParts orderBy = sqlToSortIds(docIdSet, sortDocument, indexes);
+        SqlParts orderBy = sqlToSortIds(docIdSet, sortDocument, indexes, statistics);
         List<String> sortedIds = null;
         if (orderBy != null) {
             // The query will iterate through a sorted list of docIds.
@@ -334,6 +765,81 @@ class QueryExecutor {
         return sortedIds;
     }
 
+    /**
+     *  Return the document IDs in 'docIdSet' ordered by how well they match a text search,
+     *  best first.
+     *
+     *  Each document is scored using the hits for each search phrase in each of its
+     *  indexed fields. A hit counts for more when fewer documents have the phrase:
+     *
+     *      score = sum of hits * log((rows + 1) / rows with hits)
+     *
+     *  Documents with the same score are ordered by ID.
+     *
+     *  @param docIdSet Set of current results, all of which the text search finds
+     *  @param search the terms searched for
+     *  @param indexes dictionary of indexes
+     *  @param db database containing the text index
+     *  @return the ranked list of document IDs, or null if they couldn't be ranked.
+     */
+    private List<String> rankIds(Set<String> docIdSet,
+                                 String search,
+                                 Map<String, Object> indexes,
+                                 SQLDatabase db) {
+        String textIndex = QuerySqlTranslator.textIndexName(indexes);
+        SqlParts ranked = QuerySqlTranslator.rankedSelectStatementForTextSearch(search,
+                                                                                textIndex);
+        final Map<String, Double> scores = new HashMap<String, Double>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(ranked.sqlWithPlaceHolders, ranked.placeHolderValues);
+            while (cursor.moveToNext()) {
+                String docId = cursor.getString(0);
+                if (docIdSet.contains(docId)) {
+                    scores.put(docId, scoreForMatchInfo(cursor.getBlob(1)));
+                }
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Failed to rank doc ids.", e);
+            return null;
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+
+        List<String> rankedIds = new ArrayList<String>(scores.keySet());
+        Collections.sort(rankedIds, new Comparator<String>() {
+            @Override
+            public int compare(String id1, String id2) {
+                int byScore = Double.compare(scores.get(id2), scores.get(id1));
+                return byScore != 0 ? byScore : id1.compareTo(id2);
+            }
+        });
+        return rankedIds;
+    }
+
+    /**
+     *  Score a document from its FTS matchinfo in the 'pcnx' format: 32-bit unsigned
+     *  integers in the machine's byte order.
+     */
+    private static double scoreForMatchInfo(byte[] matchInfo) {
+        IntBuffer ints = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = ints.get(0);
+        int columns = ints.get(1);
+        double rows = ints.get(2) & 0xFFFFFFFFL;
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int offset = 3 + 3 * (phrase * columns + column);
+                double hits = ints.get(offset) & 0xFFFFFFFFL;
+                double rowsWithHits = ints.get(offset + 2) & 0xFFFFFFFFL;
+                if (hits > 0) {
+                    score += hits * Math.log((rows + 1) / rowsWithHits);
+                }
+            }
+        }
+        return score;
+    }
+
     /**
      *  Return SQL to get ordered list of docIds.
      *
@@ -348,7 +854,18 @@ class QueryExecutor {
     protected static SqlParts sqlToSortIds(Set<String> docIdSet,
                                   List<Map<String, String>> sortDocument,
                                   Map<String, Object> indexes) {
-        String chosenIndex = chooseIndexForSort(sortDocument, indexes);
+        return sqlToSortIds(docIdSet, sortDocument, indexes, null);
+    }
+
+    /**
+     *  Return SQL to get ordered list of docIds, using 'statistics' to choose between
+     *  indexes able to carry out the ordering.
+     */
+    protected static SqlParts sqlToSortIds(Set<String> docIdSet,
+                                  List<Map<String, String>> sortDocument,
+                                  Map<String, Object> indexes,
+                                  Map<String, IndexStatistics> statistics) {
+        String chosenIndex = chooseIndexForSort(sortDocument, indexes, statistics);
         if (chosenIndex == null) {
             String msg = String.format("No single index can satisfy order %s", sortDocument);
             logger.log(Level.SEVERE, msg);
@@ -362,15 +879,6 @@ class QueryExecutor {
         // for large result sets:
         // SELECT _id FROM idx ORDER BY fieldName ASC, fieldName2 DESC
 
-        List<String> orderClauses = new ArrayList<String>();
-        for (Map<String, String> clause : sortDocument) {
-            String fieldName = (String) clause.keySet().toArray()[0];
-            String direction = clause.get(fieldName);
-
-            String orderClause = String.format("\"%s\" %s", fieldName, direction.toUpperCase());
-            orderClauses.add(orderClause);
-        }
-
         // If we have few results, it's more efficient to reduce the search space
         // for SQLite. 500 placeholders should be a safe value.
         List<String> parameterList = new ArrayList<String>();
@@ -387,7 +895,7 @@ class QueryExecutor {
             whereClause = String.format("WHERE _id IN (%s)", joiner.join(placeholders));
         }
 
-        String orderBy = joiner.join(orderClauses);
+        String orderBy = orderByForSortDocument(sortDocument);
         String sql = String.format("SELECT DISTINCT _id FROM %s %s ORDER BY %s", indexTable,
                                                                                  whereClause,
                                                                                  orderBy);
@@ -395,34 +903,53 @@ class QueryExecutor {
         return SqlParts.partsForSql(sql, parameterList.toArray(parameters));
     }
 
-    @SuppressWarnings("unchecked")
-    private static String chooseIndexForSort(List<Map<String, String>> sortDocument,
-                                      Map<String, Object> indexes) {
-        if (indexes == null || indexes.isEmpty()) {
-            return null;  // Can't choose an index if one does not exist.
+    /**
+     *  Returns the ORDER BY terms for a sort document, e.g.
+     *  {@code "fieldName" ASC, "fieldName2" DESC}.
+     */
+    private static String orderByForSortDocument(List<Map<String, String>> sortDocument) {
+        List<String> orderClauses = new ArrayList<String>();
+        for (Map<String, String> clause : sortDocument) {
+            String fieldName = (String) clause.keySet().toArray()[0];
+            String direction = clause.get(fieldName);
+
+            String orderClause = String.format("\"%s\" %s", fieldName, direction.toUpperCase());
+            orderClauses.add(orderClause);
+        }
+        return Joiner.on(", ").skipNulls().join(orderClauses);
+    }
+
+    /**
+     *  Returns the fields a sort document orders by, or null if it doesn't sort.
+     */
+    private static Set<String> sortFields(List<Map<String, String>> sortDocument) {
+        if (sortDocument == null || sortDocument.isEmpty()) {
+            return null;
         }
-        Set<String> neededFields = new HashSet<String>();
+        Set<String> fields = new HashSet<String>();
         // Each orderSpecifier in the sortDocument is validated and normalised
         // already to be a Map with one key.
         for (Map<String, String> orderSpecifier : sortDocument) {
-            neededFields.add((String) orderSpecifier.keySet().toArray()[0]);
+            fields.add((String) orderSpecifier.keySet().toArray()[0]);
         }
+        return fields;
+    }
 
-        if (neededFields.isEmpty()) {
-            return null;  // no point in querying empty set of fields
+    private static String chooseIndexForSort(List<Map<String, String>> sortDocument,
+                                             Map<String, Object> indexes,
+                                             Map<String, IndexStatistics> statistics) {
+        if (indexes == null || indexes.isEmpty()) {
+            return null;  // Can't choose an index if one does not exist.
         }
+        Set<String> neededFields = sortFields(sortDocument);
 
-        String chosenIndex = null;
-        for (String indexName : indexes.keySet()) {
-            Map<String, Object> index = (Map<String, Object>) indexes.get(indexName);
-            Set<String> providedFields = new HashSet<String>((List<String>) index.get("fields"));
-            if (providedFields.containsAll(neededFields)) {
-                chosenIndex = indexName;
-                break;
-            }
+        if (neededFields == null) {
+            return null;  // no point in querying empty set of fields
         }
 
-        return chosenIndex;
+        // The ORDER BY is carried out over the whole index table, so the same costs
+        // apply as when choosing an index for a query clause.
+        return QuerySqlTranslator.chooseIndexForFields(neededFields, indexes, statistics);
     }
 
 }
@@ -42,6 +42,9 @@ public class QueryResult implements Iterable<DocumentRevision> {
     private final long skip;
     private final long limit;
     private final UnindexedMatcher matcher;
+    private int documentsLoaded;
+    private int documentsMatched;
+    private int documentsSkipped;
 
     public QueryResult(List<String> originalDocIds,
                        Datastore datastore,
@@ -60,9 +63,15 @@ public class QueryResult implements Iterable<DocumentRevision> {
     /**
      *  Returns the number of documents in this query result.
      *
+     *  When the query was satisfied using indexes alone, the count is worked out
+     *  from the document ids returned by the index, so no documents are loaded.
+     *
      *  @return the number of documents {@code DocumentRevision} in this query result.
      */
     public int size() {
+        if (matcher == null) {
+            return indexedDocumentIds().size();
+        }
         return documentIds().size();
     }
 
@@ -70,19 +79,78 @@ public class QueryResult implements Iterable<DocumentRevision> {
      *  Returns a list of the document ids in this query result.
      *
      *  This method is implemented this way to ensure that the list of document ids is
-     *  consistent with the iterator results.
+     *  consistent with the iterator results. If the query was satisfied using indexes
+     *  alone, the ids are taken directly from the index results; otherwise each
+     *  candidate document must be loaded to run the post hoc matcher, but the
+     *  documents are discarded once matched rather than projected.
      *
      *  @return list of the document ids
      */
     public List<String> documentIds() {
+        if (matcher == null) {
+            return new ArrayList<String>(indexedDocumentIds());
+        }
+
         List<String> documentIds = new ArrayList<String>();
-        List<DocumentRevision> docs = Lists.newArrayList(iterator());
-        for (DocumentRevision doc : docs) {
-            documentIds.add(doc.getId());
+        int nSkipped = 0;
+        for (List<String> batch : Lists.partition(originalDocIds, DEFAULT_BATCH_SIZE)) {
+            // The matcher runs against the raw JSON, so only matching documents are loaded
+            for (BasicDocumentRevision rev : datastore.getDocumentsWithIds(batch, matcher)) {
+                // Apply skip (skip == 0 means disable)
+                if (skip > 0 && nSkipped < skip) {
+                    nSkipped = nSkipped + 1;
+                    continue;
+                }
+
+                documentIds.add(rev.getId());
+
+                // Apply limit (limit == 0 means disable)
+                if (limit > 0 && documentIds.size() >= limit) {
+                    return documentIds;
+                }
+            }
         }
         return documentIds;
     }
 
+    /**
+     *  Returns the window of the original document ids selected by skip and limit.
+     *
+     *  Only valid when there is no post hoc matcher, as every id returned by the
+     *  index is then part of the result.
+     */
+    private List<String> indexedDocumentIds() {
+        int size = originalDocIds.size();
+        int from = (int) Math.min(skip, size);
+        int to = limit > 0 ? (int) Math.min(from + limit, size) : size;
+        return originalDocIds.subList(from, to);
+    }
+
+    /**
+     *  Returns the number of documents read from the datastore so far by iterating this
+     *  query result, including those rejected by the post hoc matcher or skipped.
+     */
+    int documentsLoaded() {
+        return documentsLoaded;
+    }
+
+    /**
+     *  Returns the number of documents read so far by iterating this query result which
+     *  matched the query, including those skipped. When a limit ends the iteration, the
+     *  candidates in the batches after it are not read, so are not counted.
+     */
+    int documentsMatched() {
+        return documentsMatched;
+    }
+
+    /**
+     *  Returns the number of matching documents skipped so far by iterating this query
+     *  result.
+     */
+    int documentsSkipped() {
+        return documentsSkipped;
+    }
+
     @Override
     public Iterator<DocumentRevision> iterator() {
         return new QueryResultIterator();
@@ -132,19 +200,20 @@ public class QueryResult implements Iterable<DocumentRevision> {
                 range.length = Math.min(DEFAULT_BATCH_SIZE, originalDocIds.size() - range.location);
                 List<String> batch = originalDocIds.subList(range.location,
                                                             range.location + range.length);
-                List<BasicDocumentRevision> docs = datastore.getDocumentsWithIds(batch);
+                // Apply post-hoc matcher to the raw JSON, so only matching documents are loaded
+                List<BasicDocumentRevision> docs = matcher == null ?
+                        datastore.getDocumentsWithIds(batch) :
+                        datastore.getDocumentsWithIds(batch, matcher);
+                documentsLoaded = documentsLoaded + batch.size();
+                documentsMatched = documentsMatched + docs.size();
                 for (BasicDocumentRevision rev : docs) {
                     DocumentRevision innerRev;
                     innerRev = rev;  // Allows us to replace later if projecting
 
-                    // Apply post-hoc matcher
-                    if (matcher != null && !matcher.matches(innerRev)) {
-                        continue;
-                    }
-
                     // Apply skip (skip == 0 means disable)
                     if (skip > 0 && nSkipped < skip) {
                         nSkipped = nSkipped + 1;
+                        documentsSkipped = documentsSkipped + 1;
                         continue;
                     }
 
@@ -12,10 +12,12 @@
 
 package com.cloudant.sync.query;
 
+import com.cloudant.sync.util.JSONUtils;
 import com.google.common.base.Joiner;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -100,21 +102,74 @@ class QuerySqlTranslator {
     private static final String EXISTS = "$exists";
     private static final String EQ = "$eq";
     private static final String NE = "$ne";  // $ne is used as shorthand for $not..$eq
+    private static final String TEXT = "$text";
+    private static final String SEARCH = "$search";
 
     private static final Logger logger = Logger.getLogger(QuerySqlTranslator.class.getName());
 
     public static QueryNode translateQuery(Map<String, Object> query,
                                            Map<String, Object> indexes,
                                            Boolean[] indexesCoverQuery) {
-        TranslatorState state = new TranslatorState();
-        QueryNode node = translateQuery(query, indexes, state);
+        return translateQuery(query, indexes, null, indexesCoverQuery);
+    }
+
+    /**
+     *  Translates a query, using the statistics passed to choose between indexes
+     *  where more than one can be used for a clause.
+     *
+     *  @see #chooseIndexForFields(Set, Map, Map)
+     */
+    public static QueryNode translateQuery(Map<String, Object> query,
+                                           Map<String, Object> indexes,
+                                           Map<String, IndexStatistics> statistics,
+                                           Boolean[] indexesCoverQuery) {
+        return translateQuery(query, indexes, statistics, null, indexesCoverQuery);
+    }
+
+    /**
+     *  Translates a query whose results will be sorted by 'sortFields'.
+     *
+     *  When the query is a single SQL statement, the index it uses can also order the
+     *  results if it contains the sort fields, saving a separate pass over another index
+     *  to sort them. That saving is weighed up when choosing the index.
+     *
+     *  @see #chooseIndexForFields(Set, Map, Map)
+     */
+    public static QueryNode translateQuery(Map<String, Object> query,
+                                           Map<String, Object> indexes,
+                                           Map<String, IndexStatistics> statistics,
+                                           Set<String> sortFields,
+                                           Boolean[] indexesCoverQuery) {
+        TranslatorState state = new TranslatorState(statistics);
+        state.sortFields = sortFields;
+        QueryNode node = translateQuery(query, indexes, state, new ArrayList<Object>());
+        if (node == null && state.textSearchNode == null && textSearchForQuery(query) != null) {
+            // The text search couldn't be carried out; logged above
+            return null;
+        }
+
+        // A text search is part of the top level AND, so every result is one of the
+        // documents it finds. If anything else can't be carried out using the indexes,
+        // the posthoc matcher only needs to run over those documents.
+        if (state.textSearchNode != null &&
+                (!state.atLeastOneIndexUsed || state.atLeastOneORIndexMissing)) {
+            AndQueryNode root = new AndQueryNode();
+            root.children.add(state.textSearchNode);
+
+            indexesCoverQuery[0] = false;
+            return root;
+        }
 
         // If we haven't used a single index or an OR clause is missing an index,
         // we need to return a query which returns every document, so the posthoc
         // matcher can run over every document to manually carry out the query.
         if (!state.atLeastOneIndexUsed || state.atLeastOneORIndexMissing) {
             Set<String> neededFields = new HashSet<String>(Arrays.asList("_id"));
-            String allDocsIndex = chooseIndexForFields(neededFields, indexes);
+            String allDocsIndex = indexes == null ? null :
+                    cheapestIndex(indexesContainingFields(neededFields, indexes),
+                                  indexes,
+                                  statistics,
+                                  sortFields);
 
             if (allDocsIndex == null || allDocsIndex.isEmpty()) {
                 String msg = "No indexes defined, cannot execute query for all documents";
@@ -129,6 +184,7 @@ class QuerySqlTranslator {
 
             SqlQueryNode sqlNode = new SqlQueryNode();
             sqlNode.sql = parts;
+            sqlNode.indexName = allDocsIndex;
 
             AndQueryNode root = new AndQueryNode();
             root.children.add(sqlNode);
@@ -141,10 +197,16 @@ class QuerySqlTranslator {
         }
     }
 
+    /**
+     *  'impliedClauses' are the basic clauses which every document in the query's result
+     *  must satisfy because of where this part of the query is in it. They are used to
+     *  decide whether a partial index contains all the documents a clause could select.
+     */
     @SuppressWarnings("unchecked")
     private static QueryNode translateQuery(Map<String, Object> query,
                                            Map<String, Object> indexes,
-                                           TranslatorState state) {
+                                           TranslatorState state,
+                                           List<Object> impliedClauses) {
         // At this point we will have a root compound predicate, AND or OR, and
         // the query will be reduced to a single entry:
         // { "$and": [ ... predicates (possibly compound) ... ] }
@@ -153,6 +215,11 @@ class QuerySqlTranslator {
         ChildrenQueryNode root = null;
         List<Object> clauses = new ArrayList<Object>();
 
+        // Only the index chosen for the top level clauses can also order the results, so
+        // nested clauses don't see the sort fields.
+        Set<String> sortFields = state.sortFields;
+        state.sortFields = null;
+
         if (query.get(AND) != null) {
             clauses = (ArrayList<Object>) query.get(AND);
             root = new AndQueryNode();
@@ -168,20 +235,58 @@ class QuerySqlTranslator {
         //
 
         List<Object> basicClauses = new ArrayList<Object>();
+        Map<String, Object> textClause = null;
 
         for (Object rawClause: clauses) {
             Map<String, Object> clause = (Map<String, Object>) rawClause;
             String field = (String) clause.keySet().toArray()[0];
             if (!field.startsWith("$")) {
                 basicClauses.add(rawClause);
+            } else if (field.equals(TEXT)) {
+                // The validator only allows this in the top level AND
+                textClause = (Map<String, Object>) clause.get(TEXT);
             }
         }
 
+        if (textClause != null) {
+            String textIndex = textIndexName(indexes);
+            if (textIndex == null) {
+                logger.log(Level.SEVERE, "No text index defined, cannot execute $text query");
+                return null;
+            }
+            state.atLeastOneIndexUsed = true;
+
+            SqlQueryNode sqlNode = new SqlQueryNode();
+            sqlNode.sql = selectStatementForTextSearch((String) textClause.get(SEARCH),
+                                                       textIndex);
+            sqlNode.indexName = textIndex;
+            state.textSearchNode = sqlNode;
+
+            if (root != null) {
+                root.children.add(sqlNode);
+            }
+        }
+
+        // Every document selected by this node satisfies the clauses implied by its
+        // parents and, for an AND node, its own basic clauses.
+        List<Object> subclauseImpliedClauses = new ArrayList<Object>(impliedClauses);
         if (query.get(AND) != null) {
-            // For an AND query, we require a single compound index and we generate a
-            // single SQL statement to use that index to satisfy the clauses.
+            subclauseImpliedClauses.addAll(basicClauses);
+        }
 
-            String chosenIndex = chooseIndexForAndClause(basicClauses, indexes);
+        if (query.get(AND) != null && (textClause == null || !basicClauses.isEmpty())) {
+            // For an AND query, we require a single compound index and we generate a
+            // single SQL statement to use that index to satisfy the clauses. A text
+            // search on its own needs no other index.
+
+            // The results can only be ordered by this clause's index if it is the
+            // whole query
+            String chosenIndex = chooseIndexForAndClause(basicClauses,
+                                                         subclauseImpliedClauses,
+                                                         indexes,
+                                                         state.statistics,
+                                                         basicClauses.size() == clauses.size() ?
+                                                                 sortFields : null);
             if (chosenIndex == null || chosenIndex.isEmpty()) {
                 state.atLeastOneIndexMissing = true;
                 String msg = String.format("No single index contains all of %s; %s",
@@ -192,7 +297,7 @@ class QuerySqlTranslator {
                 state.atLeastOneIndexUsed = true;
 
                 // Execute SQL on that index with appropriate values
-                SqlParts select = selectStatementForAndClause(basicClauses, chosenIndex);
+                SqlParts select = selectStatementForIndex(basicClauses, chosenIndex, indexes);
                 if (select == null) {
                     String msg = String.format("Error generating SELECT clause for %s",
                                                basicClauses);
@@ -202,6 +307,7 @@ class QuerySqlTranslator {
 
                 SqlQueryNode sqlNode = new SqlQueryNode();
                 sqlNode.sql = select;
+                sqlNode.indexName = chosenIndex;
 
                 if (root != null) {
                     root.children.add(sqlNode);
@@ -220,7 +326,12 @@ class QuerySqlTranslator {
 
             for (Object basicClause : basicClauses) {
                 List<Object> wrappedClause = Arrays.asList(basicClause);
-                String chosenIndex = chooseIndexForAndClause(wrappedClause, indexes);
+                List<Object> clauseImpliedClauses = new ArrayList<Object>(impliedClauses);
+                clauseImpliedClauses.add(basicClause);
+                String chosenIndex = chooseIndexForAndClause(wrappedClause,
+                                                             clauseImpliedClauses,
+                                                             indexes,
+                                                             state.statistics);
                 if (chosenIndex == null || chosenIndex.isEmpty()) {
                     state.atLeastOneIndexMissing = true;
                     state.atLeastOneORIndexMissing = true;
@@ -232,7 +343,7 @@ class QuerySqlTranslator {
                     state.atLeastOneIndexUsed = true;
 
                     // Execute SQL on that index with appropriate values
-                    SqlParts select = selectStatementForAndClause(wrappedClause, chosenIndex);
+                    SqlParts select = selectStatementForIndex(wrappedClause, chosenIndex, indexes);
                     if (select == null) {
                         String msg = String.format("Error generating SELECT clause for %s",
                                                    basicClauses);
@@ -242,6 +353,7 @@ class QuerySqlTranslator {
 
                     SqlQueryNode sqlNode = new SqlQueryNode();
                     sqlNode.sql = select;
+                    sqlNode.indexName = chosenIndex;
 
                     if (root != null) {
                         root.children.add(sqlNode);
@@ -261,7 +373,7 @@ class QuerySqlTranslator {
             Map<String, Object> clause = (Map<String, Object>) rawClause;
             String field = (String) clause.keySet().toArray()[0];
             if (field.startsWith("$or")) {
-                QueryNode orNode = translateQuery(clause, indexes, state);
+                QueryNode orNode = translateQuery(clause, indexes, state, subclauseImpliedClauses);
                 if (root != null) {
                     root.children.add(orNode);
                 }
@@ -273,7 +385,7 @@ class QuerySqlTranslator {
             Map<String, Object> clause = (Map<String, Object>) rawClause;
             String field = (String) clause.keySet().toArray()[0];
             if (field.startsWith("$and")) {
-                QueryNode andNode = translateQuery(clause, indexes, state);
+                QueryNode andNode = translateQuery(clause, indexes, state, subclauseImpliedClauses);
                 if (root != null) {
                     root.children.add(andNode);
                 }
@@ -301,6 +413,44 @@ class QuerySqlTranslator {
 
     protected static String chooseIndexForAndClause(List<Object> clause,
                                                     Map<String, Object> indexes) {
+        return chooseIndexForAndClause(clause, indexes, null);
+    }
+
+    protected static String chooseIndexForAndClause(List<Object> clause,
+                                                    Map<String, Object> indexes,
+                                                    Map<String, IndexStatistics> statistics) {
+        return chooseIndexForAndClause(clause, clause, indexes, statistics);
+    }
+
+    /**
+     *  Chooses the cheapest index which can be used to select the documents matching
+     *  'clause'.
+     *
+     *  Partial indexes can be used as well as indexes containing every document, as
+     *  long as every clause of the partial index's selector is one of 'impliedClauses',
+     *  which must include 'clause' itself. Fields of the clause which are conditions of
+     *  the partial index's selector needn't be in the index.
+     *
+     *  @see #chooseIndexForFields(Set, Map, Map)
+     */
+    protected static String chooseIndexForAndClause(List<Object> clause,
+                                                    List<Object> impliedClauses,
+                                                    Map<String, Object> indexes,
+                                                    Map<String, IndexStatistics> statistics) {
+        return chooseIndexForAndClause(clause, impliedClauses, indexes, statistics, null);
+    }
+
+    /**
+     *  Chooses the index for an AND clause which is the whole of a query sorted by
+     *  'sortFields', preferring an index which can also order the results where that
+     *  saves a separate sort.
+     */
+    @SuppressWarnings("unchecked")
+    protected static String chooseIndexForAndClause(List<Object> clause,
+                                                    List<Object> impliedClauses,
+                                                    Map<String, Object> indexes,
+                                                    Map<String, IndexStatistics> statistics,
+                                                    Set<String> sortFields) {
         if (clause == null || clause.isEmpty()) {
             return null;
         }
@@ -318,26 +468,290 @@ class QuerySqlTranslator {
             return null;
         }
 
-        return chooseIndexForFields(neededFields, indexes);
+        List<String> candidates = indexesContainingFields(neededFields, indexes);
+
+        Set<String> implied = canonicalClauses(impliedClauses);
+        for (String indexName: indexes.keySet()) {
+            Map<String, Object> indexDefinition = (Map<String, Object>) indexes.get(indexName);
+            List<Object> selectorClauses = partialIndexClauses(indexDefinition);
+            if (selectorClauses == null) {
+                continue;
+            }
+            if (!implied.containsAll(canonicalClauses(selectorClauses))) {
+                continue;
+            }
+            Set<String> providedFields = new HashSet<String>(
+                    (List<String>) indexDefinition.get("fields"));
+            Set<String> partialNeededFields = new HashSet<String>(
+                    fieldsForAndClause(clausesNotInSelector(clause, selectorClauses)));
+            if (providedFields.containsAll(partialNeededFields)) {
+                candidates.add(indexName);
+            }
+        }
+
+        return cheapestIndex(candidates, indexes, statistics, sortFields);
     }
 
-    @SuppressWarnings("unchecked")
     protected static String chooseIndexForFields(Set<String> neededFields,
                                                  Map<String, Object> indexes) {
-        String chosenIndex = null;
+        return chooseIndexForFields(neededFields, indexes, null);
+    }
+
+    /**
+     *  Chooses the cheapest index containing all of the needed fields.
+     *
+     *  Every index containing the fields selects the same documents for a clause, and
+     *  as the SQLite index on each index table leads with _id, SQLite evaluates the
+     *  clause by scanning the index table. The cost of an index is therefore estimated
+     *  as the number of rows in its table multiplied by its number of fields. When
+     *  statistics aren't available for every candidate only the number of fields is
+     *  compared. Ties are broken using the index name, so the same index is chosen
+     *  whatever order the indexes are in.
+     *
+     *  Partial indexes are never chosen, as they don't contain every document.
+     *
+     *  @param neededFields fields the index must contain
+     *  @param indexes index definitions to choose from
+     *  @param statistics statistics for the indexes, or null if there are none
+     *  @return name of the chosen index, or null if no index contains the fields
+     */
+    @SuppressWarnings("unchecked")
+    protected static String chooseIndexForFields(Set<String> neededFields,
+                                                 Map<String, Object> indexes,
+                                                 Map<String, IndexStatistics> statistics) {
+        if (indexes == null) {
+            return null;
+        }
+
+        return cheapestIndex(indexesContainingFields(neededFields, indexes),
+                             indexes,
+                             statistics,
+                             null);
+    }
+
+    /**
+     *  Returns the names of the indexes, other than partial and text indexes, containing
+     *  all of the needed fields.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<String> indexesContainingFields(Set<String> neededFields,
+                                                        Map<String, Object> indexes) {
+        List<String> candidates = new ArrayList<String>();
         for (String indexName: indexes.keySet()) {
             Map<String, Object> indexDefinition = (Map<String, Object>) indexes.get(indexName);
+            if (partialIndexClauses(indexDefinition) != null || isTextIndex(indexDefinition)) {
+                continue;
+            }
             List<String> fieldList = (List<String>) indexDefinition.get("fields");
             Set<String> providedFields = new HashSet<String>(fieldList);
             if (providedFields.containsAll(neededFields)) {
+                candidates.add(indexName);
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     *  Returns the cheapest of the 'candidates' indexes, using the costs described in
+     *  {@link #chooseIndexForFields(Set, Map, Map)}, or null if there are no candidates.
+     *
+     *  If the results will be sorted by 'sortFields', a candidate containing them can
+     *  order the results as it selects them. The others need the results sorted using
+     *  the index chosen for the sort fields, so that index's cost is added to theirs.
+     */
+    @SuppressWarnings("unchecked")
+    private static String cheapestIndex(List<String> candidates,
+                                        Map<String, Object> indexes,
+                                        Map<String, IndexStatistics> statistics,
+                                        Set<String> sortFields) {
+        candidates = new ArrayList<String>(candidates);
+        Collections.sort(candidates);
+
+        String sortIndex = null;
+        if (sortFields != null && !sortFields.isEmpty()) {
+            sortIndex = cheapestIndex(indexesContainingFields(sortFields, indexes),
+                                      indexes,
+                                      statistics,
+                                      null);
+        }
+
+        boolean haveStatistics = statistics != null;
+        for (String indexName: candidates) {
+            haveStatistics = haveStatistics && statistics.get(indexName) != null;
+        }
+        if (sortIndex != null) {
+            haveStatistics = haveStatistics && statistics.get(sortIndex) != null;
+        }
+
+        double sortCost = sortIndex == null ? 0 : indexCost(sortIndex, indexes, statistics,
+                                                            haveStatistics);
+
+        String chosenIndex = null;
+        double chosenCost = Double.MAX_VALUE;
+        for (String indexName: candidates) {
+            Map<String, Object> indexDefinition = (Map<String, Object>) indexes.get(indexName);
+            double cost = indexCost(indexName, indexes, statistics, haveStatistics);
+            List<String> fields = (List<String>) indexDefinition.get("fields");
+            if (sortIndex != null && !fields.containsAll(sortFields)) {
+                cost = cost + sortCost;
+            }
+            if (cost < chosenCost) {
                 chosenIndex = indexName;
-                break;
+                chosenCost = cost;
             }
         }
 
         return chosenIndex;
     }
 
+    /**
+     *  Returns the estimated cost of scanning an index, described in
+     *  {@link #chooseIndexForFields(Set, Map, Map)}.
+     */
+    @SuppressWarnings("unchecked")
+    private static double indexCost(String indexName,
+                                    Map<String, Object> indexes,
+                                    Map<String, IndexStatistics> statistics,
+                                    boolean haveStatistics) {
+        Map<String, Object> indexDefinition = (Map<String, Object>) indexes.get(indexName);
+        double cost = ((List<String>) indexDefinition.get("fields")).size();
+        if (haveStatistics) {
+            cost = cost * (statistics.get(indexName).getRowCount() + 1);
+        }
+        return cost;
+    }
+
+    private static boolean isTextIndex(Map<String, Object> indexDefinition) {
+        return IndexManager.TEXT_TYPE.equalsIgnoreCase((String) indexDefinition.get("type"));
+    }
+
+    /**
+     *  Returns the name of the text index, or null if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    protected static String textIndexName(Map<String, Object> indexes) {
+        if (indexes == null) {
+            return null;
+        }
+        for (String indexName: indexes.keySet()) {
+            if (isTextIndex((Map<String, Object>) indexes.get(indexName))) {
+                return indexName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  Returns the search terms of a normalised query's $text clause, or null if it
+     *  doesn't search text.
+     */
+    @SuppressWarnings("unchecked")
+    protected static String textSearchForQuery(Map<String, Object> query) {
+        if (!(query.get(AND) instanceof List)) {
+            return null;
+        }
+        for (Object rawClause: (List<Object>) query.get(AND)) {
+            Map<String, Object> clause = (Map<String, Object>) rawClause;
+            if (clause.get(TEXT) instanceof Map) {
+                return (String) ((Map<String, Object>) clause.get(TEXT)).get(SEARCH);
+            }
+        }
+        return null;
+    }
+
+    /**
+     *  Returns the SELECT statement for the documents a text index finds for 'search',
+     *  which uses the SQLite FTS query syntax.
+     */
+    protected static SqlParts selectStatementForTextSearch(String search, String indexName) {
+        String tableName = IndexManager.tableNameForIndex(indexName);
+        String docIdTable = IndexManager.docIdTableNameForTextIndex(indexName);
+        String sql = String.format("SELECT %2$s._id FROM %1$s JOIN %2$s ON %2$s.docid = "
+                                   + "%1$s.docid WHERE %1$s MATCH ?",
+                                   tableName,
+                                   docIdTable);
+        return SqlParts.partsForSql(sql, new String[]{ search });
+    }
+
+    /**
+     *  Returns the SELECT statement for the documents a text index finds for 'search',
+     *  along with the matchinfo used to rank them. matchinfo is given the 'pcnx' format:
+     *  the number of phrases and columns and the number of rows, followed by the hits for
+     *  each phrase in each column of the row, across all rows, and the rows with hits.
+     *  Only the indexed fields are FTS columns, so only hits in them are counted.
+     */
+    protected static SqlParts rankedSelectStatementForTextSearch(String search,
+                                                                 String indexName) {
+        String tableName = IndexManager.tableNameForIndex(indexName);
+        String docIdTable = IndexManager.docIdTableNameForTextIndex(indexName);
+        String sql = String.format("SELECT %2$s._id, matchinfo(%1$s, 'pcnx') FROM %1$s JOIN "
+                                   + "%2$s ON %2$s.docid = %1$s.docid WHERE %1$s MATCH ?",
+                                   tableName,
+                                   docIdTable);
+        return SqlParts.partsForSql(sql, new String[]{ search });
+    }
+
+    /**
+     *  Returns the clauses of a partial index's selector, or null if the index definition
+     *  passed isn't for a partial index.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Object> partialIndexClauses(Map<String, Object> indexDefinition) {
+        Map<String, Object> selector =
+                (Map<String, Object>) indexDefinition.get(IndexManager.SELECTOR_OPTION);
+        return selector == null ? null : IndexCreator.partialIndexClauses(selector);
+    }
+
+    /**
+     *  Returns the clauses as JSON strings, so clauses read back from an index definition
+     *  compare equal to those in a query whatever types were used for their values.
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String> canonicalClauses(List<Object> clauses) {
+        Set<String> canonical = new HashSet<String>();
+        for (Object clause: clauses) {
+            canonical.add(JSONUtils.serializeAsString((Map<String, Object>) clause));
+        }
+        return canonical;
+    }
+
+    private static List<Object> clausesNotInSelector(List<Object> clause,
+                                                     List<Object> selectorClauses) {
+        Set<String> selector = canonicalClauses(selectorClauses);
+        List<Object> remaining = new ArrayList<Object>();
+        for (Object term: clause) {
+            if (!selector.containsAll(canonicalClauses(Arrays.asList(term)))) {
+                remaining.add(term);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     *  Returns the SELECT statement for the documents matching 'clause' in the index
+     *  chosen for it. A partial index only contains documents matching the conditions
+     *  in its selector, so they needn't be in the statement.
+     */
+    @SuppressWarnings("unchecked")
+    private static SqlParts selectStatementForIndex(List<Object> clause,
+                                                    String indexName,
+                                                    Map<String, Object> indexes) {
+        List<Object> selectorClauses =
+                partialIndexClauses((Map<String, Object>) indexes.get(indexName));
+        if (selectorClauses == null) {
+            return selectStatementForAndClause(clause, indexName);
+        }
+
+        List<Object> remaining = clausesNotInSelector(clause, selectorClauses);
+        if (remaining.isEmpty()) {
+            String sql = String.format("SELECT _id FROM %s",
+                                       IndexManager.tableNameForIndex(indexName));
+            return SqlParts.partsForSql(sql, new String[]{});
+        }
+        return selectStatementForAndClause(remaining, indexName);
+    }
+
     protected static SqlParts selectStatementForAndClause(List<Object> clause,
                                                           String indexName) {
         if (clause == null || clause.isEmpty()) {
@@ -29,6 +29,8 @@ class QueryValidator {
     public static final String AND = "$and";
     public static final String OR = "$or";
     public static final String EQ = "$eq";
+    public static final String TEXT = "$text";
+    public static final String SEARCH = "$search";
 
     private static final Logger logger = Logger.getLogger(QueryValidator.class.getName());
 
@@ -167,8 +169,10 @@ class QueryValidator {
         if (topLevelOp.equals(AND) || topLevelOp.equals(OR)) {
             Object topLevelArg = selector.get(topLevelOp);
             if (topLevelArg instanceof List) {
-                // safe we know its a List
-                return validateCompoundOperatorClauses((List<Object>) topLevelArg);
+                // safe we know its a List; a text search can only narrow down the
+                // documents matching a top level $and
+                return validateCompoundOperatorClauses((List<Object>) topLevelArg,
+                                                       topLevelOp.equals(AND));
             }
         }
 
@@ -176,8 +180,10 @@ class QueryValidator {
     }
 
     @SuppressWarnings("unchecked")
-    private static boolean validateCompoundOperatorClauses(List<Object> clauses) {
+    private static boolean validateCompoundOperatorClauses(List<Object> clauses,
+                                                           boolean textAllowed) {
         boolean valid = false;
+        boolean textFound = false;
 
         for (Object obj : clauses) {
             valid = false;
@@ -202,8 +208,18 @@ class QueryValidator {
                 Object compoundClauses = clause.get(key);
                 if (validateCompoundOperatorOperand(compoundClauses)) {
                     // validate list
-                    valid = validateCompoundOperatorClauses((List) compoundClauses);
+                    valid = validateCompoundOperatorClauses((List) compoundClauses, false);
                 }
+            } else if (key.equals(TEXT)) {
+                if (!textAllowed || textFound) {
+                    String msg = String.format("%s can only be used once, in the top level %s",
+                                               TEXT,
+                                               AND);
+                    logger.log(Level.SEVERE, msg);
+                    break;
+                }
+                textFound = true;
+                valid = validateTextClause(clause.get(key));
             } else if (!(key.startsWith("$"))) {
                 // this should have a map
                 // send this for validation
@@ -222,6 +238,25 @@ class QueryValidator {
         return valid;
     }
 
+    /**
+     *  A text search is { "$text": { "$search": "terms" } }.
+     */
+    private static boolean validateTextClause(Object textClause) {
+        if (textClause instanceof Map && ((Map) textClause).size() == 1) {
+            Object search = ((Map) textClause).get(SEARCH);
+            if (search instanceof String && !((String) search).trim().isEmpty()) {
+                return true;
+            }
+        }
+
+        String msg = String.format("%s operator expects { \"%s\": \"search terms\" }, got %s",
+                                   TEXT,
+                                   SEARCH,
+                                   textClause);
+        logger.log(Level.SEVERE, msg);
+        return false;
+    }
+
     @SuppressWarnings("unchecked")
     private static boolean validateClause(Map<String, Object> clause) {
         List<String> validOperators = Arrays.asList("$eq",
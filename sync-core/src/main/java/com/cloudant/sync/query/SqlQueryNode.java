@@ -22,4 +22,9 @@ class SqlQueryNode implements QueryNode {
 
     public SqlParts sql;
 
+    /**
+     *  Name of the index the SQL queries, used to explain query plans.
+     */
+    public String indexName;
+
 }
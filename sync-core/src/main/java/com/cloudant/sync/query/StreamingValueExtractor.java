@@ -0,0 +1,114 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Reads the values for a fixed set of field paths from raw JSON document bodies.
+ *
+ *  Rather than deserialising the whole body, the JSON is streamed and only the values
+ *  at the requested paths are read into objects. Sub-trees which no path refers to are
+ *  skipped without being materialised.
+ *
+ *  The result is a sparse body map: for every requested path,
+ *  {@link ValueExtractor#extractValueForFieldPath(String[], Map)} returns the same value
+ *  from the sparse map as it would from the fully deserialised body.
+ */
+class StreamingValueExtractor {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final PathNode root;
+
+    /**
+     *  @param fieldPaths the paths to read, each split using
+     *                    {@link ValueExtractor#splitFieldName(String)}
+     */
+    StreamingValueExtractor(Collection<String[]> fieldPaths) {
+        root = new PathNode();
+        for (String[] path : fieldPaths) {
+            PathNode node = root;
+            for (String segment : path) {
+                PathNode child = node.children.get(segment);
+                if (child == null) {
+                    child = new PathNode();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.terminal = true;
+        }
+    }
+
+    /**
+     *  Returns a map containing the values for this extractor's paths from a JSON object.
+     *
+     *  @param json JSON object bytes
+     *  @return sparse body map
+     *  @throws IOException if the JSON can't be parsed or isn't an object
+     */
+    Map<String, Object> extract(byte[] json) throws IOException {
+        JsonParser parser = mapper.getFactory().createParser(json);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Document body is not a JSON object");
+            }
+            return readObject(parser, root);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     *  Reads the object whose START_OBJECT token is the parser's current token, leaving the
+     *  parser on its END_OBJECT token.
+     */
+    private static Map<String, Object> readObject(JsonParser parser, PathNode node)
+            throws IOException {
+        Map<String, Object> result = new HashMap<String, Object>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            PathNode child = node.children.get(name);
+            JsonToken valueToken = parser.nextToken();
+            if (child == null) {
+                // Not on any path, so don't read it
+                parser.skipChildren();
+            } else if (child.terminal) {
+                // The whole value is needed; deeper paths are contained in it
+                result.put(name, parser.readValueAs(Object.class));
+            } else if (valueToken == JsonToken.START_OBJECT) {
+                result.put(name, readObject(parser, child));
+            } else {
+                // A path continues through a value which isn't an object, so it
+                // can't have a value; ValueExtractor treats a missing and a
+                // non-object intermediate value the same way.
+                parser.skipChildren();
+            }
+        }
+        return result;
+    }
+
+    private static class PathNode {
+        final Map<String, PathNode> children = new HashMap<String, PathNode>();
+        boolean terminal = false;
+    }
+
+}
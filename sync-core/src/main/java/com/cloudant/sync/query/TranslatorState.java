@@ -12,6 +12,9 @@
 
 package com.cloudant.sync.query;
 
+import java.util.Map;
+import java.util.Set;
+
 /**
  *  The purpose of a TranslatorState object is to track the state of a query translation operation
  *  performed by method calls in the {@link com.cloudant.sync.query.QuerySqlTranslator}.  Since
@@ -27,11 +30,17 @@ class TranslatorState {
     public boolean atLeastOneIndexUsed;
     public boolean atLeastOneIndexMissing;
     public boolean atLeastOneORIndexMissing;
+    public SqlQueryNode textSearchNode;
+    public Map<String, IndexStatistics> statistics;
+    public Set<String> sortFields;
 
-    TranslatorState() {
+    TranslatorState(Map<String, IndexStatistics> statistics) {
         atLeastOneIndexUsed = false;
         atLeastOneIndexMissing = false;
         atLeastOneORIndexMissing = false;
+        textSearchNode = null;
+        this.statistics = statistics;
+        sortFields = null;
     }
 
 }
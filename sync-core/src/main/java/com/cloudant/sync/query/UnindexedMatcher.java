@@ -12,9 +12,13 @@
 
 package com.cloudant.sync.query;
 
+import com.cloudant.sync.datastore.DocumentBodyFilter;
 import com.cloudant.sync.datastore.DocumentRevision;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,7 +34,16 @@ import java.util.logging.Logger;
  *  matches that selector.
  *
  *  The matcher works by first creating a simple tree, which is then
- *  executed against each document it's asked to match.
+ *  compiled once into a graph of predicates. Each predicate holds its field
+ *  path already split into segments and the comparison for its operator, and
+ *  the children of AND and OR nodes are ordered by their estimated selectivity
+ *  so evaluation short-circuits as early as possible. The compiled graph is
+ *  executed against each document it's asked to match, using a single parsed
+ *  copy of the document body.
+ *
+ *  As a {@link DocumentBodyFilter}, the matcher instead streams the document's
+ *  raw JSON and reads only the fields the selector refers to, so documents
+ *  which don't match are rejected without deserialising their bodies.
  *
  *
  *  Some examples:
@@ -78,9 +91,11 @@ import java.util.logging.Logger;
  *
  *  These basic patterns can be composed into more complicate structures.
  */
-class UnindexedMatcher {
+class UnindexedMatcher implements DocumentBodyFilter {
+
+    private Predicate root;
 
-    private ChildrenQueryNode root;
+    private StreamingValueExtractor extractor;
 
     private static final Logger logger = Logger.getLogger(UnindexedMatcher.class.getName());
 
@@ -104,7 +119,9 @@ class UnindexedMatcher {
         }
 
         UnindexedMatcher matcher = new UnindexedMatcher();
-        matcher.root = root;
+        List<String[]> fieldPaths = new ArrayList<String[]>();
+        matcher.root = compile(root, fieldPaths);
+        matcher.extractor = new StreamingValueExtractor(fieldPaths);
 
         return matcher;
     }
@@ -226,32 +243,51 @@ class UnindexedMatcher {
      * @return document and matcher's selector matching status.
      */
     public boolean matches(DocumentRevision rev) {
-        return executeSelectorTree(root, rev);
+        return root.matches(rev.getId(), rev.getRevision(), rev.getBody().asMap());
+    }
+
+    /**
+     * Returns true if a document's raw JSON body matches this matcher's selector.
+     *
+     * Only the fields the selector refers to are read from the JSON, so documents can
+     * be rejected without deserialising their bodies.
+     *
+     * @param docId the document's id
+     * @param revId the revision's id
+     * @param json the revision's JSON body
+     * @return document and matcher's selector matching status.
+     */
+    @Override
+    public boolean accept(String docId, String revId, byte[] json) {
+        Map<String, Object> body;
+        try {
+            body = extractor.extract(json);
+        } catch (IOException e) {
+            String msg = String.format("Failed to read body of document %s", docId);
+            logger.log(Level.WARNING, msg, e);
+            return false;
+        }
+        return root.matches(docId, revId, body);
     }
 
+    /**
+     * Compiles a query node, adding the split path of each body field it refers to
+     * to {@code fieldPaths}.
+     */
     @SuppressWarnings("unchecked")
-    private boolean executeSelectorTree(QueryNode node, DocumentRevision rev) {
+    private static Predicate compile(QueryNode node, List<String[]> fieldPaths) {
         if (node instanceof AndQueryNode) {
-            boolean passed = true;
-
-            AndQueryNode andNode = (AndQueryNode) node;
-
-            for (QueryNode child: andNode.children) {
-                passed = passed && executeSelectorTree(child, rev);
+            List<Predicate> children = new ArrayList<Predicate>();
+            for (QueryNode child: ((AndQueryNode) node).children) {
+                children.add(compile(child, fieldPaths));
             }
-
-            return passed;
-        }
-        if (node instanceof OrQueryNode) {
-            boolean passed = false;
-
-            OrQueryNode orNode = (OrQueryNode) node;
-
-            for (QueryNode child: orNode.children) {
-                passed = passed || executeSelectorTree(child, rev);
+            return new AndPredicate(children);
+        } else if (node instanceof OrQueryNode) {
+            List<Predicate> children = new ArrayList<Predicate>();
+            for (QueryNode child: ((OrQueryNode) node).children) {
+                children.add(compile(child, fieldPaths));
             }
-
-            return passed;
+            return new OrPredicate(children);
         } else if (node instanceof OperatorExpressionNode) {
             Map<String, Object> expression = ((OperatorExpressionNode) node).expression;
 
@@ -260,7 +296,6 @@ class UnindexedMatcher {
             // or
             //   { fieldName: { $not: { operator: value } } }
 
-            // Next evaluate the result
             String fieldName = (String) expression.keySet().toArray()[0];
             Map<String, Object> operatorExpression;
             operatorExpression = (Map<String, Object>) expression.get(fieldName);
@@ -274,52 +309,260 @@ class UnindexedMatcher {
                 operator = (String) operatorExpression.keySet().toArray()[0];
             }
 
-            Object expected = operatorExpression.get(operator);
-            Object actual = ValueExtractor.extractValueForFieldName(fieldName, rev);
+            Comparison comparison = Comparison.forOperator(operator);
+            if (comparison == null) {
+                String msg = String.format("Found unexpected operator in selector: %s", operator);
+                logger.log(Level.WARNING, msg);
+            }
+
+            FieldPredicate predicate = new FieldPredicate(fieldName,
+                                                          comparison,
+                                                          operatorExpression.get(operator),
+                                                          invertResult);
+            if (!fieldName.equals("_id") && !fieldName.equals("_rev")) {
+                fieldPaths.add(predicate.path);
+            }
+            return predicate;
+        } else {
+            // We constructed the tree, so shouldn't end up here; error if we do.
+            String msg = String.format("Found unexpected selector execution tree: %s", node);
+            logger.log(Level.SEVERE, msg);
+            return FieldPredicate.NEVER;
+        }
+    }
+
+    /**
+     *  A node in the compiled selector graph.
+     */
+    interface Predicate {
+
+        /**
+         *  Returns whether the document with the given id, revision and parsed body
+         *  satisfies this predicate.
+         */
+        boolean matches(String docId, String revId, Map<String, Object> body);
+
+        /**
+         *  Estimated fraction of documents which satisfy this predicate, used to order
+         *  the children of compound predicates.
+         */
+        double selectivity();
+
+    }
+
+    private static final Comparator<Predicate> MOST_SELECTIVE_FIRST = new Comparator<Predicate>() {
+        @Override
+        public int compare(Predicate p1, Predicate p2) {
+            return Double.compare(p1.selectivity(), p2.selectivity());
+        }
+    };
+
+    private static class AndPredicate implements Predicate {
+
+        private final Predicate[] children;
+        private final double selectivity;
+
+        AndPredicate(List<Predicate> children) {
+            // Evaluate the predicates most likely to fail first so we can stop early
+            Collections.sort(children, MOST_SELECTIVE_FIRST);
+            this.children = children.toArray(new Predicate[children.size()]);
+            double s = 1.0;
+            for (Predicate child: this.children) {
+                s = s * child.selectivity();
+            }
+            this.selectivity = s;
+        }
+
+        @Override
+        public boolean matches(String docId, String revId, Map<String, Object> body) {
+            for (Predicate child: children) {
+                if (!child.matches(docId, revId, body)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public double selectivity() {
+            return selectivity;
+        }
+    }
+
+    private static class OrPredicate implements Predicate {
+
+        private final Predicate[] children;
+        private final double selectivity;
+
+        OrPredicate(List<Predicate> children) {
+            // Evaluate the predicates most likely to pass first so we can stop early
+            Collections.sort(children, Collections.reverseOrder(MOST_SELECTIVE_FIRST));
+            this.children = children.toArray(new Predicate[children.size()]);
+            double none = 1.0;
+            for (Predicate child: this.children) {
+                none = none * (1.0 - child.selectivity());
+            }
+            this.selectivity = 1.0 - none;
+        }
+
+        @Override
+        public boolean matches(String docId, String revId, Map<String, Object> body) {
+            for (Predicate child: children) {
+                if (child.matches(docId, revId, body)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public double selectivity() {
+            return selectivity;
+        }
+    }
+
+    private static class FieldPredicate implements Predicate {
+
+        static final FieldPredicate NEVER = new FieldPredicate("_id", null, null, false);
+
+        private final String fieldName;
+        private final String[] path;
+        private final Comparison comparison;
+        private final Object expected;
+        private final boolean invertResult;
+        private final double selectivity;
+
+        FieldPredicate(String fieldName,
+                       Comparison comparison,
+                       Object expected,
+                       boolean invertResult) {
+            this.fieldName = fieldName;
+            this.path = ValueExtractor.splitFieldName(fieldName);
+            this.comparison = comparison;
+            this.expected = expected;
+            this.invertResult = invertResult;
+            double s = comparison == null ? 0.0 : comparison.selectivity(expected);
+            this.selectivity = invertResult ? 1.0 - s : s;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean matches(String docId, String revId, Map<String, Object> body) {
+            if (comparison == null) {
+                return false;
+            }
+
+            // _id and _rev are special fields which come from attributes
+            // of the revision and not its body.
+            Object actual;
+            if (fieldName.equals("_id")) {
+                actual = docId;
+            } else if (fieldName.equals("_rev")) {
+                actual = revId;
+            } else {
+                actual = ValueExtractor.extractValueForFieldPath(path, body);
+            }
 
             boolean passed = false;
             if (actual instanceof List) {
                 for (Object item: (List<Object>) actual) {
                     // OR as any value in the array can match
-                    passed = passed || valueCompare(item, operator, expected);
+                    if (comparison.compare(item, expected)) {
+                        passed = true;
+                        break;
+                    }
                 }
             } else {
-                passed = valueCompare(actual, operator, expected);
+                passed = comparison.compare(actual, expected);
             }
 
             return invertResult ? !passed : passed;
-        } else {
-            // We constructed the tree, so shouldn't end up here; error if we do.
-            String msg = String.format("Found unexpected selector execution tree: %s", node);
-            logger.log(Level.SEVERE, msg);
-            return false;
+        }
+
+        @Override
+        public double selectivity() {
+            return selectivity;
         }
     }
 
-    private boolean valueCompare(Object actual, String operator, Object expected) {
-        boolean passed;
-
-        if (operator.equals("$eq")) {
-            passed = compareEq(actual, expected);
-        } else if (operator.equals("$lt")) {
-            passed = compareLT(actual, expected);
-        } else if (operator.equals("$lte")) {
-            passed = compareLTE(actual, expected);
-        } else if (operator.equals("$gt")) {
-            passed = compareGT(actual, expected);
-        } else if (operator.equals("$gte")) {
-            passed = compareGTE(actual, expected);
-        } else if (operator.equals("$exists")) {
-            boolean expectedBool = (Boolean) expected;
-            boolean exists = (actual != null);
-            passed = (exists == expectedBool);
-        } else {
-            String msg = String.format("Found unexpected operator in selector: %s", operator);
-            logger.log(Level.WARNING, msg);
-            passed = false;
+    /**
+     *  The comparison carried out for each supported operator.
+     *
+     *  The selectivity estimates are rough guesses used only to decide
+     *  evaluation order; they don't affect which documents match.
+     */
+    private enum Comparison {
+
+        EQ("$eq") {
+            @Override
+            boolean compare(Object actual, Object expected) {
+                return compareEq(actual, expected);
+            }
+
+            @Override
+            double selectivity(Object expected) {
+                return 0.1;
+            }
+        },
+        LT("$lt") {
+            @Override
+            boolean compare(Object actual, Object expected) {
+                return compareLT(actual, expected);
+            }
+        },
+        LTE("$lte") {
+            @Override
+            boolean compare(Object actual, Object expected) {
+                return compareLTE(actual, expected);
+            }
+        },
+        GT("$gt") {
+            @Override
+            boolean compare(Object actual, Object expected) {
+                return compareGT(actual, expected);
+            }
+        },
+        GTE("$gte") {
+            @Override
+            boolean compare(Object actual, Object expected) {
+                return compareGTE(actual, expected);
+            }
+        },
+        EXISTS("$exists") {
+            @Override
+            boolean compare(Object actual, Object expected) {
+                boolean expectedBool = (Boolean) expected;
+                boolean exists = (actual != null);
+                return (exists == expectedBool);
+            }
+
+            @Override
+            double selectivity(Object expected) {
+                return Boolean.TRUE.equals(expected) ? 0.9 : 0.1;
+            }
+        };
+
+        private final String operator;
+
+        Comparison(String operator) {
+            this.operator = operator;
         }
 
-        return passed;
+        abstract boolean compare(Object actual, Object expected);
+
+        double selectivity(Object expected) {
+            // range queries
+            return 0.33;
+        }
+
+        static Comparison forOperator(String operator) {
+            for (Comparison comparison: values()) {
+                if (comparison.operator.equals(operator)) {
+                    return comparison;
+                }
+            }
+            return null;
+        }
     }
 
     protected static boolean compareEq(Object l, Object r) {
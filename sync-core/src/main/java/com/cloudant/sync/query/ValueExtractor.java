@@ -15,9 +15,7 @@ package com.cloudant.sync.query;
 import com.cloudant.sync.datastore.DocumentBody;
 import com.cloudant.sync.datastore.DocumentRevision;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,35 +37,46 @@ class ValueExtractor {
         }
     }
 
-    @SuppressWarnings("unchecked")
     public static Object extractValueForFieldName(String possiblyDottedField, DocumentBody body) {
+        return extractValueForFieldPath(splitFieldName(possiblyDottedField), body.asMap());
+    }
+
+    /**
+     *  Splits a possibly dotted field name into the path of fields leading to its value.
+     *
+     *  Callers evaluating the same field against many documents should split the field
+     *  once and use {@link #extractValueForFieldPath(String[], Map)}.
+     */
+    public static String[] splitFieldName(String possiblyDottedField) {
+        return possiblyDottedField.contains(".") ?
+               possiblyDottedField.split("\\.") :
+               new String[]{possiblyDottedField};
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Object extractValueForFieldPath(String[] fields, Map<String, Object> body) {
         // The algorithm here is to split the fields into a "path" and a "lastSegment".
         // The path leads us to the final sub-document. We know that if we have either
         // nil or a non-dictionary object while traversing path that the body doesn't
         // have the right fields for this field selector -- it allows us to make sure
         // that each level of the `path` results in a document rather than a value,
         // because if it's a value, we can't continue the selection process.
-        String[] fields = possiblyDottedField.contains(".") ?
-                          possiblyDottedField.split("\\.") :
-                          new String[]{possiblyDottedField};
-
-        List<String> path = new ArrayList<String>(Arrays.asList(fields));
-        String lastSegment = path.remove(path.size() - 1);
-
-        Map<String, Object> currentLevel = body.asMap();
-        for (String field: path) {
-            Object map = currentLevel.get(field);
+        Map<String, Object> currentLevel = body;
+        for (int i = 0; i < fields.length - 1; i++) {
+            Object map = currentLevel.get(fields[i]);
             if (map != null && map instanceof Map) {
                 currentLevel = (Map<String, Object>) map;
             } else {
-                String msg = String.format("Could not extract field %s from document.",
-                                           possiblyDottedField);
-                logger.log(Level.FINE, msg);
+                if (logger.isLoggable(Level.FINE)) {
+                    String msg = String.format("Could not extract field %s from document.",
+                                               Arrays.toString(fields));
+                    logger.log(Level.FINE, msg);
+                }
                 return null;
             }
         }
 
-        return currentLevel.get(lastSegment);
+        return currentLevel.get(fields[fields.length - 1]);
     }
 
 }
@@ -0,0 +1,384 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.common.RetriableTask;
+import com.cloudant.mazha.DocumentRevs;
+import com.cloudant.sync.datastore.Attachment;
+import com.cloudant.sync.datastore.DocumentRevsList;
+import com.cloudant.sync.datastore.PreparedAttachment;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * <p>Downloads the attachments of a batch of pulled revisions, before the
+ * revisions are inserted, on a bounded pool of threads.</p>
+ *
+ * <p>Attachments which the local datastore already holds are not
+ * downloaded:</p>
+ *
+ * <ul>
+ *     <li>If the revision at the attachment's {@code revpos} is in the
+ *     datastore with an attachment of the same name, the attachment is left
+ *     for the insert to copy forward, as before. The revisions are looked up
+ *     in one query for the whole batch.</li>
+ *     <li>If an attachment with the same digest and encoding is in the
+ *     datastore, its stored contents are used.</li>
+ *     <li>Attachments with the same digest are only downloaded once per
+ *     batch.</li>
+ * </ul>
+ *
+ * <p>Each download is a {@link ResumableAttachmentDownload}, retried using a
+ * {@link RetriableTask}, so a retry carries on from where the last attempt
+ * got to. Partial downloads are kept in the datastore's
+ * {@value #DOWNLOADS_EXTENSION_NAME} extension folder, so they can also be
+ * resumed by a later replication. New downloads
+ * wait while the total size of the downloads which haven't finished is over
+ * the limit, so the temporary files written at any one time stay bounded.</p>
+ */
+class AttachmentDownloader {
+
+    private static final String LOG_TAG = "AttachmentDownloader";
+    private static final Logger logger = Logger.getLogger(AttachmentDownloader.class.getCanonicalName());
+
+    static final String DOWNLOADS_EXTENSION_NAME = "com.cloudant.sync.replication.downloads";
+
+    private final ExecutorService executor;
+    private final long maxBytesInFlight;
+    private final int retries;
+    private final long retryWait;
+
+    // guarded by this
+    private final List<Future<PreparedAttachment>> pending =
+            new ArrayList<Future<PreparedAttachment>>();
+    private long bytesInFlight = 0;
+    private boolean shutdown = false;
+
+    /**
+     * @param threads maximum number of concurrent downloads
+     * @param maxBytesInFlight maximum total size of the downloads started but
+     *                         not yet finished. A single download larger than
+     *                         this is allowed once the others have finished.
+     */
+    public AttachmentDownloader(int threads, long maxBytesInFlight) {
+        this(threads, maxBytesInFlight, RetriableTask.DEFAULT_NUMBER_OF_RETRIES,
+                RetriableTask.DEFAULT_WAIT_TIME);
+    }
+
+    AttachmentDownloader(int threads, long maxBytesInFlight, int retries, long retryWait) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        Preconditions.checkArgument(maxBytesInFlight > 0, "maxBytesInFlight must be positive");
+        this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>());
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.retries = retries;
+        this.retryWait = retryWait;
+    }
+
+    /**
+     * <p>Prepares the attachments of every revision in {@code revsLists},
+     * downloading those the datastore doesn't already hold.</p>
+     *
+     * @param sourceDb the database the revisions were pulled from
+     * @param targetDb the datastore the revisions will be inserted into
+     * @param revsLists the pulled revisions
+     * @return the prepared attachments of each revision. Every revision has
+     *         an entry, which is empty if none of its attachments need to be
+     *         added.
+     * @throws ExecutionException if a download failed after being retried.
+     *         The remaining downloads are still waited for.
+     * @throws java.util.concurrent.CancellationException if the downloader
+     *         was shut down before the downloads finished
+     */
+    public Map<DocumentRevs, List<PreparedAttachment>> prepareAttachments(CouchDB sourceDb,
+            DatastoreWrapper targetDb, List<DocumentRevsList> revsLists) throws InterruptedException, ExecutionException {
+
+        Map<DocumentRevs, List<PreparedAttachment>> prepared =
+                new IdentityHashMap<DocumentRevs, List<PreparedAttachment>>();
+        List<RemoteAttachment> wanted = new ArrayList<RemoteAttachment>();
+        Multimap<String, String> revposRevisions = HashMultimap.create();
+
+        for (DocumentRevsList revsList : revsLists) {
+            for (DocumentRevs documentRevs : revsList) {
+                prepared.put(documentRevs, new ArrayList<PreparedAttachment>());
+                Map<String, Object> attachments = documentRevs.getAttachments();
+                if (attachments == null) {
+                    continue;
+                }
+                for (Map.Entry<String, Object> attachment : attachments.entrySet()) {
+                    RemoteAttachment remote = new RemoteAttachment(sourceDb, documentRevs,
+                            attachment.getKey(), (Map<String, Object>) attachment.getValue());
+                    wanted.add(remote);
+                    if (remote.revposRevId != null) {
+                        revposRevisions.put(documentRevs.getId(), remote.revposRevId);
+                    }
+                }
+            }
+        }
+
+        if (wanted.isEmpty()) {
+            return prepared;
+        }
+
+        // do we already have the attachment @ its revpos? if we do, then we
+        // don't need to fetch it, the insert copies it forward
+        Map<String, Multimap<String, String>> held = Collections.emptyMap();
+        if (!revposRevisions.isEmpty()) {
+            held = targetDb.getDbCore().attachmentNamesForRevisions(revposRevisions);
+            if (held == null) {
+                logger.warning("Failed to find the attachments already held, fetching them all");
+                held = Collections.emptyMap();
+            }
+        }
+        List<RemoteAttachment> missing = new ArrayList<RemoteAttachment>();
+        Map<String, Attachment> withDigests = new LinkedHashMap<String, Attachment>();
+        for (RemoteAttachment remote : wanted) {
+            Multimap<String, String> heldByDocument = held.get(remote.documentRevs.getId());
+            if (heldByDocument != null &&
+                    heldByDocument.containsEntry(remote.revposRevId, remote.name)) {
+                continue;
+            }
+            missing.add(remote);
+            if (remote.digest != null && !withDigests.containsKey(remote.digest)) {
+                withDigests.put(remote.digest, remote);
+            }
+        }
+
+        // do we have the same contents under another document or name?
+        Map<String, PreparedAttachment> stored = Collections.emptyMap();
+        if (!withDigests.isEmpty()) {
+            stored = targetDb.getDbCore().prepareAttachmentsWithDigests(withDigests);
+            if (stored == null) {
+                logger.warning("Failed to find attachments by digest, downloading them all");
+                stored = Collections.emptyMap();
+            }
+        }
+
+        // download each of the other digests once
+        Map<String, List<RemoteAttachment>> downloads =
+                new LinkedHashMap<String, List<RemoteAttachment>>();
+        int reused = 0;
+        for (RemoteAttachment remote : missing) {
+            PreparedAttachment contents = remote.digest != null ? stored.get(remote.digest) : null;
+            if (contents != null) {
+                prepared.get(remote.documentRevs).add(new PreparedAttachment(remote, contents));
+                reused++;
+                continue;
+            }
+            String key = remote.digest != null ? remote.digest : "noDigest-" + downloads.size();
+            List<RemoteAttachment> sameContents = downloads.get(key);
+            if (sameContents == null) {
+                sameContents = new ArrayList<RemoteAttachment>();
+                downloads.put(key, sameContents);
+            }
+            sameContents.add(remote);
+        }
+        logger.fine(String.format("%s: %d attachments to prepare, %d found in the datastore " +
+                "by digest, %d downloads", LOG_TAG, missing.size(), reused, downloads.size()));
+
+        File downloadsDir = downloadsDir(targetDb);
+        List<Future<PreparedAttachment>> futures = new ArrayList<Future<PreparedAttachment>>();
+        for (List<RemoteAttachment> sameContents : downloads.values()) {
+            RemoteAttachment remote = sameContents.get(0);
+            futures.add(submit(remote.getSize(), new ResumableAttachmentDownload(sourceDb,
+                    remote.documentRevs.getId(), remote.documentRevs.getRev(), remote,
+                    remote.digest, remote.length, downloadsDir)));
+        }
+
+        ExecutionException failure = null;
+        int i = 0;
+        for (List<RemoteAttachment> sameContents : downloads.values()) {
+            try {
+                PreparedAttachment contents = futures.get(i++).get();
+                for (RemoteAttachment remote : sameContents) {
+                    prepared.get(remote.documentRevs).add(remote == sameContents.get(0) ?
+                            contents : new PreparedAttachment(remote, contents));
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        synchronized (this) {
+            pending.removeAll(futures);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return prepared;
+    }
+
+    /**
+     * Lets the downloads already started finish and releases the threads
+     * once they have.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+        executor.shutdown();
+    }
+
+    /**
+     * Cancels the downloads which haven't finished, interrupting those which
+     * are running.
+     */
+    public synchronized void shutdownNow() {
+        shutdown = true;
+        notifyAll();
+        for (Future<PreparedAttachment> future : pending) {
+            future.cancel(true);
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Deletes the partial downloads which haven't been written to since
+     * {@code time}, for example those left by attachments which a
+     * replication which has since completed no longer needed.
+     */
+    public void deletePartialDownloads(DatastoreWrapper targetDb, long time) {
+        File[] files = downloadsDir(targetDb).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.lastModified() < time && !file.delete()) {
+                logger.warning("Could not delete partial download " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static File downloadsDir(DatastoreWrapper targetDb) {
+        File dir = new File(targetDb.getDbCore().extensionDataFolder(DOWNLOADS_EXTENSION_NAME));
+        dir.mkdirs();
+        return dir;
+    }
+
+    private Future<PreparedAttachment> submit(final long bytes,
+                                              ResumableAttachmentDownload download)
+            throws InterruptedException {
+        reserve(bytes);
+        // by preparing the attachment here, it is downloaded outside of the
+        // database transaction
+        final Callable<PreparedAttachment> retriable = new RetriableTask<PreparedAttachment>(
+                retries, retryWait, download);
+        synchronized (this) {
+            Future<PreparedAttachment> future = executor.submit(new Callable<PreparedAttachment>() {
+                @Override
+                public PreparedAttachment call() throws Exception {
+                    try {
+                        return retriable.call();
+                    } finally {
+                        release(bytes);
+                    }
+                }
+            });
+            if (shutdown) {
+                future.cancel(true);
+            }
+            pending.add(future);
+            return future;
+        }
+    }
+
+    private synchronized void reserve(long bytes) throws InterruptedException {
+        // a download larger than the limit goes on its own
+        while (!shutdown && bytesInFlight > 0 && bytesInFlight + bytes > maxBytesInFlight) {
+            wait();
+        }
+        bytesInFlight += bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        bytesInFlight -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * An attachment of a pulled revision, which is only fetched from the
+     * source database when its stream is read.
+     */
+    private static class RemoteAttachment extends Attachment {
+
+        private final CouchDB sourceDb;
+        final DocumentRevs documentRevs;
+        final String digest;
+        final String revposRevId;
+        private final String encodingString;
+        private final long size;
+        final long length;
+
+        RemoteAttachment(CouchDB sourceDb, DocumentRevs documentRevs, String name,
+                         Map<String, Object> metadata) {
+            super(name, (String) metadata.get("content_type"),
+                    Attachment.getEncodingFromString((String) metadata.get("encoding")));
+            this.sourceDb = sourceDb;
+            this.documentRevs = documentRevs;
+            this.digest = (String) metadata.get("digest");
+            this.encodingString = (String) metadata.get("encoding");
+
+            Object length = metadata.containsKey("encoded_length") ?
+                    metadata.get("encoded_length") : metadata.get("length");
+            this.size = length instanceof Number ? ((Number) length).longValue() : 0;
+            Object decodedLength = metadata.get("length");
+            this.length = decodedLength instanceof Number ?
+                    ((Number) decodedLength).longValue() : -1;
+
+            // the ID of the revision the attachment was last changed in, if
+            // it's in this revision's history
+            String revposRevId = null;
+            Object revpos = metadata.get("revpos");
+            DocumentRevs.Revisions revs = documentRevs.getRevisions();
+            if (revpos instanceof Number && revs != null) {
+                int offset = revs.getStart() - ((Number) revpos).intValue();
+                if (offset >= 0 && offset < revs.getIds().size()) {
+                    revposRevId = String.valueOf(revpos) + "-" + revs.getIds().get(offset);
+                }
+            }
+            this.revposRevId = revposRevId;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return sourceDb.getAttachmentStream(documentRevs.getId(), documentRevs.getRev(),
+                    name, type, encodingString).getInputStream();
+        }
+    }
+}
@@ -17,15 +17,11 @@ package com.cloudant.sync.replication;
 import com.cloudant.mazha.ChangesResult;
 import com.cloudant.mazha.CouchConfig;
 import com.cloudant.mazha.DocumentRevs;
-import com.cloudant.sync.datastore.Attachment;
 import com.cloudant.sync.datastore.DatastoreException;
 import com.cloudant.sync.datastore.DatastoreExtended;
-import com.cloudant.sync.datastore.BasicDocumentRevision;
 import com.cloudant.sync.datastore.DocumentException;
-import com.cloudant.sync.datastore.DocumentNotFoundException;
 import com.cloudant.sync.datastore.DocumentRevsList;
 import com.cloudant.sync.datastore.PreparedAttachment;
-import com.cloudant.sync.datastore.UnsavedStreamAttachment;
 import com.cloudant.sync.util.JSONUtils;
 import com.cloudant.sync.util.Misc;
 import com.google.common.base.Preconditions;
@@ -43,6 +39,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -61,6 +58,7 @@ class BasicPullStrategy implements ReplicationStrategy {
     DatastoreWrapper targetDb;
 
     ExecutorService executor;
+    AttachmentDownloader downloader;
     private PullConfiguration config;
 
     int documentCounter = 0;
@@ -105,6 +103,9 @@ class BasicPullStrategy implements ReplicationStrategy {
         CouchConfig couchConfig = pullReplication.getCouchConfig();
         this.sourceDb = new CouchClientWrapper(couchConfig);
         this.targetDb = new DatastoreWrapper((DatastoreExtended) pullReplication.target);
+        // one download per connection the client may open
+        this.downloader = new AttachmentDownloader(Math.max(1, couchConfig.getMaxConnections()),
+                config.maxDownloadBytesInFlight);
         this.name = String.format("%s [%s]", LOG_TAG, pullReplication.getReplicatorName());
     }
 
@@ -119,6 +120,7 @@ class BasicPullStrategy implements ReplicationStrategy {
 
         // Don't process further tasks to hasten shutdown
         this.executor.shutdownNow();
+        this.downloader.shutdownNow();
     }
 
     public int getDocumentCounter() {
@@ -151,6 +153,7 @@ class BasicPullStrategy implements ReplicationStrategy {
             errorInfo = new ErrorInfo(e);
         } finally {
             this.executor.shutdownNow();
+            this.downloader.shutdown();
         }
 
         // Give the in-flight HTTP requests time to complete. It's not vital
@@ -244,6 +247,12 @@ class BasicPullStrategy implements ReplicationStrategy {
             this.documentCounter
         );
         logger.info(msg);
+
+        // the attachments pulled have all been inserted, so any partial
+        // downloads left from before this replication aren't needed
+        if (!this.cancel) {
+            this.downloader.deletePartialDownloads(this.targetDb, startTime);
+        }
     }
 
     private int processOneChangesBatch(ChangesResultWrapper changeFeeds)
@@ -270,67 +279,51 @@ class BasicPullStrategy implements ReplicationStrategy {
             List<Callable<DocumentRevsList>> tasks = createTasks(batch, missingRevisions);
             try {
                 List<Future<DocumentRevsList>> futures = executor.invokeAll(tasks);
+                List<DocumentRevsList> results = new ArrayList<DocumentRevsList>();
                 for(Future<DocumentRevsList> future : futures) {
-                    DocumentRevsList result = future.get();
+                    results.add(future.get());
+                }
+
+                // We promise not to insert documents after cancel is set
+                if (this.cancel) { break; }
+
+                // attachments for the whole batch are downloaded together, in
+                // parallel, before any of its documents are inserted
+                Map<DocumentRevs, List<PreparedAttachment>> preparedAttachments = null;
+                if (!config.pullAttachmentsInline) {
+                    try {
+                        preparedAttachments = this.downloader.prepareAttachments(
+                                this.sourceDb, this.targetDb, results);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (CancellationException e) {
+                        // the downloads were cancelled by setCancel()
+                        this.cancel = true;
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE,
+                                "There was a problem downloading an attachment to the" +
+                                        " datastore, terminating replication",
+                                e);
+                        this.cancel = true;
+                    }
+                }
 
-                    // We promise not to insert documents after cancel is set
-                    if (this.cancel) { break; }
+                for (DocumentRevsList result : results) {
+
+                    if (this.cancel)
+                        break;
 
                     // attachments, keyed by docId and revId, so that
                     // we can add the attachments to the correct leaf
                     // nodes
                     HashMap<String[], List<PreparedAttachment>> atts = new HashMap<String[], List<PreparedAttachment>>();
-
-                    // now put together a list of attachments we need to download
-                    if (!config.pullAttachmentsInline) {
-                        try {
-                            for (DocumentRevs documentRevs : result) {
-                                Map<String, Object> attachments = documentRevs.getAttachments();
-                                // keep track of attachments we are going to prepare
-                                ArrayList<PreparedAttachment> preparedAtts = new ArrayList<PreparedAttachment>();
-                                atts.put(new String[]{documentRevs.getId(), documentRevs.getRev()}, preparedAtts);
-
-                                for (String attachmentName : attachments.keySet()) {
-                                    int revpos = (Integer) ((Map<String, Object>) attachments.get(attachmentName)).get("revpos");
-                                    // do we already have the attachment @ this revpos?
-                                    // look back up the tree for this document and see:
-                                    // if we already have it, then we don't need to fetch it
-                                    DocumentRevs.Revisions revs = documentRevs.getRevisions();
-                                    int offset = revs.getStart() - revpos;
-                                    if (offset >= 0 && offset < revs.getIds().size()) {
-                                        String revId = String.valueOf(revpos) + "-" + revs.getIds().get(offset);
-                                        try {
-                                            BasicDocumentRevision dr = this.targetDb.getDbCore().getDocument(documentRevs.getId(), revId);
-                                                Attachment a = this.targetDb.getDbCore()
-                                                        .getAttachment(dr, attachmentName);
-                                                if (a != null) {
-                                                    // skip attachment, already got it
-                                                    continue;
-                                                }
-                                        } catch (DocumentNotFoundException e){
-                                            //do nothing, we may not have the document yet
-                                        }
-                                    }
-                                    String contentType = ((Map<String, String>) attachments.get(attachmentName)).get("content_type");
-                                    String encoding = (String) ((Map<String, Object>) attachments.get(attachmentName)).get("encoding");
-                                    UnsavedStreamAttachment usa = this.sourceDb.getAttachmentStream(documentRevs.getId(), documentRevs.getRev(), attachmentName, contentType, encoding);
-
-                                    // by preparing the attachment here, it is downloaded outside of the database transaction
-                                    preparedAtts.add(this.targetDb.prepareAttachment(usa));
-                                }
-                            }
-                        } catch (Exception e) {
-                            logger.log(Level.SEVERE,
-                                    "There was a problem downloading an attachment to the" +
-                                            " datastore, terminating replication",
-                                    e);
-                            this.cancel = true;
+                    if (preparedAttachments != null) {
+                        for (DocumentRevs documentRevs : result) {
+                            atts.put(new String[]{documentRevs.getId(), documentRevs.getRev()},
+                                    preparedAttachments.get(documentRevs));
                         }
                     }
 
-                    if (this.cancel)
-                        break;
-
                     this.targetDb.bulkInsert(result, atts, config.pullAttachmentsInline);
                     changesProcessed++;
                 }
@@ -23,6 +23,7 @@ import com.cloudant.sync.datastore.DatastoreException;
 import com.cloudant.sync.datastore.DatastoreExtended;
 import com.cloudant.sync.datastore.BasicDocumentRevision;
 import com.cloudant.sync.datastore.DocumentException;
+import com.cloudant.sync.datastore.DocumentNotFoundException;
 import com.cloudant.sync.datastore.DocumentRevisionTree;
 import com.cloudant.sync.datastore.MultipartAttachmentWriter;
 import com.cloudant.sync.datastore.RevisionHistoryHelper;
@@ -41,6 +42,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -55,6 +57,9 @@ class BasicPushStrategy implements ReplicationStrategy {
 
     private final PushConfiguration config;
 
+    // uploads documents with attachments concurrently
+    MultipartUploader uploader;
+
     private int documentCounter = 0;
     private int batchCounter = 0;
 
@@ -91,6 +96,9 @@ class BasicPushStrategy implements ReplicationStrategy {
         this.sourceDb = new DatastoreWrapper((DatastoreExtended) pushReplication.source);
         // Push config is immutable
         this.config = config;
+        // one upload per connection the client may open
+        this.uploader = new MultipartUploader(Math.max(1, couchConfig.getMaxConnections()),
+                config.maxUploadBytesInFlight);
 
         this.name = String.format("%s [%s]", LOG_TAG, pushReplication.getReplicatorName());
     }
@@ -103,6 +111,9 @@ class BasicPushStrategy implements ReplicationStrategy {
     @Override
     public void setCancel() {
         this.cancel = true;
+
+        // Don't start further uploads, and interrupt those in progress
+        this.uploader.shutdownNow();
     }
 
     public int getDocumentCounter() {
@@ -127,9 +138,14 @@ class BasicPushStrategy implements ReplicationStrategy {
 
             replicate();
 
+        } catch (ExecutionException ex) {
+            logger.log(Level.SEVERE,String.format("Batch %s ended with error:", this.batchCounter),ex);
+            errorInfo = new ErrorInfo(ex.getCause());
         } catch (Throwable e) {
             logger.log(Level.SEVERE,String.format("Batch %s ended with error:", this.batchCounter),e);
             errorInfo = new ErrorInfo(e);
+        } finally {
+            this.uploader.shutdown();
         }
 
         replicationTerminated = true;
@@ -218,8 +234,10 @@ class BasicPushStrategy implements ReplicationStrategy {
     private Changes getNextBatch() throws ExecutionException, InterruptedException , DatastoreException{
         long lastPushSequence = getLastCheckpointSequence();
         logger.fine("Last push sequence from remote database: " + lastPushSequence);
+        // only the documents' IDs are needed to find the revisions to push,
+        // whose bodies are then read one at a time
         return this.sourceDb.getDbCore().changes(lastPushSequence,
-                config.changeLimitPerBatch);
+                config.changeLimitPerBatch, false);
     }
 
     /**
@@ -230,14 +248,15 @@ class BasicPushStrategy implements ReplicationStrategy {
     {
         public ItemsToPush() {
             serializedDocs = new ArrayList<String>();
-            multiparts = new ArrayList<MultipartAttachmentWriter>();
+            multiparts = new ArrayList<MultipartUploadTask>();
         }
 
         List<String> serializedDocs;
-        List<MultipartAttachmentWriter> multiparts;
+        List<MultipartUploadTask> multiparts;
     }
 
-    private int processOneChangesBatch(Changes changes) throws AttachmentException, DatastoreException {
+    private int processOneChangesBatch(Changes changes)
+            throws AttachmentException, DatastoreException, InterruptedException, ExecutionException {
 
         int changesProcessed = 0;
 
@@ -257,15 +276,32 @@ class BasicPushStrategy implements ReplicationStrategy {
 
             ItemsToPush itemsToPush = missingRevisionsToJsonDocs(allTrees, docMissingRevs);
             List<String> serialisedMissingRevs = itemsToPush.serializedDocs;
-            List<MultipartAttachmentWriter> multiparts = itemsToPush.multiparts;
+            List<MultipartUploadTask> multiparts = itemsToPush.multiparts;
 
             if (!this.cancel) {
-                this.targetDb.putMultiparts(multiparts);
+                // the uploads carry on while the following documents are
+                // diffed and sent to _bulk_docs
+                for (MultipartUploadTask multipart : multiparts) {
+                    this.uploader.submit(multipart);
+                }
                 this.targetDb.bulkSerializedDocs(serialisedMissingRevs);
                 changesProcessed += docMissingRevs.size();
             }
         }
 
+        if (this.cancel) {
+            return changesProcessed;
+        }
+
+        // Only checkpoint once every document up to the last sequence has
+        // been uploaded, so a failed upload is retried by the next replication
+        try {
+            this.uploader.awaitUploads();
+        } catch (CancellationException e) {
+            // cancelled while waiting for the uploads
+            return changesProcessed;
+        }
+
         if (!this.cancel) {
             try {
                 this.putCheckpoint(String.valueOf(changes.getLastSequence()));
@@ -280,7 +316,7 @@ class BasicPushStrategy implements ReplicationStrategy {
 
     private ItemsToPush missingRevisionsToJsonDocs(
             Map<String, DocumentRevisionTree> allTrees,
-            Map<String, Set<String>> revisions) throws AttachmentException {
+            Map<String, Set<String>> revisions) throws AttachmentException, DatastoreException {
 
         ItemsToPush itemsToPush = new ItemsToPush();
 
@@ -292,8 +328,18 @@ class BasicPushStrategy implements ReplicationStrategy {
                 long sequence = tree.lookup(docId, rev).getSequence();
                 List<BasicDocumentRevision> path = tree.getPathForNode(sequence);
 
+                // the trees hold only revision metadata, so load the body of the
+                // leaf of this path, which is the revision being pushed
+                BasicDocumentRevision dr;
+                try {
+                    dr = this.sourceDb.getDbCore().getDocument(docId, rev);
+                } catch (DocumentNotFoundException dnfe) {
+                    throw new DatastoreException(String.format("Failed to get revision %s " +
+                            "of document %s to push", rev, docId), dnfe);
+                }
+                path.set(0, dr);
+
                 // get the attachments for the leaf of this path
-                BasicDocumentRevision dr = path.get(0);
                 List<? extends Attachment> atts = this.sourceDb.getDbCore().attachmentsForRevision(dr);
 
                 // get the json, and inline any small attachments
@@ -305,7 +351,8 @@ class BasicPushStrategy implements ReplicationStrategy {
                 if (mpw == null) {
                     itemsToPush.serializedDocs.add(sJsonHelper.toJson(json));
                 } else {
-                    itemsToPush.multiparts.add(mpw);
+                    itemsToPush.multiparts.add(new MultipartUploadTask(this.targetDb, path, atts,
+                            this.config.pushAttachmentsInline, mpw));
                 }
             }
         }
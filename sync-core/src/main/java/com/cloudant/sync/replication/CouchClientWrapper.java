@@ -21,6 +21,7 @@ import com.cloudant.mazha.CouchException;
 import com.cloudant.mazha.DocumentRevs;
 import com.cloudant.mazha.OkOpenRevision;
 import com.cloudant.mazha.OpenRevision;
+import com.cloudant.mazha.RangeInputStream;
 import com.cloudant.mazha.Response;
 import com.cloudant.sync.datastore.Attachment;
 import com.cloudant.sync.datastore.BasicDocumentRevision;
@@ -236,11 +237,22 @@ public class CouchClientWrapper implements CouchDB {
         return responses;
     }
 
+    @Override
+    public Response putMultipart(MultipartAttachmentWriter multipart) {
+        logger.entering("com.cloudant.sync.replication.CouchClientWrapper","putMultipart",multipart);
+        return couchClient.putMultipart(multipart);
+    }
+
     @Override
     public Map<String, Set<String>> revsDiff(Map<String, Set<String>> revisions) {
         return this.couchClient.revsDiff(revisions);
     }
 
+    @Override
+    public RangeInputStream getAttachmentStream(String id, String rev, String attachmentName, long offset) {
+        return this.couchClient.getAttachmentStream(id, rev, attachmentName, offset);
+    }
+
     @Override
     public UnsavedStreamAttachment getAttachmentStream(String id, String rev, String attachmentName, String contentType, String encodingStr) {
         InputStream is = this.couchClient.getAttachmentStream(id, rev, attachmentName);
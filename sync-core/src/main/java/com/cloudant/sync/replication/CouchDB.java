@@ -16,6 +16,7 @@ package com.cloudant.sync.replication;
 
 import com.cloudant.mazha.ChangesResult;
 import com.cloudant.mazha.DocumentRevs;
+import com.cloudant.mazha.RangeInputStream;
 import com.cloudant.mazha.Response;
 import com.cloudant.sync.datastore.BasicDocumentRevision;
 import com.cloudant.sync.datastore.MultipartAttachmentWriter;
@@ -52,6 +53,12 @@ interface CouchDB {
     public void bulk(List<BasicDocumentRevision> revisions);
     public void bulkSerializedDocs(List<String> serializedDocs);
     public List<Response> putMultiparts(List<MultipartAttachmentWriter> multiparts);
+    public Response putMultipart(MultipartAttachmentWriter multipart);
     public Map<String, Set<String>> revsDiff(Map<String, Set<String>> revisions);
     public UnsavedStreamAttachment getAttachmentStream(String id, String rev, String attachmentName, String contentType, String encoding);
+    /**
+     * Returns an attachment as stored, from byte {@code offset} onwards if the
+     * server supports ranges, or else the whole attachment.
+     */
+    public RangeInputStream getAttachmentStream(String id, String rev, String attachmentName, long offset);
 }
@@ -26,10 +26,12 @@ import com.cloudant.sync.datastore.DocumentNotFoundException;
 import com.cloudant.sync.datastore.DocumentRevisionTree;
 import com.cloudant.sync.datastore.DocumentRevsList;
 import com.cloudant.sync.datastore.DocumentRevsUtils;
+import com.cloudant.sync.datastore.ForceInsertItem;
 import com.cloudant.sync.datastore.LocalDocument;
 import com.cloudant.sync.datastore.PreparedAttachment;
 import com.cloudant.sync.util.JSONUtils;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -89,6 +91,7 @@ class DatastoreWrapper {
     }
 
     public void bulkInsert(DocumentRevsList documentRevsList, Map<String[],List<PreparedAttachment>> preparedAttachments, boolean pullAttachmentsInline) throws DocumentException  {
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
         for(DocumentRevs documentRevs: documentRevsList) {
             logger.log(Level.FINEST,"Bulk inserting document revs: %s",documentRevs);
 
@@ -96,16 +99,22 @@ class DatastoreWrapper {
 
             List<String> revisions = DocumentRevsUtils.createRevisionIdHistory(documentRevs);
             Map<String, Object> attachments = documentRevs.getAttachments();
-            dbCore.forceInsert(doc, revisions, attachments,preparedAttachments, pullAttachmentsInline);
+            items.add(new ForceInsertItem(doc, revisions, attachments, preparedAttachments,
+                    pullAttachmentsInline));
         }
+        // inserting the batch together posts one DocumentsChanged event for it
+        dbCore.forceInsert(items);
     }
 
+    /**
+     * Returns the revision trees of {@code documents}, without the revisions' bodies.
+     */
     Map<String, DocumentRevisionTree> getDocumentTrees(List<BasicDocumentRevision> documents) {
         Map<String, DocumentRevisionTree> allDocumentTrees =
                 new HashMap<String, DocumentRevisionTree>();
         for(BasicDocumentRevision doc: documents) {
             DocumentRevisionTree tree =
-                    this.dbCore.getAllRevisionsOfDocument(doc.getId());
+                    this.dbCore.getAllRevisionsOfDocument(doc.getId(), false);
             allDocumentTrees.put(doc.getId(), tree);
         }
         return allDocumentTrees;
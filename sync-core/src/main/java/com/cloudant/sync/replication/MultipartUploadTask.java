@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.Response;
+import com.cloudant.sync.datastore.Attachment;
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.MultipartAttachmentWriter;
+import com.cloudant.sync.datastore.RevisionHistoryHelper;
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+/**
+ * MultipartUploadTask handles PUTting a document revision, along with the
+ * attachments which aren't inlined in its JSON, to the remote database as a
+ * multipart/related request.
+ *
+ * A writer's attachment streams can only be read once, so each attempt after
+ * the first sends a new {@code MultipartAttachmentWriter}. This means the
+ * task can be retried by wrapping it in a
+ * {@link com.cloudant.common.RetriableTask}.
+ */
+class MultipartUploadTask implements Callable<Response> {
+
+    private static final String LOG_TAG = "MultipartUploadTask";
+    private static final Logger logger = Logger.getLogger(MultipartUploadTask.class.getCanonicalName());
+
+    private final CouchDB targetDb;
+    private final List<BasicDocumentRevision> path;
+    private final List<? extends Attachment> attachments;
+    private final PushAttachmentsInline inlinePreference;
+    private final long contentLength;
+
+    // writer for the next attempt, if it has already been created
+    private MultipartAttachmentWriter writer;
+
+    /**
+     * @param targetDb the database to PUT the revision to
+     * @param path the revision's history, from the revision to its root
+     * @param attachments the revision's attachments
+     * @param inlinePreference which attachments are inlined in the JSON body
+     * @param writer the writer for the first attempt, created from the other
+     *               arguments by
+     *               {@link RevisionHistoryHelper#createMultipartWriter(List, List, PushAttachmentsInline)}
+     */
+    public MultipartUploadTask(CouchDB targetDb,
+                               List<BasicDocumentRevision> path,
+                               List<? extends Attachment> attachments,
+                               PushAttachmentsInline inlinePreference,
+                               MultipartAttachmentWriter writer) {
+        Preconditions.checkNotNull(targetDb, "targetDb cannot be null");
+        Preconditions.checkNotNull(path, "path cannot be null");
+        Preconditions.checkNotNull(writer, "writer cannot be null");
+
+        this.targetDb = targetDb;
+        this.path = path;
+        this.attachments = attachments;
+        this.inlinePreference = inlinePreference;
+        this.writer = writer;
+        this.contentLength = writer.getContentLength();
+    }
+
+    /**
+     * @return the number of bytes in the multipart request body
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public Response call() throws Exception {
+        MultipartAttachmentWriter mpw = this.writer;
+        this.writer = null;
+        if (mpw == null) {
+            mpw = RevisionHistoryHelper.createMultipartWriter(path, attachments, inlinePreference);
+        }
+        logger.finer("Uploading document: " + mpw.getId());
+        return this.targetDb.putMultipart(mpw);
+    }
+
+    @Override
+    public String toString() {
+        BasicDocumentRevision revision = this.path.get(0);
+        StringBuilder s = new StringBuilder("MultipartUploadTask: ")
+                .append("{ documentId : \"").append(revision.getId()).append("\", ")
+                .append("revision : \"").append(revision.getRevision()).append("\", ")
+                .append("contentLength : ").append(this.contentLength).append(" }");
+        return s.toString();
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.common.RetriableTask;
+import com.cloudant.mazha.Response;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Runs {@link MultipartUploadTask}s on a bounded pool of threads, so the
+ * documents of a push batch which carry attachments are uploaded
+ * concurrently.</p>
+ *
+ * <p>Each upload is retried using a {@link RetriableTask}. {@link #submit}
+ * blocks while the total size of the uploads which haven't finished is over
+ * the limit, so the uploads queued at any one time stay bounded.
+ * {@link #awaitUploads()} waits for every upload submitted so far, so the
+ * caller can checkpoint once all the documents up to a sequence have been
+ * pushed.</p>
+ */
+class MultipartUploader {
+
+    private final ExecutorService executor;
+    private final long maxBytesInFlight;
+    private final int retries;
+    private final long retryWait;
+
+    private final List<Future<Response>> pending = new ArrayList<Future<Response>>();
+
+    // guarded by this
+    private long bytesInFlight = 0;
+    private boolean shutdown = false;
+
+    /**
+     * @param threads maximum number of concurrent uploads
+     * @param maxBytesInFlight maximum total size of the uploads submitted but
+     *                         not yet finished. A single upload larger than
+     *                         this is allowed once the others have finished.
+     */
+    public MultipartUploader(int threads, long maxBytesInFlight) {
+        this(threads, maxBytesInFlight, RetriableTask.DEFAULT_NUMBER_OF_RETRIES,
+                RetriableTask.DEFAULT_WAIT_TIME);
+    }
+
+    MultipartUploader(int threads, long maxBytesInFlight, int retries, long retryWait) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        Preconditions.checkArgument(maxBytesInFlight > 0, "maxBytesInFlight must be positive");
+        this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>());
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.retries = retries;
+        this.retryWait = retryWait;
+    }
+
+    /**
+     * <p>Submits an upload, waiting until there is room for it under the
+     * limit on bytes in flight.</p>
+     *
+     * <p>Does nothing if the uploader has been shut down.</p>
+     */
+    public void submit(MultipartUploadTask task) throws InterruptedException {
+        final long bytes = task.getContentLength();
+        reserve(bytes);
+        final Callable<Response> retriable = new RetriableTask<Response>(retries, retryWait, task);
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            pending.add(executor.submit(new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    try {
+                        return retriable.call();
+                    } finally {
+                        release(bytes);
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * <p>Waits for all the uploads submitted so far to finish.</p>
+     *
+     * @return the responses to the uploads, in the order they were submitted
+     * @throws ExecutionException if an upload failed after being retried. The
+     *         remaining uploads are still waited for.
+     * @throws CancellationException if the uploader was shut down before the
+     *         uploads finished
+     */
+    public List<Response> awaitUploads() throws InterruptedException, ExecutionException {
+        List<Future<Response>> futures;
+        synchronized (this) {
+            futures = new ArrayList<Future<Response>>(pending);
+            pending.clear();
+        }
+        List<Response> responses = new ArrayList<Response>(futures.size());
+        ExecutionException failure = null;
+        for (Future<Response> future : futures) {
+            try {
+                responses.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return responses;
+    }
+
+    /**
+     * Stops accepting uploads, lets the uploads already submitted finish and
+     * releases the threads once they have.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+        executor.shutdown();
+    }
+
+    /**
+     * Stops accepting uploads and cancels the uploads which haven't finished,
+     * interrupting those which are running.
+     */
+    public synchronized void shutdownNow() {
+        shutdown = true;
+        notifyAll();
+        for (Future<Response> future : pending) {
+            future.cancel(true);
+        }
+        executor.shutdownNow();
+    }
+
+    private synchronized void reserve(long bytes) throws InterruptedException {
+        // an upload larger than the limit goes on its own
+        while (!shutdown && bytesInFlight > 0 && bytesInFlight + bytes > maxBytesInFlight) {
+            wait();
+        }
+        bytesInFlight += bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        bytesInFlight -= bytes;
+        notifyAll();
+    }
+}
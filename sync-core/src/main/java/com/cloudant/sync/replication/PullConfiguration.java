@@ -24,11 +24,14 @@ class PullConfiguration {
     public static final int DEFAULT_MAX_BATCH_COUNTER_PER_RUN = 100;
     public static final int DEFAULT_INSERT_BATCH_SIZE = 10;
     public static final boolean DEFAULT_PULL_ATTACHMENTS_INLINE = false;
+    // total size of the attachment downloads which can be in progress at once
+    public static final long DEFAULT_MAX_DOWNLOAD_BYTES_IN_FLIGHT = 32 * 1024 * 1024;
 
     final int changeLimitPerBatch;
     final int batchLimitPerRun;
     final int insertBatchSize;
     final boolean pullAttachmentsInline;
+    final long maxDownloadBytesInFlight;
 
     /**
      * <p>Construct a {@code PullConfiguration} with the default settings.</p>
@@ -48,9 +51,29 @@ class PullConfiguration {
      *                        at a time.
      */
     public PullConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize, boolean pullAttachmentsInline) {
+        this(changeLimitPerBatch, batchLimitPerRun, insertBatchSize, pullAttachmentsInline,
+                DEFAULT_MAX_DOWNLOAD_BYTES_IN_FLIGHT);
+    }
+
+    /**
+     * <p>Construct a {@code PullConfiguration} with custom settings.</p>
+     * @param changeLimitPerBatch  {@code limit} on {@code _changes} calls.
+     * @param batchLimitPerRun The maximum number of batches of changes pulled
+     *             from the remote datastore.
+     * @param insertBatchSize Number of changes inserted into local datastore
+     *                        at a time.
+     * @param pullAttachmentsInline Whether to pull attachments inline with
+     *                              the revisions rather than separately.
+     * @param maxDownloadBytesInFlight Total size in bytes of the attachments
+     *                                 being downloaded separately at any one
+     *                                 time.
+     */
+    public PullConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize,
+                             boolean pullAttachmentsInline, long maxDownloadBytesInFlight) {
         this.changeLimitPerBatch = changeLimitPerBatch;
         this.batchLimitPerRun = batchLimitPerRun;
         this.insertBatchSize = insertBatchSize;
         this.pullAttachmentsInline = pullAttachmentsInline;
+        this.maxDownloadBytesInFlight = maxDownloadBytesInFlight;
     }
 }
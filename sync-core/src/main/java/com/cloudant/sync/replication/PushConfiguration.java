@@ -25,11 +25,14 @@ class PushConfiguration {
     public static final int DEFAULT_BULK_INSERT_SIZE = 10;
     // by default push small attachments as inline base64, and larger ones as multipart
     public static final PushAttachmentsInline DEFAULT_PUSH_ATTACHMENTS_INLINE = PushAttachmentsInline.Small;
+    // total size of the multipart uploads which can be queued or in progress at once
+    public static final long DEFAULT_MAX_UPLOAD_BYTES_IN_FLIGHT = 32 * 1024 * 1024;
 
     final int changeLimitPerBatch;
     final int batchLimitPerRun;
     final int bulkInsertSize;
     final PushAttachmentsInline pushAttachmentsInline;
+    final long maxUploadBytesInFlight;
 
     /**
      * <p>Construct a {@code PushConfiguration} with the default settings.</p>
@@ -53,9 +56,31 @@ class PushConfiguration {
      *                              inline or separately.
      */
     public PushConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize, PushAttachmentsInline pushAttachmentsInline) {
+        this(changeLimitPerBatch, batchLimitPerRun, insertBatchSize, pushAttachmentsInline,
+                DEFAULT_MAX_UPLOAD_BYTES_IN_FLIGHT);
+    }
+
+    /**
+     * <p>Construct a {@code PushConfiguration} with custom settings.</p>
+     * @param changeLimitPerBatch Number of changes pulled from local datastore
+     *                            at a time.
+     * @param batchLimitPerRun The maximum number of batches of changes pulled
+     *             from the local datastore.
+     * @param insertBatchSize Number of changes inserted into remote datastore
+     *                        at a time.
+     * @param pushAttachmentsInline Strategy to decide whether to push attachment
+     *                              inline or separately.
+     * @param maxUploadBytesInFlight Total size in bytes of the documents with
+     *                               attachments being uploaded as multipart
+     *                               requests, or waiting to be, at any one time.
+     */
+    public PushConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize,
+                             PushAttachmentsInline pushAttachmentsInline,
+                             long maxUploadBytesInFlight) {
         this.changeLimitPerBatch = changeLimitPerBatch;
         this.batchLimitPerRun = batchLimitPerRun;
         this.bulkInsertSize = insertBatchSize;
         this.pushAttachmentsInline = pushAttachmentsInline;
+        this.maxUploadBytesInFlight = maxUploadBytesInFlight;
     }
 }
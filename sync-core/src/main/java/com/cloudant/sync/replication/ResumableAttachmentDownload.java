@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.CouchException;
+import com.cloudant.mazha.RangeInputStream;
+import com.cloudant.sync.datastore.Attachment;
+import com.cloudant.sync.datastore.AttachmentNotSavedException;
+import com.cloudant.sync.datastore.PreparedAttachment;
+import com.cloudant.sync.util.Misc;
+import com.google.common.base.Preconditions;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+/**
+ * <p>Downloads an attachment of a revision to a partial file named after the
+ * document ID, revision ID and attachment name, and prepares it.</p>
+ *
+ * <p>If the partial file already holds part of the attachment, for example
+ * because an earlier attempt lost its connection, the rest of the attachment
+ * is requested using a {@code Range} request and appended to it. If the
+ * server sends the whole attachment instead, the partial file is
+ * overwritten.</p>
+ *
+ * <p>When the revision gives the attachment's digest, the downloaded
+ * contents are checked against it. A partial file which doesn't match is
+ * deleted, so the next attempt starts from the beginning.</p>
+ */
+class ResumableAttachmentDownload implements Callable<PreparedAttachment> {
+
+    private static final Logger logger = Logger.getLogger(ResumableAttachmentDownload.class.getCanonicalName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CouchDB sourceDb;
+    private final String documentId;
+    private final String revisionId;
+    private final Attachment attachment;
+    private final String digest;
+    private final long length;
+    private final File partialFile;
+
+    /**
+     * @param attachment gives the name, type and encoding of the attachment
+     * @param digest the attachment's digest in the revision, or null if it
+     *               isn't known
+     * @param length the attachment's decoded length in the revision, or -1
+     *               if it isn't known
+     * @param downloadsDir the directory holding partial downloads
+     */
+    public ResumableAttachmentDownload(CouchDB sourceDb, String documentId, String revisionId,
+                                       Attachment attachment, String digest, long length,
+                                       File downloadsDir) {
+        Preconditions.checkNotNull(sourceDb, "sourceDb must not be null");
+        Preconditions.checkNotNull(attachment, "attachment must not be null");
+        Preconditions.checkNotNull(downloadsDir, "downloadsDir must not be null");
+        this.sourceDb = sourceDb;
+        this.documentId = documentId;
+        this.revisionId = revisionId;
+        this.attachment = attachment;
+        this.digest = digest;
+        this.length = length;
+        this.partialFile = new File(downloadsDir,
+                partialFileName(documentId, revisionId, attachment.name));
+    }
+
+    File getPartialFile() {
+        return partialFile;
+    }
+
+    @Override
+    public PreparedAttachment call() throws Exception {
+        long offset = partialFile.length();
+        RangeInputStream is = null;
+        try {
+            is = sourceDb.getAttachmentStream(documentId, revisionId, attachment.name, offset);
+        } catch (CouchException e) {
+            if (offset == 0 ||
+                    e.getStatusCode() != HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                throw e;
+            }
+            // the partial file already holds the whole attachment
+            logger.fine(String.format("%s is already downloaded", partialFile));
+        }
+
+        if (is != null) {
+            OutputStream os = null;
+            try {
+                if (is.getOffset() != 0 && is.getOffset() != offset) {
+                    throw new IOException(String.format("Asked for %s from byte %d, got byte %d",
+                            attachment.name, offset, is.getOffset()));
+                }
+                if (offset > 0) {
+                    logger.fine(String.format("Resuming %s from byte %d", partialFile,
+                            is.getOffset()));
+                }
+                // append when the server sent the rest of the attachment,
+                // otherwise start again
+                os = new FileOutputStream(partialFile, is.getOffset() > 0);
+                IOUtils.copyLarge(is, os, new byte[BUFFER_SIZE]);
+            } finally {
+                IOUtils.closeQuietly(os);
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        // a gzip encoded attachment is stored as the server sent it, so the
+        // file's size is its encoded length
+        PreparedAttachment prepared = new PreparedAttachment(attachment, partialFile, length);
+        if (digest != null && !digest.equals(prepared.digest)) {
+            partialFile.delete();
+            throw new AttachmentNotSavedException(String.format(
+                    "Downloaded %s has digest %s rather than %s", attachment.name,
+                    prepared.digest, digest));
+        }
+        return prepared;
+    }
+
+    private static String partialFileName(String documentId, String revisionId, String name) {
+        String key = documentId + "\n" + revisionId + "\n" + name;
+        byte[] sha1 = Misc.getSha1(new ByteArrayInputStream(key.getBytes(Charset.forName("UTF-8"))));
+        return "partial" + new String(new Hex().encode(sha1));
+    }
+}
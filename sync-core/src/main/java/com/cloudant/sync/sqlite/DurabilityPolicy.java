@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.sqlite;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>Provides configuration for how a datastore's writes are made durable.</p>
+ *
+ * <p>By default SQLite uses a rollback journal and {@code synchronous=FULL},
+ * so every transaction waits for several syncs to disk before it is
+ * committed. Relaxing this makes writes much faster, at the cost of what may
+ * be lost if the device loses power or the OS crashes. An application crash
+ * on its own never loses committed data in any of these modes.</p>
+ *
+ * <p>Configure a policy by assigning to its attributes after construction,
+ * then pass it to
+ * {@link com.cloudant.sync.datastore.DatastoreManager#openDatastore(String, DurabilityPolicy)}.
+ * Attributes left unset keep SQLite's default behaviour.</p>
+ *
+ * @see <a href="https://www.sqlite.org/pragma.html#pragma_synchronous">SQLite synchronous pragma</a>
+ * @see <a href="https://www.sqlite.org/wal.html">SQLite write-ahead logging</a>
+ */
+public class DurabilityPolicy {
+
+    /**
+     * SQLite journal modes.
+     */
+    public enum JournalMode {
+        /** Rollback journal deleted at the end of each transaction. */
+        DELETE,
+        /** Rollback journal truncated at the end of each transaction. */
+        TRUNCATE,
+        /** Write-ahead log. Readers don't block writers, and commits need fewer syncs. */
+        WAL
+    }
+
+    /**
+     * SQLite {@code synchronous} levels.
+     */
+    public enum Synchronous {
+        /** Never sync. Fastest, but a power loss can corrupt the database. */
+        OFF,
+        /**
+         * Sync at critical moments only. With {@link JournalMode#WAL}, a power
+         * loss may roll back the most recent transactions but can't corrupt
+         * the database.
+         */
+        NORMAL,
+        /** Sync on every commit. SQLite's default. */
+        FULL
+    }
+
+    /**
+     * The journal mode, or null to keep the database's current mode.
+     *
+     * Once set to {@link JournalMode#WAL} the mode is persistent, so it
+     * remains in effect when the datastore is next opened.
+     */
+    public JournalMode journalMode;
+
+    /**
+     * The {@code synchronous} level, or null to keep SQLite's default of
+     * {@link Synchronous#FULL}.
+     */
+    public Synchronous synchronous;
+
+    /**
+     * Number of pages the write-ahead log may grow to before it is
+     * checkpointed into the database file, or -1 for SQLite's default of
+     * 1000. 0 turns off automatic checkpoints. Only used in
+     * {@link JournalMode#WAL} mode.
+     */
+    public int walAutoCheckpoint = -1;
+
+    /**
+     * If greater than 0, transactions submitted within this many milliseconds
+     * of each other are committed together, so they share one sync to disk.
+     *
+     * This increases throughput when several threads write at once, but each
+     * write waits up to this long before it is committed and returns.
+     */
+    public long groupCommitWindowMillis = 0;
+
+    /**
+     * Maximum number of transactions committed together by group commit.
+     * A group is committed as soon as it reaches this size.
+     */
+    public int groupCommitMaxTransactions = 100;
+
+    /**
+     * Constructs a DurabilityPolicy which keeps SQLite's default behaviour,
+     * configured by assigning to the instance's attributes after construction.
+     */
+    public DurabilityPolicy() {
+        /* Does nothing but we can now document it */
+    }
+
+    void validate() {
+        Preconditions.checkArgument(walAutoCheckpoint >= -1,
+                "walAutoCheckpoint must be -1 or greater");
+        Preconditions.checkArgument(groupCommitWindowMillis >= 0,
+                "groupCommitWindowMillis must not be negative");
+        Preconditions.checkArgument(groupCommitMaxTransactions > 0,
+                "groupCommitMaxTransactions must be positive");
+    }
+}
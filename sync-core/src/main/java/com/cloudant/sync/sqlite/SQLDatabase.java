@@ -173,6 +173,22 @@ public abstract class SQLDatabase {
      */
      public abstract void setTransactionSuccessful();
 
+    /**
+     * Rolls back the work done since the savepoint {@code name} was started. The savepoint,
+     * and any transaction it is nested in, stay open; release the savepoint to end it.
+     * <p>
+     * Use this rather than executing ROLLBACK TO SAVEPOINT with {@link #execSQL(String)},
+     * as some implementations treat any statement starting with ROLLBACK as ending the
+     * whole transaction.
+     * </p>
+     *
+     * @param name the name of the savepoint
+     * @throws java.sql.SQLException if the savepoint doesn't exist
+     */
+    public void rollbackToSavepoint(String name) throws SQLException {
+        execSQL("ROLLBACK TO SAVEPOINT " + name);
+    }
+
     /**
      * Convenience method for updating rows in the database.
      *
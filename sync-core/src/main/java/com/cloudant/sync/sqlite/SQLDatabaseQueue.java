@@ -14,13 +14,21 @@
 
 package com.cloudant.sync.sqlite;
 
+import com.cloudant.sync.util.DatabaseUtils;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,28 +36,99 @@ import java.util.logging.Logger;
  * SQLDatabaseQuue provides the ability to ensure that the
  * only a single thread accesses the SQLDatabase. Tasks submitted to this
  * queue are guaranteed to be executed in the order they are received
+ *
+ * If the queue's {@link DurabilityPolicy} enables group commit, consecutive
+ * tasks submitted with {@link #submitTransaction(SQLQueueCallable)} are run
+ * in one SQLite transaction, each inside its own savepoint, and committed
+ * together. A task's future completes once its group is committed. Any other
+ * task commits the open group before it runs. Transaction tasks must not
+ * begin their own transactions when group commit is enabled.
  */
 public class SQLDatabaseQueue {
 
+    private static final String GROUP_SAVEPOINT = "group_commit";
+    private static final String TRANSACTION_SAVEPOINT = "group_commit_transaction";
+
     private final SQLDatabase db;
-    private final ExecutorService queue = Executors.newSingleThreadExecutor();
+    private final ListeningScheduledExecutorService queue =
+            MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor());
     private final Logger logger = Logger.getLogger(SQLDatabase.class.getCanonicalName());
 
+    private final long groupCommitWindowMillis;
+    private final int groupCommitMaxTransactions;
+
+    // Group commit state, only used on the queue thread
+    private final List<GroupedTransaction<?>> group = new ArrayList<GroupedTransaction<?>>();
+    private boolean groupOpen = false;
+    private long groupNumber = 0;
+
     /**
      * Creates an SQLQueue for the database specified.
      * @param filename The file where the database is located
      * @throws IOException If an problem is encountered creating the DB
      */
     public SQLDatabaseQueue(String filename) throws IOException {
+        this(filename, new DurabilityPolicy());
+    }
+
+    /**
+     * Creates an SQLQueue for the database specified, applying a
+     * durability policy when the database is opened.
+     * @param filename The file where the database is located
+     * @param policy How writes to the database are made durable
+     * @throws IOException If an problem is encountered creating the DB
+     */
+    public SQLDatabaseQueue(String filename, final DurabilityPolicy policy) throws IOException {
+        policy.validate();
         this.db = SQLDatabaseFactory.createSQLDatabase(filename);
+        this.groupCommitWindowMillis = policy.groupCommitWindowMillis;
+        this.groupCommitMaxTransactions = policy.groupCommitMaxTransactions;
+        final DurabilityPolicy.JournalMode journalMode = policy.journalMode;
+        final DurabilityPolicy.Synchronous synchronous = policy.synchronous;
+        final int walAutoCheckpoint = policy.walAutoCheckpoint;
         queue.submit(new Runnable() {
             @Override
             public void run() {
                 db.open();
+                try {
+                    if (journalMode != null) {
+                        String mode = pragma("journal_mode = " + journalMode.name(), true);
+                        if (!journalMode.name().equalsIgnoreCase(mode)) {
+                            logger.warning(String.format("Journal mode %s requested, but database is using %s",
+                                    journalMode, mode));
+                        }
+                    }
+                    if (synchronous != null) {
+                        pragma("synchronous = " + synchronous.name(), false);
+                    }
+                    if (walAutoCheckpoint >= 0) {
+                        pragma("wal_autocheckpoint = " + walAutoCheckpoint, false);
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Failed to apply durability policy", e);
+                }
             }
         });
     }
 
+    /**
+     * Runs a PRAGMA statement, returning the first column of its result as
+     * text if it returns one. Some PRAGMAs return their new value, so they
+     * can't be run with execSQL on all platforms.
+     */
+    private String pragma(String statement, boolean textResult) throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA " + statement + ";", null);
+            if (cursor.moveToFirst() && textResult) {
+                return cursor.getString(0).toUpperCase(Locale.ENGLISH);
+            }
+            return null;
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+
     /**
      * Updates the schema of the database.
      * @param schema The new Schmea for the database
@@ -59,6 +138,7 @@ public class SQLDatabaseQueue {
         queue.submit(new Callable<Object>() {
             @Override
             public Object call() throws Exception {
+                commitGroup();
                 SQLDatabaseFactory.updateSchema(db,schema,version);
                 return null;
             }
@@ -92,12 +172,21 @@ public class SQLDatabaseQueue {
      * Submits a database task for execution
      * @param callable The task to be performed
      * @param <T> The type of object that is returned from the task
-     * @return
+     * @return a future which completes with the task's result once it has run
      */
-    public <T> Future<T> submit(SQLQueueCallable<T> callable){
+    public <T> ListenableFuture<T> submit(final SQLQueueCallable<T> callable){
         callable.setDb(db);
         callable.setRunInTransaction(false);
-        return queue.submit(callable);
+        if (groupCommitWindowMillis <= 0) {
+            return queue.submit(callable);
+        }
+        return queue.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                commitGroup();
+                return callable.call();
+            }
+        });
 
     }
 
@@ -105,12 +194,140 @@ public class SQLDatabaseQueue {
      * submits a database task for execution in a transaction
      * @param callable
      * @param <T>
-     * @return
+     * @return a future which completes with the task's result once its
+     *         transaction is committed
      */
-    public <T> Future<T> submitTransaction(SQLQueueCallable<T> callable){
+    public <T> ListenableFuture<T> submitTransaction(final SQLQueueCallable<T> callable){
         callable.setDb(db);
-        callable.setRunInTransaction(true);
-        return queue.submit(callable);
+        if (groupCommitWindowMillis <= 0) {
+            callable.setRunInTransaction(true);
+            return queue.submit(callable);
+        }
+        // the group's savepoints take the place of the callable's own transaction
+        callable.setRunInTransaction(false);
+        final SettableFuture<T> future = SettableFuture.create();
+        queue.submit(new Runnable() {
+            @Override
+            public void run() {
+                runInGroup(callable, future);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs a transaction task in the open group, starting a new group if
+     * there isn't one. The task's changes are undone if it fails, without
+     * affecting the rest of the group.
+     */
+    private <T> void runInGroup(SQLQueueCallable<T> callable, SettableFuture<T> future) {
+        try {
+            if (!groupOpen) {
+                // a savepoint outside a transaction begins one, and
+                // releasing it commits, reporting any error
+                db.execSQL("SAVEPOINT " + GROUP_SAVEPOINT);
+                groupOpen = true;
+                final long number = ++groupNumber;
+                queue.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (groupOpen && groupNumber == number) {
+                            commitGroup();
+                        }
+                    }
+                }, groupCommitWindowMillis, TimeUnit.MILLISECONDS);
+            }
+            db.execSQL("SAVEPOINT " + TRANSACTION_SAVEPOINT);
+        } catch (Exception e) {
+            future.setException(e);
+            abortGroup(e);
+            return;
+        }
+
+        T result;
+        try {
+            result = callable.call();
+        } catch (Throwable e) {
+            future.setException(e);
+            try {
+                db.rollbackToSavepoint(TRANSACTION_SAVEPOINT);
+                db.execSQL("RELEASE SAVEPOINT " + TRANSACTION_SAVEPOINT);
+            } catch (Exception e2) {
+                abortGroup(e2);
+            }
+            return;
+        }
+
+        try {
+            db.execSQL("RELEASE SAVEPOINT " + TRANSACTION_SAVEPOINT);
+        } catch (Exception e) {
+            future.setException(e);
+            abortGroup(e);
+            return;
+        }
+        group.add(new GroupedTransaction<T>(future, result));
+        if (group.size() >= groupCommitMaxTransactions) {
+            commitGroup();
+        }
+    }
+
+    /**
+     * Commits the open group, if there is one, then completes the futures of
+     * the transactions in it.
+     */
+    private void commitGroup() {
+        if (!groupOpen) {
+            return;
+        }
+        try {
+            db.execSQL("RELEASE SAVEPOINT " + GROUP_SAVEPOINT);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to commit group of transactions", e);
+            abortGroup(e);
+            return;
+        }
+        groupOpen = false;
+        for (GroupedTransaction<?> transaction : group) {
+            transaction.committed();
+        }
+        group.clear();
+    }
+
+    /**
+     * Rolls back the open group and fails the futures of the transactions
+     * in it.
+     */
+    private void abortGroup(Throwable cause) {
+        if (groupOpen) {
+            try {
+                db.rollbackToSavepoint(GROUP_SAVEPOINT);
+                db.execSQL("RELEASE SAVEPOINT " + GROUP_SAVEPOINT);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Failed to roll back group of transactions", e);
+            }
+            groupOpen = false;
+        }
+        for (GroupedTransaction<?> transaction : group) {
+            transaction.future.setException(cause);
+        }
+        group.clear();
+    }
+
+    /**
+     * A transaction waiting for its group to be committed.
+     */
+    private static class GroupedTransaction<T> {
+        final SettableFuture<T> future;
+        final T result;
+
+        GroupedTransaction(SettableFuture<T> future, T result) {
+            this.future = future;
+            this.result = result;
+        }
+
+        void committed() {
+            future.set(result);
+        }
     }
 
     /**
@@ -124,6 +341,7 @@ public class SQLDatabaseQueue {
         queue.submit(new Runnable() {
             @Override
             public void run() {
+                commitGroup();
                 db.close();
             }
         });
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.mazha;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests range requests for attachments against a stub HTTP server on
+ * localhost, rather than a running CouchDB.
+ */
+public class AttachmentRangeTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+
+    HttpServer server;
+    CouchClient client;
+    byte[] contents = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes();
+    volatile boolean supportsRanges = true;
+    volatile String lastRange;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/db/doc/att", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                lastRange = exchange.getRequestHeaders().getFirst("Range");
+                int start = 0;
+                if (supportsRanges && lastRange != null) {
+                    Matcher m = RANGE.matcher(lastRange);
+                    Assert.assertTrue(m.matches());
+                    start = Integer.parseInt(m.group(1));
+                }
+                if (start >= contents.length) {
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                if (start > 0) {
+                    exchange.getResponseHeaders().add("Content-Range", String.format(
+                            "bytes %d-%d/%d", start, contents.length - 1, contents.length));
+                    exchange.sendResponseHeaders(206, contents.length - start);
+                } else {
+                    exchange.sendResponseHeaders(200, contents.length);
+                }
+                OutputStream os = exchange.getResponseBody();
+                os.write(contents, start, contents.length - start);
+                os.close();
+            }
+        });
+        server.start();
+        URI root = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/db");
+        client = new CouchClient(new CouchConfig(root));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void getAttachmentStream_offsetZero_wholeAttachmentWithoutRange() throws Exception {
+        RangeInputStream is = client.getAttachmentStream("doc", "1-a", "att", 0);
+        Assert.assertEquals(0, is.getOffset());
+        Assert.assertTrue(Arrays.equals(contents, IOUtils.toByteArray(is)));
+        Assert.assertNull(lastRange);
+    }
+
+    @Test
+    public void getAttachmentStream_offset_restOfAttachment() throws Exception {
+        RangeInputStream is = client.getAttachmentStream("doc", "1-a", "att", 10);
+        Assert.assertEquals("bytes=10-", lastRange);
+        Assert.assertEquals(10, is.getOffset());
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(contents, 10, contents.length),
+                IOUtils.toByteArray(is)));
+    }
+
+    @Test
+    public void getAttachmentStream_serverIgnoresRange_wholeAttachment() throws Exception {
+        supportsRanges = false;
+        RangeInputStream is = client.getAttachmentStream("doc", "1-a", "att", 10);
+        Assert.assertEquals(0, is.getOffset());
+        Assert.assertTrue(Arrays.equals(contents, IOUtils.toByteArray(is)));
+    }
+
+    @Test
+    public void getAttachmentStream_offsetPastEnd_rangeNotSatisfiable() throws Exception {
+        try {
+            client.getAttachmentStream("doc", "1-a", "att", contents.length);
+            Assert.fail("Expected CouchException");
+        } catch (CouchException e) {
+            Assert.assertEquals(416, e.getStatusCode());
+        }
+    }
+}
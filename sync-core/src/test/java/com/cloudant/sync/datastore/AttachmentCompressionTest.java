@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.replication.PushAttachmentsInline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+public class AttachmentCompressionTest extends BasicDatastoreTestBase {
+
+    @Test
+    public void setAttachment_compressibleType_storedCompressed() throws Exception {
+        datastore.setAttachmentCompressionPolicy(new AttachmentCompressionPolicy());
+        byte[] contents = repetitiveText(100 * 1024);
+
+        SavedAttachment saved = createWithAttachment(contents, "text/csv");
+
+        Assert.assertEquals(Attachment.Encoding.Gzip, encodingOf(saved));
+        Assert.assertTrue(saved.getSize() < contents.length / 8);
+        Assert.assertEquals(contents.length, saved.getDecodedSize());
+        Assert.assertTrue(Arrays.equals(contents, IOUtils.toByteArray(saved.getInputStream())));
+        // sent inline decompressed, so its decoded size decides whether it's large
+        Assert.assertFalse(saved.shouldInline(PushAttachmentsInline.Small));
+    }
+
+    @Test
+    public void setAttachment_noPolicy_storedUncompressed() throws Exception {
+        byte[] contents = repetitiveText(100 * 1024);
+
+        SavedAttachment saved = createWithAttachment(contents, "text/csv");
+
+        Assert.assertEquals(Attachment.Encoding.Plain, encodingOf(saved));
+        Assert.assertEquals(contents.length, saved.getSize());
+    }
+
+    @Test
+    public void setAttachment_otherType_storedUncompressed() throws Exception {
+        datastore.setAttachmentCompressionPolicy(new AttachmentCompressionPolicy());
+
+        SavedAttachment saved = createWithAttachment(repetitiveText(100 * 1024), "image/png");
+
+        Assert.assertEquals(Attachment.Encoding.Plain, encodingOf(saved));
+    }
+
+    @Test
+    public void setAttachment_belowMinimumSize_storedUncompressed() throws Exception {
+        datastore.setAttachmentCompressionPolicy(new AttachmentCompressionPolicy(
+                Collections.singletonList("text/*"), 4096, 0.9));
+        byte[] contents = repetitiveText(1000);
+
+        SavedAttachment saved = createWithAttachment(contents, "text/plain");
+
+        Assert.assertEquals(Attachment.Encoding.Plain, encodingOf(saved));
+        Assert.assertTrue(Arrays.equals(contents, IOUtils.toByteArray(saved.getInputStream())));
+    }
+
+    @Test
+    public void setAttachment_incompressibleContents_storedUncompressed() throws Exception {
+        datastore.setAttachmentCompressionPolicy(new AttachmentCompressionPolicy());
+        byte[] contents = new byte[10 * 1024];
+        new Random(1).nextBytes(contents);
+
+        SavedAttachment saved = createWithAttachment(contents, "application/json");
+
+        Assert.assertEquals(Attachment.Encoding.Plain, encodingOf(saved));
+        Assert.assertEquals(contents.length, saved.getSize());
+        Assert.assertTrue(Arrays.equals(contents, IOUtils.toByteArray(saved.getInputStream())));
+    }
+
+    @Test
+    public void addAttachment_multiMemberGzip_decodedSizeFromAttachmentsTable() throws Exception {
+        byte[] first = repetitiveText(1000);
+        byte[] second = repetitiveText(2000);
+        // the trailer of a multi-member gzip file only gives the last member's size
+        File file = File.createTempFile("multimember", ".gz");
+        FileUtils.writeByteArrayToFile(file, gzip(first));
+        FileUtils.writeByteArrayToFile(file, gzip(second), true);
+
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.body = bodyOne;
+        BasicDocumentRevision saved = datastore.createDocumentFromRevision(rev);
+        Attachment attachment = new UnsavedFileAttachment(file, "text/plain",
+                Attachment.Encoding.Gzip);
+        datastore.addAttachment(new PreparedAttachment(attachment, file,
+                first.length + second.length), saved);
+
+        SavedAttachment savedAttachment =
+                (SavedAttachment) datastore.getAttachment(saved, attachment.name);
+        Assert.assertEquals(first.length + second.length, savedAttachment.getDecodedSize());
+        Assert.assertEquals(first.length + second.length,
+                IOUtils.toByteArray(savedAttachment.getInputStream()).length);
+    }
+
+    @Test
+    public void isCompressible_typesWithParametersAndWildcards() {
+        AttachmentCompressionPolicy policy = new AttachmentCompressionPolicy();
+        Assert.assertTrue(policy.isCompressible("text/plain; charset=UTF-8"));
+        Assert.assertTrue(policy.isCompressible("TEXT/CSV"));
+        Assert.assertTrue(policy.isCompressible("application/json"));
+        Assert.assertFalse(policy.isCompressible("application/jsonp"));
+        Assert.assertFalse(policy.isCompressible("image/jpeg"));
+        Assert.assertFalse(policy.isCompressible(null));
+    }
+
+    private SavedAttachment createWithAttachment(byte[] contents, String type) throws Exception {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.body = bodyOne;
+        rev.attachments.put("att", new UnsavedStreamAttachment(
+                new ByteArrayInputStream(contents), "att", type));
+        BasicDocumentRevision saved = datastore.createDocumentFromRevision(rev);
+        return (SavedAttachment) datastore.getAttachment(saved, "att");
+    }
+
+    private static byte[] gzip(byte[] contents) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(contents);
+        gzip.close();
+        return bytes.toByteArray();
+    }
+
+    private static Attachment.Encoding encodingOf(Attachment attachment) {
+        return attachment.encoding;
+    }
+
+    private static byte[] repetitiveText(int length) {
+        StringBuilder sb = new StringBuilder();
+        int line = 0;
+        while (sb.length() < length) {
+            sb.append(String.format("%d,2015-03-01T12:00:00Z,INFO,replication batch completed%n",
+                    line++));
+        }
+        return sb.substring(0, length).getBytes();
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.notifications.DocumentCreated;
+import com.cloudant.sync.notifications.DocumentDeleted;
+import com.cloudant.sync.notifications.DocumentUpdated;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BasicDatastoreAsyncTest extends BasicDatastoreTestBase {
+
+    @Test
+    public void createDocumentFromRevision_manyInFlight_allCreated() throws Exception {
+        DatastoreAsync async = datastore.getAsync();
+        List<ListenableFuture<BasicDocumentRevision>> futures =
+                new ArrayList<ListenableFuture<BasicDocumentRevision>>();
+        for (int i = 0; i < 20; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = bodyOne;
+            futures.add(async.createDocumentFromRevision(rev));
+        }
+        for (ListenableFuture<BasicDocumentRevision> future : futures) {
+            BasicDocumentRevision created = future.get();
+            validateNewlyCreatedDocument(created);
+            Assert.assertEquals(created, async.getDocument(created.getId()).get());
+        }
+        Assert.assertEquals(20, datastore.getDocumentCount());
+    }
+
+    @Test
+    public void updateDocumentFromRevision_updated() throws Exception {
+        DatastoreAsync async = datastore.getAsync();
+        BasicDocumentRevision created = async.createDocumentFromRevision(newRevision(bodyOne)).get();
+        MutableDocumentRevision update = created.mutableCopy();
+        update.body = bodyTwo;
+        BasicDocumentRevision updated = async.updateDocumentFromRevision(update).get();
+        Assert.assertTrue(updated.getRevision().startsWith("2-"));
+        Assert.assertEquals(updated, async.getDocument(created.getId()).get());
+        Assert.assertEquals(created, async.getDocument(created.getId(), created.getRevision()).get());
+    }
+
+    @Test
+    public void updateDocumentFromRevision_notCurrentRevision_futureFailsWithConflict() throws Exception {
+        DatastoreAsync async = datastore.getAsync();
+        BasicDocumentRevision created = async.createDocumentFromRevision(newRevision(bodyOne)).get();
+        MutableDocumentRevision first = created.mutableCopy();
+        first.body = bodyTwo;
+        MutableDocumentRevision second = created.mutableCopy();
+        second.body = bodyOne;
+        ListenableFuture<BasicDocumentRevision> firstFuture = async.updateDocumentFromRevision(first);
+        ListenableFuture<BasicDocumentRevision> secondFuture = async.updateDocumentFromRevision(second);
+        Assert.assertNotNull(firstFuture.get());
+        try {
+            secondFuture.get();
+            Assert.fail("Expected the second update to fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ConflictException);
+        }
+    }
+
+    @Test
+    public void getDocument_missingDocument_futureFailsWithNotFound() throws Exception {
+        try {
+            datastore.getAsync().getDocument("missing").get();
+            Assert.fail("Expected the document not to be found");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof DocumentNotFoundException);
+        }
+    }
+
+    @Test
+    public void deleteDocumentFromRevision_deleted() throws Exception {
+        DatastoreAsync async = datastore.getAsync();
+        BasicDocumentRevision created = async.createDocumentFromRevision(newRevision(bodyOne)).get();
+        BasicDocumentRevision deleted = async.deleteDocumentFromRevision(created).get();
+        Assert.assertTrue(deleted.isDeleted());
+        Assert.assertTrue(async.getDocument(created.getId()).get().isDeleted());
+    }
+
+    @Test
+    public void changes_and_revsDiff_matchSynchronousResults() throws Exception {
+        createTwoDocuments();
+        DatastoreAsync async = datastore.getAsync();
+        Changes changes = async.changes(0, 10).get();
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals(datastore.getLastSequence(), changes.getLastSequence());
+
+        BasicDocumentRevision existing = changes.getResults().get(0);
+        Multimap<String, String> revisions = HashMultimap.create();
+        revisions.put(existing.getId(), existing.getRevision());
+        revisions.put(existing.getId(), "2-missing");
+        Map<String, Collection<String>> missing = async.revsDiff(revisions).get();
+        Assert.assertEquals(1, missing.size());
+        Assert.assertEquals(1, missing.get(existing.getId()).size());
+        Assert.assertTrue(missing.get(existing.getId()).contains("2-missing"));
+    }
+
+    @Test
+    public void writes_eventsPostedBeforeFuturesComplete() throws Exception {
+        EventCounter counter = new EventCounter();
+        datastore.getEventBus().register(counter);
+        DatastoreAsync async = datastore.getAsync();
+
+        BasicDocumentRevision created = async.createDocumentFromRevision(newRevision(bodyOne)).get();
+        Assert.assertEquals(1, counter.created.get());
+
+        MutableDocumentRevision update = created.mutableCopy();
+        update.body = bodyTwo;
+        BasicDocumentRevision updated = async.updateDocumentFromRevision(update).get();
+        Assert.assertEquals(1, counter.updated.get());
+        Assert.assertEquals(created, counter.lastUpdated.prevDocument);
+        Assert.assertEquals(updated, counter.lastUpdated.newDocument);
+
+        async.deleteDocumentFromRevision(updated).get();
+        Assert.assertEquals(1, counter.deleted.get());
+    }
+
+    @Test
+    public void updateDocumentFromRevision_cachedDocument_newRevisionReturned() throws Exception {
+        datastore.enableDocumentCache(100, 0);
+        DatastoreAsync async = datastore.getAsync();
+        BasicDocumentRevision created = async.createDocumentFromRevision(newRevision(bodyOne)).get();
+        Assert.assertEquals(created, async.getDocument(created.getId()).get());
+        MutableDocumentRevision update = created.mutableCopy();
+        update.body = bodyTwo;
+        BasicDocumentRevision updated = async.updateDocumentFromRevision(update).get();
+        Assert.assertEquals(updated, async.getDocument(created.getId()).get());
+    }
+
+    private MutableDocumentRevision newRevision(DocumentBody body) {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.body = body;
+        return rev;
+    }
+
+    public static class EventCounter {
+
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger updated = new AtomicInteger();
+        final AtomicInteger deleted = new AtomicInteger();
+        volatile DocumentUpdated lastUpdated;
+
+        @Subscribe
+        public void onDocumentCreated(DocumentCreated event) {
+            created.incrementAndGet();
+        }
+
+        @Subscribe
+        public void onDocumentUpdated(DocumentUpdated event) {
+            lastUpdated = event;
+            updated.incrementAndGet();
+        }
+
+        @Subscribe
+        public void onDocumentDeleted(DocumentDeleted event) {
+            deleted.incrementAndGet();
+        }
+    }
+}
@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -241,6 +242,29 @@ public class BasicDatastoreCRUDTest extends BasicDatastoreTestBase {
 
     }
 
+    @Test
+    public void getAllRevisionsOfDocument_withoutBodies_treeHasMetadataOnly()
+            throws Exception {
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        BasicDocumentRevision rev1 = datastore.createDocumentFromRevision(rev_1Mut);
+        MutableDocumentRevision rev_2Mut = rev1.mutableCopy();
+        rev_2Mut.body = bodyTwo;
+        BasicDocumentRevision rev2 = datastore.updateDocumentFromRevision(rev_2Mut);
+
+        DocumentRevisionTree tree = this.datastore.getAllRevisionsOfDocument(rev1.getId(), false);
+        BasicDocumentRevision current = tree.getCurrentRevision();
+        Assert.assertEquals(rev2.getRevision(), current.getRevision());
+        Assert.assertEquals(rev2.getSequence(), current.getSequence());
+        Assert.assertEquals(rev1.getSequence(), current.getParent());
+        Assert.assertTrue(current.getBody().asMap().isEmpty());
+        Assert.assertEquals(rev1.getSequence(),
+                tree.lookup(rev1.getId(), rev1.getRevision()).getSequence());
+
+        DocumentRevisionTree fullTree = this.datastore.getAllRevisionsOfDocument(rev1.getId(), true);
+        Assert.assertEquals(rev2.getBody().asMap(), fullTree.getCurrentRevision().getBody().asMap());
+    }
+
     @Test
     public void deleteDocument_previousRevisionWasDeleted_noNewRevisionInserted()
             throws Exception {
@@ -427,6 +451,34 @@ public class BasicDatastoreCRUDTest extends BasicDatastoreTestBase {
         }
     }
 
+    @Test
+    public void getDocumentsWithIds_filter_onlyAcceptedDocumentsShouldBeReturned() throws Exception {
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        BasicDocumentRevision rev_1 = datastore.createDocumentFromRevision(rev_1Mut);
+        MutableDocumentRevision rev_2Mut = new MutableDocumentRevision();
+        rev_2Mut.body = bodyTwo;
+        final BasicDocumentRevision rev_2 = datastore.createDocumentFromRevision(rev_2Mut);
+
+        List<String> ids = new ArrayList<String>();
+        ids.add(rev_1.getId());
+        ids.add(rev_2.getId());
+
+        final List<String> seen = new ArrayList<String>();
+        List<BasicDocumentRevision> docs = datastore.getDocumentsWithIds(ids,
+                new DocumentBodyFilter() {
+                    @Override
+                    public boolean accept(String docId, String revId, byte[] json) {
+                        seen.add(docId);
+                        Assert.assertNotNull(json);
+                        return docId.equals(rev_2.getId());
+                    }
+                });
+        Assert.assertEquals(2, seen.size());
+        Assert.assertEquals(1, docs.size());
+        assertIdAndRevisionAndShallowContent(rev_2, docs.get(0));
+    }
+
     private BasicDocumentRevision[] createTwoDocumentsForGetDocumentsWithInternalIdsTest() throws Exception {
         MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
         rev_1Mut.body = bodyOne;
@@ -556,6 +608,209 @@ public class BasicDatastoreCRUDTest extends BasicDatastoreTestBase {
         getAllDocuments_testCountAndOffset(objectCount, reversedObjects, true);
     }
 
+    @Test
+    public void getAllDocuments_continuationToken() throws Exception {
+        int objectCount = 25;
+        List<DocumentBody> bodies = this.generateDocuments(objectCount);
+        List<BasicDocumentRevision> documentRevisions = new ArrayList<BasicDocumentRevision>(objectCount);
+        for (int i = 0; i < objectCount; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = bodies.get(i);
+            documentRevisions.add(datastore.createDocumentFromRevision(rev));
+        }
+        ArrayList<BasicDocumentRevision> reversedObjects = new ArrayList<BasicDocumentRevision>(documentRevisions);
+        Collections.reverse(reversedObjects);
+
+        getAllDocuments_testPages(documentRevisions, false);
+        getAllDocuments_testPages(reversedObjects, true);
+
+        // Deleting the last document of a page doesn't affect the next page
+        Page<BasicDocumentRevision> first = datastore.getAllDocuments(null, 10, false);
+        datastore.deleteDocumentFromRevision(first.getResults().get(9));
+        Page<BasicDocumentRevision> second = datastore.getAllDocuments(first.getContinuationToken(), 10, false);
+        getAllDocuments_compareResult(documentRevisions, second.getResults(), 10, 10);
+
+        try {
+            datastore.getAllDocuments("not a token", 10, false);
+            Assert.fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException ex) {
+            // All fine
+        }
+    }
+
+    private void getAllDocuments_testPages(List<BasicDocumentRevision> expectedDocumentRevisions,
+                                           boolean descending) {
+        List<BasicDocumentRevision> all = new ArrayList<BasicDocumentRevision>();
+        Page<BasicDocumentRevision> page = datastore.getAllDocuments(null, 10, descending);
+        all.addAll(page.getResults());
+        Assert.assertEquals(10, page.size());
+        while (page.hasMore()) {
+            page = datastore.getAllDocuments(page.getContinuationToken(), 10, descending);
+            all.addAll(page.getResults());
+        }
+        getAllDocuments_compareResult(expectedDocumentRevisions, all,
+                expectedDocumentRevisions.size(), 0);
+    }
+
+    @Test
+    public void iterateAllDocuments() throws Exception {
+        int objectCount = 250;
+        List<DocumentBody> bodies = this.generateDocuments(objectCount);
+        List<BasicDocumentRevision> documentRevisions = new ArrayList<BasicDocumentRevision>(objectCount);
+        for (int i = 0; i < objectCount; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = bodies.get(i);
+            documentRevisions.add(datastore.createDocumentFromRevision(rev));
+        }
+        ArrayList<BasicDocumentRevision> reversedObjects = new ArrayList<BasicDocumentRevision>(documentRevisions);
+        Collections.reverse(reversedObjects);
+
+        List<BasicDocumentRevision> result = new ArrayList<BasicDocumentRevision>();
+        for (BasicDocumentRevision rev : datastore.iterateAllDocuments(false)) {
+            result.add(rev);
+        }
+        getAllDocuments_compareResult(documentRevisions, result, objectCount, 0);
+
+        result.clear();
+        for (BasicDocumentRevision rev : datastore.iterateAllDocuments(true)) {
+            result.add(rev);
+        }
+        getAllDocuments_compareResult(reversedObjects, result, objectCount, 0);
+    }
+
+    @Test
+    public void createDocumentsFromRevisions_allDocumentsCreated() throws Exception {
+        int objectCount = 50;
+        List<DocumentBody> bodies = this.generateDocuments(objectCount);
+        List<MutableDocumentRevision> revs = new ArrayList<MutableDocumentRevision>(objectCount);
+        for (int i = 0; i < objectCount; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = bodies.get(i);
+            revs.add(rev);
+        }
+
+        List<DocumentWriteResult> results = datastore.createDocumentsFromRevisions(revs);
+        Assert.assertEquals(objectCount, results.size());
+        for (int i = 0; i < objectCount; i++) {
+            DocumentWriteResult result = results.get(i);
+            Assert.assertTrue(result.isSuccessful());
+            Assert.assertNull(result.getException());
+            Assert.assertSame(revs.get(i), result.getInput());
+            validateNewlyCreatedDocument(result.getRevision());
+            Assert.assertEquals(bodies.get(i).asMap(), result.getRevision().getBody().asMap());
+            Assert.assertEquals(result.getRevision(), datastore.getDocument(revs.get(i).docId));
+        }
+        Assert.assertEquals(objectCount, datastore.getDocumentCount());
+    }
+
+    @Test
+    public void createDocumentsFromRevisions_existingId_onlyThatDocumentNotCreated() throws Exception {
+        MutableDocumentRevision existing = new MutableDocumentRevision();
+        existing.docId = "existing";
+        existing.body = bodyOne;
+        datastore.createDocumentFromRevision(existing);
+
+        MutableDocumentRevision first = new MutableDocumentRevision();
+        first.docId = "first";
+        first.body = bodyOne;
+        MutableDocumentRevision duplicate = new MutableDocumentRevision();
+        duplicate.docId = "existing";
+        duplicate.body = bodyTwo;
+        MutableDocumentRevision invalid = new MutableDocumentRevision();
+        invalid.docId = "invalid";
+        invalid.body = DocumentBodyFactory.create("{\"_notallowed\": 1}".getBytes());
+        MutableDocumentRevision last = new MutableDocumentRevision();
+        last.docId = "last";
+        last.body = bodyTwo;
+
+        List<DocumentWriteResult> results = datastore.createDocumentsFromRevisions(
+                Arrays.asList(first, duplicate, invalid, last));
+        Assert.assertTrue(results.get(0).isSuccessful());
+        Assert.assertFalse(results.get(1).isSuccessful());
+        Assert.assertTrue(results.get(1).getException() instanceof ConflictException);
+        Assert.assertFalse(results.get(2).isSuccessful());
+        Assert.assertTrue(results.get(2).getException() instanceof InvalidDocumentException);
+        Assert.assertTrue(results.get(3).isSuccessful());
+
+        Assert.assertEquals(3, datastore.getDocumentCount());
+        Assert.assertEquals(bodyOne.asMap(), datastore.getDocument("existing").getBody().asMap());
+        Assert.assertEquals(1, datastore.getAllRevisionsOfDocument("existing").leafs().size());
+        Assert.assertNotNull(datastore.getDocument("last"));
+        try {
+            datastore.getDocument("invalid");
+            Assert.fail("Invalid document was created");
+        } catch (DocumentNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void createDocumentsFromRevisions_failedDocuments_othersCommitted() throws Exception {
+        MutableDocumentRevision existing = new MutableDocumentRevision();
+        existing.docId = "existing";
+        existing.body = bodyOne;
+        datastore.createDocumentFromRevision(existing);
+
+        // Each failure rolls back to the document's savepoint; the batch's transaction
+        // must stay open so the documents either side of it are still committed.
+        MutableDocumentRevision duplicateFirst = new MutableDocumentRevision();
+        duplicateFirst.docId = "existing";
+        duplicateFirst.body = bodyTwo;
+        MutableDocumentRevision middle = new MutableDocumentRevision();
+        middle.docId = "middle";
+        middle.body = bodyOne;
+        MutableDocumentRevision duplicateLast = new MutableDocumentRevision();
+        duplicateLast.docId = "middle";
+        duplicateLast.body = bodyTwo;
+
+        List<DocumentWriteResult> results = datastore.createDocumentsFromRevisions(
+                Arrays.asList(duplicateFirst, middle, duplicateLast));
+        Assert.assertFalse(results.get(0).isSuccessful());
+        Assert.assertTrue(results.get(1).isSuccessful());
+        Assert.assertFalse(results.get(2).isSuccessful());
+
+        Assert.assertEquals(2, datastore.getDocumentCount());
+        Assert.assertEquals(bodyOne.asMap(), datastore.getDocument("middle").getBody().asMap());
+        Assert.assertEquals(1, datastore.getAllRevisionsOfDocument("middle").leafs().size());
+
+        // and the datastore can still be written to
+        MutableDocumentRevision after = new MutableDocumentRevision();
+        after.docId = "after";
+        after.body = bodyOne;
+        datastore.createDocumentFromRevision(after);
+        Assert.assertEquals(3, datastore.getDocumentCount());
+    }
+
+    @Test
+    public void updateDocumentsFromRevisions_staleRevision_onlyThatDocumentNotUpdated() throws Exception {
+        MutableDocumentRevision one = new MutableDocumentRevision();
+        one.body = bodyOne;
+        BasicDocumentRevision rev1 = datastore.createDocumentFromRevision(one);
+        MutableDocumentRevision two = new MutableDocumentRevision();
+        two.body = bodyOne;
+        BasicDocumentRevision rev2 = datastore.createDocumentFromRevision(two);
+        MutableDocumentRevision twoUpdate = rev2.mutableCopy();
+        twoUpdate.body = bodyTwo;
+        BasicDocumentRevision rev2Updated = datastore.updateDocumentFromRevision(twoUpdate);
+
+        MutableDocumentRevision oneMut = rev1.mutableCopy();
+        oneMut.body = bodyTwo;
+        // rev2 is no longer current
+        MutableDocumentRevision twoMut = rev2.mutableCopy();
+        twoMut.body = bodyOne;
+
+        List<DocumentWriteResult> results = datastore.updateDocumentsFromRevisions(
+                Arrays.asList(oneMut, twoMut));
+        Assert.assertTrue(results.get(0).isSuccessful());
+        BasicDocumentRevision rev1Updated = results.get(0).getRevision();
+        Assert.assertTrue(rev1Updated.getRevision().startsWith("2-"));
+        Assert.assertEquals(bodyTwo.asMap(), rev1Updated.getBody().asMap());
+        Assert.assertEquals(rev1Updated, datastore.getDocument(rev1.getId()));
+        Assert.assertFalse(results.get(1).isSuccessful());
+        Assert.assertTrue(results.get(1).getException() instanceof ConflictException);
+        Assert.assertEquals(rev2Updated, datastore.getDocument(rev2.getId()));
+    }
+
     @Test
     public void createDbWithSlashAndCreateDocument() throws Exception {
             Datastore datastore = datastoreManager.openDatastore("dbwith/aslash");
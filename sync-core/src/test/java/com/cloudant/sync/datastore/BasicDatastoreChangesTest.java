@@ -102,4 +102,51 @@ public class BasicDatastoreChangesTest extends BasicDatastoreTestBase {
         Assert.assertThat(changes.getIds(), hasItems(docs[0].getId(), docs[1].getId(), docs[2].getId()));
         Assert.assertEquals(4, changes.getLastSequence());
     }
+
+    @Test
+    public void changesWithBodies_limitCountsChanges_batchesCoverAllChanges() throws Exception {
+        BasicDocumentRevision[] docs = createThreeDocuments();
+        Changes changes = datastore.changes(0, 3, true);
+        Assert.assertEquals(3, changes.size());
+        Assert.assertEquals(3, changes.getLastSequence());
+        // the third document's current revision is read, though its update comes later
+        Assert.assertEquals(docs[2], changes.getResults().get(2));
+        Assert.assertEquals(docs[2].getBody().asMap(), changes.getResults().get(2).getBody().asMap());
+
+        changes = datastore.changes(3, 3, true);
+        Assert.assertEquals(1, changes.size());
+        Assert.assertEquals(docs[2].getId(), changes.getResults().get(0).getId());
+        Assert.assertEquals(4, changes.getLastSequence());
+
+        changes = datastore.changes(4, 3, true);
+        Assert.assertEquals(0, changes.size());
+        Assert.assertEquals(4, changes.getLastSequence());
+    }
+
+    @Test
+    public void changesWithoutBodies_metadataOnlyRead() throws Exception {
+        BasicDocumentRevision[] docs = createThreeDocuments();
+        BasicDocumentRevision deleted = datastore.deleteDocumentFromRevision(docs[0]);
+
+        Changes changes = datastore.changes(0, 100, false);
+        Assert.assertEquals(3, changes.size());
+        Assert.assertEquals(5, changes.getLastSequence());
+
+        // ordered by the sequence of each document's current revision
+        BasicDocumentRevision second = changes.getResults().get(0);
+        Assert.assertEquals(docs[1].getId(), second.getId());
+        Assert.assertEquals(docs[1].getRevision(), second.getRevision());
+        Assert.assertEquals(docs[1].getSequence(), second.getSequence());
+        Assert.assertTrue(second.getBody().asMap().isEmpty());
+
+        BasicDocumentRevision first = changes.getResults().get(2);
+        Assert.assertEquals(deleted.getRevision(), first.getRevision());
+        Assert.assertEquals(deleted.getSequence(), first.getSequence());
+        Assert.assertTrue(first.isDeleted());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void changesWithoutBodies_limitZero_exception() throws Exception {
+        datastore.changes(0, 0, false);
+    }
 }
@@ -91,6 +91,62 @@ public class BasicDatastoreConflictsTest extends BasicDatastoreTestBase {
         testWithConflictCount(1000);
     }
 
+    @Test
+    public void getConflictedDocumentIds_pages_allConflictsReturnedOnce() throws Exception {
+        List<String> expectedConflicts = createConflictDocuments(5);
+        this.createDocumentRevision("Tom");
+
+        List<String> actualConflicts = new ArrayList<String>();
+        List<Integer> pageSizes = new ArrayList<Integer>();
+        String token = null;
+        do {
+            Page<String> page = this.datastore.getConflictedDocumentIds(token, 2);
+            actualConflicts.addAll(page.getResults());
+            pageSizes.add(page.size());
+            token = page.getContinuationToken();
+        } while (token != null);
+
+        Assert.assertEquals(Lists.newArrayList(2, 2, 1), pageSizes);
+        Assert.assertEquals(expectedConflicts, actualConflicts);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getConflictedDocumentIds_invalidToken_exception() throws Exception {
+        this.datastore.getConflictedDocumentIds("not a token", 10);
+    }
+
+    @Test
+    public void getConflictedDocumentIds_resolvedWhileIterating_noneSkipped() throws Exception {
+        List<String> expectedConflicts = createConflictDocuments(250);
+        List<String> actualConflicts = new ArrayList<String>();
+        Iterator<String> iterator = this.datastore.getConflictedDocumentIds();
+        while (iterator.hasNext()) {
+            String docId = iterator.next();
+            actualConflicts.add(docId);
+            this.datastore.resolveConflictsForDocument(docId, new ConflictResolver() {
+                @Override
+                public DocumentRevision resolve(String docId, List<BasicDocumentRevision> conflicts) {
+                    return conflicts.get(0);
+                }
+            });
+        }
+        Assert.assertEquals(expectedConflicts, actualConflicts);
+        Assert.assertFalse(this.datastore.getConflictedDocumentIds().hasNext());
+    }
+
+    @Test
+    public void getConflictedDocumentIds_leafDeleted_noLongerConflicted() throws Exception {
+        String docId = createConflictedDocument();
+        Assert.assertThat(Lists.newArrayList(this.datastore.getConflictedDocumentIds()),
+                hasItem(docId));
+
+        BasicDocumentRevision nonWinner =
+                this.datastore.getAllRevisionsOfDocument(docId).leafRevisions().get(0);
+        this.datastore.deleteDocumentFromRevision(nonWinner);
+        Assert.assertThat(Lists.newArrayList(this.datastore.getConflictedDocumentIds()),
+                hasSize(0));
+    }
+
     @Test
     public void resolveConflictsForDocument_twoConflictAndException_nothing()
             throws Exception {
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BasicDatastoreDocumentCacheTest extends BasicDatastoreTestBase {
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        datastore.enableDocumentCache(100, 0);
+    }
+
+    @Test
+    public void getDocument_readTwice_secondReadFromCache() throws Exception {
+        BasicDocumentRevision created = createDocument(bodyOne);
+        BasicDocumentRevision first = datastore.getDocument(created.getId());
+        BasicDocumentRevision second = datastore.getDocument(created.getId());
+        Assert.assertEquals(created, first);
+        Assert.assertSame(first, second);
+        Assert.assertSame(first, datastore.getDocument(created.getId(), created.getRevision()));
+
+        DocumentCacheStatistics stats = datastore.getDocumentCacheStatistics();
+        Assert.assertEquals(2, stats.getHits());
+        Assert.assertEquals(1, stats.getMisses());
+        Assert.assertEquals(1, stats.getSize());
+    }
+
+    @Test
+    public void getDocument_afterUpdate_newRevisionReturned() throws Exception {
+        BasicDocumentRevision created = createDocument(bodyOne);
+        datastore.getDocument(created.getId());
+        MutableDocumentRevision update = created.mutableCopy();
+        update.body = bodyTwo;
+        BasicDocumentRevision updated = datastore.updateDocumentFromRevision(update);
+        Assert.assertEquals(updated, datastore.getDocument(created.getId()));
+        Assert.assertEquals(bodyTwo.asMap(), datastore.getDocument(created.getId()).getBody().asMap());
+    }
+
+    @Test
+    public void getDocument_afterBatchUpdate_newRevisionReturned() throws Exception {
+        BasicDocumentRevision created = createDocument(bodyOne);
+        datastore.getDocument(created.getId());
+        MutableDocumentRevision update = created.mutableCopy();
+        update.body = bodyTwo;
+        List<DocumentWriteResult> results = datastore.updateDocumentsFromRevisions(Arrays.asList(update));
+        Assert.assertEquals(results.get(0).getRevision(), datastore.getDocument(created.getId()));
+    }
+
+    @Test
+    public void getDocument_afterDelete_tombstoneReturned() throws Exception {
+        BasicDocumentRevision created = createDocument(bodyOne);
+        datastore.getDocument(created.getId());
+        datastore.deleteDocumentFromRevision(created);
+        Assert.assertTrue(datastore.getDocument(created.getId()).isDeleted());
+
+        BasicDocumentRevision other = createDocument(bodyTwo);
+        datastore.getDocument(other.getId());
+        datastore.deleteDocument(other.getId());
+        Assert.assertTrue(datastore.getDocument(other.getId()).isDeleted());
+    }
+
+    @Test
+    public void getDocument_afterForceInsertAndResolve_newWinnerReturned() throws Exception {
+        final BasicDocumentRevision created = createDocument(bodyOne);
+        datastore.getDocument(created.getId());
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "replicated");
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId(created.getId());
+        builder.setRevId("3-b");
+        builder.setBody(BasicDocumentBody.bodyWith(map));
+        datastore.forceInsert(builder.build(), "1-b", "2-b", "3-b");
+        BasicDocumentRevision winner = datastore.getDocument(created.getId());
+        Assert.assertEquals("3-b", winner.getRevision());
+
+        datastore.resolveConflictsForDocument(created.getId(), new ConflictResolver() {
+            @Override
+            public DocumentRevision resolve(String docId, List<BasicDocumentRevision> conflicts) {
+                for (DocumentRevision rev : conflicts) {
+                    if (rev.getRevision().equals(created.getRevision())) {
+                        return rev;
+                    }
+                }
+                return null;
+            }
+        });
+        Assert.assertEquals(created.getRevision(), datastore.getDocument(created.getId()).getRevision());
+    }
+
+    @Test
+    public void enableDocumentCache_maxDocuments_cacheStaysWithinLimit() throws Exception {
+        datastore.enableDocumentCache(5, 0);
+        for (int i = 0; i < 20; i++) {
+            datastore.getDocument(createDocument(bodyOne).getId());
+        }
+        DocumentCacheStatistics stats = datastore.getDocumentCacheStatistics();
+        Assert.assertEquals(5, stats.getSize());
+        Assert.assertEquals(15, stats.getEvictions());
+    }
+
+    @Test
+    public void disableDocumentCache_noStatistics() throws Exception {
+        datastore.disableDocumentCache();
+        Assert.assertNull(datastore.getDocumentCacheStatistics());
+        BasicDocumentRevision created = createDocument(bodyOne);
+        Assert.assertEquals(created, datastore.getDocument(created.getId()));
+    }
+
+    @Test
+    public void compact_cachedDocumentsStillReturned() throws Exception {
+        BasicDocumentRevision created = createDocument(bodyOne);
+        datastore.getDocument(created.getId());
+        datastore.compact();
+        Assert.assertEquals(0, datastore.getDocumentCacheStatistics().getSize());
+        Assert.assertEquals(created, datastore.getDocument(created.getId()));
+    }
+
+    private BasicDocumentRevision createDocument(DocumentBody body) throws Exception {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.body = body;
+        return datastore.createDocumentFromRevision(rev);
+    }
+}
@@ -14,6 +14,10 @@
 
 package com.cloudant.sync.datastore;
 
+import com.cloudant.sync.notifications.DocumentsChanged;
+import com.cloudant.sync.sqlite.DurabilityPolicy;
+import com.google.common.eventbus.Subscribe;
+
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Assert;
@@ -23,6 +27,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 public class DatastoreManagerTest {
 
@@ -115,6 +120,97 @@ public class DatastoreManagerTest {
         ds.createDocumentFromRevision(createDBBody("Jerry"));
     }
 
+    @Test
+    public void openDatastore_durabilityPolicy_documentsWrittenAndReadBack() throws Exception {
+        DurabilityPolicy policy = new DurabilityPolicy();
+        policy.journalMode = DurabilityPolicy.JournalMode.WAL;
+        policy.synchronous = DurabilityPolicy.Synchronous.NORMAL;
+        policy.groupCommitWindowMillis = 5;
+        Datastore ds = manager.openDatastore("durable", policy);
+        BasicDocumentRevision tom = ds.createDocumentFromRevision(createDBBody("Tom"));
+        List<DocumentWriteResult> results = ds.createDocumentsFromRevisions(
+                Arrays.asList(createDBBody("Jerry"), createDBBody("Spike")));
+        Assert.assertTrue(results.get(0).isSuccessful());
+        Assert.assertTrue(results.get(1).isSuccessful());
+        MutableDocumentRevision conflicting = createDBBody("Tom again");
+        conflicting.docId = tom.getId();
+        try {
+            ds.createDocumentFromRevision(conflicting);
+            Assert.fail("Document with existing ID was created");
+        } catch (DocumentException e) {
+            // expected
+        }
+        ds.close();
+
+        ds = manager.openDatastore("durable");
+        Assert.assertEquals(3, ds.getDocumentCount());
+        Assert.assertEquals(tom, ds.getDocument(tom.getId()));
+        ds.close();
+    }
+
+    @Test
+    public void openDatastore_eventExecutor_changesCoalescedAndReopenAfterClose() throws Exception {
+        final Queue<Runnable> tasks = new LinkedList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        final List<DocumentsChanged> changes = new ArrayList<DocumentsChanged>();
+        Datastore ds = manager.openDatastore("events", new DurabilityPolicy(), executor);
+        ds.getEventBus().register(new Object() {
+            @Subscribe
+            public void onDocumentsChanged(DocumentsChanged event) {
+                changes.add(event);
+            }
+        });
+        BasicDocumentRevision tom = ds.createDocumentFromRevision(createDBBody("Tom"));
+        BasicDocumentRevision jerry = ds.createDocumentFromRevision(createDBBody("Jerry"));
+        Assert.assertTrue(changes.isEmpty());
+        runAll(tasks);
+        Assert.assertEquals(1, changes.size());
+        Assert.assertEquals(Arrays.asList(tom.getId(), jerry.getId()), changes.get(0).documentIds);
+
+        // DatabaseClosed is still waiting to be delivered when reopening
+        ds.close();
+        Datastore reopened = manager.openDatastore("events", new DurabilityPolicy(), executor);
+        Assert.assertNotSame(ds, reopened);
+        runAll(tasks);
+        Assert.assertSame(reopened, manager.openDatastore("events"));
+        Assert.assertEquals(2, reopened.getDocumentCount());
+        reopened.close();
+    }
+
+    @Test
+    public void deleteDatastore_eventExecutor_deleteStraightAfterClose() throws Exception {
+        final Queue<Runnable> tasks = new LinkedList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        };
+        Datastore ds = manager.openDatastore("events", new DurabilityPolicy(), executor);
+        ds.createDocumentFromRevision(createDBBody("Tom"));
+
+        // DatabaseClosed is still waiting to be delivered when deleting
+        ds.close();
+        manager.deleteDatastore("events");
+        Assert.assertFalse(new File(TEST_PATH + "/events").exists());
+        runAll(tasks);
+
+        Datastore reopened = manager.openDatastore("events");
+        Assert.assertEquals(0, reopened.getDocumentCount());
+        reopened.close();
+    }
+
+    private static void runAll(Queue<Runnable> tasks) {
+        while (!tasks.isEmpty()) {
+            tasks.poll().run();
+        }
+    }
+
     public MutableDocumentRevision createDBBody(String name) throws IOException {
         Map m = new HashMap<String, Object>();
         m.put("name", name);
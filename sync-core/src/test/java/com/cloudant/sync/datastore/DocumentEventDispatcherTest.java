@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.notifications.DocumentCreated;
+import com.cloudant.sync.notifications.DocumentModified;
+import com.cloudant.sync.notifications.DocumentUpdated;
+import com.cloudant.sync.notifications.DocumentsChanged;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+public class DocumentEventDispatcherTest {
+
+    @Test
+    public void hasSubscribers_trackedByRegisterAndUnregister() {
+        DocumentEventDispatcher dispatcher = new DocumentEventDispatcher("test", null);
+        Assert.assertFalse(dispatcher.hasSubscribers(DocumentUpdated.class));
+
+        ModifiedListener listener = new ModifiedListener();
+        dispatcher.getEventBus().register(listener);
+        Assert.assertTrue(dispatcher.hasSubscribers(DocumentUpdated.class));
+        Assert.assertTrue(dispatcher.hasSubscribers(DocumentCreated.class));
+        Assert.assertFalse(dispatcher.hasSubscribers(DocumentsChanged.class));
+
+        dispatcher.getEventBus().unregister(listener);
+        Assert.assertFalse(dispatcher.hasSubscribers(DocumentUpdated.class));
+    }
+
+    @Test
+    public void documentsChanged_noExecutor_postedImmediately() {
+        DocumentEventDispatcher dispatcher = new DocumentEventDispatcher("test", null);
+        ChangesListener listener = new ChangesListener();
+        dispatcher.getEventBus().register(listener);
+
+        dispatcher.documentsChanged(Collections.singletonList(revision("a", 3)));
+        dispatcher.documentsChanged(Collections.singletonList(revision("b", 4)));
+        Assert.assertEquals(2, listener.events.size());
+        Assert.assertEquals(3, listener.events.get(0).firstSequence);
+        Assert.assertEquals(Arrays.asList("b"), listener.events.get(1).documentIds);
+    }
+
+    @Test
+    public void documentsChanged_executor_changesCoalescedUntilExecutorRuns() {
+        ManualExecutor executor = new ManualExecutor();
+        DocumentEventDispatcher dispatcher = new DocumentEventDispatcher("test", executor);
+        ChangesListener listener = new ChangesListener();
+        dispatcher.getEventBus().register(listener);
+
+        dispatcher.documentsChanged(Collections.singletonList(revision("a", 3)));
+        dispatcher.documentsChanged(Arrays.asList(revision("b", 4), revision("a", 5)));
+        dispatcher.documentsChanged(Collections.singletonList(revision("c", 6)));
+        Assert.assertEquals(0, listener.events.size());
+
+        executor.runAll();
+        Assert.assertEquals(1, listener.events.size());
+        DocumentsChanged event = listener.events.get(0);
+        Assert.assertEquals(3, event.firstSequence);
+        Assert.assertEquals(6, event.lastSequence);
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), event.documentIds);
+
+        dispatcher.documentsChanged(Collections.singletonList(revision("d", 7)));
+        executor.runAll();
+        Assert.assertEquals(2, listener.events.size());
+        Assert.assertEquals(Arrays.asList("d"), listener.events.get(1).documentIds);
+    }
+
+    @Test
+    public void documentsChanged_noSubscribers_nothingScheduled() {
+        ManualExecutor executor = new ManualExecutor();
+        DocumentEventDispatcher dispatcher = new DocumentEventDispatcher("test", executor);
+        dispatcher.getEventBus().register(new ModifiedListener());
+        dispatcher.documentsChanged(Collections.singletonList(revision("a", 3)));
+        Assert.assertTrue(executor.tasks.isEmpty());
+    }
+
+    private static BasicDocumentRevision revision(String id, long sequence) {
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId(id);
+        builder.setRevId("1-a");
+        builder.setBody(BasicDocumentBody.bodyWith(Collections.<String, Object>emptyMap()));
+        builder.setSequence(sequence);
+        return builder.build();
+    }
+
+    public static class ModifiedListener {
+        @Subscribe
+        public void onDocumentModified(DocumentModified event) {
+        }
+    }
+
+    public static class ChangesListener {
+        final List<DocumentsChanged> events = new ArrayList<DocumentsChanged>();
+
+        @Subscribe
+        public void onDocumentsChanged(DocumentsChanged event) {
+            events.add(event);
+        }
+    }
+
+    private static class ManualExecutor implements Executor {
+        final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.poll().run();
+            }
+        }
+    }
+}
@@ -15,6 +15,9 @@
 package com.cloudant.sync.datastore;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 import org.junit.Assert;
@@ -25,11 +28,18 @@ import org.junit.Test;
 import com.cloudant.sync.notifications.DocumentCreated;
 import com.cloudant.sync.notifications.DocumentDeleted;
 import com.cloudant.sync.notifications.DocumentUpdated;
+import com.cloudant.sync.notifications.DocumentsChanged;
+import com.cloudant.sync.notifications.DocumentsCreated;
+import com.cloudant.sync.notifications.DocumentsUpdated;
 import com.google.common.eventbus.Subscribe;
 
 public class DocumentNotificationsTest extends BasicDatastoreTestBase {
 
     static CountDownLatch documentCreated, documentUpdated, documentDeleted;
+    static CountDownLatch documentsCreated, documentsUpdated, documentsChanged;
+    static DocumentsCreated lastDocumentsCreated;
+    static DocumentsUpdated lastDocumentsUpdated;
+    static DocumentsChanged lastDocumentsChanged;
 
     @Before
     public void setUp() throws Exception {
@@ -80,6 +90,96 @@ public class DocumentNotificationsTest extends BasicDatastoreTestBase {
         Assert.assertTrue("Didn't receive document deleted event", ok);
     }
 
+    @Test
+    public void notification_documents_created() throws Exception {
+        documentCreated = new CountDownLatch(1);
+        documentsCreated = new CountDownLatch(1);
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        MutableDocumentRevision rev_2Mut = new MutableDocumentRevision();
+        rev_2Mut.body = bodyTwo;
+        datastore.createDocumentsFromRevisions(Arrays.asList(rev_1Mut, rev_2Mut));
+        boolean ok = NotificationTestUtils.waitForSignal(documentsCreated);
+        Assert.assertTrue("Didn't receive documents created event", ok);
+        Assert.assertEquals(2, lastDocumentsCreated.newDocuments.size());
+        Assert.assertEquals(rev_1Mut.docId, lastDocumentsCreated.newDocuments.get(0).getId());
+        Assert.assertEquals(rev_2Mut.docId, lastDocumentsCreated.newDocuments.get(1).getId());
+        Assert.assertNull(lastDocumentsCreated.prevDocuments.get(0));
+        Assert.assertEquals(1, documentCreated.getCount());
+    }
+
+    @Test
+    public void notification_documents_updated() throws Exception {
+        documentsUpdated = new CountDownLatch(1);
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        BasicDocumentRevision rev_1 = datastore.createDocumentFromRevision(rev_1Mut);
+        MutableDocumentRevision rev_2Mut = rev_1.mutableCopy();
+        rev_2Mut.body = bodyTwo;
+        datastore.updateDocumentsFromRevisions(Arrays.asList(rev_2Mut));
+        boolean ok = NotificationTestUtils.waitForSignal(documentsUpdated);
+        Assert.assertTrue("Didn't receive documents updated event", ok);
+        Assert.assertEquals(rev_1, lastDocumentsUpdated.prevDocuments.get(0));
+        Assert.assertEquals(rev_1.getId(), lastDocumentsUpdated.newDocuments.get(0).getId());
+    }
+
+    @Test
+    public void notification_documents_changed_afterEachWrite() throws Exception {
+        documentsChanged = new CountDownLatch(1);
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        BasicDocumentRevision rev_1 = datastore.createDocumentFromRevision(rev_1Mut);
+        Assert.assertTrue("Didn't receive documents changed event",
+                NotificationTestUtils.waitForSignal(documentsChanged));
+        Assert.assertEquals(rev_1.getSequence(), lastDocumentsChanged.firstSequence);
+        Assert.assertEquals(rev_1.getSequence(), lastDocumentsChanged.lastSequence);
+        Assert.assertEquals(Arrays.asList(rev_1.getId()), lastDocumentsChanged.documentIds);
+
+        documentsChanged = new CountDownLatch(1);
+        BasicDocumentRevision deleted = datastore.deleteDocumentFromRevision(rev_1);
+        Assert.assertTrue("Didn't receive documents changed event",
+                NotificationTestUtils.waitForSignal(documentsChanged));
+        Assert.assertEquals(deleted.getSequence(), lastDocumentsChanged.lastSequence);
+    }
+
+    @Test
+    public void notification_documents_changed_oneEventPerBatch() throws Exception {
+        documentsChanged = new CountDownLatch(2);
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        MutableDocumentRevision rev_2Mut = new MutableDocumentRevision();
+        rev_2Mut.body = bodyTwo;
+        List<DocumentWriteResult> results =
+                datastore.createDocumentsFromRevisions(Arrays.asList(rev_1Mut, rev_2Mut));
+        Assert.assertEquals(1, documentsChanged.getCount());
+        Assert.assertEquals(results.get(0).getRevision().getSequence(),
+                lastDocumentsChanged.firstSequence);
+        Assert.assertEquals(results.get(1).getRevision().getSequence(),
+                lastDocumentsChanged.lastSequence);
+        Assert.assertEquals(Arrays.asList(rev_1Mut.docId, rev_2Mut.docId),
+                lastDocumentsChanged.documentIds);
+    }
+
+    @Test
+    public void notification_documents_changed_oneEventPerForceInsertBatch() throws Exception {
+        documentsChanged = new CountDownLatch(2);
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
+        for (String docId : Arrays.asList("pulled1", "pulled2", "pulled3")) {
+            DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+            builder.setDocId(docId);
+            builder.setRevId("1-a");
+            builder.setBody(bodyOne);
+            items.add(new ForceInsertItem(builder.build(), Arrays.asList("1-a"), null, null,
+                    false));
+        }
+        datastore.forceInsert(items);
+        Assert.assertEquals(1, documentsChanged.getCount());
+        Assert.assertEquals(items.get(0).rev.getSequence(), lastDocumentsChanged.firstSequence);
+        Assert.assertEquals(items.get(2).rev.getSequence(), lastDocumentsChanged.lastSequence);
+        Assert.assertEquals(Arrays.asList("pulled1", "pulled2", "pulled3"),
+                lastDocumentsChanged.documentIds);
+    }
+
     @Subscribe
     public void onDocumentCreated(DocumentCreated dc) throws Exception {
         documentCreated.countDown();
@@ -95,4 +195,24 @@ public class DocumentNotificationsTest extends BasicDatastoreTestBase {
         documentDeleted.countDown();
     }
 
+    @Subscribe
+    public void onDocumentsCreated(DocumentsCreated dc) {
+        lastDocumentsCreated = dc;
+        documentsCreated.countDown();
+    }
+
+    @Subscribe
+    public void onDocumentsUpdated(DocumentsUpdated du) {
+        lastDocumentsUpdated = du;
+        documentsUpdated.countDown();
+    }
+
+    @Subscribe
+    public void onDocumentsChanged(DocumentsChanged dc) {
+        lastDocumentsChanged = dc;
+        if (documentsChanged != null) {
+            documentsChanged.countDown();
+        }
+    }
+
 }
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.datastore;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class DocumentRevisionCacheTest {
+
+    private static BasicDocumentRevision revision(String id, String revId, int bodySize) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < bodySize; i++) {
+            value.append('x');
+        }
+        map.put("value", value.toString());
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId(id);
+        builder.setRevId(revId);
+        builder.setBody(BasicDocumentBody.bodyWith(map));
+        builder.setCurrent(true);
+        return builder.build();
+    }
+
+    @Test
+    public void get_cachedRevision_hitForCurrentAndMatchingRevision() {
+        DocumentRevisionCache cache = new DocumentRevisionCache(10, 0);
+        BasicDocumentRevision rev = revision("a", "1-a", 10);
+        cache.put(rev, cache.version("a"));
+
+        Assert.assertSame(rev, cache.get("a", null));
+        Assert.assertSame(rev, cache.get("a", "1-a"));
+        Assert.assertNull(cache.get("a", "2-a"));
+        Assert.assertNull(cache.get("b", null));
+
+        DocumentCacheStatistics stats = cache.statistics();
+        Assert.assertEquals(2, stats.getHits());
+        Assert.assertEquals(2, stats.getMisses());
+        Assert.assertEquals(0.5, stats.getHitRate(), 0.0001);
+        Assert.assertEquals(1, stats.getSize());
+    }
+
+    @Test
+    public void put_moreThanMaxDocuments_leastRecentlyUsedEvicted() {
+        DocumentRevisionCache cache = new DocumentRevisionCache(2, 0);
+        cache.put(revision("a", "1-a", 10), cache.version("a"));
+        cache.put(revision("b", "1-b", 10), cache.version("b"));
+        // use a, so b is least recently used
+        Assert.assertNotNull(cache.get("a", null));
+        cache.put(revision("c", "1-c", 10), cache.version("c"));
+
+        Assert.assertNotNull(cache.get("a", null));
+        Assert.assertNull(cache.get("b", null));
+        Assert.assertNotNull(cache.get("c", null));
+        Assert.assertEquals(1, cache.statistics().getEvictions());
+        Assert.assertEquals(2, cache.statistics().getSize());
+    }
+
+    @Test
+    public void put_moreThanMaxBytes_evictedToFit() {
+        DocumentRevisionCache cache = new DocumentRevisionCache(100, 3000);
+        for (int i = 0; i < 10; i++) {
+            cache.put(revision("doc" + i, "1-a", 1000), cache.version("doc" + i));
+        }
+        DocumentCacheStatistics stats = cache.statistics();
+        Assert.assertTrue(stats.getBytes() <= 3000);
+        Assert.assertEquals(2, stats.getSize());
+        Assert.assertNotNull(cache.get("doc9", null));
+
+        // too big to cache at all
+        cache.put(revision("big", "1-a", 5000), cache.version("big"));
+        Assert.assertNull(cache.get("big", null));
+    }
+
+    @Test
+    public void put_invalidatedSinceVersionTaken_notCached() {
+        DocumentRevisionCache cache = new DocumentRevisionCache(10, 0);
+        long version = cache.version("a");
+        cache.invalidate("a");
+        cache.put(revision("a", "1-a", 10), version);
+        Assert.assertNull(cache.get("a", null));
+
+        version = cache.version("a");
+        cache.invalidateAll();
+        cache.put(revision("a", "1-a", 10), version);
+        Assert.assertNull(cache.get("a", null));
+    }
+
+    @Test
+    public void invalidate_cachedRevision_removed() {
+        DocumentRevisionCache cache = new DocumentRevisionCache(10, 0);
+        cache.put(revision("a", "1-a", 10), cache.version("a"));
+        cache.put(revision("b", "1-b", 10), cache.version("b"));
+        cache.invalidate("a");
+        Assert.assertNull(cache.get("a", null));
+        Assert.assertNotNull(cache.get("b", null));
+        cache.invalidateAll();
+        Assert.assertNull(cache.get("b", null));
+        Assert.assertEquals(0, cache.statistics().getSize());
+        Assert.assertEquals(0, cache.statistics().getBytes());
+    }
+}
@@ -230,6 +230,54 @@ public class DocumentRevisionTreeTest {
         Assert.assertNull(m);
     }
 
+    @Test
+    public void lookup_twoTrees() {
+        DocumentRevisionTree t = new DocumentRevisionTree(c1);
+        addOneTreeInOrderOfSequence(t);
+        t.add(e1).add(e2).add(e3).add(f3).add(f4);
+
+        Assert.assertTrue(d4 == t.lookup(d4.getId(), d4.getRevision()));
+        Assert.assertTrue(f3 == t.lookup(f3.getId(), f3.getRevision()));
+        Assert.assertNull(t.lookup("id2", f3.getRevision()));
+    }
+
+    @Test
+    public void lookupChildByRevId_twoTrees() {
+        DocumentRevisionTree t = new DocumentRevisionTree(c1);
+        addOneTreeInOrderOfSequence(t);
+        t.add(e1).add(e2).add(e3).add(f3).add(f4);
+
+        Assert.assertTrue(d3 == t.lookupChildByRevId(c2, d3.getRevision()));
+        Assert.assertTrue(f3 == t.lookupChildByRevId(e2, f3.getRevision()));
+        Assert.assertNull(t.lookupChildByRevId(c3, d4.getRevision()));
+    }
+
+    @Test
+    public void add_longBranch_allRevisionsCanBeLookedUp() {
+        BasicDocumentRevision.BasicDocumentRevisionOptions opts = new BasicDocumentRevision.BasicDocumentRevisionOptions();
+        opts.docInternalId = 3l;
+        opts.sequence = 1l;
+        opts.parent = -1l;
+        DocumentRevisionTree t = new DocumentRevisionTree(
+                new BasicDocumentRevision("id3", "1-a", b, opts));
+        int n = 5000;
+        for (int i = 2; i <= n; i++) {
+            opts.sequence = i;
+            opts.parent = i - 1;
+            opts.current = i == n;
+            t.add(new BasicDocumentRevision("id3", i + "-a", b, opts));
+        }
+
+        Assert.assertEquals(1, t.leafs().size());
+        Assert.assertEquals(n + "-a", t.getCurrentRevision().getRevision());
+        Assert.assertFalse(t.hasConflicts());
+        for (int i = 1; i <= n; i++) {
+            Assert.assertEquals(i, t.lookup("id3", i + "-a").getSequence());
+        }
+        Assert.assertEquals(n - 1, t.depth(n));
+        Assert.assertThat(t.getPath(n), hasSize(n));
+    }
+
     @Test
     public void depth_oneTree() {
         DocumentRevisionTree t = new DocumentRevisionTree(c1);
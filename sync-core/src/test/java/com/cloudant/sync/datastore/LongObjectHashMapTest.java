@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongObjectHashMapTest {
+
+    @Test
+    public void put_newKey_valueCanBeRetrieved() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        Assert.assertNull(map.put(1l, "one"));
+        Assert.assertEquals("one", map.get(1l));
+        Assert.assertTrue(map.containsKey(1l));
+        Assert.assertFalse(map.containsKey(2l));
+        Assert.assertNull(map.get(2l));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void put_existingKey_valueReplaced() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        map.put(-1l, "a");
+        Assert.assertEquals("a", map.put(-1l, "b"));
+        Assert.assertEquals("b", map.get(-1l));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void put_manyKeys_allValuesRetrievedAfterResize() {
+        LongObjectHashMap<Long> map = new LongObjectHashMap<Long>();
+        for (long i = 0; i < 10000; i++) {
+            map.put(i * 31, i);
+        }
+        Assert.assertEquals(10000, map.size());
+        for (long i = 0; i < 10000; i++) {
+            Assert.assertEquals(Long.valueOf(i), map.get(i * 31));
+        }
+        Assert.assertFalse(map.containsKey(1l));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void put_nullValue_exception() {
+        new LongObjectHashMap<String>().put(1l, null);
+    }
+}
@@ -14,6 +14,7 @@
 
 package com.cloudant.sync.datastore;
 
+import com.cloudant.sync.replication.PushAttachmentsInline;
 import com.cloudant.sync.util.TestUtils;
 
 import org.junit.Assert;
@@ -28,10 +29,15 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by tomblench on 24/02/2014.
@@ -145,4 +151,87 @@ public class MultipartAttachmentWriterTests {
         Assert.assertTrue(TestUtils.streamsEqual(fis, new ByteArrayInputStream(bos.toByteArray())));
     }
 
+    @Test
+    public void WriteImageAttachmentTest() throws Exception {
+        MultipartAttachmentWriter mpw = createImageAttachmentWriter();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        mpw.writeTo(bos);
+
+        Assert.assertEquals(bos.size(), mpw.getContentLength());
+        FileInputStream fis = new FileInputStream(TestUtils.loadFixture("fixture/AddImageAttachmentTest_expected.mime"));
+        Assert.assertTrue(TestUtils.streamsEqual(fis, new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    @Test
+    public void ReadImageAttachmentAtOffsetTest() throws Exception {
+        MultipartAttachmentWriter mpw = createImageAttachmentWriter();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte buf[] = new byte[chunkSize + 2];
+        int amountRead;
+        while ((amountRead = mpw.read(buf, 1, chunkSize)) > 0) {
+            Assert.assertTrue(amountRead <= chunkSize);
+            bos.write(buf, 1, amountRead);
+        }
+
+        Assert.assertEquals(bos.size(), mpw.getContentLength());
+        FileInputStream fis = new FileInputStream(TestUtils.loadFixture("fixture/AddImageAttachmentTest_expected.mime"));
+        Assert.assertTrue(TestUtils.streamsEqual(fis, new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    @Test
+    public void GzipAttachmentSentAsStoredTest() throws Exception {
+        byte[] plain = "this is some data which will be gzipped, gzipped, gzipped".getBytes();
+        File gzipFile = new File(datastore_manager_dir, "attachment.gz");
+        GZIPOutputStream gos = new GZIPOutputStream(new FileOutputStream(gzipFile));
+        gos.write(plain);
+        gos.close();
+        byte[] gzipped = org.apache.commons.io.FileUtils.readFileToByteArray(gzipFile);
+
+        MutableDocumentRevision docMut = new MutableDocumentRevision();
+        docMut.body = bodyOne;
+        docMut.attachments.put("attachment.gz", new UnsavedFileAttachment(gzipFile, "text/plain",
+                Attachment.Encoding.Gzip));
+        BasicDocumentRevision doc = datastore.createDocumentFromRevision(docMut);
+        List<Attachment> atts = Collections.singletonList(
+                ((DatastoreExtended) datastore).getAttachment(doc, "attachment.gz"));
+
+        // the JSON body describes the attachment as gzip encoded
+        Map<String, Object> json = RevisionHistoryHelper.revisionHistoryToJson(
+                Collections.singletonList(doc), atts, PushAttachmentsInline.False);
+        Map<String, Object> att = (Map<String, Object>) ((Map<String, Object>) json.get("_attachments")).get("attachment.gz");
+        Assert.assertEquals("gzip", att.get("encoding"));
+        Assert.assertEquals((long) plain.length, att.get("length"));
+        Assert.assertEquals((long) gzipped.length, att.get("encoded_length"));
+
+        // and the MIME body is the gzipped bytes
+        MultipartAttachmentWriter mpw = RevisionHistoryHelper.createMultipartWriter(
+                Collections.singletonList(doc), atts, PushAttachmentsInline.False);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        mpw.writeTo(bos);
+        Assert.assertEquals(bos.size(), mpw.getContentLength());
+        String trailer = "\r\n--" + mpw.getBoundary() + "--";
+        byte[] written = bos.toByteArray();
+        byte[] expectedEnd = new byte[gzipped.length + trailer.length()];
+        System.arraycopy(gzipped, 0, expectedEnd, 0, gzipped.length);
+        System.arraycopy(trailer.getBytes(), 0, expectedEnd, gzipped.length, trailer.length());
+        Assert.assertArrayEquals(expectedEnd, Arrays.copyOfRange(written,
+                written.length - expectedEnd.length, written.length));
+    }
+
+    private MultipartAttachmentWriter createImageAttachmentWriter() throws Exception {
+        MutableDocumentRevision docMut = new MutableDocumentRevision();
+        docMut.body = bodyOne;
+        BasicDocumentRevision doc = datastore.createDocumentFromRevision(docMut);
+
+        MultipartAttachmentWriter mpw = new MultipartAttachmentWriter();
+        mpw.setBody(doc);
+
+        Attachment att0 = new UnsavedFileAttachment(TestUtils.loadFixture("fixture/bonsai-boston.jpg"), "image/jpeg");
+        mpw.addAttachment(att0);
+        mpw.close();
+        return mpw;
+    }
+
 }
@@ -31,18 +31,20 @@ public class IndexJoinQueryBuilderTest {
     public void integerIndex_buildQuerySQL_simpleInteger() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").equalTo(2013l);
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value = 2013";
+        String expectSQL = "SELECT album.docid FROM album WHERE album.value = ?";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.INTEGER);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013"}, builder.getArgs());
     }
 
     @Test
     public void stringIndex_buildQuerySQL_simpleString() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").equalTo("2013");
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value = '2013'";
+        String expectSQL = "SELECT album.docid FROM album WHERE album.value = ?";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.STRING);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013"}, builder.getArgs());
     }
 
 
@@ -50,18 +52,20 @@ public class IndexJoinQueryBuilderTest {
     public void integerIndex_buildQuerySQL_listOfIntegers() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").oneOf(new Long[]{2013l, 2014l, 2015l});
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value IN (2013,2014,2015)";
+        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value IN (?,?,?)";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.INTEGER);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013", "2014", "2015"}, builder.getArgs());
     }
 
     @Test
     public void stringIndex_buildQuerySQL_listOfStrings() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").oneOf(new String[]{"2013", "2014", "2015"});
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value IN ('2013','2014','2015')";
+        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value IN (?,?,?)";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.STRING);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013", "2014", "2015"}, builder.getArgs());
     }
 
 
@@ -69,18 +73,20 @@ public class IndexJoinQueryBuilderTest {
     public void integerIndex_buildQuerySQL_RangeQuery() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").greaterThanOrEqual(2012l).index("year").lessThanOrEqual(2016l);
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value <= 2016 AND album.value >= 2012";
+        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value <= ? AND album.value >= ?";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.INTEGER);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2016", "2012"}, builder.getArgs());
     }
 
     @Test
     public void stringIndex_buildQuerySQL_RangeQuery() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").greaterThanOrEqual("2012").index("year").lessThanOrEqual("2016");
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value <= '2016' AND album.value >= '2012'";
+        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value <= ? AND album.value >= ?";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.STRING);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2016", "2012"}, builder.getArgs());
     }
 
 
@@ -88,18 +94,20 @@ public class IndexJoinQueryBuilderTest {
     public void integerIndex_buildQuerySQL_RangeQueryWithMinIntegerOnly() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").greaterThanOrEqual(2012l);
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value >= 2012";
+        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value >= ?";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.INTEGER);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2012"}, builder.getArgs());
     }
 
     @Test
     public void stringIndex_buildQuerySQL_RangeQueryWithMinStringOnly() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").lessThanOrEqual("2016");
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value <= '2016'";
+        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value <= ?";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.STRING);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2016"}, builder.getArgs());
     }
 
 
@@ -107,9 +115,10 @@ public class IndexJoinQueryBuilderTest {
     public void integerIndex_buildQuerySQL_RangeQueryWithMaxIntegerOnly() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").lessThanOrEqual(2012l);
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value <= 2012";
+        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value <= ?";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.INTEGER);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2012"}, builder.getArgs());
     }
 
 
@@ -117,18 +126,20 @@ public class IndexJoinQueryBuilderTest {
     public void stringIndex_buildQuerySQL_RangeQueryWithMaxStringOnly() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").greaterThanOrEqual("2012");
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value >= '2012'";
+        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value >= ?";
         builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.STRING);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2012"}, builder.getArgs());
     }
 
     @Test
-    public void stringIndex_buildQuerySQL_singleQuoteShouldBeEscaped() {
+    public void stringIndex_buildQuerySQL_singleQuoteShouldBeBoundAsIs() {
         QueryBuilder qb = new QueryBuilder();
         qb.index("name").equalTo("tom's nick name");
-        String expectSQL = "SELECT DISTINCT album.docid FROM album WHERE album.value = 'tom''s nick name'";
+        String expectSQL = "SELECT album.docid FROM album WHERE album.value = ?";
         builder.addQueryCriterion("album", qb.build().get("query").get("name"), IndexType.STRING);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"tom's nick name"}, builder.getArgs());
     }
 
     @Test
@@ -136,13 +147,14 @@ public class IndexJoinQueryBuilderTest {
         QueryBuilder qb = new QueryBuilder();
         qb.index("year").equalTo(2013l);
         qb.index("name").equalTo("tom's nick name");
-        String expectSQL = "SELECT DISTINCT artistAlbum.docid" +
+        String expectSQL = "SELECT artistAlbum.docid" +
                 " FROM artistAlbum" +
                 " JOIN artistName ON artistAlbum.docid = artistName.docid" +
-                " WHERE artistAlbum.value = 2013 AND artistName.value = 'tom''s nick name'";
+                " WHERE artistAlbum.value = ? AND artistName.value = ?";
         builder.addQueryCriterion("artistAlbum", qb.build().get("query").get("year"), IndexType.INTEGER);
         builder.addQueryCriterion("artistName", qb.build().get("query").get("name"), IndexType.STRING);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013", "tom's nick name"}, builder.getArgs());
     }
 
     @Test
@@ -153,10 +165,11 @@ public class IndexJoinQueryBuilderTest {
         String expectSQL = "SELECT DISTINCT artistAlbum.docid" +
                 " FROM artistAlbum" +
                 " JOIN artistName ON artistAlbum.docid = artistName.docid" +
-                " WHERE artistAlbum.value = 2013 AND artistName.value IN ('Tommy Jones','Harrison Ford')";
+                " WHERE artistAlbum.value = ? AND artistName.value IN (?,?)";
         builder.addQueryCriterion("artistAlbum", qb.build().get("query").get("year"), IndexType.INTEGER);
         builder.addQueryCriterion("artistName", qb.build().get("query").get("name"), IndexType.STRING);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013", "Tommy Jones", "Harrison Ford"}, builder.getArgs());
     }
 
     @Test
@@ -170,12 +183,61 @@ public class IndexJoinQueryBuilderTest {
                 " FROM artistAlbum" +
                 " JOIN artistName ON artistAlbum.docid = artistName.docid" +
                 " JOIN artistAge ON artistAlbum.docid = artistAge.docid" +
-                " WHERE artistAlbum.value = 2013" +
-                " AND artistName.value IN ('Tommy Jones','Harrison Ford')" +
-                " AND artistAge.value <= 99 AND artistAge.value >= 23";
+                " WHERE artistAlbum.value = ?" +
+                " AND artistName.value IN (?,?)" +
+                " AND artistAge.value <= ? AND artistAge.value >= ?";
         builder.addQueryCriterion("artistAlbum", qb.build().get("query").get("year"), IndexType.INTEGER);
         builder.addQueryCriterion("artistName", qb.build().get("query").get("name"), IndexType.STRING);
         builder.addQueryCriterion("artistAge", qb.build().get("query").get("age"), IndexType.INTEGER);
         Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013", "Tommy Jones", "Harrison Ford", "99", "23"}, builder.getArgs());
+    }
+
+    @Test
+    public void integerIndex_buildQuerySQL_limitAndOffsetAreBound() {
+        QueryBuilder qb = new QueryBuilder();
+        qb.index("year").equalTo(2013l);
+        String expectSQL = "SELECT album.docid FROM album WHERE album.value = ? LIMIT ? OFFSET ?";
+        builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.INTEGER);
+        builder.addLimitOption(10);
+        builder.addOffsetOption(20);
+        Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013", "10", "20"}, builder.getArgs());
+    }
+
+    @Test
+    public void integerIndex_buildQuerySQL_offsetWithoutLimit() {
+        QueryBuilder qb = new QueryBuilder();
+        qb.index("year").equalTo(2013l);
+        String expectSQL = "SELECT album.docid FROM album WHERE album.value = ? LIMIT ? OFFSET ?";
+        builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.INTEGER);
+        builder.addOffsetOption(20);
+        Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013", "-1", "20"}, builder.getArgs());
+    }
+
+    @Test
+    public void integerIndex_buildQuerySQL_joinForSortNeedsDistinct() {
+        QueryBuilder qb = new QueryBuilder();
+        qb.index("year").equalTo(2013l);
+        String expectSQL = "SELECT DISTINCT album.docid" +
+                " FROM album" +
+                " JOIN artist ON album.docid = artist.docid" +
+                " WHERE album.value = ?" +
+                " ORDER BY artist.value asc";
+        builder.addQueryCriterion("album", qb.build().get("query").get("year"), IndexType.INTEGER);
+        builder.addJoinForSort("artist");
+        builder.addSortByOption("artist", SortDirection.Ascending);
+        Assert.assertEquals(expectSQL, builder.toSQL());
+        Assert.assertArrayEquals(new String[]{"2013"}, builder.getArgs());
+    }
+
+    @Test
+    public void integerIndex_buildQuerySQL_sameShapeSameSQL() {
+        IndexJoinQueryBuilder other = new IndexJoinQueryBuilder();
+        builder.addQueryCriterion("album", 2013l, IndexType.INTEGER);
+        other.addQueryCriterion("album", 1999l, IndexType.INTEGER);
+        Assert.assertEquals(builder.toSQL(), other.toSQL());
+        Assert.assertArrayEquals(new String[]{"1999"}, other.getArgs());
     }
 }
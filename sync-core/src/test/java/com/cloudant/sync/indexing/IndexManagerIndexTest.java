@@ -825,4 +825,77 @@ public class IndexManagerIndexTest {
         Assert.assertTrue(cursor.moveToFirst());
         Assert.assertEquals(Integer.valueOf(expectedValues.length), Integer.valueOf(cursor.getInt(0)));
     }
+
+    @Test
+    public void updateAllIndexes_indexesBehindByDifferentAmounts_allDocsIndexed()
+            throws Exception {
+        indexManager.setIndexingBatchSize(2);
+        List<BasicDocumentRevision> revs = new ArrayList<BasicDocumentRevision>();
+        revs.add(datastore.createDocumentFromRevision(dbBodies.get(1)));
+        revs.add(datastore.createDocumentFromRevision(dbBodies.get(2)));
+        Index album = createAndGetIndex("album", "album", IndexType.STRING);
+
+        revs.add(datastore.createDocumentFromRevision(dbBodies.get(3)));
+        revs.add(datastore.createDocumentFromRevision(dbBodies.get(4)));
+        revs.add(datastore.createDocumentFromRevision(dbBodies.get(5)));
+        Index artist = createAndGetIndex("artist", "artist", IndexType.STRING);
+
+        revs.add(datastore.createDocumentFromRevision(dbBodies.get(6)));
+        indexManager.updateAllIndexes();
+
+        for (BasicDocumentRevision rev : revs) {
+            IndexTestUtils.assertDBObjectInIndex(database, album, "album", rev);
+            IndexTestUtils.assertDBObjectInIndex(database, artist, "artist", rev);
+        }
+        long lastSequence = datastore.getLastSequence();
+        Assert.assertEquals(lastSequence, indexManager.getIndex("album").getLastSequence().longValue());
+        Assert.assertEquals(lastSequence, indexManager.getIndex("artist").getLastSequence().longValue());
+    }
+
+    @Test
+    public void updateAllIndexes_documentUpdated_oldValueRemoved() throws Exception {
+        Index index = createAndGetIndex("album", "album", IndexType.STRING);
+        BasicDocumentRevision rev = datastore.createDocumentFromRevision(dbBodies.get(1));
+        indexManager.updateAllIndexes();
+
+        MutableDocumentRevision update = rev.mutableCopy();
+        Map<String, Object> map = rev.getBody().asMap();
+        map.put("album", "Another album");
+        update.body = DocumentBodyFactory.create(map);
+        BasicDocumentRevision updated = datastore.updateDocumentFromRevision(update);
+        indexManager.updateAllIndexes();
+
+        IndexTestUtils.assertDBObjectInIndexWithValue(database, index, updated, "Another album");
+        Cursor cursor = database.rawQuery("SELECT COUNT(*) FROM " +
+                String.format(IndexManager.TABLE_INDEX_NAME_FORMAT, "album") + " WHERE docid = ?",
+                new String[]{updated.getId()});
+        Assert.assertTrue(cursor.moveToFirst());
+        Assert.assertEquals(1, cursor.getInt(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setIndexingBatchSize_zero_exception() {
+        indexManager.setIndexingBatchSize(0);
+    }
+
+    @Test
+    public void updateAllIndexes_indexingThreads_allDocsIndexed() throws Exception {
+        indexManager.setIndexingThreads(4);
+        Assert.assertEquals(4, indexManager.getIndexingThreads());
+        List<BasicDocumentRevision> revs = new ArrayList<BasicDocumentRevision>();
+        for (int i = 0; i < 200; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = dbBodies.get(1 + i % 6).body;
+            revs.add(datastore.createDocumentFromRevision(rev));
+        }
+        Index album = createAndGetIndex("album", "album", IndexType.STRING);
+        Index year = createAndGetIndex("year", "year", IndexType.INTEGER);
+
+        for (BasicDocumentRevision rev : revs) {
+            IndexTestUtils.assertDBObjectInIndex(database, album, "album", rev);
+            IndexTestUtils.assertDBObjectInIndex(database, year, "year", rev);
+        }
+        Assert.assertEquals(datastore.getLastSequence(),
+                indexManager.getIndex("year").getLastSequence().longValue());
+    }
 }
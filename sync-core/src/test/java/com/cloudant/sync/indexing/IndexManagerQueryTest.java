@@ -296,6 +296,14 @@ public class IndexManagerQueryTest {
         assert (resultAll.documentIds().toArray()[2].equals(result.documentIds().toArray()[0]));
     }
 
+    @Test
+    public void query_OffsetWithoutLimit() throws IndexExistsException {
+        QueryResult resultAll = indexManager.query(new QueryBuilder().index("Year").greaterThanOrEqual(0l).sortBy("Year").build());
+        QueryResult result = indexManager.query(new QueryBuilder().index("Year").greaterThanOrEqual(0l).sortBy("Year").offset(2).build());
+        Assert.assertEquals(resultAll.size() - 2, result.size());
+        Assert.assertEquals(resultAll.documentIds().toArray()[2], result.documentIds().toArray()[0]);
+    }
+
     @Test
     public void query_UniqueValues() throws IndexExistsException {
         List values = indexManager.uniqueValues("Album");
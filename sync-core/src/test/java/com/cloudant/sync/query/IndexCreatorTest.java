@@ -184,6 +184,57 @@ public class IndexCreatorTest extends AbstractIndexTestBase {
         assertThat(indexName, is(nullValue()));
     }
 
+    @Test
+    public void createPartialIndexWithOptions() {
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("type", "order");
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("selector", selector);
+        options.put("max_rows_per_document", 10);
+        String indexName = im.ensureIndexed(Arrays.<Object>asList("total"), "orders", "json",
+                                            options);
+        assertThat(indexName, is("orders"));
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> index = (Map<String, Object>) im.listIndexes().get("orders");
+        assertThat(index, hasKey("selector"));
+        assertThat((Integer) index.get("max_rows_per_document"), is(10));
+
+        // succeeds when the options are the same, fails when they're different
+        indexName = im.ensureIndexed(Arrays.<Object>asList("total"), "orders", "json", options);
+        assertThat(indexName, is("orders"));
+        indexName = im.ensureIndexed(Arrays.<Object>asList("total"), "orders", "json");
+        assertThat(indexName, is(nullValue()));
+    }
+
+    @Test
+    public void createIndexWithInvalidOptions() {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("unknown", true);
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("total"), "a", "json", options),
+                   is(nullValue()));
+
+        // the limit must be a positive integer
+        options.clear();
+        options.put("max_rows_per_document", 0);
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("total"), "b", "json", options),
+                   is(nullValue()));
+
+        // the selector must be conditions which are all required
+        Map<String, Object> orders = new HashMap<String, Object>();
+        orders.put("type", "order");
+        Map<String, Object> invoices = new HashMap<String, Object>();
+        invoices.put("type", "invoice");
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("$or", Arrays.<Object>asList(orders, invoices));
+        options.clear();
+        options.put("selector", selector);
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("total"), "c", "json", options),
+                   is(nullValue()));
+
+        assertThat(im.listIndexes().isEmpty(), is(true));
+    }
+
     @Test
     public void createIndexWithJsonType() {
         HashMap<String, String> nameField = new HashMap<String, String>();
@@ -205,10 +256,33 @@ public class IndexCreatorTest extends AbstractIndexTestBase {
         HashMap<String, String> ageField = new HashMap<String, String>();
         ageField.put("age", "desc");
 
-        // doesn't support using the text type
+        // supports using the text type
         String indexName = im.ensureIndexed(Arrays.<Object>asList(nameField, ageField),
                                             "basic",
                                             "text");
+        assertThat(indexName, is("basic"));
+
+        // but only one text index
+        indexName = im.ensureIndexed(Arrays.<Object>asList(nameField), "other", "text");
+        assertThat(indexName, is(nullValue()));
+    }
+
+    @Test
+    public void createTextIndexWithTokenizer() {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("tokenize", "porter");
+        String indexName = im.ensureIndexed(Arrays.<Object>asList("name"), "a", "text", options);
+        assertThat(indexName, is("a"));
+
+        // rejects tokenizers which don't look like a tokenizer and its arguments
+        options.put("tokenize", "porter); DROP TABLE docs; --");
+        indexName = im.ensureIndexed(Arrays.<Object>asList("name"), "b", "text", options);
+        assertThat(indexName, is(nullValue()));
+
+        // and options for json indexes
+        options.clear();
+        options.put("max_rows_per_document", 10);
+        indexName = im.ensureIndexed(Arrays.<Object>asList("name"), "c", "text", options);
         assertThat(indexName, is(nullValue()));
     }
 
@@ -16,15 +16,22 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 
 import com.cloudant.sync.datastore.DocumentBodyFactory;
 import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.cloudant.sync.sqlite.ContentValues;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.SQLDatabaseFactory;
+import com.cloudant.sync.util.TestUtils;
 
 import org.junit.Test;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class IndexManagerTest extends AbstractIndexTestBase {
@@ -75,6 +82,26 @@ public class IndexManagerTest extends AbstractIndexTestBase {
         assertThat(im.listIndexes().keySet(), containsInAnyOrder("basic", "basic3"));
     }
 
+    @Test
+    public void analyzeIndexes() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            Map<String, Object> bodyMap = new HashMap<String, Object>();
+            bodyMap.put("name", "mike");
+            bodyMap.put("age", i);
+            rev.body = DocumentBodyFactory.create(bodyMap);
+            ds.createDocumentFromRevision(rev);
+        }
+        im.ensureIndexed(Arrays.<Object>asList("name", "age"), "basic");
+        im.ensureIndexed(Arrays.<Object>asList("name"), "basic2");
+
+        assertThat(im.analyze(), is(true));
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        assertThat(im.find(query).documentIds().size(), is(4));
+    }
+
     @Test
     public void deleteNonEmptyIndex() throws Exception {
         for (int i = 0; i < 4; i++) {
@@ -120,4 +147,213 @@ public class IndexManagerTest extends AbstractIndexTestBase {
         assertThat(im.listIndexes().keySet(), containsInAnyOrder("basic", "basic3"));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void explainCoveredQuery() throws Exception {
+        createExplainDocuments();
+        im.ensureIndexed(Arrays.<Object>asList("name", "age"), "basic");
+
+        // query - { "name" : "mike" }
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        Map<String, Object> plan = im.explain(query);
+
+        assertThat(plan.get("indexes_cover_query"), is((Object) true));
+        assertThat(plan.get("post_hoc_matcher"), is((Object) false));
+        Map<String, Object> root = (Map<String, Object>) plan.get("plan");
+        assertThat(root.get("type"), is((Object) "and"));
+        List<Object> children = (List<Object>) root.get("children");
+        assertThat(children.size(), is(1));
+        Map<String, Object> sql = (Map<String, Object>) children.get(0);
+        assertThat(sql.get("type"), is((Object) "sql"));
+        assertThat(sql.get("index"), is((Object) "basic"));
+        assertThat(sql.get("args"), is((Object) Arrays.asList("mike")));
+        assertThat(plan.containsKey("profile"), is(false));
+    }
+
+    @Test
+    public void explainQueryNotCoveredByIndexes() throws Exception {
+        createExplainDocuments();
+        im.ensureIndexed(Arrays.<Object>asList("name"), "basic");
+
+        // query - { "age" : 12 }
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("age", 12);
+        Map<String, Object> plan = im.explain(query);
+
+        assertThat(plan.get("indexes_cover_query"), is((Object) false));
+        assertThat(plan.get("post_hoc_matcher"), is((Object) true));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void profileQuery() throws Exception {
+        createExplainDocuments();
+        im.ensureIndexed(Arrays.<Object>asList("name"), "basic");
+
+        // query - { "name" : "mike", "age" : 12 }
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        query.put("age", 12);
+        Map<String, String> sortName = new HashMap<String, String>();
+        sortName.put("name", "asc");
+        Map<String, Object> plan = im.explain(query, 1, 0, null, Arrays.asList(sortName), true);
+
+        Map<String, Object> sort = (Map<String, Object>) plan.get("sort");
+        assertThat(sort.get("index"), is((Object) "basic"));
+
+        Map<String, Object> root = (Map<String, Object>) plan.get("plan");
+        assertThat(root.get("rows"), is((Object) 4));
+
+        Map<String, Object> profile = (Map<String, Object>) plan.get("profile");
+        assertThat(profile.get("candidate_ids"), is((Object) 4));
+        assertThat(profile.get("matched"), is((Object) 2));
+        assertThat(profile.get("skipped"), is((Object) 1L));
+        assertThat(profile.get("returned"), is((Object) 1L));
+        // every candidate is loaded to run the post hoc matcher
+        assertThat(profile.get("documents_loaded"), is((Object) 4));
+        assertThat(profile.containsKey("total_ms"), is(true));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void profileQueryCoveredByIndexes() throws Exception {
+        createExplainDocuments();
+        im.ensureIndexed(Arrays.<Object>asList("name", "age"), "basic");
+
+        // query - { "name" : "mike", "age" : 12 }
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        query.put("age", 12);
+        Map<String, Object> plan = im.explain(query, 0, 1, null, null, true);
+
+        Map<String, Object> root = (Map<String, Object>) plan.get("plan");
+        assertThat(root.get("rows"), is((Object) 2));
+        Map<String, Object> child =
+                (Map<String, Object>) ((List<Object>) root.get("children")).get(0);
+        assertThat(child.get("rows"), is((Object) 2));
+        assertThat(child.containsKey("time_ms"), is(true));
+
+        Map<String, Object> profile = (Map<String, Object>) plan.get("profile");
+        assertThat(profile.get("candidate_ids"), is((Object) 2));
+        assertThat(profile.get("matched"), is((Object) 2));
+        assertThat(profile.get("returned"), is((Object) 1L));
+        // the candidates are read in a single batch, as the results are iterated
+        assertThat(profile.get("documents_loaded"), is((Object) 2));
+    }
+
+    @Test
+    public void explainReturnsNullForNoQuery() {
+        assertThat(im.explain(null), is(nullValue()));
+    }
+
+    private void createExplainDocuments() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            Map<String, Object> bodyMap = new HashMap<String, Object>();
+            bodyMap.put("name", "mike");
+            bodyMap.put("age", i % 2 == 0 ? 12 : 34);
+            rev.body = DocumentBodyFactory.create(bodyMap);
+            ds.createDocumentFromRevision(rev);
+        }
+    }
+
+    @Test
+    public void findUsesPartialIndexOnlyWhenQueryIncludesItsSelector() throws Exception {
+        createOrder("order1", "order", 10);
+        createOrder("order2", "order", 3);
+        createOrder("refund1", "refund", 20);
+
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("type", "order");
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("selector", selector);
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("total"), "orders", "json", options),
+                   is("orders"));
+        // a partial index can't be used to find all documents
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("type"), "types"), is("types"));
+
+        // query - { "type" : "order", "total" : { "$gt" : 5 } }
+        Map<String, Object> gt5 = new HashMap<String, Object>();
+        gt5.put("$gt", 5);
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("type", "order");
+        query.put("total", gt5);
+        assertThat((Boolean) im.explain(query).get("indexes_cover_query"), is(true));
+        assertThat(im.find(query).documentIds(), contains("order1"));
+
+        // query - { "total" : { "$gt" : 5 } } can match documents the index doesn't hold
+        query = new HashMap<String, Object>();
+        query.put("total", gt5);
+        assertThat((Boolean) im.explain(query).get("indexes_cover_query"), is(false));
+        assertThat(im.find(query).documentIds(), containsInAnyOrder("order1", "refund1"));
+    }
+
+    @Test
+    public void opensVersionOneIndexDatabase() throws Exception {
+        createOrder("order1", "order", 10);
+        createOrder("order2", "order", 3);
+
+        // Replace the index database with one in the version 1 schema, which has no
+        // index_settings column, holding an index over total
+        im.close();
+        String filename = ds.extensionDataFolder("com.cloudant.sync.query") + File.separator
+                + "indexes.sqlite";
+        assertThat(new File(filename).delete(), is(true));
+        SQLDatabase v1 = SQLDatabaseFactory.openSqlDatabase(filename);
+        String[] schema = { "CREATE TABLE " + IndexManager.INDEX_METADATA_TABLE_NAME + " ( "
+                + "        index_name TEXT NOT NULL, "
+                + "        index_type TEXT NOT NULL, "
+                + "        field_name TEXT NOT NULL, "
+                + "        last_sequence INTEGER NOT NULL);" };
+        SQLDatabaseFactory.updateSchema(v1, schema, 1);
+        for (String field: Arrays.asList("_id", "_rev", "total")) {
+            ContentValues metadata = new ContentValues();
+            metadata.put("index_name", "basic");
+            metadata.put("index_type", "json");
+            metadata.put("field_name", field);
+            metadata.put("last_sequence", 0);
+            assertThat(v1.insert(IndexManager.INDEX_METADATA_TABLE_NAME, metadata) > 0,
+                       is(true));
+        }
+        v1.execSQL("CREATE TABLE " + IndexManager.tableNameForIndex("basic")
+                   + " ( \"_id\" NONE, \"_rev\" NONE, \"total\" NONE )");
+        v1.close();
+
+        im = new IndexManager(ds);
+        db.close();
+        db = TestUtils.getDatabaseConnectionToExistingDb(im.getDatabase());
+        assertThat(db.getVersion(), is(IndexManager.VERSION));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> index = (Map<String, Object>) im.listIndexes().get("basic");
+        assertThat(index, is(notNullValue()));
+        assertThat(index.keySet(), containsInAnyOrder("name", "type", "fields"));
+
+        // the index is brought up to date and can be queried
+        Map<String, Object> gt5 = new HashMap<String, Object>();
+        gt5.put("$gt", 5);
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("total", gt5);
+        assertThat((Boolean) im.explain(query).get("indexes_cover_query"), is(true));
+        assertThat(im.find(query).documentIds(), contains("order1"));
+
+        // and a partial index can be added
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("type", "order");
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("selector", selector);
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("total"), "orders", "json", options),
+                   is("orders"));
+    }
+
+    private void createOrder(String docId, String type, int total) throws Exception {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = docId;
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        bodyMap.put("type", type);
+        bodyMap.put("total", total);
+        rev.body = DocumentBodyFactory.create(bodyMap);
+        ds.createDocumentFromRevision(rev);
+    }
+
 }
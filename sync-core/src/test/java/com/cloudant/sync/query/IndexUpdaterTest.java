@@ -37,6 +37,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class IndexUpdaterTest extends AbstractIndexTestBase {
 
@@ -469,33 +471,61 @@ public class IndexUpdaterTest extends AbstractIndexTestBase {
     }
 
     @Test
-    public void rejectsDocsWithMultipleArrays() throws Exception {
+    public void indexCombinationsOfMultipleArrays() throws Exception {
         createIndex("basic", Arrays.<Object>asList("name", "pet", "pet2"));
 
-        assertThat(getIndexSequenceNumber("basic"), is(0l));
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = "id456";
+        // body content: { "name" : "mike",
+        //                 "pet" : [ "cat", "dog", "parrot" ],
+        //                 "pet2" : [ "fish", "snake" ] }
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        bodyMap.put("name", "mike");
+        bodyMap.put("pet", Arrays.asList("cat", "dog", "parrot"));
+        bodyMap.put("pet2", Arrays.asList("fish", "snake"));
+        rev.body = DocumentBodyFactory.create(bodyMap);
+        ds.createDocumentFromRevision(rev);
+
+        assertThat(IndexUpdater.updateIndex("basic", fields, db, ds, im.getQueue()), is(true));
+        assertThat(getIndexSequenceNumber("basic"), is(1l));
 
         String table = IndexManager.tableNameForIndex("basic");
-        String sql = String.format("SELECT * FROM %s", table);
+        String sql = String.format("SELECT name, pet, pet2 FROM %s", table);
         Cursor cursor = null;
         try {
             SQLDatabase db = TestUtils.getDatabaseConnectionToExistingDb(this.db);
             cursor = db.rawQuery(sql, new String[]{});
-            assertThat(cursor.getCount(), is(0));
+            List<String> combinations = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                assertThat(cursor.getString(0), is("mike"));
+                combinations.add(cursor.getString(1) + "-" + cursor.getString(2));
+            }
+            assertThat(combinations, containsInAnyOrder("cat-fish", "cat-snake",
+                                                        "dog-fish", "dog-snake",
+                                                        "parrot-fish", "parrot-snake"));
         } catch (SQLException e) {
             Assert.fail(String.format("SQLException occurred executing %s: %s", sql, e));
         } finally {
             DatabaseUtils.closeCursorQuietly(cursor);
         }
+    }
+
+    @Test
+    public void rejectsDocsWithTooManyArrayCombinations() throws Exception {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put(IndexManager.MAX_ROWS_PER_DOCUMENT_OPTION, 4);
+        createIndex("basic", Arrays.<Object>asList("name", "pet", "pet2"), options);
+
+        List<String> pets = Arrays.asList("cat", "dog", "parrot");
 
         MutableDocumentRevision goodRev = new MutableDocumentRevision();
         goodRev.docId = "id123";
         // body content: { "name" : "mike", "pet" : [ "cat", "dog", "parrot" ] }
         Map<String, Object> goodBodyMap = new HashMap<String, Object>();
         goodBodyMap.put("name", "mike");
-        List<String> pets = Arrays.asList("cat", "dog", "parrot");
         goodBodyMap.put("pet", pets);
         goodRev.body = DocumentBodyFactory.create(goodBodyMap);
-        BasicDocumentRevision saved;
+        BasicDocumentRevision saved = ds.createDocumentFromRevision(goodRev);
 
         MutableDocumentRevision badRev = new MutableDocumentRevision();
         badRev.docId = "id456";
@@ -507,42 +537,68 @@ public class IndexUpdaterTest extends AbstractIndexTestBase {
         badBodyMap.put("pet", pets);
         badBodyMap.put("pet2", pets);
         badRev.body = DocumentBodyFactory.create(badBodyMap);
-        saved = ds.createDocumentFromRevision(goodRev);
         ds.createDocumentFromRevision(badRev);
 
         assertThat(IndexUpdater.updateIndex("basic", fields, db, ds, im.getQueue()), is(true));
         assertThat(getIndexSequenceNumber("basic"), is(2l));
 
-        // Document id123 is successfully indexed. 
-        // Document id456 is rejected due to multiple arrays.
-        cursor = null;
+        // Document id123 is successfully indexed; the limit only applies to multiple arrays.
+        // Document id456 is rejected as it needs 9 rows.
+        String table = IndexManager.tableNameForIndex("basic");
+        String sql = String.format("SELECT _id, _rev, pet FROM %s", table);
+        Cursor cursor = null;
         try {
             SQLDatabase db = TestUtils.getDatabaseConnectionToExistingDb(this.db);
             cursor = db.rawQuery(sql, new String[]{});
             assertThat(cursor.getCount(), is(3));
-            assertThat(cursor.getColumnCount(), is(5));
             List<String> petList = new ArrayList<String>();
             while (cursor.moveToNext()) {
-                assertThat(cursor.columnName(0), is("_id"));
                 assertThat(cursor.getString(0), is("id123"));
-                assertThat(cursor.columnName(1), is("_rev"));
                 assertThat(cursor.getString(1), is(saved.getRevision()));
-                assertThat(cursor.columnName(2), is("name"));
-                assertThat(cursor.getString(2), is("mike"));
-                assertThat(cursor.columnName(3), is("pet"));
-                assertThat(cursor.getString(3), is(notNullValue()));
-                petList.add(cursor.getString(3));
-                assertThat(cursor.columnName(4), is("pet2"));
-                assertThat(cursor.getString(4), is(nullValue()));
+                petList.add(cursor.getString(2));
             }
             assertThat(petList, containsInAnyOrder("cat", "dog", "parrot"));
-        }catch (SQLException e) {
+        } catch (SQLException e) {
             Assert.fail(String.format("SQLException occurred executing %s: %s", sql, e));
         } finally {
             DatabaseUtils.closeCursorQuietly(cursor);
         }
     }
 
+    @Test
+    public void partialIndexOnlyIndexesMatchingDocs() throws Exception {
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("type", "order");
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put(IndexManager.SELECTOR_OPTION, selector);
+        createIndex("orders", Arrays.<Object>asList("total"), options);
+
+        for (int i = 0; i < 4; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.docId = "doc" + i;
+            // body content: { "type" : "order" or "customer", "total" : <i> }
+            Map<String, Object> bodyMap = new HashMap<String, Object>();
+            bodyMap.put("type", i % 2 == 0 ? "order" : "customer");
+            bodyMap.put("total", i);
+            rev.body = DocumentBodyFactory.create(bodyMap);
+            ds.createDocumentFromRevision(rev);
+        }
+
+        assertThat(IndexUpdater.updateIndex("orders", fields, db, ds, im.getQueue()), is(true));
+        assertThat(indexedDocIds("orders"), containsInAnyOrder("doc0", "doc2"));
+
+        // A document which no longer matches is removed from the index
+        MutableDocumentRevision update = ds.getDocument("doc2").mutableCopy();
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        bodyMap.put("type", "customer");
+        bodyMap.put("total", 2);
+        update.body = DocumentBodyFactory.create(bodyMap);
+        ds.updateDocumentFromRevision(update);
+
+        assertThat(IndexUpdater.updateIndex("orders", fields, db, ds, im.getQueue()), is(true));
+        assertThat(indexedDocIds("orders"), containsInAnyOrder("doc0"));
+    }
+
     @Test
     public void updateAllIndexes() throws Exception {
         MutableDocumentRevision rev = new MutableDocumentRevision();
@@ -690,6 +746,58 @@ public class IndexUpdaterTest extends AbstractIndexTestBase {
         }
     }
 
+    @Test
+    public void updateIndexOnIndexingExecutor() throws Exception {
+        createIndex("basic", Arrays.<Object>asList("name", "pets"));
+
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.docId = String.format("id%04d", i);
+            // body content: { "name" : "mike<i>", "pets" : [ "cat", "dog" ] }
+            Map<String, Object> bodyMap = new HashMap<String, Object>();
+            bodyMap.put("name", "mike" + i);
+            bodyMap.put("pets", Arrays.asList("cat", "dog"));
+            rev.body = DocumentBodyFactory.create(bodyMap);
+            ds.createDocumentFromRevision(rev);
+        }
+        // delete one, so its rows are removed but not replaced
+        ds.deleteDocumentFromRevision(ds.getDocument("id0500"));
+
+        ExecutorService indexingExecutor = Executors.newFixedThreadPool(4);
+        try {
+            assertThat(IndexUpdater.updateIndex("basic", fields, db, ds, im.getQueue(),
+                                                indexingExecutor), is(true));
+        } finally {
+            indexingExecutor.shutdown();
+        }
+        assertThat(getIndexSequenceNumber("basic"), is(ds.getLastSequence()));
+
+        String table = IndexManager.tableNameForIndex("basic");
+        String sql = String.format("SELECT _id, name, pets FROM %s ORDER BY _id, pets", table);
+        Cursor cursor = null;
+        try {
+            SQLDatabase db = TestUtils.getDatabaseConnectionToExistingDb(this.db);
+            cursor = db.rawQuery(sql, new String[]{});
+            assertThat(cursor.getCount(), is((count - 1) * 2));
+            for (int i = 0; i < count; i++) {
+                if (i == 500) {
+                    continue;
+                }
+                for (String pet : new String[]{ "cat", "dog" }) {
+                    assertThat(cursor.moveToNext(), is(true));
+                    assertThat(cursor.getString(0), is(String.format("id%04d", i)));
+                    assertThat(cursor.getString(1), is("mike" + i));
+                    assertThat(cursor.getString(2), is(pet));
+                }
+            }
+        } catch (SQLException e) {
+            Assert.fail(String.format("SQLException occurred executing %s: %s", sql, e));
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+
     private long getIndexSequenceNumber(String indexName) {
         String where = String.format("index_name = \"%s\" group by last_sequence", indexName);
         String sql = String.format("SELECT last_sequence FROM %s where %s",
@@ -712,9 +820,34 @@ public class IndexUpdaterTest extends AbstractIndexTestBase {
         return lastSequence;
     }
 
-    @SuppressWarnings("unchecked")
+    private List<String> indexedDocIds(String indexName) {
+        String sql = String.format("SELECT _id FROM %s",
+                                   IndexManager.tableNameForIndex(indexName));
+        List<String> docIds = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            SQLDatabase db = TestUtils.getDatabaseConnectionToExistingDb(this.db);
+            cursor = db.rawQuery(sql, new String[]{});
+            while (cursor.moveToNext()) {
+                docIds.add(cursor.getString(0));
+            }
+        } catch (SQLException e) {
+            Assert.fail(String.format("SQLException occurred executing %s: %s", sql, e));
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+        return docIds;
+    }
+
     private void createIndex(String indexName, List<Object> fieldNames) {
-        assertThat(im.ensureIndexed(fieldNames, indexName), is(indexName));
+        createIndex(indexName, fieldNames, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void createIndex(String indexName,
+                             List<Object> fieldNames,
+                             Map<String, Object> options) {
+        assertThat(im.ensureIndexed(fieldNames, indexName, "json", options), is(indexName));
 
         Map<String, Object> indexes = im.listIndexes();
         assertThat(indexes, hasKey(indexName));
@@ -20,6 +20,7 @@ import com.cloudant.sync.util.DatabaseUtils;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
@@ -43,6 +44,7 @@ public class MockMatcherQueryExecutor extends QueryExecutor{
     @Override
     protected ChildrenQueryNode translateQuery(Map<String, Object> query,
                                                Map<String, Object> indexes,
+                                               List<Map<String, String>> sortDocument,
                                                Boolean[] indexesCoverQuery) {
         return new AndQueryNode();
     }
@@ -545,6 +545,55 @@ public class QueryCoveringIndexesTest extends AbstractQueryTestBase {
         assertThat(queryResult.size(), is(0));
     }
 
+    // When counting results
+
+    @Test
+    public void countsResultsUsingIndexes() throws Exception {
+        setUpBasicQueryData();
+        // query - { "name" : { "$eq" : "mike" } }
+        Map<String, Object> operator = new HashMap<String, Object>();
+        operator.put("$eq", "mike");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", operator);
+        assertThat(im.count(query), is(3));
+    }
+
+    @Test
+    public void countsResultsForORQuery() throws Exception {
+        setUpBasicQueryData();
+        // query - { "$or" : [ { "name" : "fred" }, { "age" : 72 } ] }
+        Map<String, Object> name = new HashMap<String, Object>();
+        name.put("name", "fred");
+        Map<String, Object> age = new HashMap<String, Object>();
+        age.put("age", 72);
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$or", Arrays.<Object>asList(name, age));
+        assertThat(im.count(query), is(3));
+    }
+
+    @Test
+    public void countReturnsErrorForNoQuery() throws Exception {
+        setUpBasicQueryData();
+        assertThat(im.count(null), is(-1));
+    }
+
+    @Test
+    public void sizeIsConsistentWithDocumentIdsWhenSkipAndLimitUsed() throws Exception {
+        setUpBasicQueryData();
+        // query - { "name" : { "$eq" : "mike" } }
+        Map<String, Object> operator = new HashMap<String, Object>();
+        operator.put("$eq", "mike");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", operator);
+        QueryResult queryResult = im.find(query, 1, 1, null, null);
+        List<String> iterated = new ArrayList<String>();
+        for (DocumentRevision rev: queryResult) {
+            iterated.add(rev.getId());
+        }
+        assertThat(queryResult.size(), is(1));
+        assertThat(queryResult.documentIds(), is(iterated));
+    }
+
     // When using dotted notation
 
     @Test
@@ -82,6 +82,60 @@ public class QuerySortTest extends AbstractQueryTestBase {
         assertThat(queryResult.documentIds(), contains("fred11", "fred34", "mike12"));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void ordersResultsInQueryWhenIndexContainsSortFields() throws Exception {
+        setUpSortingQueryData();
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("same"), "same"), is("same"));
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("same", "all");
+
+        // without sorting, the smaller index is used
+        Map<String, Object> plan = im.explain(query);
+        List<Object> children = (List<Object>) ((Map<String, Object>) plan.get("plan"))
+                .get("children");
+        assertThat(((Map<String, Object>) children.get(0)).get("index"), is((Object) "same"));
+
+        // sorting, the index which can also order the results saves a sort
+        Map<String, String> sortName = new HashMap<String, String>();
+        sortName.put("name", "asc");
+        List<Map<String, String>> order = new ArrayList<Map<String, String>>();
+        order.add(sortName);
+        plan = im.explain(query, 0, 0, null, order, true);
+        children = (List<Object>) ((Map<String, Object>) plan.get("plan")).get("children");
+        assertThat(((Map<String, Object>) children.get(0)).get("index"), is((Object) "pet"));
+        assertThat(((Map<String, Object>) children.get(0)).get("rows"), is((Object) 3));
+        Map<String, Object> sort = (Map<String, Object>) plan.get("sort");
+        assertThat(sort.get("index"), is((Object) "pet"));
+        assertThat(sort.get("in_query"), is((Object) true));
+
+        QueryResult queryResult = im.find(query, 0, Long.MAX_VALUE, null, order);
+        assertThat(queryResult.documentIds(), contains("fred11", "fred34", "mike12"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sortsSeparatelyWhenQueryUsesSeveralStatements() throws Exception {
+        setUpSortingQueryData();
+        // query - { "$or" : [ { "name" : "mike" }, { "age" : 11 } ] }
+        Map<String, Object> mike = new HashMap<String, Object>();
+        mike.put("name", "mike");
+        Map<String, Object> age = new HashMap<String, Object>();
+        age.put("age", 11);
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$or", Arrays.<Object>asList(mike, age));
+        Map<String, String> sortName = new HashMap<String, String>();
+        sortName.put("name", "desc");
+        List<Map<String, String>> order = new ArrayList<Map<String, String>>();
+        order.add(sortName);
+
+        Map<String, Object> sort = (Map<String, Object>) im.explain(query, 0, 0, null, order,
+                                                                    false).get("sort");
+        assertThat(sort.get("in_query"), is((Object) false));
+        QueryResult queryResult = im.find(query, 0, Long.MAX_VALUE, null, order);
+        assertThat(queryResult.documentIds(), contains("mike12", "fred11"));
+    }
+
     @Test
     public void sortsOnNameAge() throws Exception {
         setUpSortingQueryData();
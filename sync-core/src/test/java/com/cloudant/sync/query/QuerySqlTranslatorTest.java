@@ -26,9 +26,11 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class QuerySqlTranslatorTest extends AbstractIndexTestBase {
 
@@ -518,6 +520,60 @@ public class QuerySqlTranslatorTest extends AbstractIndexTestBase {
         assertThat(idx, is("named"));
     }
 
+    @Test
+    public void usesPartialIndexWhenQueryIncludesItsSelector() {
+        createOrdersPartialIndex();
+
+        // query - { "type" : "order", "total" : { "$gt" : 5 } }
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("type", "order");
+        Map<String, Object> gt5 = new HashMap<String, Object>();
+        gt5.put("$gt", 5);
+        query.put("total", gt5);
+        query = QueryValidator.normaliseAndValidateQuery(query);
+        QueryNode node = QuerySqlTranslator.translateQuery(query, indexes, indexesCoverQuery);
+        assertThat(node, is(instanceOf(AndQueryNode.class)));
+        AndQueryNode andNode = (AndQueryNode) node;
+        assertThat(indexesCoverQuery[0], is(true));
+        assertThat(andNode.children.size(), is(1));
+        SqlQueryNode sqlNode = (SqlQueryNode) andNode.children.get(0);
+        assertThat(sqlNode.indexName, is("orders"));
+        String select = "SELECT _id FROM _t_cloudant_sync_query_index_orders WHERE \"total\" > ?";
+        assertThat(sqlNode.sql.sqlWithPlaceHolders, is(select));
+        assertThat(sqlNode.sql.placeHolderValues, is(arrayContaining("5")));
+
+        // query - { "type" : "order" }
+        query = new HashMap<String, Object>();
+        query.put("type", "order");
+        query = QueryValidator.normaliseAndValidateQuery(query);
+        node = QuerySqlTranslator.translateQuery(query, indexes, indexesCoverQuery);
+        sqlNode = (SqlQueryNode) ((AndQueryNode) node).children.get(0);
+        assertThat(indexesCoverQuery[0], is(true));
+        assertThat(sqlNode.indexName, is("orders"));
+        assertThat(sqlNode.sql.sqlWithPlaceHolders,
+                   is("SELECT _id FROM _t_cloudant_sync_query_index_orders"));
+        assertThat(sqlNode.sql.placeHolderValues, is(emptyArray()));
+    }
+
+    @Test
+    public void ignoresPartialIndexWhenQueryDoesNotIncludeItsSelector() {
+        createOrdersPartialIndex();
+
+        // query - { "total" : { "$gt" : 5 } }
+        Map<String, Object> query = new HashMap<String, Object>();
+        Map<String, Object> gt5 = new HashMap<String, Object>();
+        gt5.put("$gt", 5);
+        query.put("total", gt5);
+        query = QueryValidator.normaliseAndValidateQuery(query);
+        QueryNode node = QuerySqlTranslator.translateQuery(query, indexes, indexesCoverQuery);
+        AndQueryNode andNode = (AndQueryNode) node;
+        assertThat(indexesCoverQuery[0], is(false));
+        SqlQueryNode sqlNode = (SqlQueryNode) andNode.children.get(0);
+        assertThat(sqlNode.indexName, is("basic"));
+        assertThat(sqlNode.sql.sqlWithPlaceHolders,
+                   is("SELECT _id FROM _t_cloudant_sync_query_index_basic"));
+    }
+
     @Test
     public void selectsIndexFromMultipleIndexesForMultiFieldQuery() {
         Map<String, Object> indexes = new HashMap<String, Object>();
@@ -551,6 +607,53 @@ public class QuerySqlTranslatorTest extends AbstractIndexTestBase {
         assertThat(idx, is("named"));
     }
 
+    @Test
+    public void prefersIndexContainingSortFields() {
+        Map<String, Object> indexes = new HashMap<String, Object>();
+
+        Map<String, Object> small = new HashMap<String, Object>();
+        small.put("name", "small");
+        small.put("type", "json");
+        small.put("fields", Arrays.<Object>asList("_id", "_rev", "name"));
+
+        Map<String, Object> sortable = new HashMap<String, Object>();
+        sortable.put("name", "sortable");
+        sortable.put("type", "json");
+        sortable.put("fields", Arrays.<Object>asList("_id", "_rev", "name", "age"));
+
+        Map<String, Object> ages = new HashMap<String, Object>();
+        ages.put("name", "ages");
+        ages.put("type", "json");
+        ages.put("fields", Arrays.<Object>asList("_id", "_rev", "age"));
+
+        indexes.put("small", small);
+        indexes.put("sortable", sortable);
+        indexes.put("ages", ages);
+
+        Map<String, Object> name = new HashMap<String, Object>();
+        name.put("name", "mike");
+        List<Object> clause = Arrays.<Object>asList(name);
+
+        // the smallest index is cheapest when the results aren't sorted
+        assertThat(QuerySqlTranslator.chooseIndexForAndClause(clause, clause, indexes, null),
+                   is("small"));
+
+        // but sorting by age would need a pass over "ages" too
+        Set<String> sortFields = new HashSet<String>(Arrays.asList("age"));
+        assertThat(QuerySqlTranslator.chooseIndexForAndClause(clause, clause, indexes, null,
+                                                              sortFields),
+                   is("sortable"));
+
+        // unless the sortable index is much bigger
+        Map<String, IndexStatistics> statistics = new HashMap<String, IndexStatistics>();
+        statistics.put("small", new IndexStatistics(100, 0));
+        statistics.put("sortable", new IndexStatistics(10000, 0));
+        statistics.put("ages", new IndexStatistics(100, 0));
+        assertThat(QuerySqlTranslator.chooseIndexForAndClause(clause, clause, indexes,
+                                                              statistics, sortFields),
+                   is("small"));
+    }
+
     @Test
     public void selectsCorrectIndexWhenSeveralMatch() {
         Map<String, Object> indexes = new HashMap<String, Object>();
@@ -590,6 +693,101 @@ public class QuerySqlTranslatorTest extends AbstractIndexTestBase {
         assertThat(Arrays.asList("named", "bopped").contains(idx), is(true));
     }
 
+    @Test
+    public void selectsNarrowestIndexWhenSeveralMatch() {
+        Map<String, Object> indexes = new LinkedHashMap<String, Object>();
+
+        Map<String, Object> wide = new HashMap<String, Object>();
+        wide.put("name", "wide");
+        wide.put("type", "json");
+        wide.put("fields", Arrays.<Object>asList("_id", "_rev", "name", "age", "pet"));
+
+        Map<String, Object> narrow = new HashMap<String, Object>();
+        narrow.put("name", "narrow");
+        narrow.put("type", "json");
+        narrow.put("fields", Arrays.<Object>asList("_id", "_rev", "name", "pet"));
+
+        indexes.put("wide", wide);
+        indexes.put("narrow", narrow);
+
+        Map<String, Object> name = new HashMap<String, Object>();
+        name.put("name", "mike");
+        Map<String, Object> pet = new HashMap<String, Object>();
+        pet.put("pet", "cat");
+
+        String idx = QuerySqlTranslator.chooseIndexForAndClause(Arrays.<Object>asList(name, pet),
+                                                                indexes);
+        assertThat(idx, is("narrow"));
+    }
+
+    @Test
+    public void selectsSmallestIndexUsingStatistics() {
+        Map<String, Object> indexes = new HashMap<String, Object>();
+
+        Map<String, Object> wide = new HashMap<String, Object>();
+        wide.put("name", "wide");
+        wide.put("type", "json");
+        wide.put("fields", Arrays.<Object>asList("_id", "_rev", "name", "age", "pet"));
+
+        Map<String, Object> narrow = new HashMap<String, Object>();
+        narrow.put("name", "narrow");
+        narrow.put("type", "json");
+        narrow.put("fields", Arrays.<Object>asList("_id", "_rev", "name", "pet"));
+
+        indexes.put("wide", wide);
+        indexes.put("narrow", narrow);
+
+        // narrow has many more rows, e.g., because pet is an array field
+        Map<String, IndexStatistics> statistics = new HashMap<String, IndexStatistics>();
+        statistics.put("wide", new IndexStatistics(100, 0));
+        statistics.put("narrow", new IndexStatistics(1000, 0));
+
+        Map<String, Object> name = new HashMap<String, Object>();
+        name.put("name", "mike");
+
+        String idx = QuerySqlTranslator.chooseIndexForAndClause(Arrays.<Object>asList(name),
+                                                                indexes,
+                                                                statistics);
+        assertThat(idx, is("wide"));
+
+        // Without statistics for every candidate, only the width is used
+        statistics.remove("narrow");
+        idx = QuerySqlTranslator.chooseIndexForAndClause(Arrays.<Object>asList(name),
+                                                         indexes,
+                                                         statistics);
+        assertThat(idx, is("narrow"));
+    }
+
+    @Test
+    public void selectsSameIndexWhateverTheOrder() {
+        Map<String, Object> first = new HashMap<String, Object>();
+        first.put("name", "first");
+        first.put("type", "json");
+        first.put("fields", Arrays.<Object>asList("_id", "_rev", "name"));
+
+        Map<String, Object> second = new HashMap<String, Object>();
+        second.put("name", "second");
+        second.put("type", "json");
+        second.put("fields", Arrays.<Object>asList("_id", "_rev", "name"));
+
+        Map<String, Object> name = new HashMap<String, Object>();
+        name.put("name", "mike");
+
+        Map<String, Object> indexes = new LinkedHashMap<String, Object>();
+        indexes.put("second", second);
+        indexes.put("first", first);
+        assertThat(QuerySqlTranslator.chooseIndexForAndClause(Arrays.<Object>asList(name),
+                                                              indexes),
+                   is("first"));
+
+        indexes = new LinkedHashMap<String, Object>();
+        indexes.put("first", first);
+        indexes.put("second", second);
+        assertThat(QuerySqlTranslator.chooseIndexForAndClause(Arrays.<Object>asList(name),
+                                                              indexes),
+                   is("first"));
+    }
+
     @Test
     public void nullWhenNoSuitableIndexAvailable() {
         Map<String, Object> indexes = new HashMap<String, Object>();
@@ -1049,4 +1247,14 @@ public class QuerySqlTranslatorTest extends AbstractIndexTestBase {
         assertThat(sql.placeHolderValues, is(arrayContainingInAnyOrder("mike", "12", "cat")));
     }
 
+    private void createOrdersPartialIndex() {
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("type", "order");
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("selector", selector);
+        indexName = im.ensureIndexed(Arrays.<Object>asList("total"), "orders", "json", options);
+        assertThat(indexName, is("orders"));
+        indexes = im.listIndexes();
+    }
+
 }
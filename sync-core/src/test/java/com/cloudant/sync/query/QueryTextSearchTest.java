@@ -0,0 +1,222 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.cloudant.sync.util.SQLDatabaseTestUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class QueryTextSearchTest extends AbstractQueryTestBase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        im = new IndexManager(ds);
+        assertThat(im, is(notNullValue()));
+        db = TestUtils.getDatabaseConnectionToExistingDb(im.getDatabase());
+        assertThat(db, is(notNullValue()));
+        String[] metadataTableList = new String[] { IndexManager.INDEX_METADATA_TABLE_NAME };
+        SQLDatabaseTestUtils.assertTablesExist(db, metadataTableList);
+
+        createNote("note1", "mike", "Shopping", "Eggs, milk and a fox shaped cake");
+        createNote("note2", "fred", "Fox watching", "The fox jumps over the lazy dog");
+        createNote("note3", "mike", "Holiday", "Remember to feed the dog");
+    }
+
+    // When searching text
+
+    @Test
+    public void findsMatchingDocumentsBestMatchFirst() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("title", "body"), "notes", "text"),
+                   is("notes"));
+
+        QueryResult result = im.find(textQuery("fox"));
+        assertThat(result, is(notNullValue()));
+        assertThat(result.documentIds(), contains("note2", "note1"));
+
+        result = im.find(textQuery("dog"));
+        assertThat(result.documentIds(), containsInAnyOrder("note2", "note3"));
+
+        result = im.find(textQuery("giraffe"));
+        assertThat(result.documentIds(), is(empty()));
+    }
+
+    @Test
+    public void usesTheSQLiteSearchSyntax() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("title", "body"), "notes", "text"),
+                   is("notes"));
+
+        assertThat(im.find(textQuery("fox dog")).documentIds(), contains("note2"));
+        assertThat(im.find(textQuery("title:fox")).documentIds(), contains("note2"));
+        assertThat(im.find(textQuery("\"lazy dog\"")).documentIds(), contains("note2"));
+        assertThat(im.find(textQuery("remem*")).documentIds(), contains("note3"));
+    }
+
+    @Test
+    public void doesNotSearchDocumentIdsOrRevisions() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("body"), "notes", "text"),
+                   is("notes"));
+
+        // every revision id starts with "1-"
+        assertThat(im.find(textQuery("1")).documentIds(), is(empty()));
+        assertThat(im.find(textQuery("note1")).documentIds(), is(empty()));
+        assertThat(im.find(textQuery("fox")).documentIds(),
+                   containsInAnyOrder("note1", "note2"));
+    }
+
+    @Test
+    public void requiresAFieldOtherThanIdAndRev() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("_id", "_rev"), "notes", "text"),
+                   is(nullValue()));
+    }
+
+    @Test
+    public void usesTheTokenizerGiven() {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("tokenize", "porter");
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("body"), "notes", "text", options),
+                   is("notes"));
+
+        // porter matches words with the same stem
+        assertThat(im.find(textQuery("jumping")).documentIds(), contains("note2"));
+    }
+
+    @Test
+    public void combinesWithIndexedClauses() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("title", "body"), "notes", "text"),
+                   is("notes"));
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("author"), "authors"), is("authors"));
+
+        Map<String, Object> query = textQuery("dog");
+        query.put("author", "mike");
+        Map<String, Object> explanation = im.explain(query);
+        assertThat((Boolean) explanation.get("indexes_cover_query"), is(true));
+        assertThat(im.find(query).documentIds(), contains("note3"));
+        assertThat(im.count(query), is(1));
+    }
+
+    @Test
+    public void combinesWithUnindexedClauses() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("title", "body"), "notes", "text"),
+                   is("notes"));
+
+        Map<String, Object> query = textQuery("fox");
+        query.put("author", "mike");
+        Map<String, Object> explanation = im.explain(query);
+        assertThat((Boolean) explanation.get("post_hoc_matcher"), is(true));
+        assertThat(im.find(query).documentIds(), contains("note1"));
+        assertThat(im.count(query), is(1));
+    }
+
+    @Test
+    public void keepsTheTextIndexUpToDate() throws Exception {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("title", "body"), "notes", "text"),
+                   is("notes"));
+        assertThat(im.find(textQuery("fox")).documentIds(), contains("note2", "note1"));
+
+        MutableDocumentRevision update = ds.getDocument("note1").mutableCopy();
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("author", "mike");
+        body.put("title", "Shopping");
+        body.put("body", "Eggs and milk");
+        update.body = DocumentBodyFactory.create(body);
+        ds.updateDocumentFromRevision(update);
+        ds.deleteDocumentFromRevision(ds.getDocument("note2"));
+        createNote("note4", "fred", "Arctic fox", "White fur");
+
+        assertThat(im.find(textQuery("fox")).documentIds(), contains("note4"));
+        assertThat(im.find(textQuery("milk")).documentIds(), contains("note1"));
+    }
+
+    @Test
+    public void indexesArrayValuesAsText() throws Exception {
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("tags", Arrays.asList("urgent", "work"));
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = "note4";
+        rev.body = DocumentBodyFactory.create(body);
+        ds.createDocumentFromRevision(rev);
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("tags"), "tags", "text"), is("tags"));
+
+        assertThat(im.find(textQuery("work")).documentIds(), contains("note4"));
+    }
+
+    @Test
+    public void explainsRankedResults() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("title", "body"), "notes", "text"),
+                   is("notes"));
+
+        Map<String, Object> explanation = im.explain(textQuery("fox"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> sort = (Map<String, Object>) explanation.get("sort");
+        assertThat((String) sort.get("index"), is("notes"));
+        assertThat((String) sort.get("fields"), is("rank"));
+    }
+
+    @Test
+    public void failsWithoutATextIndex() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("title", "body"), "notes"),
+                   is("notes"));
+
+        assertThat(im.find(textQuery("fox")), is(nullValue()));
+    }
+
+    @Test
+    public void deletesTheTextIndex() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("title", "body"), "notes", "text"),
+                   is("notes"));
+        assertThat(im.deleteIndexNamed("notes"), is(true));
+        assertThat(im.listIndexes().isEmpty(), is(true));
+
+        // can be created again
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("title", "body"), "notes", "text"),
+                   is("notes"));
+        assertThat(im.find(textQuery("fox")).documentIds(), contains("note2", "note1"));
+    }
+
+    private Map<String, Object> textQuery(String search) {
+        Map<String, Object> text = new HashMap<String, Object>();
+        text.put("$search", search);
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$text", text);
+        return query;
+    }
+
+    private void createNote(String docId, String author, String title, String text)
+            throws Exception {
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("author", author);
+        body.put("title", title);
+        body.put("body", text);
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = docId;
+        rev.body = DocumentBodyFactory.create(body);
+        ds.createDocumentFromRevision(rev);
+    }
+
+}
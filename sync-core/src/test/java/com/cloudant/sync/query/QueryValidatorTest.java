@@ -154,4 +154,36 @@ public class QueryValidatorTest {
         assertThat(QueryValidator.normaliseAndValidateQuery(query), is(nullValue()));
     }
 
+    @Test
+    public void validatesTextSearch() {
+        // query - { "$text" : { "$search" : "fox" }, "name" : "mike" }
+        Map<String, Object> search = new HashMap<String, Object>();
+        search.put("$search", "fox");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$text", search);
+        query.put("name", "mike");
+        assertThat(QueryValidator.normaliseAndValidateQuery(query), is(notNullValue()));
+
+        // query - { "$text" : { "$search" : 12 } }
+        Map<String, Object> badSearch = new HashMap<String, Object>();
+        badSearch.put("$search", 12);
+        query = new HashMap<String, Object>();
+        query.put("$text", badSearch);
+        assertThat(QueryValidator.normaliseAndValidateQuery(query), is(nullValue()));
+    }
+
+    @Test
+    public void returnsNullForTextSearchBelowTopLevelAnd() {
+        // query - { "$or" : [ { "$text" : { "$search" : "fox" } }, { "name" : "mike" } ] }
+        Map<String, Object> search = new HashMap<String, Object>();
+        search.put("$search", "fox");
+        Map<String, Object> text = new HashMap<String, Object>();
+        text.put("$text", search);
+        Map<String, Object> name = new HashMap<String, Object>();
+        name.put("name", "mike");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$or", Arrays.<Object>asList(text, name));
+        assertThat(QueryValidator.normaliseAndValidateQuery(query), is(nullValue()));
+    }
+
 }
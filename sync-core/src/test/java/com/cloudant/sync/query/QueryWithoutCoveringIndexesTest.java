@@ -105,6 +105,16 @@ public class QueryWithoutCoveringIndexesTest extends AbstractQueryTestBase {
         assertThat(queryResult.documentIds(), containsInAnyOrder("mike72", "fred12"));
     }
 
+    @Test
+    public void canCountWithoutIndexSingleClause() throws Exception {
+        setUpWithoutCoveringIndexesQueryData();
+        // query - { "town" : "bristol" }
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("town", "bristol");
+        assertThat(im.count(query), is(2));
+        assertThat(im.find(query).size(), is(2));
+    }
+
     @Test
     public void canQueryWithoutIndexMultiClause() throws Exception {
         setUpWithoutCoveringIndexesQueryData();
@@ -0,0 +1,93 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+public class StreamingValueExtractorTest {
+
+    private static final byte[] JSON = ("{ \"name\" : \"mike\", \"age\" : 31, " +
+            "\"pets\" : [ \"cat\", { \"name\" : \"rex\" } ], " +
+            "\"address\" : { \"number\" : \"1\", \"road\" : { \"name\" : \"infinite loop\" } }, " +
+            "\"large\" : { \"a\" : [ 1, 2, 3 ], \"b\" : { \"c\" : \"d\" } } }").getBytes();
+
+    private static Map<String, Object> extract(String... fields) throws IOException {
+        String[][] paths = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            paths[i] = ValueExtractor.splitFieldName(fields[i]);
+        }
+        return new StreamingValueExtractor(Arrays.asList(paths)).extract(JSON);
+    }
+
+    @Test
+    public void onlyReadsRequestedTopLevelFields() throws IOException {
+        Map<String, Object> body = extract("name");
+        assertThat(body.get("name"), is((Object) "mike"));
+        assertThat(body, not(hasKey("age")));
+        assertThat(body, not(hasKey("large")));
+    }
+
+    @Test
+    public void readsDottedFields() throws IOException {
+        Map<String, Object> body = extract("address.road.name", "age");
+        String[] path = ValueExtractor.splitFieldName("address.road.name");
+        assertThat(ValueExtractor.extractValueForFieldPath(path, body),
+                   is((Object) "infinite loop"));
+        assertThat(body.get("age"), is((Object) 31));
+        assertThat(ValueExtractor.extractValueForFieldPath(new String[]{"address", "number"},
+                                                           body),
+                   is(nullValue()));
+    }
+
+    @Test
+    public void readsArraysWhole() throws IOException {
+        Map<String, Object> body = extract("pets");
+        assertThat(body.get("pets"), is((Object) Arrays.<Object>asList("cat",
+                java.util.Collections.singletonMap("name", "rex"))));
+    }
+
+    @Test
+    public void pathThroughNonObjectHasNoValue() throws IOException {
+        Map<String, Object> body = extract("name.first", "pets.name");
+        assertThat(ValueExtractor.extractValueForFieldPath(new String[]{"name", "first"}, body),
+                   is(nullValue()));
+        assertThat(ValueExtractor.extractValueForFieldPath(new String[]{"pets", "name"}, body),
+                   is(nullValue()));
+    }
+
+    @Test
+    public void missingFieldsHaveNoValue() throws IOException {
+        Map<String, Object> body = extract("nothing", "address.nothing");
+        assertThat(body, not(hasKey("nothing")));
+        assertThat(ValueExtractor.extractValueForFieldPath(new String[]{"address", "nothing"},
+                                                           body),
+                   is(nullValue()));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsForNonObjectJson() throws IOException {
+        new StreamingValueExtractor(Arrays.<String[]>asList(new String[]{"name"}))
+                .extract("[ 1, 2 ]".getBytes());
+    }
+
+}
@@ -1108,4 +1108,113 @@ public class UnindexedMatcherTest {
         assertThat(matcher.matches(rev), is(false));
     }
 
+    @Test
+    public void matchOnIdAndRev() {
+        // Selector - { "_id" : "dsfsdfdfs", "_rev" : "1-qweqeqwewqe" }
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("_id", "dsfsdfdfs");
+        selector.put("_rev", "1-qweqeqwewqe");
+        selector = QueryValidator.normaliseAndValidateQuery(selector);
+        UnindexedMatcher matcher = UnindexedMatcher.matcherWithSelector(selector);
+        assertThat(matcher.matches(rev), is(true));
+    }
+
+    @Test
+    public void noMatchOnIdInBody() {
+        // Selector - { "_id" : "not_the_id" }
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("_id", "not_the_id");
+        selector = QueryValidator.normaliseAndValidateQuery(selector);
+        UnindexedMatcher matcher = UnindexedMatcher.matcherWithSelector(selector);
+        assertThat(matcher.matches(rev), is(false));
+    }
+
+    @Test
+    public void matchOnNestedAndOr() {
+        // Selector - { "$or" : [ { "name" : "fred" },
+        //                        { "$and" : [ { "age" : { "$gt" : 30 } },
+        //                                     { "address.road" : { "$exists" : true } },
+        //                                     { "pets" : "black_cat" } ] } ] }
+        Map<String, Object> c1 = new HashMap<String, Object>();
+        c1.put("name", "fred");
+        Map<String, Object> gt = new HashMap<String, Object>();
+        gt.put("$gt", 30);
+        Map<String, Object> c2 = new HashMap<String, Object>();
+        c2.put("age", gt);
+        Map<String, Object> exists = new HashMap<String, Object>();
+        exists.put("$exists", true);
+        Map<String, Object> c3 = new HashMap<String, Object>();
+        c3.put("address.road", exists);
+        Map<String, Object> c4 = new HashMap<String, Object>();
+        c4.put("pets", "black_cat");
+        Map<String, Object> and = new HashMap<String, Object>();
+        and.put("$and", Arrays.<Object>asList(c2, c3, c4));
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("$or", Arrays.<Object>asList(c1, and));
+        selector = QueryValidator.normaliseAndValidateQuery(selector);
+        UnindexedMatcher matcher = UnindexedMatcher.matcherWithSelector(selector);
+        assertThat(matcher.matches(rev), is(true));
+    }
+
+    @Test
+    public void matcherCanBeReusedAcrossDocuments() {
+        // Selector - { "age" : { "$lt" : 40 }, "address.number" : { "$exists" : true } }
+        Map<String, Object> lt = new HashMap<String, Object>();
+        lt.put("$lt", 40);
+        Map<String, Object> exists = new HashMap<String, Object>();
+        exists.put("$exists", true);
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("age", lt);
+        selector.put("address.number", exists);
+        selector = QueryValidator.normaliseAndValidateQuery(selector);
+        UnindexedMatcher matcher = UnindexedMatcher.matcherWithSelector(selector);
+        assertThat(matcher.matches(rev), is(true));
+
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        bodyMap.put("age", 31);
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId("other");
+        builder.setRevId("1-abc");
+        builder.setBody(DocumentBodyFactory.create(bodyMap));
+        assertThat(matcher.matches(builder.build()), is(false));
+    }
+
+    @Test
+    public void acceptAgreesWithMatchesOnRawJson() {
+        // Selector - { "$or" : [ { "name" : "fred" }, { "address.number" : "1" } ],
+        //              "pets" : "black_cat" }
+        Map<String, Object> c1 = new HashMap<String, Object>();
+        c1.put("name", "fred");
+        Map<String, Object> c2 = new HashMap<String, Object>();
+        c2.put("address.number", "1");
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("$or", Arrays.<Object>asList(c1, c2));
+        selector.put("pets", "black_cat");
+        selector = QueryValidator.normaliseAndValidateQuery(selector);
+        UnindexedMatcher matcher = UnindexedMatcher.matcherWithSelector(selector);
+        byte[] json = rev.getBody().asBytes();
+        assertThat(matcher.matches(rev), is(true));
+        assertThat(matcher.accept(rev.getId(), rev.getRevision(), json), is(true));
+
+        Map<String, Object> c3 = new HashMap<String, Object>();
+        c3.put("pets", "white_dog");
+        selector = new HashMap<String, Object>();
+        selector.put("$or", Arrays.<Object>asList(c1, c3));
+        selector = QueryValidator.normaliseAndValidateQuery(selector);
+        matcher = UnindexedMatcher.matcherWithSelector(selector);
+        assertThat(matcher.matches(rev), is(false));
+        assertThat(matcher.accept(rev.getId(), rev.getRevision(), json), is(false));
+    }
+
+    @Test
+    public void acceptMatchesOnIdWithoutReadingBody() {
+        // Selector - { "_id" : "dsfsdfdfs" }
+        Map<String, Object> selector = new HashMap<String, Object>();
+        selector.put("_id", "dsfsdfdfs");
+        selector = QueryValidator.normaliseAndValidateQuery(selector);
+        UnindexedMatcher matcher = UnindexedMatcher.matcherWithSelector(selector);
+        assertThat(matcher.accept("dsfsdfdfs", "1-a", "{}".getBytes()), is(true));
+        assertThat(matcher.accept("other", "1-a", "{}".getBytes()), is(false));
+    }
+
 }
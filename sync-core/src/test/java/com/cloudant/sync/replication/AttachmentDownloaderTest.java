@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.DocumentRevs;
+import com.cloudant.mazha.RangeInputStream;
+import com.cloudant.sync.datastore.Attachment;
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.DocumentRevsList;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.cloudant.sync.datastore.PreparedAttachment;
+import com.cloudant.sync.datastore.UnsavedStreamAttachment;
+import com.cloudant.sync.util.TestUtils;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AttachmentDownloaderTest {
+
+    String datastoreManagerDir;
+    DatastoreManager datastoreManager;
+    DatastoreExtended datastore;
+    DatastoreWrapper targetDb;
+    CouchDB sourceDb;
+    AttachmentDownloader downloader;
+
+    byte[] contents = "This is an attachment.".getBytes();
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerDir = TestUtils.createTempTestingDir(this.getClass().getName());
+        datastoreManager = new DatastoreManager(datastoreManagerDir);
+        datastore = (DatastoreExtended) datastoreManager.openDatastore(getClass().getSimpleName());
+        targetDb = new DatastoreWrapper(datastore);
+        sourceDb = mock(CouchDB.class);
+        when(sourceDb.getAttachmentStream(anyString(), anyString(), anyString(), anyLong()))
+                .thenAnswer(new Answer<RangeInputStream>() {
+            @Override
+            public RangeInputStream answer(InvocationOnMock invocation) throws Throwable {
+                return new RangeInputStream(new ByteArrayInputStream(contents), 0);
+            }
+        });
+        downloader = new AttachmentDownloader(2, Long.MAX_VALUE, 1, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        downloader.shutdown();
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void prepareAttachments_sameDigest_downloadedOnce() throws Exception {
+        DocumentRevs first = createDocumentRevs("a", "1-a", "att1", 1, digest(contents));
+        DocumentRevs second = createDocumentRevs("b", "1-b", "att2", 1, digest(contents));
+        List<DocumentRevsList> revsLists = Arrays.asList(
+                new DocumentRevsList(Collections.singletonList(first)),
+                new DocumentRevsList(Collections.singletonList(second)));
+
+        Map<DocumentRevs, List<PreparedAttachment>> prepared =
+                downloader.prepareAttachments(sourceDb, targetDb, revsLists);
+
+        verify(sourceDb, times(1)).getAttachmentStream(anyString(), anyString(), anyString(),
+                anyLong());
+        Assert.assertEquals("att1", prepared.get(first).get(0).attachment.name);
+        Assert.assertEquals("att2", prepared.get(second).get(0).attachment.name);
+        Assert.assertEquals(digest(contents), prepared.get(first).get(0).digest);
+
+        // both documents can be inserted using the one download
+        for (DocumentRevsList revsList : revsLists) {
+            targetDb.bulkInsert(revsList, attachmentsByRevision(prepared, revsList), false);
+        }
+        assertAttachmentContents(datastore.getDocument("a"), "att1");
+        assertAttachmentContents(datastore.getDocument("b"), "att2");
+    }
+
+    @Test
+    public void prepareAttachments_digestInDatastore_notDownloaded() throws Exception {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = "local";
+        rev.body = DocumentBodyFactory.create("{\"local\":true}".getBytes());
+        rev.attachments.put("local", new UnsavedStreamAttachment(
+                new ByteArrayInputStream(contents), "local", "text/plain"));
+        datastore.createDocumentFromRevision(rev);
+
+        DocumentRevs remote = createDocumentRevs("remote", "1-a", "att", 1, digest(contents));
+        DocumentRevsList revsList = new DocumentRevsList(Collections.singletonList(remote));
+        Map<DocumentRevs, List<PreparedAttachment>> prepared =
+                downloader.prepareAttachments(sourceDb, targetDb, Collections.singletonList(revsList));
+
+        verify(sourceDb, never()).getAttachmentStream(anyString(), anyString(), anyString(),
+                anyLong());
+        Assert.assertEquals(1, prepared.get(remote).size());
+        Assert.assertNull(prepared.get(remote).get(0).tempFile);
+
+        targetDb.bulkInsert(revsList, attachmentsByRevision(prepared, revsList), false);
+        assertAttachmentContents(datastore.getDocument("remote"), "att");
+    }
+
+    @Test
+    public void prepareAttachments_attachmentAtRevpos_skipped() throws Exception {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = "doc";
+        rev.body = DocumentBodyFactory.create("{\"local\":true}".getBytes());
+        rev.attachments.put("att", new UnsavedStreamAttachment(
+                new ByteArrayInputStream(contents), "att", "text/plain"));
+        BasicDocumentRevision saved = datastore.createDocumentFromRevision(rev);
+
+        // the second revision of the document, whose attachment hasn't changed
+        // since the first
+        DocumentRevs remote = createDocumentRevs("doc", "2-b", "att", 1, "md5-unknown");
+        remote.getRevisions().setIds(Arrays.asList("b", saved.getRevision().substring(2)));
+        remote.getRevisions().setStart(2);
+        DocumentRevsList revsList = new DocumentRevsList(Collections.singletonList(remote));
+        Map<DocumentRevs, List<PreparedAttachment>> prepared =
+                downloader.prepareAttachments(sourceDb, targetDb, Collections.singletonList(revsList));
+
+        verify(sourceDb, never()).getAttachmentStream(anyString(), anyString(), anyString(),
+                anyLong());
+        Assert.assertTrue(prepared.get(remote).isEmpty());
+    }
+
+    private DocumentRevs createDocumentRevs(String id, String rev, String attachmentName,
+                                            int revpos, String digest) {
+        DocumentRevs documentRevs = new DocumentRevs();
+        documentRevs.setId(id);
+        documentRevs.setRev(rev);
+        documentRevs.setOthers("body", "This is a body.");
+        DocumentRevs.Revisions revisions = new DocumentRevs.Revisions();
+        revisions.setStart(Integer.valueOf(rev.substring(0, rev.indexOf('-'))));
+        revisions.setIds(Collections.singletonList(rev.substring(rev.indexOf('-') + 1)));
+        documentRevs.setRevisions(revisions);
+
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("content_type", "text/plain");
+        metadata.put("revpos", revpos);
+        metadata.put("digest", digest);
+        metadata.put("length", contents.length);
+        metadata.put("stub", true);
+        Map<String, Object> attachments = new HashMap<String, Object>();
+        attachments.put(attachmentName, metadata);
+        documentRevs.setAttachments(attachments);
+        return documentRevs;
+    }
+
+    private Map<String[], List<PreparedAttachment>> attachmentsByRevision(
+            Map<DocumentRevs, List<PreparedAttachment>> prepared, DocumentRevsList revsList) {
+        Map<String[], List<PreparedAttachment>> atts = new HashMap<String[], List<PreparedAttachment>>();
+        for (DocumentRevs documentRevs : revsList) {
+            atts.put(new String[]{documentRevs.getId(), documentRevs.getRev()},
+                    prepared.get(documentRevs));
+        }
+        return atts;
+    }
+
+    private void assertAttachmentContents(BasicDocumentRevision rev, String name) throws Exception {
+        Attachment attachment = datastore.getAttachment(rev, name);
+        Assert.assertNotNull(attachment);
+        Assert.assertTrue(Arrays.equals(contents,
+                IOUtils.toByteArray(attachment.getInputStream())));
+    }
+
+    private static String digest(byte[] bytes) throws Exception {
+        byte[] md5 = MessageDigest.getInstance("MD5").digest(bytes);
+        return "md5-" + new String(new Base64().encode(md5));
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.Response;
+import com.cloudant.sync.datastore.Attachment;
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.MultipartAttachmentWriter;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.cloudant.sync.datastore.RevisionHistoryHelper;
+import com.cloudant.sync.datastore.UnsavedStreamAttachment;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MultipartUploaderTest {
+
+    String datastoreManagerDir;
+    DatastoreManager datastoreManager;
+    DatastoreExtended datastore;
+    CouchDB targetDb;
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerDir = TestUtils.createTempTestingDir(this.getClass().getName());
+        datastoreManager = new DatastoreManager(datastoreManagerDir);
+        datastore = (DatastoreExtended) datastoreManager.openDatastore(getClass().getSimpleName());
+        targetDb = mock(CouchDB.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerDir);
+    }
+
+    @Test
+    public void submit_threeThreads_uploadsRunConcurrently() throws Exception {
+        final CountDownLatch allStarted = new CountDownLatch(3);
+        when(targetDb.putMultipart(any(MultipartAttachmentWriter.class))).thenAnswer(new Answer<Response>() {
+            @Override
+            public Response answer(InvocationOnMock invocation) throws Throwable {
+                allStarted.countDown();
+                // only returns if the other uploads are running at the same time
+                Assert.assertTrue(allStarted.await(10, TimeUnit.SECONDS));
+                return new Response();
+            }
+        });
+
+        MultipartUploader uploader = new MultipartUploader(3, Long.MAX_VALUE, 1, 0);
+        for (int i = 0; i < 3; i++) {
+            uploader.submit(createUploadTask(1000));
+        }
+        Assert.assertEquals(3, uploader.awaitUploads().size());
+        uploader.shutdown();
+    }
+
+    @Test
+    public void submit_bytesInFlightLimit_uploadsThrottled() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        when(targetDb.putMultipart(any(MultipartAttachmentWriter.class))).thenAnswer(new Answer<Response>() {
+            @Override
+            public Response answer(InvocationOnMock invocation) throws Throwable {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                Thread.sleep(20);
+                running.decrementAndGet();
+                return new Response();
+            }
+        });
+
+        List<MultipartUploadTask> tasks = new ArrayList<MultipartUploadTask>();
+        for (int i = 0; i < 6; i++) {
+            tasks.add(createUploadTask(1000));
+        }
+        // room for two uploads at a time, although there are four threads
+        long limit = tasks.get(0).getContentLength() * 2;
+        MultipartUploader uploader = new MultipartUploader(4, limit, 1, 0);
+        for (MultipartUploadTask task : tasks) {
+            uploader.submit(task);
+        }
+        Assert.assertEquals(6, uploader.awaitUploads().size());
+        Assert.assertEquals(2, maxRunning.get());
+        uploader.shutdown();
+    }
+
+    @Test
+    public void submit_uploadFailsOnce_retriedWithNewWriter() throws Exception {
+        final List<MultipartAttachmentWriter> writers = new ArrayList<MultipartAttachmentWriter>();
+        when(targetDb.putMultipart(any(MultipartAttachmentWriter.class))).thenAnswer(new Answer<Response>() {
+            @Override
+            public Response answer(InvocationOnMock invocation) throws Throwable {
+                MultipartAttachmentWriter mpw = (MultipartAttachmentWriter) invocation.getArguments()[0];
+                writers.add(mpw);
+                if (writers.size() == 1) {
+                    throw new RuntimeException("Mocked error.");
+                }
+                return new Response();
+            }
+        });
+
+        MultipartUploader uploader = new MultipartUploader(2, Long.MAX_VALUE, 3, 0);
+        uploader.submit(createUploadTask(1000));
+        Assert.assertEquals(1, uploader.awaitUploads().size());
+        uploader.shutdown();
+
+        Assert.assertEquals(2, writers.size());
+        Assert.assertNotSame(writers.get(0), writers.get(1));
+        Assert.assertEquals(writers.get(0).getContentLength(), writers.get(1).getContentLength());
+    }
+
+    @Test
+    public void awaitUploads_uploadAlwaysFails_exception() throws Exception {
+        when(targetDb.putMultipart(any(MultipartAttachmentWriter.class)))
+                .thenThrow(new RuntimeException("Mocked error."));
+
+        MultipartUploader uploader = new MultipartUploader(2, Long.MAX_VALUE, 2, 0);
+        uploader.submit(createUploadTask(1000));
+        uploader.submit(createUploadTask(1000));
+        try {
+            uploader.awaitUploads();
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        uploader.shutdown();
+        verify(targetDb, times(4)).putMultipart(any(MultipartAttachmentWriter.class));
+    }
+
+    private MultipartUploadTask createUploadTask(int attachmentSize) throws Exception {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.body = DocumentBodyFactory.create("{\"body\":\"This is a body.\"}".getBytes());
+        rev.attachments.put("att", new UnsavedStreamAttachment(
+                new ByteArrayInputStream(new byte[attachmentSize]), "att", "application/octet-stream"));
+        BasicDocumentRevision saved = datastore.createDocumentFromRevision(rev);
+
+        List<BasicDocumentRevision> path = Collections.singletonList(saved);
+        List<? extends Attachment> atts = datastore.attachmentsForRevision(saved);
+        MultipartAttachmentWriter mpw = RevisionHistoryHelper.createMultipartWriter(path, atts,
+                PushAttachmentsInline.False);
+        return new MultipartUploadTask(targetDb, path, atts, PushAttachmentsInline.False, mpw);
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.common.RetriableTask;
+import com.cloudant.mazha.CouchException;
+import com.cloudant.mazha.RangeInputStream;
+import com.cloudant.sync.datastore.AttachmentNotSavedException;
+import com.cloudant.sync.datastore.PreparedAttachment;
+import com.cloudant.sync.datastore.UnsavedStreamAttachment;
+import com.cloudant.sync.util.TestUtils;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ResumableAttachmentDownloadTest {
+
+    String downloadsDir;
+    CouchDB sourceDb;
+    byte[] contents;
+
+    @Before
+    public void setUp() throws Exception {
+        downloadsDir = TestUtils.createTempTestingDir(this.getClass().getName());
+        sourceDb = mock(CouchDB.class);
+        contents = new byte[100 * 1024];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestUtils.deleteTempTestingDir(downloadsDir);
+    }
+
+    @Test
+    public void call_connectionDrops_retryResumesFromPartialFile() throws Exception {
+        final int dropAt = 60 * 1024;
+        when(sourceDb.getAttachmentStream(anyString(), anyString(), anyString(), anyLong()))
+                .thenAnswer(new Answer<RangeInputStream>() {
+            @Override
+            public RangeInputStream answer(InvocationOnMock invocation) throws Throwable {
+                long offset = (Long) invocation.getArguments()[3];
+                if (offset == 0) {
+                    return new RangeInputStream(new DroppingInputStream(contents, dropAt), 0);
+                }
+                return new RangeInputStream(new ByteArrayInputStream(contents, (int) offset,
+                        contents.length - (int) offset), offset);
+            }
+        });
+
+        ResumableAttachmentDownload download = createDownload(digest(contents));
+        PreparedAttachment prepared = new RetriableTask<PreparedAttachment>(2, 0, download).call();
+
+        verify(sourceDb).getAttachmentStream("doc", "1-a", "att", 0);
+        verify(sourceDb).getAttachmentStream("doc", "1-a", "att", dropAt);
+        Assert.assertEquals(digest(contents), prepared.digest);
+        Assert.assertEquals(contents.length, prepared.length);
+        Assert.assertTrue(Arrays.equals(contents, FileUtils.readFileToByteArray(prepared.tempFile)));
+    }
+
+    @Test
+    public void call_serverIgnoresRange_partialFileOverwritten() throws Exception {
+        ResumableAttachmentDownload download = createDownload(digest(contents));
+        FileUtils.writeByteArrayToFile(download.getPartialFile(), new byte[]{1, 2, 3});
+        when(sourceDb.getAttachmentStream(anyString(), anyString(), anyString(), eq(3L)))
+                .thenReturn(new RangeInputStream(new ByteArrayInputStream(contents), 0));
+
+        PreparedAttachment prepared = download.call();
+
+        Assert.assertEquals(digest(contents), prepared.digest);
+        Assert.assertTrue(Arrays.equals(contents, FileUtils.readFileToByteArray(prepared.tempFile)));
+    }
+
+    @Test
+    public void call_partialFileComplete_rangeNotSatisfiable() throws Exception {
+        ResumableAttachmentDownload download = createDownload(digest(contents));
+        FileUtils.writeByteArrayToFile(download.getPartialFile(), contents);
+        when(sourceDb.getAttachmentStream(anyString(), anyString(), anyString(), anyLong()))
+                .thenThrow(new CouchException("Requested Range Not Satisfiable", 416));
+
+        PreparedAttachment prepared = download.call();
+
+        Assert.assertEquals(digest(contents), prepared.digest);
+    }
+
+    @Test
+    public void call_digestMismatch_partialFileDeleted() throws Exception {
+        when(sourceDb.getAttachmentStream(anyString(), anyString(), anyString(), anyLong()))
+                .thenReturn(new RangeInputStream(new ByteArrayInputStream(contents), 0));
+
+        ResumableAttachmentDownload download = createDownload(digest(new byte[]{1, 2, 3}));
+        try {
+            download.call();
+            Assert.fail("Expected AttachmentNotSavedException");
+        } catch (AttachmentNotSavedException e) {
+            // expected
+        }
+        Assert.assertFalse(download.getPartialFile().exists());
+        verify(sourceDb, times(1)).getAttachmentStream(anyString(), anyString(), anyString(),
+                anyLong());
+    }
+
+    private ResumableAttachmentDownload createDownload(String digest) {
+        return new ResumableAttachmentDownload(sourceDb, "doc", "1-a",
+                new UnsavedStreamAttachment(null, "att", "application/octet-stream"), digest, -1,
+                new File(downloadsDir));
+    }
+
+    private static String digest(byte[] bytes) throws Exception {
+        byte[] md5 = MessageDigest.getInstance("MD5").digest(bytes);
+        return "md5-" + new String(new Base64().encode(md5));
+    }
+
+    /**
+     * Returns the first bytes of an array, then fails as if the connection
+     * had been lost.
+     */
+    private static class DroppingInputStream extends InputStream {
+
+        private final byte[] bytes;
+        private final int dropAt;
+        private int position = 0;
+
+        DroppingInputStream(byte[] bytes, int dropAt) {
+            this.bytes = bytes;
+            this.dropAt = dropAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= dropAt) {
+                throw new IOException("Connection reset");
+            }
+            return bytes[position++] & 0xff;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.sqlite;
+
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class SQLDatabaseQueueTest {
+
+    String database_dir;
+    String database_file;
+    SQLDatabaseQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        database_dir = TestUtils.createTempTestingDir(SQLDatabaseQueueTest.class.getName());
+        database_file = database_dir + File.separator + "queue_test";
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null) {
+            queue.shutdown();
+        }
+        TestUtils.deleteTempTestingDir(database_dir);
+    }
+
+    @Test
+    public void durabilityPolicy_walAndNormal_pragmasApplied() throws Exception {
+        DurabilityPolicy policy = new DurabilityPolicy();
+        policy.journalMode = DurabilityPolicy.JournalMode.WAL;
+        policy.synchronous = DurabilityPolicy.Synchronous.NORMAL;
+        policy.walAutoCheckpoint = 500;
+        queue = new SQLDatabaseQueue(database_file, policy);
+
+        Assert.assertEquals("wal", pragma("journal_mode"));
+        // NORMAL is 1
+        Assert.assertEquals(1, intPragma("synchronous"));
+        Assert.assertEquals(500, intPragma("wal_autocheckpoint"));
+    }
+
+    @Test
+    public void durabilityPolicy_default_pragmasUnchanged() throws Exception {
+        queue = new SQLDatabaseQueue(database_file);
+        Assert.assertEquals("delete", pragma("journal_mode"));
+        // FULL is 2
+        Assert.assertEquals(2, intPragma("synchronous"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void durabilityPolicy_negativeWindow_exception() throws Exception {
+        DurabilityPolicy policy = new DurabilityPolicy();
+        policy.groupCommitWindowMillis = -1;
+        queue = new SQLDatabaseQueue(database_file, policy);
+    }
+
+    @Test
+    public void groupCommit_manyTransactions_allCommitted() throws Exception {
+        queue = createGroupCommitQueue(20);
+        createTable();
+
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(insert(i, false));
+        }
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(futures.get(i).get() > 0);
+        }
+        Assert.assertEquals(50, countInNewConnection());
+    }
+
+    @Test
+    public void groupCommit_failedTransaction_othersInGroupCommitted() throws Exception {
+        queue = createGroupCommitQueue(100);
+        createTable();
+
+        Future<Long> first = insert(1, false);
+        Future<Long> failed = insert(2, true);
+        Future<Long> last = insert(3, false);
+
+        try {
+            failed.get();
+            Assert.fail("Transaction didn't fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertTrue(first.get() > 0);
+        Assert.assertTrue(last.get() > 0);
+        Assert.assertEquals(2, countInNewConnection());
+        Assert.assertEquals(2, count());
+    }
+
+    @Test
+    public void groupCommit_firstTransactionFailed_restOfGroupCommitted() throws Exception {
+        queue = createGroupCommitQueue(100);
+        createTable();
+
+        // rolling back the first transaction mustn't end the group it opened
+        Future<Long> failed = insert(1, true);
+        Future<Long> second = insert(2, false);
+        Future<Long> third = insert(3, false);
+
+        try {
+            failed.get();
+            Assert.fail("Transaction didn't fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertTrue(second.get() > 0);
+        Assert.assertTrue(third.get() > 0);
+        Assert.assertEquals(2, countInNewConnection());
+    }
+
+    @Test
+    public void groupCommit_submitAfterTransaction_groupCommittedFirst() throws Exception {
+        DurabilityPolicy policy = new DurabilityPolicy();
+        // long enough that only the submitted task can commit the group
+        policy.groupCommitWindowMillis = 60 * 1000;
+        queue = new SQLDatabaseQueue(database_file, policy);
+        createTable();
+
+        Future<Long> inserted = insert(1, false);
+        Assert.assertEquals(1, count());
+        Assert.assertTrue(inserted.isDone());
+        Assert.assertEquals(1, countInNewConnection());
+    }
+
+    private SQLDatabaseQueue createGroupCommitQueue(int maxTransactions) throws Exception {
+        DurabilityPolicy policy = new DurabilityPolicy();
+        policy.journalMode = DurabilityPolicy.JournalMode.WAL;
+        policy.groupCommitWindowMillis = 20;
+        policy.groupCommitMaxTransactions = maxTransactions;
+        return new SQLDatabaseQueue(database_file, policy);
+    }
+
+    private void createTable() throws Exception {
+        queue.submit(new SQLQueueCallable<Object>() {
+            @Override
+            public Object call(SQLDatabase db) throws Exception {
+                db.execSQL("CREATE TABLE things (id INTEGER PRIMARY KEY, value INTEGER)");
+                return null;
+            }
+        }).get();
+    }
+
+    private Future<Long> insert(final int value, final boolean fail) {
+        return queue.submitTransaction(new SQLQueueCallable<Long>() {
+            @Override
+            public Long call(SQLDatabase db) throws Exception {
+                ContentValues values = new ContentValues();
+                values.put("value", value);
+                long rowId = db.insert("things", values);
+                if (fail) {
+                    throw new IllegalStateException("Failing transaction");
+                }
+                return rowId;
+            }
+        });
+    }
+
+    private int count() throws Exception {
+        return queue.submit(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("SELECT COUNT(*) FROM things", null);
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+
+    /**
+     * Counts rows using a separate connection, which only sees committed
+     * transactions.
+     */
+    private int countInNewConnection() throws Exception {
+        SQLDatabase db = SQLDatabaseFactory.openSqlDatabase(database_file);
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("SELECT COUNT(*) FROM things", null);
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+            db.close();
+        }
+    }
+
+    private String pragma(final String name) throws Exception {
+        return queue.submit(new SQLQueueCallable<String>() {
+            @Override
+            public String call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("PRAGMA " + name, null);
+                    cursor.moveToFirst();
+                    return cursor.getString(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+
+    private int intPragma(final String name) throws Exception {
+        return queue.submit(new SQLQueueCallable<Integer>() {
+            @Override
+            public Integer call(SQLDatabase db) throws Exception {
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery("PRAGMA " + name, null);
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                } finally {
+                    DatabaseUtils.closeCursorQuietly(cursor);
+                }
+            }
+        }).get();
+    }
+}